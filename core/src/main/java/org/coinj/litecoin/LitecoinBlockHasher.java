@@ -30,11 +30,19 @@ import org.coinj.scrypt.ScryptAlg;
 */
 public final class LitecoinBlockHasher extends AbstractComplexBlockHasher {
 
+    private volatile HeaderMemo memo;
+
     LitecoinBlockHasher() {}
 
     @Override
     protected Sha256Hash calculatePofHash(Block block) {
-        return new Sha256Hash(Utils.reverseBytes(ScryptAlg.scryptDigest(block.headerAsBytes())));
+        final HeaderMemo current = memoFor(block);
+        Sha256Hash powHash = current.powHash;
+        if (powHash == null) {
+            powHash = new Sha256Hash(Utils.reverseBytes(ScryptAlg.scryptDigest(current.headerBytes)));
+            current.powHash = powHash;
+        }
+        return powHash;
     }
 
     @Override
@@ -44,7 +52,67 @@ public final class LitecoinBlockHasher extends AbstractComplexBlockHasher {
 
     @Override
     protected Sha256Hash calculateHash(Block block) {
-        return new Sha256Hash(Utils.dSha256Hash(block.headerAsBytes()));
+        final HeaderMemo current = memoFor(block);
+        Sha256Hash hash = current.hash;
+        if (hash == null) {
+            hash = new Sha256Hash(Utils.dSha256Hash(current.headerBytes));
+            current.hash = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * @return the 80 byte serialized header, from the memo when the header hasn't changed since it was last hashed.
+     */
+    public byte[] headerBytes(Block block) {
+        return memoFor(block).headerBytes.clone();
+    }
+
+    // Comparing six header fields is enough to notice a new nonce, time or merkle root without reserializing.
+    private HeaderMemo memoFor(Block block) {
+        final HeaderMemo current = memo;
+        if (current != null && current.matches(block))
+            return current;
+        final HeaderMemo fresh = new HeaderMemo(block);
+        memo = fresh;
+        return fresh;
+    }
+
+    /**
+     * One serialization of a header with both hashes computed from it, keyed by a snapshot of the header fields.
+     */
+    private static final class HeaderMemo {
+
+        private final long version;
+        private final Sha256Hash prevBlockHash;
+        private final Sha256Hash merkleRoot;
+        private final long time;
+        private final long difficultyTarget;
+        private final long nonce;
+        private final byte[] headerBytes;
+        // Filled in lazily; racing threads compute the same value.
+        private volatile Sha256Hash hash;
+        private volatile Sha256Hash powHash;
+
+        private HeaderMemo(Block block) {
+            version = block.getVersion();
+            prevBlockHash = block.getPrevBlockHash();
+            merkleRoot = block.getMerkleRoot();
+            time = block.getTimeSeconds();
+            difficultyTarget = block.getDifficultyTarget();
+            nonce = block.getNonce();
+            headerBytes = block.headerAsBytes();
+        }
+
+        private boolean matches(Block block) {
+            return nonce == block.getNonce()
+                    && time == block.getTimeSeconds()
+                    && difficultyTarget == block.getDifficultyTarget()
+                    && version == block.getVersion()
+                    && merkleRoot.equals(block.getMerkleRoot())
+                    && prevBlockHash.equals(block.getPrevBlockHash());
+        }
+
     }
 
 }
@@ -423,7 +423,7 @@ public class LitecoinDefinition implements CoinDefinition, Serializable {
 
     @Override
     public TransactionExtension createTransactionExtension(Transaction transaction) {
-        return new EmptyTransactionExtension(transaction);
+        return new LitecoinTransactionExtension(transaction);
     }
 
     @Override
@@ -438,7 +438,7 @@ public class LitecoinDefinition implements CoinDefinition, Serializable {
 
     @Override
     public PeerGroupExtension createPeerGroupExtension(PeerGroup peerGroup) {
-        return EmptyPeerGroupExtension.INSTANCE;
+        return new LitecoinPeerGroupExtension(peerGroup);
     }
 
     @Override
@@ -453,7 +453,7 @@ public class LitecoinDefinition implements CoinDefinition, Serializable {
 
     @Override
     public WalletCoinSpecifics createWalletCoinSpecifics(Wallet wallet) {
-        return EmptyWalletCoinSpecifics.INSTANCE;
+        return new LitecoinWalletCoinSpecifics(wallet);
     }
 
     @Override
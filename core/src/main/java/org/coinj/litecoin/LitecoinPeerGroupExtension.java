@@ -0,0 +1,324 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.core.AbstractPeerEventListener;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.InventoryItem;
+import org.bitcoinj.core.InventoryMessage;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
+import org.coinj.commons.EmptyPeerGroupExtension;
+import org.coinj.litecoin.net.ByteBufferPool;
+import org.coinj.litecoin.net.CompactBlockRelay;
+import org.coinj.litecoin.net.DownloadPeerSelector;
+import org.coinj.litecoin.net.MempoolSource;
+import org.coinj.litecoin.net.ParallelBlockDownloadScheduler;
+import org.coinj.litecoin.net.PooledMessageFramer;
+import org.coinj.litecoin.net.PeerPerformance;
+import org.coinj.litecoin.net.StripedConfidenceTable;
+import org.coinj.litecoin.store.HeightIndex;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Litecoin's side of a {@link PeerGroup}. Every connected peer is measured in a {@link DownloadPeerSelector}:
+ * chain download blocks are timed per peer, and the RTT of the peer's last ping is sampled whenever it delivers a
+ * block and before every selection, so both halves of {@link PeerPerformance#getScore} are filled in.</p>
+ *
+ * <p>PeerGroup keeps choosing its own download peer, it has no way to take one from outside. The selector's pick
+ * among the connected peers is {@link #selectDownloadPeer(PeerPerformance.Phase)}.</p>
+ *
+ * <p>Transaction announcements and relayed transactions go into a {@link StripedConfidenceTable}, together with the
+ * heights of the downloaded blocks that confirm them. Heights follow the chain of downloaded blocks and restart from
+ * the announcing peer's best height minus the blocks it has left whenever a block doesn't build on the last one.</p>
+ *
+ * <p>{@link #downloadInParallel} fetches a range of the header chain from all connected peers at once, sharing the
+ * peers' measurements with the selector.</p>
+ *
+ * <p>The group is also the {@link MempoolSource} {@link CompactBlockRelay}s rebuild blocks from: transactions peers
+ * relay are kept, up to {@link #MAX_MEMPOOL_TRANSACTIONS} of them, until a downloaded block confirms them. The relay
+ * messages themselves need a transport that knows the BIP 152 commands; the stock peer drops them. Such transports
+ * frame their connections with {@link #newMessageFramer}, all of whose payload buffers come from one pool.</p>
+ */
+public final class LitecoinPeerGroupExtension extends EmptyPeerGroupExtension {
+
+    /** How often parallel downloads look for stalled peers. */
+    static final long DOWNLOAD_TICK_MILLIS = 1000;
+    /** Relayed transactions kept for compact block reconstruction, the oldest go first. */
+    public static final int MAX_MEMPOOL_TRANSACTIONS = 10000;
+
+    private final PeerGroup peerGroup;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Litecoin peer group %d").build());
+    private final StripedConfidenceTable confidenceTable =
+            new StripedConfidenceTable(executor, StripedConfidenceTable.DEFAULT_COALESCING_MILLIS);
+    private final DownloadPeerSelector<Peer> selector = new DownloadPeerSelector<Peer>();
+    private final ConcurrentHashMap<Peer, Long> lastBlockMillis = new ConcurrentHashMap<Peer, Long>();
+    @Nullable private Sha256Hash tipHash;
+    private int tipHeight = -1;
+    private final ByteBufferPool bufferPool = new ByteBufferPool();
+    private final LinkedHashMap<Sha256Hash, Transaction> mempool = new LinkedHashMap<Sha256Hash, Transaction>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> eldest) {
+            return size() > MAX_MEMPOOL_TRANSACTIONS;
+        }
+    };
+    private final MempoolSource mempoolSource = new MempoolSource() {
+        @Override
+        public Iterable<Transaction> getMempoolTransactions() {
+            synchronized (mempool) {
+                return ImmutableList.copyOf(mempool.values());
+            }
+        }
+    };
+    private final CopyOnWriteArrayList<ParallelDownload> downloads = new CopyOnWriteArrayList<ParallelDownload>();
+
+    private final AbstractPeerEventListener listener = new AbstractPeerEventListener() {
+        @Override
+        public void onPeerConnected(Peer peer, int peerCount) {
+            selector.getPerformance(peer);
+            for (ParallelDownload download : downloads) {
+                download.addPeer(peer);
+            }
+        }
+
+        @Override
+        public void onPeerDisconnected(Peer peer, int peerCount) {
+            for (ParallelDownload download : downloads) {
+                download.removePeer(peer);
+            }
+            selector.removePeer(peer);
+            lastBlockMillis.remove(peer);
+        }
+
+        @Override
+        public void onChainDownloadStarted(Peer peer, int blocksLeft) {
+            lastBlockMillis.put(peer, Utils.currentTimeMillis());
+        }
+
+        @Override
+        public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
+            samplePing(peer);
+            // Only blocks of a chain download come back to back; a block announced at the tip says nothing about
+            // the peer's bandwidth.
+            final Long previous = blocksLeft > 0
+                    ? lastBlockMillis.put(peer, Utils.currentTimeMillis())
+                    : lastBlockMillis.remove(peer);
+            if (previous != null)
+                selector.getPerformance(peer).recordBlockDelivery(block.getMessageSize(), Utils.currentTimeMillis() - previous);
+
+            final int height = heightOf(peer, block, blocksLeft);
+            final List<Transaction> transactions = block.getTransactions();
+            if (transactions != null) {
+                synchronized (mempool) {
+                    for (Transaction tx : transactions) {
+                        mempool.remove(tx.getHash());
+                    }
+                }
+                for (Transaction tx : transactions) {
+                    // Don't start tracking every transaction of the chain, only those peers announced.
+                    if (confidenceTable.getSeenByCount(tx.getHash()) > 0)
+                        confidenceTable.setAppearedAtHeight(tx.getHash(), height);
+                }
+            }
+            confidenceTable.setBestHeight(height);
+        }
+
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            if (m instanceof InventoryMessage) {
+                for (InventoryItem item : ((InventoryMessage) m).getItems()) {
+                    if (item.equals(InventoryItem.createTransactionItem(item.hash)))
+                        confidenceTable.seen(item.hash, peer.getAddress());
+                }
+            }
+            return m;
+        }
+
+        @Override
+        public void onTransaction(Peer peer, Transaction t) {
+            synchronized (mempool) {
+                mempool.put(t.getHash(), t);
+            }
+            confidenceTable.seen(t.getHash(), peer.getAddress());
+        }
+    };
+
+    LitecoinPeerGroupExtension(PeerGroup peerGroup) {
+        this.peerGroup = checkNotNull(peerGroup);
+        peerGroup.addEventListener(listener, Threading.SAME_THREAD);
+    }
+
+    public PeerGroup getPeerGroup() {
+        return peerGroup;
+    }
+
+    /**
+     * Who announced which transactions and at which height they confirmed, see {@link StripedConfidenceTable}.
+     */
+    public StripedConfidenceTable getConfidenceTable() {
+        return confidenceTable;
+    }
+
+    /**
+     * Transactions relayed to the group and not confirmed yet, for {@link CompactBlockRelay}.
+     */
+    public MempoolSource getMempool() {
+        return mempoolSource;
+    }
+
+    /**
+     * A framer for one more connection of the group. Payload buffers of all the group's framers are recycled through
+     * the same {@link ByteBufferPool}, so its retained bytes bound the whole group.
+     */
+    public PooledMessageFramer newMessageFramer(NetworkParameters params, PooledMessageFramer.FrameListener listener) {
+        return new PooledMessageFramer(params.getPacketMagic(), bufferPool, listener);
+    }
+
+    /**
+     * Measurements of a connected peer, shared with everything that schedules downloads on it.
+     */
+    public PeerPerformance getPerformance(Peer peer) {
+        return selector.getPerformance(peer);
+    }
+
+    /**
+     * @return the connected peer the selector would download from, with its usual hysteresis, or null if none is
+     * connected.
+     */
+    @Nullable
+    public Peer selectDownloadPeer(PeerPerformance.Phase phase) {
+        final List<Peer> peers = peerGroup.getConnectedPeers();
+        for (Peer peer : peers) {
+            samplePing(peer);
+        }
+        return selector.select(peers, phase);
+    }
+
+    /**
+     * Downloads heights <tt>fromHeight</tt> to <tt>targetHeight</tt> of the header chain from every connected peer,
+     * and from peers connecting later, see {@link ParallelBlockDownloadScheduler}. Blocks are fetched with
+     * {@link Peer#getBlock(Sha256Hash)}, so they reach the sink in height order and not the group's block chain.
+     * Stalled peers are checked for every {@link #DOWNLOAD_TICK_MILLIS} until the range is complete.
+     */
+    public ParallelBlockDownloadScheduler downloadInParallel(HeightIndex headers, ParallelBlockDownloadScheduler.BlockSink sink,
+                                                             int fromHeight, int targetHeight) {
+        final ParallelDownload download = new ParallelDownload(new ParallelBlockDownloadScheduler(headers, sink, fromHeight, targetHeight));
+        downloads.add(download);
+        for (Peer peer : peerGroup.getConnectedPeers()) {
+            download.addPeer(peer);
+        }
+        download.start();
+        return download.scheduler;
+    }
+
+    private synchronized int heightOf(Peer peer, Block block, int blocksLeft) {
+        if (block.getHash().equals(tipHash))
+            return tipHeight;  // The same block from another peer.
+        if (tipHash != null && block.getPrevBlockHash().equals(tipHash))
+            tipHeight++;
+        else
+            tipHeight = (int) Math.max(0, peer.getBestHeight() - blocksLeft);
+        tipHash = block.getHash();
+        return tipHeight;
+    }
+
+    private void samplePing(Peer peer) {
+        final long rtt = peer.getLastPingTime();
+        if (rtt < Long.MAX_VALUE)
+            selector.getPerformance(peer).recordPing(rtt);
+    }
+
+    private final class ParallelDownload implements Runnable {
+
+        private final ParallelBlockDownloadScheduler scheduler;
+        private final ConcurrentHashMap<Peer, ParallelBlockDownloadScheduler.DownloadPeer> downloadPeers =
+                new ConcurrentHashMap<Peer, ParallelBlockDownloadScheduler.DownloadPeer>();
+        private ScheduledFuture<?> ticks;
+
+        private ParallelDownload(ParallelBlockDownloadScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        private void addPeer(final Peer peer) {
+            final ParallelBlockDownloadScheduler.DownloadPeer downloadPeer = new ParallelBlockDownloadScheduler.DownloadPeer() {
+                @Override
+                public void requestBlocks(List<Sha256Hash> hashes) {
+                    final ParallelBlockDownloadScheduler.DownloadPeer self = this;
+                    for (Sha256Hash hash : hashes) {
+                        Futures.addCallback(peer.getBlock(hash), new FutureCallback<Block>() {
+                            @Override
+                            public void onSuccess(Block block) {
+                                scheduler.onBlock(self, block);
+                            }
+
+                            @Override
+                            public void onFailure(Throwable t) {
+                                // The stall timeout hands what is left of the window to another peer.
+                            }
+                        }, Threading.SAME_THREAD);
+                    }
+                }
+            };
+            if (downloadPeers.putIfAbsent(peer, downloadPeer) == null)
+                scheduler.addPeer(downloadPeer, selector.getPerformance(peer));
+        }
+
+        private void removePeer(Peer peer) {
+            final ParallelBlockDownloadScheduler.DownloadPeer downloadPeer = downloadPeers.remove(peer);
+            if (downloadPeer != null)
+                scheduler.removePeer(downloadPeer);
+        }
+
+        private synchronized void start() {
+            ticks = executor.scheduleWithFixedDelay(this, DOWNLOAD_TICK_MILLIS, DOWNLOAD_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public synchronized void run() {
+            if (scheduler.isComplete()) {
+                downloads.remove(this);
+                ticks.cancel(false);
+            } else {
+                scheduler.tick();
+            }
+        }
+    }
+}
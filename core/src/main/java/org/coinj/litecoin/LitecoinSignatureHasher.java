@@ -0,0 +1,267 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.script.Script;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.bitcoinj.script.ScriptOpCodes.OP_CODESEPARATOR;
+
+/**
+ * Computes legacy signature hashes for every input of one transaction without re-copying and re-serialising
+ * the whole transaction per input, which is what {@link Transaction#hashForSignature(int, byte[], byte)} does.
+ * Serialised outputs and blanked inputs are cached once, and SHA-256 midstates over the common
+ * "version | input count | blanked inputs before i" prefix are kept, so each SIGHASH_ALL call only digests
+ * the signed input and the cached suffix bytes. ANYONECANPAY hashes don't depend on other inputs at all.
+ * Results are byte-for-byte identical to bitcoinj.<br/>
+ * The cache snapshots the input and output lists, sequence numbers, version and lock time, and is rebuilt
+ * when any of those change. Editing an existing output in place is not detected; call {@link #invalidate()}.
+ */
+public final class LitecoinSignatureHasher {
+
+    private static final int OUTPOINT_SIZE = 36;
+    private static final int BLANK_INPUT_SIZE = OUTPOINT_SIZE + 1 + 4;
+    private static final byte[] EMPTY_OUTPUTS = {0};
+    private static final byte[] BLANK_OUTPUT = {-1, -1, -1, -1, -1, -1, -1, -1, 0};
+    private static final byte[] ZERO_SEQUENCE = new byte[4];
+    private static final Sha256Hash SINGLE_WITHOUT_OUTPUT =
+            new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+
+    private final Transaction tx;
+    private Snapshot snapshot;
+
+    public LitecoinSignatureHasher(Transaction tx) {
+        this.tx = checkNotNull(tx);
+    }
+
+    public Transaction getTransaction() {
+        return tx;
+    }
+
+    public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, Transaction.SigHash type, boolean anyoneCanPay) {
+        byte sigHashType = (byte) (type.ordinal() + 1);
+        if (anyoneCanPay)
+            sigHashType |= 0x80;
+        return hashForSignature(inputIndex, connectedScript, sigHashType);
+    }
+
+    public Sha256Hash hashForSignature(int inputIndex, Script connectedScript, Transaction.SigHash type, boolean anyoneCanPay) {
+        return hashForSignature(inputIndex, connectedScript.getProgram(), type, anyoneCanPay);
+    }
+
+    public synchronized Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        final Snapshot s = snapshot();
+        checkArgument(inputIndex >= 0 && inputIndex < s.inputs.length, "Input index out of range: %s", inputIndex);
+
+        final int mode = sigHashType & 0x1f;
+        final boolean anyoneCanPay = (sigHashType & 0x80) == 0x80;
+        final boolean none = mode == Transaction.SigHash.NONE.ordinal() + 1;
+        final boolean single = mode == Transaction.SigHash.SINGLE.ordinal() + 1;
+        if (single && inputIndex >= s.outputs.length)
+            return SINGLE_WITHOUT_OUTPUT;
+
+        final byte[] script = Script.removeAllInstancesOfOp(connectedScript, OP_CODESEPARATOR);
+        final MessageDigest digest;
+        if (anyoneCanPay) {
+            digest = newDigest();
+            digest.update(s.version);
+            digest.update((byte) 1);
+            updateSignedInput(digest, s, inputIndex, script);
+        } else if (none || single) {
+            digest = newDigest();
+            digest.update(s.version);
+            digest.update(s.inputCount);
+            for (int i = 0; i < s.inputs.length; i++) {
+                if (i == inputIndex) {
+                    updateSignedInput(digest, s, i, script);
+                } else {
+                    digest.update(s.blankInputs, i * BLANK_INPUT_SIZE, OUTPOINT_SIZE + 1);
+                    digest.update(ZERO_SEQUENCE);
+                }
+            }
+        } else {
+            digest = s.prefix(inputIndex);
+            updateSignedInput(digest, s, inputIndex, script);
+            final int suffixOffset = (inputIndex + 1) * BLANK_INPUT_SIZE;
+            digest.update(s.blankInputs, suffixOffset, s.blankInputs.length - suffixOffset);
+        }
+
+        if (none) {
+            digest.update(EMPTY_OUTPUTS);
+        } else if (single) {
+            digest.update(new VarInt(inputIndex + 1).encode());
+            for (int i = 0; i < inputIndex; i++) {
+                digest.update(BLANK_OUTPUT);
+            }
+            final int start = s.outputOffsets[inputIndex];
+            digest.update(s.outputs, start, s.outputOffsets[inputIndex + 1] - start);
+        } else {
+            digest.update(s.outputs);
+        }
+
+        final byte[] tail = new byte[8];
+        Utils.uint32ToByteArrayLE(s.lockTime, tail, 0);
+        Utils.uint32ToByteArrayLE(0x000000ff & sigHashType, tail, 4);
+        digest.update(tail);
+        return new Sha256Hash(digest.digest(digest.digest()));
+    }
+
+    /**
+     * Drops cached serialisations; needed only after in-place edits the snapshot check cannot see.
+     */
+    public synchronized void invalidate() {
+        snapshot = null;
+    }
+
+    private static void updateSignedInput(MessageDigest digest, Snapshot s, int index, byte[] script) {
+        final int offset = index * BLANK_INPUT_SIZE;
+        digest.update(s.blankInputs, offset, OUTPOINT_SIZE);
+        digest.update(new VarInt(script.length).encode());
+        digest.update(script);
+        digest.update(s.blankInputs, offset + OUTPOINT_SIZE + 1, 4);
+    }
+
+    private Snapshot snapshot() {
+        if (snapshot == null || !snapshot.matches(tx))
+            snapshot = new Snapshot(tx);
+        return snapshot;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static MessageDigest copy(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class Snapshot {
+
+        private final long versionValue;
+        private final long lockTime;
+        private final byte[] version = new byte[4];
+        private final byte[] inputCount;
+        private final TransactionInput[] inputs;
+        private final long[] sequences;
+        private final TransactionOutput[] outputRefs;
+        private final byte[] blankInputs;
+        private final byte[] outputs;
+        private final int[] outputOffsets;
+        private final MessageDigest[] prefixes;
+        private int prefixesReady;
+
+        private Snapshot(Transaction tx) {
+            versionValue = tx.getVersion();
+            lockTime = tx.getLockTime();
+            Utils.uint32ToByteArrayLE(versionValue, version, 0);
+
+            final List<TransactionInput> txInputs = tx.getInputs();
+            inputs = txInputs.toArray(new TransactionInput[txInputs.size()]);
+            inputCount = new VarInt(inputs.length).encode();
+            sequences = new long[inputs.length];
+            blankInputs = new byte[inputs.length * BLANK_INPUT_SIZE];
+            for (int i = 0; i < inputs.length; i++) {
+                final int offset = i * BLANK_INPUT_SIZE;
+                sequences[i] = inputs[i].getSequenceNumber();
+                System.arraycopy(inputs[i].getOutpoint().bitcoinSerialize(), 0, blankInputs, offset, OUTPOINT_SIZE);
+                Utils.uint32ToByteArrayLE(sequences[i], blankInputs, offset + OUTPOINT_SIZE + 1);
+            }
+
+            final List<TransactionOutput> txOutputs = tx.getOutputs();
+            outputRefs = txOutputs.toArray(new TransactionOutput[txOutputs.size()]);
+            final byte[][] serialized = new byte[outputRefs.length][];
+            final byte[] outputCount = new VarInt(outputRefs.length).encode();
+            int length = outputCount.length;
+            for (int i = 0; i < outputRefs.length; i++) {
+                serialized[i] = outputRefs[i].bitcoinSerialize();
+                length += serialized[i].length;
+            }
+            outputs = new byte[length];
+            outputOffsets = new int[outputRefs.length + 1];
+            System.arraycopy(outputCount, 0, outputs, 0, outputCount.length);
+            int cursor = outputCount.length;
+            for (int i = 0; i < outputRefs.length; i++) {
+                outputOffsets[i] = cursor;
+                System.arraycopy(serialized[i], 0, outputs, cursor, serialized[i].length);
+                cursor += serialized[i].length;
+            }
+            outputOffsets[outputRefs.length] = cursor;
+
+            prefixes = new MessageDigest[inputs.length];
+        }
+
+        private boolean matches(Transaction tx) {
+            if (tx.getVersion() != versionValue || tx.getLockTime() != lockTime)
+                return false;
+            final List<TransactionInput> txInputs = tx.getInputs();
+            final List<TransactionOutput> txOutputs = tx.getOutputs();
+            if (txInputs.size() != inputs.length || txOutputs.size() != outputRefs.length)
+                return false;
+            for (int i = 0; i < inputs.length; i++) {
+                final TransactionInput input = txInputs.get(i);
+                if (input != inputs[i] || input.getSequenceNumber() != sequences[i])
+                    return false;
+            }
+            for (int i = 0; i < outputRefs.length; i++) {
+                if (txOutputs.get(i) != outputRefs[i])
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns a fresh digest positioned after the version, input count and blanked inputs before {@code index}.
+         */
+        private MessageDigest prefix(int index) {
+            if (prefixesReady == 0) {
+                final MessageDigest first = newDigest();
+                first.update(version);
+                first.update(inputCount);
+                prefixes[0] = first;
+                prefixesReady = 1;
+            }
+            while (prefixesReady <= index) {
+                final MessageDigest next = copy(prefixes[prefixesReady - 1]);
+                next.update(blankInputs, (prefixesReady - 1) * BLANK_INPUT_SIZE, BLANK_INPUT_SIZE);
+                prefixes[prefixesReady++] = next;
+            }
+            return copy(prefixes[index]);
+        }
+
+    }
+
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin;
+
+import org.bitcoinj.core.Transaction;
+import org.coinj.commons.EmptyTransactionExtension;
+
+import javax.annotation.Nullable;
+
+/**
+ * Litecoin's side of a {@link Transaction}: its {@link LitecoinSignatureHasher}, so everything that signs or checks
+ * the transaction's inputs shares one set of cached midstates. The hasher is created on first use, since every parsed
+ * transaction gets an extension and most are never signed.
+ */
+public final class LitecoinTransactionExtension extends EmptyTransactionExtension {
+
+    private final Transaction transaction;
+    @Nullable private LitecoinSignatureHasher signatureHasher;
+
+    LitecoinTransactionExtension(Transaction transaction) {
+        super(transaction);
+        this.transaction = transaction;
+    }
+
+    public synchronized LitecoinSignatureHasher getSignatureHasher() {
+        if (signatureHasher == null)
+            signatureHasher = new LitecoinSignatureHasher(transaction);
+        return signatureHasher;
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.core.AbstractWalletEventListener;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.utils.Threading;
+import org.coinj.commons.EmptyWalletCoinSpecifics;
+import org.coinj.litecoin.wallet.WalletDeltaPersistence;
+import org.coinj.litecoin.wallet.WalletUtxoIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Litecoin's side of a {@link Wallet}: the {@link WalletUtxoIndex} of its unspent outputs. The index is built on
+ * first use rather than with the wallet, which gets its transactions without events while it's being loaded, and
+ * follows the wallet's events from then on.</p>
+ *
+ * <p>{@link #autosaveDeltas} saves the wallet through a {@link WalletDeltaPersistence} whenever it changes, the delta
+ * counterpart of {@link Wallet#autosaveToFile}.</p>
+ */
+public final class LitecoinWalletCoinSpecifics extends EmptyWalletCoinSpecifics {
+
+    private static final Logger log = LoggerFactory.getLogger(LitecoinWalletCoinSpecifics.class);
+
+    private static final ScheduledExecutorService autosaveExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Wallet delta autosave %d").build());
+
+    private final Wallet wallet;
+    @Nullable private WalletUtxoIndex utxoIndex;
+    @Nullable private WalletDeltaPersistence persistence;
+    private long autosaveDelayMillis;
+    private final AtomicBoolean commitScheduled = new AtomicBoolean();
+
+    private final AbstractWalletEventListener autosaveListener = new AbstractWalletEventListener() {
+        @Override
+        public void onWalletChanged(Wallet wallet) {
+            scheduleCommit();
+        }
+    };
+
+    private final Runnable commit = new Runnable() {
+        @Override
+        public void run() {
+            commitScheduled.set(false);
+            try {
+                getPersistence().commit();
+            } catch (IOException e) {
+                log.error("Failed to save wallet deltas", e);
+            }
+        }
+    };
+
+    LitecoinWalletCoinSpecifics(Wallet wallet) {
+        this.wallet = checkNotNull(wallet);
+    }
+
+    public Wallet getWallet() {
+        return wallet;
+    }
+
+    public synchronized WalletUtxoIndex getUtxoIndex() {
+        if (utxoIndex == null)
+            utxoIndex = WalletUtxoIndex.attachedTo(wallet);
+        return utxoIndex;
+    }
+
+    /**
+     * Commits the persistence after the wallet changed, at most once per delay so a burst of changes costs one commit.
+     *
+     * @param persistence delta persistence {@link WalletDeltaPersistence#load loaded} or
+     *                    {@link WalletDeltaPersistence#create created} for this wallet.
+     */
+    public synchronized void autosaveDeltas(WalletDeltaPersistence persistence, long delay, TimeUnit unit) {
+        checkArgument(persistence.getWallet() == wallet, "Persistence of another wallet");
+        checkState(this.persistence == null, "Already saving deltas");
+        this.persistence = persistence;
+        this.autosaveDelayMillis = unit.toMillis(delay);
+        wallet.addEventListener(autosaveListener, Threading.SAME_THREAD);
+    }
+
+    @Nullable
+    public synchronized WalletDeltaPersistence getPersistence() {
+        return persistence;
+    }
+
+    private void scheduleCommit() {
+        if (!commitScheduled.getAndSet(true))
+            autosaveExecutor.schedule(commit, autosaveDelayMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.chain;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.coinj.litecoin.LitecoinDefinition;
+import org.coinj.litecoin.store.HeightIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Decides whether a block's input scripts need verifying, given a block assumed to be valid. Scripts of a block
+ * are skipped when all of these hold:</p>
+ * <ul>
+ *     <li>the best header chain contains the assumed valid block at its height;</li>
+ *     <li>the block is on the best header chain, at or below that height;</li>
+ *     <li>the assumed valid block is at least {@code minDepth} headers deep.</li>
+ * </ul>
+ * <p>So blocks above the assumed valid one, blocks of forks away from it, and everything before its header is known
+ * get full checks. Proof of work, merkle roots and UTXO accounting are never skipped, only scripts. Headers have to
+ * be synced ahead of the blocks for this to have an effect, e.g. into a
+ * {@link org.coinj.litecoin.store.LitecoinSPVBlockStore}.</p>
+ *
+ * <p>The main network default is the last checkpoint, block 211680. System property {@value #PROPERTY} overrides it
+ * with {@code height:hash}, or turns it off with {@code 0}.</p>
+ */
+public class AssumeValidPolicy {
+
+    private static final Logger log = LoggerFactory.getLogger(AssumeValidPolicy.class);
+
+    public static final String PROPERTY = "litecoin.assumevalid";
+    public static final int MAIN_NET_HEIGHT = 211680;
+    public static final Sha256Hash MAIN_NET_HASH =
+            new Sha256Hash("d8c4452c530b0a2f5c7b712b0503704f0956c5ec1878cd372035311fedcd2d9c");
+    /** Two weeks of blocks. */
+    public static final int DEFAULT_MIN_DEPTH = 14 * 24 * 60 * 60 / LitecoinDefinition.TARGET_SPACING;
+
+    @Nullable
+    private final HeightIndex headers;
+    @Nullable
+    private final Sha256Hash assumedValid;
+    private final int assumedValidHeight;
+    private final int minDepth;
+
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong verified = new AtomicLong();
+    private volatile boolean skipping;
+
+    /**
+     * Policy that verifies every block.
+     */
+    public static AssumeValidPolicy disabled() {
+        return new AssumeValidPolicy(null, null, 0, 0);
+    }
+
+    /**
+     * Policy with the built in block of the network, or the one configured by {@value #PROPERTY}.
+     */
+    public static AssumeValidPolicy forNetwork(NetworkParameters params, HeightIndex headers) {
+        final String configured = System.getProperty(PROPERTY);
+        if (configured != null)
+            return parse(configured, headers);
+        if (LitecoinDefinition.ID_MAINNET.equals(params.getId()))
+            return new AssumeValidPolicy(headers, MAIN_NET_HASH, MAIN_NET_HEIGHT, DEFAULT_MIN_DEPTH);
+        return disabled();
+    }
+
+    /**
+     * @param value {@code height:hash}, or {@code 0} for no assumed valid block.
+     */
+    public static AssumeValidPolicy parse(String value, HeightIndex headers) {
+        final String trimmed = value.trim();
+        if (trimmed.equals("0"))
+            return disabled();
+        final int colon = trimmed.indexOf(':');
+        checkArgument(colon > 0, "Expected height:hash, got %s", value);
+        final int height = Integer.parseInt(trimmed.substring(0, colon));
+        final Sha256Hash hash = new Sha256Hash(trimmed.substring(colon + 1));
+        return new AssumeValidPolicy(headers, hash, height, DEFAULT_MIN_DEPTH);
+    }
+
+    public AssumeValidPolicy(@Nullable HeightIndex headers, @Nullable Sha256Hash assumedValid, int assumedValidHeight,
+                             int minDepth) {
+        checkArgument((headers == null) == (assumedValid == null), "Headers are needed with an assumed valid block");
+        checkArgument(assumedValidHeight >= 0 && minDepth >= 0, "Negative height or depth");
+        this.headers = headers;
+        this.assumedValid = assumedValid;
+        this.assumedValidHeight = assumedValidHeight;
+        this.minDepth = minDepth;
+    }
+
+    public boolean shouldVerifyScripts(StoredBlock block) {
+        return shouldVerifyScripts(block.getHeader().getHash(), block.getHeight());
+    }
+
+    public boolean shouldVerifyScripts(Sha256Hash blockHash, int height) {
+        final boolean verify = mustVerify(checkNotNull(blockHash), height);
+        if (verify) {
+            verified.incrementAndGet();
+            if (skipping) {
+                skipping = false;
+                log.info("Verifying scripts again from block {} at height {}", blockHash, height);
+            }
+        } else {
+            skipped.incrementAndGet();
+            if (!skipping) {
+                skipping = true;
+                log.info("Skipping scripts up to assumed valid block {} at height {}", assumedValid, assumedValidHeight);
+            }
+        }
+        return verify;
+    }
+
+    private boolean mustVerify(Sha256Hash blockHash, int height) {
+        if (assumedValid == null || headers == null || height > assumedValidHeight)
+            return true;
+        if (headers.getBestHeight() - assumedValidHeight < minDepth)
+            return true;
+        if (!assumedValid.equals(headers.getHashAtHeight(assumedValidHeight)))
+            return true;
+        return !blockHash.equals(headers.getHashAtHeight(height));
+    }
+
+    public boolean isEnabled() {
+        return assumedValid != null;
+    }
+
+    @Nullable
+    public Sha256Hash getAssumedValid() {
+        return assumedValid;
+    }
+
+    public int getAssumedValidHeight() {
+        return assumedValidHeight;
+    }
+
+    /** Blocks whose scripts were skipped so far. */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /** Blocks whose scripts were verified so far. */
+    public long getVerifiedCount() {
+        return verified.get();
+    }
+
+}
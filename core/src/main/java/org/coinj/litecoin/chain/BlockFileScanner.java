@@ -0,0 +1,153 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.chain;
+
+import org.bitcoinj.core.NetworkParameters;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Finds the blocks in the contents of a reference client {@code blk*.dat} file, each stored as packet magic,
+ * little endian length and the serialized block. Like {@code BlockFileLoader} it skips bytes until the next magic and
+ * records with an implausible length, so zero padding and torn writes are passed over.</p>
+ * <p>A record cut off by the end of the buffer isn't returned, and {@link #getPosition()} stays at its magic: a file
+ * still being appended to can be scanned again from there once it has grown.</p>
+ */
+public final class BlockFileScanner {
+
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    private final ByteBuffer buffer;
+    private final byte[] magic = new byte[4];
+    private final int maxBlockBytes;
+    private int position;
+    private int blockOffset = -1;
+    private int blockLength;
+
+    /**
+     * Scans from the buffer's position to its limit, the buffer's own position is left alone.
+     *
+     * @param maxBlockBytes records longer than this are taken for garbage.
+     */
+    public BlockFileScanner(ByteBuffer buffer, long packetMagic, int maxBlockBytes) {
+        this.buffer = checkNotNull(buffer);
+        checkArgument(maxBlockBytes > 0, "Max block bytes must be positive");
+        this.maxBlockBytes = maxBlockBytes;
+        magic[0] = (byte) (packetMagic >>> 24);
+        magic[1] = (byte) (packetMagic >>> 16);
+        magic[2] = (byte) (packetMagic >>> 8);
+        magic[3] = (byte) packetMagic;
+        position = buffer.position();
+    }
+
+    /**
+     * Allows blocks up to twice the coin's max block size, as {@code BlockFileLoader} does for test chains.
+     */
+    public static BlockFileScanner forParams(ByteBuffer buffer, NetworkParameters params) {
+        return new BlockFileScanner(buffer, params.getPacketMagic(), params.getCoinDefinition().getMaxBlockSize() * 2);
+    }
+
+    /**
+     * Moves to the next complete block.
+     *
+     * @return false at the end of the buffer.
+     */
+    public boolean next() {
+        final int limit = buffer.limit();
+        blockOffset = -1;
+        while (true) {
+            final int found = findMagic(position, limit);
+            if (found < 0) {
+                // a partial magic at the very end may still be completed
+                position = Math.max(position, limit - magic.length + 1);
+                return false;
+            }
+            if (found + RECORD_HEADER_BYTES > limit) {
+                position = found;
+                return false;
+            }
+            final long length = (buffer.get(found + 4) & 0xFFL)
+                    | ((buffer.get(found + 5) & 0xFFL) << 8)
+                    | ((buffer.get(found + 6) & 0xFFL) << 16)
+                    | ((buffer.get(found + 7) & 0xFFL) << 24);
+            if (length <= 0 || length > maxBlockBytes) {
+                position = found + RECORD_HEADER_BYTES;
+                continue;
+            }
+            if (found + RECORD_HEADER_BYTES + length > limit) {
+                position = found;
+                return false;
+            }
+            blockOffset = found + RECORD_HEADER_BYTES;
+            blockLength = (int) length;
+            position = blockOffset + blockLength;
+            return true;
+        }
+    }
+
+    private int findMagic(int from, int limit) {
+        for (int i = from; i + magic.length <= limit; i++) {
+            if (buffer.get(i) == magic[0] && buffer.get(i + 1) == magic[1]
+                    && buffer.get(i + 2) == magic[2] && buffer.get(i + 3) == magic[3])
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the current block's first byte in the buffer.
+     */
+    public int getBlockOffset() {
+        checkCurrent();
+        return blockOffset;
+    }
+
+    public int getBlockLength() {
+        checkCurrent();
+        return blockLength;
+    }
+
+    /**
+     * @return a copy of the current block's bytes.
+     */
+    public byte[] blockBytes() {
+        checkCurrent();
+        final byte[] bytes = new byte[blockLength];
+        final ByteBuffer view = buffer.duplicate();
+        view.limit(blockOffset + blockLength);
+        view.position(blockOffset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return where scanning resumes: after the current block, or at a record that was cut off.
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    private void checkCurrent() {
+        checkState(blockOffset >= 0, "No current block");
+    }
+
+}
@@ -0,0 +1,400 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.chain;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PrunedException;
+import org.bitcoinj.core.VerificationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Imports reference client {@code blk*.dat} files into a chain in three stages, instead of reading, parsing,
+ * hashing and connecting one block at a time like a loop over {@code BlockFileLoader}:</p>
+ * <ol>
+ *     <li>a reader thread loads each file whole through a {@link FileChannel}, reading ahead of the chain, and cuts
+ *     it into blocks with a {@link BlockFileScanner};</li>
+ *     <li>worker threads parse the blocks and run the checks that need no chain context, merkle root and scrypt proof
+ *     of work. The block hasher keeps the hashes, so the chain doesn't compute them again;</li>
+ *     <li>the calling thread adds the blocks to the chain in file order.</li>
+ * </ol>
+ * <p>At most {@code maxBlocksInFlight} blocks are between the reader and the chain, the reader waits for the chain
+ * beyond that. The first block that fails to parse or verify ends the import with its exception, after the blocks
+ * before it were connected.</p>
+ */
+public class BlockImportPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(BlockImportPipeline.class);
+
+    public static final int DEFAULT_MAX_BLOCKS_IN_FLIGHT = 512;
+
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+    private static final Future<Block> END = Futures.<Block>immediateFuture(null);
+
+    private final NetworkParameters params;
+    private final ExecutorService workers;
+    private final int maxBlocksInFlight;
+    private final boolean ownsExecutor;
+
+    /**
+     * Parses and checks on a new daemon pool with a thread per available processor, less the connecting one.
+     */
+    public BlockImportPipeline(NetworkParameters params) {
+        this(params, Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Block import %d").build()),
+                DEFAULT_MAX_BLOCKS_IN_FLIGHT, true);
+    }
+
+    /**
+     * @param workers shared executor, not shut down by {@link #shutdown()}.
+     */
+    public BlockImportPipeline(NetworkParameters params, ExecutorService workers, int maxBlocksInFlight) {
+        this(params, workers, maxBlocksInFlight, false);
+    }
+
+    private BlockImportPipeline(NetworkParameters params, ExecutorService workers, int maxBlocksInFlight,
+                                boolean ownsExecutor) {
+        this.params = checkNotNull(params);
+        this.workers = checkNotNull(workers);
+        checkArgument(maxBlocksInFlight > 0, "Max blocks in flight must be positive");
+        this.maxBlocksInFlight = maxBlocksInFlight;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * Parses one block, on a worker thread.
+     */
+    protected Block parse(byte[] bytes) throws VerificationException {
+        return new Block(params, bytes);
+    }
+
+    /**
+     * Checks of one block that don't depend on the chain, on a worker thread. Failures are reported by throwing.
+     */
+    protected void check(Block block) throws VerificationException {
+        block.verify();
+    }
+
+    /**
+     * Adds the blocks of {@code files} to {@code chain}, blocks until all are connected.
+     *
+     * @return throughput of each stage.
+     */
+    public Stats importBlocks(List<File> files, AbstractBlockChain chain)
+            throws IOException, VerificationException, PrunedException {
+        checkNotNull(chain);
+        final Run run = new Run(new ArrayList<File>(files));
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                run.read();
+            }
+        }, "Block file reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        final Stats stats = run.stats;
+        long nextProgress = System.nanoTime() + PROGRESS_INTERVAL_NANOS;
+        try {
+            while (true) {
+                final long waitStart = System.nanoTime();
+                final Future<Block> parsed = Uninterruptibles.takeUninterruptibly(run.queue);
+                stats.connectWaitNanos.addAndGet(System.nanoTime() - waitStart);
+                if (parsed == END)
+                    break;
+                final Block block = getParsed(parsed);
+                final long connectStart = System.nanoTime();
+                chain.add(block);
+                final long now = System.nanoTime();
+                stats.connectNanos.addAndGet(now - connectStart);
+                stats.blocksConnected.incrementAndGet();
+                if (now >= nextProgress) {
+                    log.info("Importing blocks: {}", stats);
+                    nextProgress = now + PROGRESS_INTERVAL_NANOS;
+                }
+            }
+            if (run.readFailure != null)
+                throw run.readFailure;
+        } finally {
+            run.stopped = true;
+            run.cancelQueued();
+            Uninterruptibles.joinUninterruptibly(reader);
+            run.cancelQueued();
+        }
+        stats.finish();
+        log.info("Imported blocks: {}", stats);
+        return stats;
+    }
+
+    private static Block getParsed(Future<Block> parsed) throws VerificationException {
+        try {
+            return Uninterruptibles.getUninterruptibly(parsed);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), VerificationException.class);
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    public void shutdown() {
+        if (ownsExecutor)
+            workers.shutdown();
+    }
+
+    /**
+     * State of one {@link #importBlocks(List, AbstractBlockChain)} call shared by its threads.
+     */
+    private final class Run {
+        private final List<File> files;
+        private final BlockingQueue<Future<Block>> queue = new ArrayBlockingQueue<Future<Block>>(maxBlocksInFlight);
+        private final Stats stats = new Stats();
+        private volatile boolean stopped;
+        private volatile IOException readFailure;
+
+        private Run(List<File> files) {
+            this.files = files;
+        }
+
+        private void read() {
+            try {
+                for (final File file : files) {
+                    if (stopped)
+                        return;
+                    final long readStart = System.nanoTime();
+                    final ByteBuffer contents = readFile(file);
+                    stats.readNanos.addAndGet(System.nanoTime() - readStart);
+                    stats.bytesRead.addAndGet(contents.limit());
+                    stats.filesRead.incrementAndGet();
+
+                    final BlockFileScanner scanner = BlockFileScanner.forParams(contents, params);
+                    while (true) {
+                        final long scanStart = System.nanoTime();
+                        final boolean found = scanner.next();
+                        final byte[] bytes = found ? scanner.blockBytes() : null;
+                        stats.readNanos.addAndGet(System.nanoTime() - scanStart);
+                        if (!found)
+                            break;
+                        final Future<Block> parsed = workers.submit(new Callable<Block>() {
+                            @Override
+                            public Block call() throws VerificationException {
+                                return parseAndCheck(bytes, file);
+                            }
+                        });
+                        if (!enqueue(parsed))
+                            return;
+                    }
+                }
+            } catch (IOException e) {
+                readFailure = e;
+            } catch (RuntimeException e) {
+                readFailure = new IOException(e);
+            }
+            enqueue(END);
+        }
+
+        private Block parseAndCheck(byte[] bytes, File file) throws VerificationException {
+            final long parseStart = System.nanoTime();
+            final Block block = parse(bytes);
+            final long checkStart = System.nanoTime();
+            stats.parseNanos.addAndGet(checkStart - parseStart);
+            stats.blocksParsed.incrementAndGet();
+            try {
+                check(block);
+            } catch (VerificationException e) {
+                throw new VerificationException("Block " + block.getHashAsString() + " in " + file + " failed: "
+                        + e.getMessage(), e);
+            }
+            stats.checkNanos.addAndGet(System.nanoTime() - checkStart);
+            return block;
+        }
+
+        /**
+         * @return false if the import was stopped while waiting for room.
+         */
+        private boolean enqueue(Future<Block> parsed) {
+            final long waitStart = System.nanoTime();
+            try {
+                while (!stopped) {
+                    if (queue.offer(parsed, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                        return true;
+                }
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                stats.readerWaitNanos.addAndGet(System.nanoTime() - waitStart);
+            }
+        }
+
+        private void cancelQueued() {
+            final List<Future<Block>> left = new ArrayList<Future<Block>>();
+            queue.drainTo(left);
+            for (Future<Block> parsed : left) {
+                parsed.cancel(false);
+            }
+        }
+    }
+
+    private static ByteBuffer readFile(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Block file too large: " + file);
+            final ByteBuffer contents = ByteBuffer.allocate((int) size);
+            while (contents.hasRemaining()) {
+                if (channel.read(contents) < 0)
+                    break;
+            }
+            contents.flip();
+            return contents;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Counters of an import, updated while it runs. Stage rates are per busy thread: the parse and check rates times
+     * the worker count is what the workers can sustain, to be compared with the connect rate.
+     */
+    public static final class Stats {
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos;
+        private final AtomicLong filesRead = new AtomicLong();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong readNanos = new AtomicLong();
+        private final AtomicLong readerWaitNanos = new AtomicLong();
+        private final AtomicLong blocksParsed = new AtomicLong();
+        private final AtomicLong parseNanos = new AtomicLong();
+        private final AtomicLong checkNanos = new AtomicLong();
+        private final AtomicLong blocksConnected = new AtomicLong();
+        private final AtomicLong connectNanos = new AtomicLong();
+        private final AtomicLong connectWaitNanos = new AtomicLong();
+
+        private Stats() {}
+
+        private void finish() {
+            endNanos = System.nanoTime();
+        }
+
+        public long getElapsedNanos() {
+            return (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+        }
+
+        public long getFilesRead() {
+            return filesRead.get();
+        }
+
+        public long getBytesRead() {
+            return bytesRead.get();
+        }
+
+        public long getBlocksParsed() {
+            return blocksParsed.get();
+        }
+
+        public long getBlocksConnected() {
+            return blocksConnected.get();
+        }
+
+        /** Reading files and finding their blocks. */
+        public double getReadMegabytesPerSecond() {
+            return rate(bytesRead.get() / 1e6, readNanos.get());
+        }
+
+        public double getParseBlocksPerSecond() {
+            return rate(blocksParsed.get(), parseNanos.get());
+        }
+
+        public double getCheckBlocksPerSecond() {
+            return rate(blocksParsed.get(), checkNanos.get());
+        }
+
+        public double getConnectBlocksPerSecond() {
+            return rate(blocksConnected.get(), connectNanos.get());
+        }
+
+        /** Overall import rate. */
+        public double getBlocksPerSecond() {
+            return rate(blocksConnected.get(), getElapsedNanos());
+        }
+
+        /**
+         * @return share of the time the chain waited for parsed blocks; high when parsing or reading is the
+         * bottleneck.
+         */
+        public double getConnectWaitShare() {
+            return share(connectWaitNanos.get());
+        }
+
+        /**
+         * @return share of the time the reader waited for room; high when connecting is the bottleneck.
+         */
+        public double getReaderWaitShare() {
+            return share(readerWaitNanos.get());
+        }
+
+        private double share(long nanos) {
+            final long elapsed = getElapsedNanos();
+            return elapsed == 0 ? 0 : (double) nanos / elapsed;
+        }
+
+        private static double rate(double units, long nanos) {
+            return nanos == 0 ? 0 : units * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files, %.1f MB read at %.1f MB/s, %d blocks parsed at %.0f/s and checked at %.0f/s"
+                    + " per thread, %d connected at %.0f/s, %.0f blocks/s overall, chain waited %.0f%%, reader waited %.0f%%",
+                    getFilesRead(), getBytesRead() / 1e6, getReadMegabytesPerSecond(), getBlocksParsed(),
+                    getParseBlocksPerSecond(), getCheckBlocksPerSecond(), getBlocksConnected(),
+                    getConnectBlocksPerSecond(), getBlocksPerSecond(), getConnectWaitShare() * 100,
+                    getReaderWaitShare() * 100);
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.chain;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.script.Script;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Verifies the input scripts of a block on several threads. The chain collects one {@link Batch} entry per input
+ * while connecting transactions, then calls {@link Batch#verify(boolean)} before committing the block:</p>
+ * <pre>
+ * ParallelScriptVerifier.Batch scripts = verifier.newBatch();
+ * for each input i of each non coinbase tx:
+ *     scripts.add(tx, i, spentOutput.getScriptBytes());
+ * scripts.verify(enforcePayToScriptHash);
+ * </pre>
+ * <p>With an {@link AssumeValidPolicy} set, batches made by {@link #newBatch(StoredBlock)} for blocks the policy
+ * trusts collect nothing and verify nothing.</p>
+ * <p>Inputs are split into contiguous runs of about {@code inputsPerTask}, the calling thread takes the first run. A
+ * run never ends inside a transaction: checking a signature hashes the transaction with its input scripts blanked in
+ * place, so no two threads may touch the same one. Input scripts are captured by {@link Batch#add} for the same
+ * reason. Once an input fails, inputs after it are skipped, while the ones before it still run: the reported failure
+ * is always the first failing input in collection order, however the threads were scheduled.</p>
+ */
+public class ParallelScriptVerifier {
+
+    public static final int DEFAULT_INPUTS_PER_TASK = 32;
+
+    private final ExecutorService executor;
+    private final int inputsPerTask;
+    private final boolean ownsExecutor;
+    private volatile AssumeValidPolicy assumeValidPolicy = AssumeValidPolicy.disabled();
+
+    /**
+     * Verifies on a new daemon pool with a thread per available processor, less the calling one.
+     */
+    public ParallelScriptVerifier() {
+        this(Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Script verification %d").build()),
+                DEFAULT_INPUTS_PER_TASK, true);
+    }
+
+    /**
+     * @param executor shared executor, not shut down by {@link #shutdown()}.
+     */
+    public ParallelScriptVerifier(ExecutorService executor, int inputsPerTask) {
+        this(executor, inputsPerTask, false);
+    }
+
+    private ParallelScriptVerifier(ExecutorService executor, int inputsPerTask, boolean ownsExecutor) {
+        this.executor = checkNotNull(executor);
+        checkArgument(inputsPerTask > 0, "Inputs per task must be positive");
+        this.inputsPerTask = inputsPerTask;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    public Batch newBatch() {
+        return new Batch(false);
+    }
+
+    /**
+     * Batch for the inputs of {@code block}, skipped if the assume valid policy says so.
+     */
+    public Batch newBatch(StoredBlock block) {
+        return new Batch(!assumeValidPolicy.shouldVerifyScripts(block));
+    }
+
+    public void setAssumeValidPolicy(AssumeValidPolicy assumeValidPolicy) {
+        this.assumeValidPolicy = checkNotNull(assumeValidPolicy);
+    }
+
+    public AssumeValidPolicy getAssumeValidPolicy() {
+        return assumeValidPolicy;
+    }
+
+    /**
+     * Verifies one input. Failures are reported by throwing. Other inputs of {@code tx} are checked on the same
+     * thread, never concurrently.
+     */
+    protected void check(Transaction tx, int inputIndex, byte[] scriptSig, byte[] scriptPubKey,
+                         boolean enforcePayToScriptHash) throws VerificationException {
+        new Script(scriptSig).correctlySpends(tx, inputIndex, new Script(scriptPubKey), enforcePayToScriptHash);
+    }
+
+    public void shutdown() {
+        if (ownsExecutor)
+            executor.shutdown();
+    }
+
+    /**
+     * Inputs of one block. Not thread safe, and verified at most once.
+     */
+    public final class Batch {
+        private final List<Transaction> transactions = new ArrayList<Transaction>();
+        private final List<Integer> indexes = new ArrayList<Integer>();
+        private final List<byte[]> scriptSigs = new ArrayList<byte[]>();
+        private final List<byte[]> scripts = new ArrayList<byte[]>();
+        private final AtomicInteger firstFailure = new AtomicInteger(Integer.MAX_VALUE);
+        private final boolean skipped;
+        private VerificationException[] failures;
+        private boolean verified;
+
+        private Batch(boolean skipped) {
+            this.skipped = skipped;
+        }
+
+        public void add(Transaction tx, int inputIndex, byte[] scriptPubKey) {
+            checkState(!verified, "Batch was already verified");
+            if (skipped)
+                return;
+            transactions.add(checkNotNull(tx));
+            indexes.add(inputIndex);
+            scriptSigs.add(tx.getInput(inputIndex).getScriptBytes());
+            scripts.add(checkNotNull(scriptPubKey));
+        }
+
+        public int size() {
+            return transactions.size();
+        }
+
+        /**
+         * Whether the block is trusted by the assume valid policy, so collecting its inputs is pointless.
+         */
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Runs every collected check and throws the failure of the first failing input, if any.
+         */
+        public void verify(final boolean enforcePayToScriptHash) throws VerificationException {
+            checkState(!verified, "Batch was already verified");
+            verified = true;
+            final int size = transactions.size();
+            if (size == 0)
+                return;
+            failures = new VerificationException[size];
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            final int firstEnd = runEnd(0);
+            for (int start = firstEnd; start < size; ) {
+                final int from = start;
+                final int to = runEnd(start);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        run(from, to, enforcePayToScriptHash);
+                        return null;
+                    }
+                }));
+                start = to;
+            }
+            run(0, firstEnd, enforcePayToScriptHash);
+            for (Future<?> future : futures) {
+                try {
+                    Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException e) {
+                    // run() catches everything a check throws
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            final int failed = firstFailure.get();
+            if (failed != Integer.MAX_VALUE)
+                throw failures[failed];
+        }
+
+        /** End of the run starting at {@code start}: {@code inputsPerTask} inputs, stretched to a transaction's end. */
+        private int runEnd(int start) {
+            final int size = transactions.size();
+            int end = Math.min(size, start + inputsPerTask);
+            while (end < size && transactions.get(end) == transactions.get(end - 1)) {
+                end++;
+            }
+            return end;
+        }
+
+        private void run(int from, int to, boolean enforcePayToScriptHash) {
+            for (int i = from; i < to; i++) {
+                if (firstFailure.get() < i)
+                    return;
+                final VerificationException failure = checkOne(i, enforcePayToScriptHash);
+                if (failure != null) {
+                    failures[i] = failure;
+                    int current;
+                    do {
+                        current = firstFailure.get();
+                    } while (i < current && !firstFailure.compareAndSet(current, i));
+                    return;
+                }
+            }
+        }
+
+        @Nullable
+        private VerificationException checkOne(int i, boolean enforcePayToScriptHash) {
+            final Transaction tx = transactions.get(i);
+            final int inputIndex = indexes.get(i);
+            try {
+                check(tx, inputIndex, scriptSigs.get(i), scripts.get(i), enforcePayToScriptHash);
+                return null;
+            } catch (ScriptException e) {
+                return new VerificationException("Error verifying input " + inputIndex + " of "
+                        + tx.getHashAsString(), e);
+            } catch (VerificationException e) {
+                return e;
+            } catch (RuntimeException e) {
+                return new VerificationException("Error verifying input " + inputIndex + " of "
+                        + tx.getHashAsString(), e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * BIP 158 basic block filter: a {@link GolombCodedSet} of every output script of the block plus the scripts of the
+ * outputs it spends, keyed by the block hash. Filter hashes and headers are kept in internal (wire) byte order.
+ */
+public final class BlockFilter {
+
+    public static final int BASIC_FILTER_TYPE = 0;
+    static final int HASH_SIZE = 32;
+    private static final int OP_RETURN = 0x6a;
+
+    private final Sha256Hash blockHash;
+    private final GolombCodedSet set;
+    private final byte[] serialized;
+
+    private BlockFilter(Sha256Hash blockHash, GolombCodedSet set, byte[] serialized) {
+        this.blockHash = blockHash;
+        this.set = set;
+        this.serialized = serialized;
+    }
+
+    /**
+     * @param spentScripts scripts of the outputs spent by the block's inputs. A node that knows them (full pruned
+     *                     mode with undo data) must pass them to produce filters matching other nodes' ones.
+     */
+    public static BlockFilter buildBasic(Block block, Collection<byte[]> spentScripts) {
+        final List<Transaction> transactions = block.getTransactions();
+        checkArgument(transactions != null, "Need a full block to build a filter");
+        final ArrayList<byte[]> elements = new ArrayList<byte[]>(transactions.size() * 3 + spentScripts.size());
+        for (Transaction tx : transactions) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                final byte[] script = output.getScriptBytes();
+                if (isFilterable(script))
+                    elements.add(script);
+            }
+        }
+        for (byte[] script : spentScripts) {
+            if (script.length > 0)
+                elements.add(script);
+        }
+        final GolombCodedSet set = GolombCodedSet.build(keyFor(block.getHash()), GolombCodedSet.BASIC_P, GolombCodedSet.BASIC_M, elements);
+        return new BlockFilter(block.getHash(), set, set.serialize());
+    }
+
+    public static BlockFilter buildBasic(Block block) {
+        return buildBasic(block, Collections.<byte[]>emptyList());
+    }
+
+    public static BlockFilter parse(Sha256Hash blockHash, byte[] serialized) throws ProtocolException {
+        final GolombCodedSet set = GolombCodedSet.parse(keyFor(blockHash), GolombCodedSet.BASIC_P, GolombCodedSet.BASIC_M, serialized);
+        return new BlockFilter(blockHash, set, serialized.clone());
+    }
+
+    public boolean matchAny(List<byte[]> scripts) {
+        return set.matchAny(scripts);
+    }
+
+    /**
+     * Checks the filter against a downloaded block: an honest filter contains every output script of it.
+     * Catches a peer that serves filters hiding transactions from us.
+     */
+    public boolean coversOutputsOf(Block block) {
+        if (!block.getHash().equals(blockHash))
+            return false;
+        for (Transaction tx : block.getTransactions()) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                final byte[] script = output.getScriptBytes();
+                if (isFilterable(script) && !set.match(script))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] getFilterHash() {
+        return doubleSha256(serialized);
+    }
+
+    public static byte[] filterHash(byte[] serializedFilter) {
+        return doubleSha256(serializedFilter);
+    }
+
+    /** Filter header chaining: dSHA256(filter hash || previous filter header). */
+    public static byte[] filterHeader(byte[] filterHash, byte[] previousHeader) {
+        checkArgument(filterHash.length == HASH_SIZE && previousHeader.length == HASH_SIZE);
+        final byte[] concatenated = new byte[HASH_SIZE * 2];
+        System.arraycopy(filterHash, 0, concatenated, 0, HASH_SIZE);
+        System.arraycopy(previousHeader, 0, concatenated, HASH_SIZE, HASH_SIZE);
+        return doubleSha256(concatenated);
+    }
+
+    static SipHasher keyFor(Sha256Hash blockHash) {
+        final byte[] key = Utils.reverseBytes(blockHash.getBytes());
+        return new SipHasher(SipHasher.readLongLE(key, 0), SipHasher.readLongLE(key, 8));
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    public byte[] serialize() {
+        return serialized.clone();
+    }
+
+    public int size() {
+        return set.size();
+    }
+
+    private static boolean isFilterable(byte[] script) {
+        return script.length > 0 && (script[0] & 0xff) != OP_RETURN;
+    }
+
+    private static byte[] doubleSha256(byte[] bytes) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return digest.digest(digest.digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+}
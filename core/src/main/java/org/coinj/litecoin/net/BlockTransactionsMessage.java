@@ -0,0 +1,72 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The <tt>blocktxn</tt> message: answer to {@link GetBlockTransactionsMessage}, transactions in the requested order.
+ */
+public final class BlockTransactionsMessage {
+
+    public static final String COMMAND = "blocktxn";
+
+    private final Sha256Hash blockHash;
+    private final ImmutableList<Transaction> transactions;
+
+    public BlockTransactionsMessage(Sha256Hash blockHash, List<Transaction> transactions) {
+        this.blockHash = blockHash;
+        this.transactions = ImmutableList.copyOf(transactions);
+    }
+
+    public static BlockTransactionsMessage parse(NetworkParameters params, byte[] payload) throws ProtocolException {
+        final PayloadReader reader = new PayloadReader(payload);
+        final Sha256Hash hash = reader.readHash();
+        final int count = reader.readCount(10);
+        final ArrayList<Transaction> transactions = new ArrayList<Transaction>(count);
+        for (int i = 0; i < count; i++) {
+            transactions.add(reader.readTransaction(params));
+        }
+        return new BlockTransactionsMessage(hash, transactions);
+    }
+
+    public byte[] serialize() {
+        final PayloadWriter writer = new PayloadWriter();
+        writer.writeHash(blockHash);
+        writer.writeVarInt(transactions.size());
+        for (Transaction tx : transactions) {
+            writer.writeTransaction(tx);
+        }
+        return writer.toByteArray();
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Pool of direct byte buffers in power-of-two size classes, shared by every connection's
+ * {@link PooledMessageFramer}. Buffers are handed out wrapped in a reference counted {@link PooledBuffer} and come
+ * back when the last reference is released; the pool keeps at most {@code maxRetainedBytes} of idle buffers and lets
+ * the rest be collected.</p>
+ */
+public class ByteBufferPool {
+
+    public static final int MIN_CLASS_SHIFT = 10;
+    // Large enough for the biggest message the protocol allows.
+    public static final int MAX_CLASS_SHIFT = 25;
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 64 * 1024 * 1024;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] idle;
+    private final long maxRetainedBytes;
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+
+    public ByteBufferPool() {
+        this(DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ByteBufferPool(long maxRetainedBytes) {
+        checkArgument(maxRetainedBytes >= 0);
+        this.maxRetainedBytes = maxRetainedBytes;
+        idle = new ConcurrentLinkedQueue[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+        for (int i = 0; i < idle.length; i++) {
+            idle[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+        }
+    }
+
+    /**
+     * @return a buffer with at least {@code size} bytes of capacity, limited to {@code size}, and a reference count
+     * of one.
+     */
+    public PooledBuffer acquire(int size) {
+        checkArgument(size >= 0 && size <= 1 << MAX_CLASS_SHIFT, "buffer size out of range: %s", size);
+        final int sizeClass = classOf(size);
+        ByteBuffer buffer = idle[sizeClass].poll();
+        if (buffer != null) {
+            retainedBytes.addAndGet(-buffer.capacity());
+            reuses.incrementAndGet();
+            buffer.clear();
+        } else {
+            buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_CLASS_SHIFT));
+            allocations.incrementAndGet();
+        }
+        buffer.limit(size);
+        return new PooledBuffer(this, buffer);
+    }
+
+    void recycle(ByteBuffer buffer) {
+        if (retainedBytes.addAndGet(buffer.capacity()) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-buffer.capacity());
+            return;
+        }
+        idle[classOf(buffer.capacity())].add(buffer);
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    private static int classOf(int size) {
+        final int shift = size <= 1 << MIN_CLASS_SHIFT ? MIN_CLASS_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The <tt>cmpctblock</tt> message (BIP 152 HeaderAndShortIDs): block header, a nonce salting the short IDs,
+ * 6 byte short IDs of every transaction the receiver is expected to have and the transactions it can't have
+ * (at least the coinbase) prefilled.
+ */
+public final class CompactBlock {
+
+    public static final String COMMAND = "cmpctblock";
+
+    static final int HEADER_SIZE = 80;
+    static final int SHORT_ID_SIZE = 6;
+    static final long SHORT_ID_MASK = 0xffffffffffffL;
+
+    private final byte[] headerBytes;
+    private final Block header;
+    private final long nonce;
+    private final long[] shortIds;
+    private final ImmutableList<PrefilledTransaction> prefilled;
+    private final SipHasher shortIdHasher;
+
+    public CompactBlock(Block header, long nonce, long[] shortIds, List<PrefilledTransaction> prefilled) {
+        this.header = header.cloneAsHeader();
+        this.headerBytes = this.header.headerAsBytes();
+        this.nonce = nonce;
+        this.shortIds = shortIds.clone();
+        this.prefilled = ImmutableList.copyOf(prefilled);
+        this.shortIdHasher = shortIdHasher(headerBytes, nonce);
+    }
+
+    /**
+     * Builds the compact form of a full block, prefilling only the coinbase.
+     */
+    public static CompactBlock fromBlock(Block block, long nonce) {
+        final List<Transaction> transactions = block.getTransactions();
+        checkArgument(transactions != null && !transactions.isEmpty(), "Block must carry transactions");
+        final Block header = block.cloneAsHeader();
+        final SipHasher hasher = shortIdHasher(header.headerAsBytes(), nonce);
+        final long[] ids = new long[transactions.size() - 1];
+        for (int i = 1; i < transactions.size(); i++) {
+            ids[i - 1] = shortId(hasher, transactions.get(i).getHash());
+        }
+        return new CompactBlock(header, nonce, ids, ImmutableList.of(new PrefilledTransaction(0, transactions.get(0))));
+    }
+
+    public static CompactBlock parse(NetworkParameters params, byte[] payload) throws ProtocolException {
+        final PayloadReader reader = new PayloadReader(payload);
+        final Block header = new Block(params, reader.readBytes(HEADER_SIZE));
+        final long nonce = reader.readInt64();
+
+        final int idCount = reader.readCount(SHORT_ID_SIZE);
+        final long[] ids = new long[idCount];
+        for (int i = 0; i < idCount; i++) {
+            final byte[] id = reader.readBytes(SHORT_ID_SIZE);
+            long value = 0;
+            for (int b = SHORT_ID_SIZE - 1; b >= 0; b--) {
+                value = (value << 8) | (id[b] & 0xffL);
+            }
+            ids[i] = value;
+        }
+
+        final int prefilledCount = reader.readCount(1);
+        final ArrayList<PrefilledTransaction> prefilled = new ArrayList<PrefilledTransaction>(prefilledCount);
+        int lastIndex = -1;
+        for (int i = 0; i < prefilledCount; i++) {
+            final long diff = reader.readVarInt();
+            final long index = lastIndex + diff + 1;
+            if (diff < 0 || index > Integer.MAX_VALUE || index >= (long) idCount + prefilledCount)
+                throw new ProtocolException("Prefilled transaction index out of range: " + index);
+            lastIndex = (int) index;
+            prefilled.add(new PrefilledTransaction(lastIndex, reader.readTransaction(params)));
+        }
+        return new CompactBlock(header, nonce, ids, prefilled);
+    }
+
+    public byte[] serialize() {
+        final PayloadWriter writer = new PayloadWriter(HEADER_SIZE + 16 + shortIds.length * SHORT_ID_SIZE);
+        writer.writeBytes(headerBytes);
+        writer.writeInt64(nonce);
+        writer.writeVarInt(shortIds.length);
+        final byte[] id = new byte[SHORT_ID_SIZE];
+        for (long value : shortIds) {
+            for (int b = 0; b < SHORT_ID_SIZE; b++) {
+                id[b] = (byte) (value >>> (8 * b));
+            }
+            writer.writeBytes(id);
+        }
+        writer.writeVarInt(prefilled.size());
+        int lastIndex = -1;
+        for (PrefilledTransaction p : prefilled) {
+            writer.writeVarInt(p.getIndex() - lastIndex - 1);
+            writer.writeTransaction(p.getTransaction());
+            lastIndex = p.getIndex();
+        }
+        return writer.toByteArray();
+    }
+
+    public long shortId(Sha256Hash txHash) {
+        return shortId(shortIdHasher, txHash);
+    }
+
+    public Block getHeader() {
+        return header;
+    }
+
+    public Sha256Hash getHash() {
+        return header.getHash();
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    public long[] getShortIds() {
+        return shortIds.clone();
+    }
+
+    int getShortIdCount() {
+        return shortIds.length;
+    }
+
+    long getShortId(int i) {
+        return shortIds[i];
+    }
+
+    public List<PrefilledTransaction> getPrefilled() {
+        return prefilled;
+    }
+
+    public int getTransactionCount() {
+        return shortIds.length + prefilled.size();
+    }
+
+    byte[] getHeaderBytes() {
+        return headerBytes;
+    }
+
+    static SipHasher shortIdHasher(byte[] headerBytes, long nonce) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        digest.update(headerBytes);
+        final byte[] nonceBytes = new byte[8];
+        Utils.uint64ToByteArrayLE(nonce, nonceBytes, 0);
+        final byte[] key = digest.digest(nonceBytes);
+        return new SipHasher(SipHasher.readLongLE(key, 0), SipHasher.readLongLE(key, 8));
+    }
+
+    static long shortId(SipHasher hasher, Sha256Hash txHash) {
+        return hasher.hash(Utils.reverseBytes(txHash.getBytes())) & SHORT_ID_MASK;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactBlock{" + getHash() + ", shortIds=" + shortIds.length + ", prefilled=" + prefilled.size() + '}';
+    }
+
+    public static final class PrefilledTransaction {
+
+        private final int index;
+        private final Transaction transaction;
+
+        public PrefilledTransaction(int index, Transaction transaction) {
+            checkArgument(index >= 0);
+            this.index = index;
+            this.transaction = transaction;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public Transaction getTransaction() {
+            return transaction;
+        }
+
+    }
+
+}
@@ -0,0 +1,347 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Per-peer compact block (BIP 152) state machine. Feed it the raw <tt>sendcmpct</tt>, <tt>cmpctblock</tt>,
+ * <tt>getblocktxn</tt> and <tt>blocktxn</tt> payloads received from the peer; it answers through the
+ * {@link MessageChannel} and hands every rebuilt block to the {@link BlockListener}. Whenever a block can't be
+ * rebuilt from the compact form it asks for the full block instead, so the worst case is the old behaviour.
+ */
+public class CompactBlockRelay {
+
+    private static final Logger log = LoggerFactory.getLogger(CompactBlockRelay.class);
+
+    /** How many half-built blocks we wait on at once; older ones are given up and fetched in full. */
+    static final int MAX_PENDING_BLOCKS = 8;
+    /** How many blocks we announced in compact form and can still serve <tt>getblocktxn</tt> for. */
+    static final int MAX_ANNOUNCED_BLOCKS = 16;
+
+    public interface MessageChannel {
+
+        void sendMessage(String command, byte[] payload);
+
+        void requestFullBlock(Sha256Hash blockHash);
+
+    }
+
+    public interface BlockListener {
+
+        void onBlockReconstructed(Block block, int fromMempool, int requested);
+
+    }
+
+    private final NetworkParameters params;
+    private final MempoolSource mempool;
+    private final MessageChannel channel;
+    private final BlockListener listener;
+    private final Random nonceSource;
+
+    private final ReentrantLock lock = Threading.lock("compactblockrelay");
+    private boolean peerSupportsCompact;
+    private boolean peerWantsHighBandwidth;
+    private final List<Sha256Hash> evicted = new ArrayList<Sha256Hash>();
+    private final LinkedHashMap<Sha256Hash, PartialBlock> pending = new LinkedHashMap<Sha256Hash, PartialBlock>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, PartialBlock> eldest) {
+            if (size() > MAX_PENDING_BLOCKS) {
+                evicted.add(eldest.getKey());
+                return true;
+            }
+            return false;
+        }
+    };
+    private final LinkedHashMap<Sha256Hash, Block> announced = new LinkedHashMap<Sha256Hash, Block>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Block> eldest) {
+            return size() > MAX_ANNOUNCED_BLOCKS;
+        }
+    };
+
+    private long reconstructed;
+    private long reconstructedWithoutRoundTrip;
+    private long fallbacks;
+
+    public CompactBlockRelay(NetworkParameters params, MempoolSource mempool, MessageChannel channel, BlockListener listener) {
+        this(params, mempool, channel, listener, new Random());
+    }
+
+    CompactBlockRelay(NetworkParameters params, MempoolSource mempool, MessageChannel channel, BlockListener listener,
+                      Random nonceSource) {
+        this.params = checkNotNull(params);
+        this.mempool = checkNotNull(mempool);
+        this.channel = checkNotNull(channel);
+        this.listener = checkNotNull(listener);
+        this.nonceSource = nonceSource;
+    }
+
+    /**
+     * To be called once the version handshake is done.
+     *
+     * @param highBandwidth ask the peer to push new blocks as <tt>cmpctblock</tt> straight away. Only worth it for a
+     *                      handful of fast peers, every one of them will send us each block.
+     */
+    public void start(boolean highBandwidth) {
+        channel.sendMessage(SendCompactMessage.COMMAND, new SendCompactMessage(highBandwidth, SendCompactMessage.VERSION).serialize());
+    }
+
+    /**
+     * @return false if the command isn't a compact block message and should be handled elsewhere.
+     */
+    public boolean processMessage(String command, byte[] payload) throws ProtocolException {
+        if (SendCompactMessage.COMMAND.equals(command)) {
+            onSendCompact(SendCompactMessage.parse(payload));
+        } else if (CompactBlock.COMMAND.equals(command)) {
+            onCompactBlock(CompactBlock.parse(params, payload));
+        } else if (GetBlockTransactionsMessage.COMMAND.equals(command)) {
+            onGetBlockTransactions(GetBlockTransactionsMessage.parse(payload));
+        } else if (BlockTransactionsMessage.COMMAND.equals(command)) {
+            onBlockTransactions(BlockTransactionsMessage.parse(params, payload));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Pushes a freshly connected block to the peer in compact form, if it asked for high bandwidth mode.
+     *
+     * @return false if the usual <tt>inv</tt> or <tt>headers</tt> announcement should be sent instead; a low bandwidth
+     * peer then asks for the compact form with a <tt>getdata</tt>, answered by {@link #sendCompactBlock(Block)}.
+     */
+    public boolean announceBlock(Block block) {
+        lock.lock();
+        try {
+            if (!peerSupportsCompact || !peerWantsHighBandwidth)
+                return false;
+        } finally {
+            lock.unlock();
+        }
+        return sendCompactBlock(block);
+    }
+
+    /**
+     * Sends the block in compact form, as the answer to a <tt>getdata</tt> for <tt>MSG_CMPCT_BLOCK</tt>.
+     *
+     * @return false if the peer never asked for compact blocks and should get the full block.
+     */
+    public boolean sendCompactBlock(Block block) {
+        final CompactBlock compactBlock;
+        lock.lock();
+        try {
+            if (!peerSupportsCompact)
+                return false;
+            compactBlock = CompactBlock.fromBlock(block, nonceSource.nextLong());
+            announced.put(block.getHash(), block);
+        } finally {
+            lock.unlock();
+        }
+        channel.sendMessage(CompactBlock.COMMAND, compactBlock.serialize());
+        return true;
+    }
+
+    private void onSendCompact(SendCompactMessage message) {
+        if (message.getVersion() != SendCompactMessage.VERSION)
+            return;
+        lock.lock();
+        try {
+            peerSupportsCompact = true;
+            peerWantsHighBandwidth = message.isHighBandwidth();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onCompactBlock(CompactBlock compactBlock) {
+        final Sha256Hash hash = compactBlock.getHash();
+        final PartialBlock partial = PartialBlock.create(params, compactBlock, mempool);
+        if (partial == null) {
+            fallback(hash);
+            return;
+        }
+        final int[] missing = partial.getMissingIndexes();
+        if (missing.length == 0) {
+            complete(partial, true);
+            return;
+        }
+
+        final List<Sha256Hash> givenUp;
+        lock.lock();
+        try {
+            pending.put(hash, partial);
+            givenUp = drainEvicted();
+        } finally {
+            lock.unlock();
+        }
+        for (Sha256Hash h : givenUp) {
+            fallback(h);
+        }
+        log.debug("{}: {} of {} transactions missing", hash, missing.length, compactBlock.getTransactionCount());
+        channel.sendMessage(GetBlockTransactionsMessage.COMMAND, new GetBlockTransactionsMessage(hash, missing).serialize());
+    }
+
+    private void onGetBlockTransactions(GetBlockTransactionsMessage request) throws ProtocolException {
+        final Block block;
+        lock.lock();
+        try {
+            block = announced.get(request.getBlockHash());
+        } finally {
+            lock.unlock();
+        }
+        if (block == null) {
+            log.info("Peer asked for transactions of a block we didn't announce: {}", request.getBlockHash());
+            return;
+        }
+        final List<Transaction> transactions = block.getTransactions();
+        final int[] indexes = request.getIndexes();
+        final ArrayList<Transaction> answer = new ArrayList<Transaction>(indexes.length);
+        for (int index : indexes) {
+            if (index >= transactions.size())
+                throw new ProtocolException("getblocktxn index " + index + " out of range for " + request.getBlockHash());
+            answer.add(transactions.get(index));
+        }
+        channel.sendMessage(BlockTransactionsMessage.COMMAND, new BlockTransactionsMessage(request.getBlockHash(), answer).serialize());
+    }
+
+    private void onBlockTransactions(BlockTransactionsMessage message) {
+        final PartialBlock partial;
+        lock.lock();
+        try {
+            partial = pending.remove(message.getBlockHash());
+        } finally {
+            lock.unlock();
+        }
+        if (partial == null) {
+            log.debug("Unsolicited blocktxn for {}", message.getBlockHash());
+            return;
+        }
+        if (!partial.fill(message.getTransactions())) {
+            fallback(message.getBlockHash());
+            return;
+        }
+        complete(partial, false);
+    }
+
+    private void complete(PartialBlock partial, boolean withoutRoundTrip) {
+        final Block block = partial.build();
+        if (block == null) {
+            fallback(partial.getCompactBlock().getHash());
+            return;
+        }
+        lock.lock();
+        try {
+            reconstructed++;
+            if (withoutRoundTrip)
+                reconstructedWithoutRoundTrip++;
+        } finally {
+            lock.unlock();
+        }
+        listener.onBlockReconstructed(block, partial.getFromMempool(), partial.getRequested());
+    }
+
+    private void fallback(Sha256Hash hash) {
+        lock.lock();
+        try {
+            fallbacks++;
+        } finally {
+            lock.unlock();
+        }
+        log.info("Falling back to full block download for {}", hash);
+        channel.requestFullBlock(hash);
+    }
+
+    private List<Sha256Hash> drainEvicted() {
+        final ArrayList<Sha256Hash> drained = new ArrayList<Sha256Hash>(evicted);
+        evicted.clear();
+        return drained;
+    }
+
+    public boolean isPeerSupportingCompact() {
+        lock.lock();
+        try {
+            return peerSupportsCompact;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isPeerWantingHighBandwidth() {
+        lock.lock();
+        try {
+            return peerWantsHighBandwidth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    PartialBlock getPending(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return pending.get(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getReconstructedCount() {
+        lock.lock();
+        try {
+            return reconstructed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getReconstructedWithoutRoundTripCount() {
+        lock.lock();
+        try {
+            return reconstructedWithoutRoundTrip;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFallbackCount() {
+        lock.lock();
+        try {
+            return fallbacks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
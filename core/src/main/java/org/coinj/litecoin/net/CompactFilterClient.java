@@ -0,0 +1,692 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.utils.Threading;
+import org.coinj.litecoin.net.CompactBlockRelay.MessageChannel;
+import org.coinj.litecoin.store.HeightIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Client side of BIP 157 compact block filters, the private alternative to Bloom filtering: the peer serves the
+ * same filter to everybody and the wallet's scripts never leave this process, so adding keys costs nothing on the
+ * wire.</p>
+ *
+ * <p>Filter headers are fetched first and chained from a trusted filter header (a checkpoint, or all zeros before
+ * the genesis block). No single peer is trusted with them: each range is asked from {@code headerPeers} peers, and
+ * is accepted once that many agree and outnumber every other answer. Peers in the minority are reported bad; a tie
+ * waits for more peers to be asked. With fewer than {@code headerPeers} peers connected, headers wait for more to
+ * connect rather than trusting the ones there are, so a client eclipsed by a single peer stalls instead of being
+ * fed a made-up filter chain.</p>
+ *
+ * <p>Accepted filter headers are kept with the hash of their block for the last {@link #MAX_REWIND} heights. When
+ * {@link #sync()} finds the block headers reorganised below the synced height, it rewinds the filter header chain to
+ * the fork point, forgets the filters still expected for the blocks that left the best chain and fetches those of
+ * the new ones. A reorganisation deeper than that restarts from the trusted filter header.</p>
+ *
+ * <p>Filters are spread over the peers and each is checked against its committed hash before it is matched against
+ * the watched scripts. A filter that fails the check, or whose peer goes away, is asked again from another peer,
+ * so no block is silently left unscanned. Matching blocks are requested through
+ * {@link MessageChannel#requestFullBlock(Sha256Hash)} and, once they arrive, {@link #checkBlock(Block)} verifies
+ * the filter really covered their outputs.</p>
+ */
+public class CompactFilterClient {
+
+    private static final Logger log = LoggerFactory.getLogger(CompactFilterClient.class);
+
+    public static final int MAX_HEADERS_PER_REQUEST = 2000;
+    public static final int MAX_FILTERS_PER_REQUEST = 1000;
+    public static final int DEFAULT_HEADER_PEERS = 2;
+    public static final int MAX_REWIND = 2000;
+
+    public interface Listener {
+
+        void onBlockMatched(Sha256Hash blockHash, int height);
+
+        /** The peer served a filter or filter headers that don't check out; it should be disconnected. */
+        void onBadFilter(MessageChannel peer, Sha256Hash blockHash, int height, String reason);
+
+    }
+
+    private final HeightIndex headers;
+    private final Listener listener;
+    private final int headerPeers;
+    private final int trustedHeight;
+    private final byte[] trustedFilterHeader;
+
+    private final ReentrantLock lock = Threading.lock("compactfilterclient");
+    private volatile List<byte[]> watchedScripts = ImmutableList.of();
+    private final List<MessageChannel> peers = new ArrayList<MessageChannel>();
+    private int nextPeer;
+    private int headersSyncedTo;
+    private byte[] lastFilterHeader;
+    private final TreeMap<Integer, SyncedHeader> syncedHeaders = new TreeMap<Integer, SyncedHeader>();
+    private HeaderRound headerRound;
+    private final HashMap<Integer, byte[]> expectedFilterHashes = new HashMap<Integer, byte[]>();
+    private final HashMap<Sha256Hash, AwaitedFilter> awaitedFilters = new HashMap<Sha256Hash, AwaitedFilter>();
+    private final HashMap<Sha256Hash, MatchedFilter> matchedFilters = new HashMap<Sha256Hash, MatchedFilter>();
+    private long filtersChecked;
+    private long blocksMatched;
+    private long badFilters;
+    private long filtersRerequested;
+
+    /** Filter headers of one range, as answered by each peer asked. */
+    private static final class HeaderRound {
+        private final int start;
+        private final int stop;
+        private final Sha256Hash stopHash;
+        private final Set<MessageChannel> asked = new HashSet<MessageChannel>();
+        private final LinkedHashMap<MessageChannel, List<byte[]>> answers = new LinkedHashMap<MessageChannel, List<byte[]>>();
+
+        private HeaderRound(int start, int stop, Sha256Hash stopHash) {
+            this.start = start;
+            this.stop = stop;
+            this.stopHash = stopHash;
+        }
+    }
+
+    /** An accepted filter header and the block it was accepted for. */
+    private static final class SyncedHeader {
+        private final Sha256Hash blockHash;
+        private final byte[] filterHeader;
+
+        private SyncedHeader(Sha256Hash blockHash, byte[] filterHeader) {
+            this.blockHash = blockHash;
+            this.filterHeader = filterHeader;
+        }
+    }
+
+    private static final class AwaitedFilter {
+        private final int height;
+        private final Set<MessageChannel> failed = new HashSet<MessageChannel>();
+        @Nullable private MessageChannel peer;
+
+        private AwaitedFilter(int height) {
+            this.height = height;
+        }
+    }
+
+    private static final class MatchedFilter {
+        private final BlockFilter filter;
+        private final MessageChannel peer;
+        private final int height;
+
+        private MatchedFilter(BlockFilter filter, MessageChannel peer, int height) {
+            this.filter = filter;
+            this.peer = peer;
+            this.height = height;
+        }
+    }
+
+    private static final class BadReport {
+        private final MessageChannel peer;
+        private final Sha256Hash hash;
+        private final int height;
+        private final String reason;
+
+        private BadReport(MessageChannel peer, Sha256Hash hash, int height, String reason) {
+            this.peer = peer;
+            this.hash = hash;
+            this.height = height;
+            this.reason = reason;
+        }
+    }
+
+    /** Messages and reports collected under the lock, handed out after it's released. */
+    private final class Outbox {
+        private final List<MessageChannel> peers = new ArrayList<MessageChannel>();
+        private final List<String> commands = new ArrayList<String>();
+        private final List<byte[]> payloads = new ArrayList<byte[]>();
+        private final List<BadReport> bad = new ArrayList<BadReport>();
+
+        private void send(MessageChannel peer, String command, byte[] payload) {
+            peers.add(peer);
+            commands.add(command);
+            payloads.add(payload);
+        }
+
+        private void flush() {
+            for (BadReport report : bad) {
+                log.warn("Bad filter data for {} at height {}: {}", new Object[] {report.hash, report.height, report.reason});
+                listener.onBadFilter(report.peer, report.hash, report.height, report.reason);
+            }
+            for (int i = 0; i < peers.size(); i++) {
+                peers.get(i).sendMessage(commands.get(i), payloads.get(i));
+            }
+        }
+    }
+
+    public CompactFilterClient(HeightIndex headers, Listener listener, int trustedHeight, byte[] trustedFilterHeader) {
+        this(headers, listener, trustedHeight, trustedFilterHeader, DEFAULT_HEADER_PEERS);
+    }
+
+    /**
+     * @param trustedHeight height of the last block whose filter header is known, -1 to start from genesis.
+     * @param trustedFilterHeader the filter header at that height, 32 zero bytes when starting from genesis.
+     * @param headerPeers number of peers that must agree on filter headers before they are used. Nothing is synced
+     *                    while fewer peers than that are connected.
+     */
+    public CompactFilterClient(HeightIndex headers, Listener listener, int trustedHeight, byte[] trustedFilterHeader,
+                               int headerPeers) {
+        checkArgument(trustedHeight >= -1 && trustedFilterHeader.length == BlockFilter.HASH_SIZE);
+        checkArgument(headerPeers > 0, "At least one peer must serve the filter headers");
+        this.headers = checkNotNull(headers);
+        this.listener = checkNotNull(listener);
+        this.trustedHeight = trustedHeight;
+        this.trustedFilterHeader = trustedFilterHeader.clone();
+        this.headersSyncedTo = trustedHeight;
+        this.lastFilterHeader = trustedFilterHeader.clone();
+        this.headerPeers = headerPeers;
+    }
+
+    /**
+     * Replaces the scripts blocks are matched against. Purely local: nothing is sent to peers.
+     */
+    public void setWatchedScripts(Collection<byte[]> scripts) {
+        watchedScripts = ImmutableList.copyOf(scripts);
+    }
+
+    /**
+     * Adds a peer serving BIP 157 filters. Filters no other peer could serve are asked from it.
+     */
+    public void addPeer(MessageChannel peer) {
+        final Outbox outbox = new Outbox();
+        lock.lock();
+        try {
+            if (peers.contains(peer))
+                return;
+            peers.add(peer);
+            if (headerRound != null)
+                askMoreForHeaders(outbox);
+            final List<AwaitedFilter> stalled = new ArrayList<AwaitedFilter>();
+            for (AwaitedFilter awaited : awaitedFilters.values()) {
+                if (awaited.peer == null)
+                    stalled.add(awaited);
+            }
+            requestFilters(stalled, outbox);
+        } finally {
+            lock.unlock();
+        }
+        outbox.flush();
+        sync();
+    }
+
+    /**
+     * Forgets a disconnected peer, asking others for what it still owed.
+     */
+    public void removePeer(MessageChannel peer) {
+        final Outbox outbox = new Outbox();
+        lock.lock();
+        try {
+            dropPeer(peer, outbox);
+        } finally {
+            lock.unlock();
+        }
+        outbox.flush();
+        sync();
+    }
+
+    /**
+     * Requests filter headers, and then filters, up to the best known header. Call again when new headers arrive or
+     * the best chain is reorganised.
+     */
+    public void sync() {
+        final Outbox outbox = new Outbox();
+        lock.lock();
+        try {
+            rewindToFork();
+            if (headerRound != null || peers.isEmpty())
+                return;
+            final int best = headers.getBestHeight();
+            if (headersSyncedTo >= best)
+                return;
+            final int start = headersSyncedTo + 1;
+            final int stop = Math.min(best, start + MAX_HEADERS_PER_REQUEST - 1);
+            final Sha256Hash stopHash = headers.getHashAtHeight(stop);
+            if (stopHash == null)
+                return;
+            headerRound = new HeaderRound(start, stop, stopHash);
+            askMoreForHeaders(outbox);
+        } finally {
+            lock.unlock();
+        }
+        outbox.flush();
+    }
+
+    /**
+     * @param from the peer the message came from.
+     * @return false if the command isn't a filter message and should be handled elsewhere.
+     */
+    public boolean processMessage(MessageChannel from, String command, byte[] payload) throws ProtocolException {
+        if (CompactFilterHeadersMessage.COMMAND.equals(command)) {
+            onFilterHeaders(from, CompactFilterHeadersMessage.parse(payload));
+        } else if (CompactFilterMessage.COMMAND.equals(command)) {
+            onFilter(from, CompactFilterMessage.parse(payload));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * To be called with every block that arrives after a filter match.
+     *
+     * @return false if the filter the peer served for this block omitted some of its outputs.
+     */
+    public boolean checkBlock(Block block) {
+        final Outbox outbox = new Outbox();
+        final boolean covered;
+        lock.lock();
+        try {
+            final MatchedFilter matched = matchedFilters.remove(block.getHash());
+            covered = matched == null || matched.filter.coversOutputsOf(block);
+            if (!covered)
+                reportBad(matched.peer, block.getHash(), -1, "filter doesn't cover the block's outputs", outbox);
+        } finally {
+            lock.unlock();
+        }
+        outbox.flush();
+        return covered;
+    }
+
+    /**
+     * Asks peers that weren't asked yet while the outstanding answers can't settle the round.
+     */
+    private void askMoreForHeaders(Outbox outbox) {
+        final HeaderRound round = headerRound;
+        final GetCompactFiltersMessage request =
+                new GetCompactFiltersMessage(BlockFilter.BASIC_FILTER_TYPE, round.start, round.stopHash);
+        int outstanding = round.asked.size() - round.answers.size();
+        for (MessageChannel peer : peers) {
+            final boolean needMore = outstanding + largestAgreement(round) < headerPeers
+                    || (outstanding == 0 && isTied(round));
+            if (!needMore)
+                break;
+            if (round.asked.add(peer)) {
+                outbox.send(peer, GetCompactFiltersMessage.HEADERS_COMMAND, request.serialize());
+                outstanding++;
+            }
+        }
+    }
+
+    private void onFilterHeaders(MessageChannel from, CompactFilterHeadersMessage message) {
+        if (message.getFilterType() != BlockFilter.BASIC_FILTER_TYPE)
+            return;
+        final Outbox outbox = new Outbox();
+        lock.lock();
+        try {
+            rewindToFork();
+            final HeaderRound round = headerRound;
+            if (round == null || !round.asked.contains(from) || round.answers.containsKey(from)
+                    || !message.getStopHash().equals(round.stopHash))
+                return;  // Unsolicited.
+
+            final List<byte[]> filterHashes = message.getFilterHashes();
+            if (filterHashes.size() != round.stop - round.start + 1) {
+                reportBad(from, round.stopHash, round.stop, "expected " + (round.stop - round.start + 1)
+                        + " filter hashes, got " + filterHashes.size(), outbox);
+            } else if (!Arrays.equals(message.getPreviousHeader(), lastFilterHeader)) {
+                reportBad(from, round.stopHash, round.stop, "filter headers don't connect to the trusted chain", outbox);
+            } else {
+                round.answers.put(from, filterHashes);
+                decideHeaders(round, outbox);
+            }
+            if (headerRound != null)
+                askMoreForHeaders(outbox);
+        } finally {
+            lock.unlock();
+        }
+        outbox.flush();
+        // Also after a rejected answer: dropping its peer may have let the round settle.
+        sync();
+    }
+
+    /**
+     * Accepts the round's headers once {@code headerPeers} peers agree and no other answer is as common.
+     */
+    private boolean decideHeaders(HeaderRound round, Outbox outbox) {
+        if (round.answers.size() < round.asked.size() && largestAgreement(round) < headerPeers)
+            return false;
+        if (largestAgreement(round) < headerPeers || isTied(round)) {
+            if (round.answers.size() == round.asked.size() && round.answers.size() > 1)
+                log.warn("Peers disagree on filter headers up to height {}, asking more peers", round.stop);
+            return false;
+        }
+        final List<byte[]> agreed = mostCommonAnswer(round);
+        for (Map.Entry<MessageChannel, List<byte[]>> answer : new ArrayList<Map.Entry<MessageChannel, List<byte[]>>>(
+                round.answers.entrySet())) {
+            if (!sameHashes(answer.getValue(), agreed))
+                reportBad(answer.getKey(), round.stopHash, round.stop, "filter headers outvoted by other peers", outbox);
+        }
+
+        byte[] header = lastFilterHeader;
+        final List<AwaitedFilter> wanted = new ArrayList<AwaitedFilter>();
+        for (int i = 0; i < agreed.size(); i++) {
+            final int height = round.start + i;
+            final Sha256Hash blockHash = headers.getHashAtHeight(height);
+            header = BlockFilter.filterHeader(agreed.get(i), header);
+            expectedFilterHashes.put(height, agreed.get(i));
+            syncedHeaders.put(height, new SyncedHeader(blockHash, header));
+            final AwaitedFilter awaited = new AwaitedFilter(height);
+            awaitedFilters.put(blockHash, awaited);
+            wanted.add(awaited);
+        }
+        while (syncedHeaders.size() > MAX_REWIND) {
+            syncedHeaders.pollFirstEntry();
+        }
+        lastFilterHeader = header;
+        headersSyncedTo = round.stop;
+        headerRound = null;
+        requestFilters(wanted, outbox);
+        return true;
+    }
+
+    /**
+     * Drops a header round whose stop block left the best chain, and rewinds the synced filter headers to the
+     * highest one whose block is still in it.
+     */
+    private void rewindToFork() {
+        final HeaderRound round = headerRound;
+        if (round != null && !round.stopHash.equals(headers.getHashAtHeight(round.stop))) {
+            log.info("Block {} left the best chain, dropping its filter header request", round.stopHash);
+            headerRound = null;
+        }
+        int fork = headersSyncedTo;
+        while (fork > trustedHeight) {
+            final SyncedHeader synced = syncedHeaders.get(fork);
+            if (synced == null) {
+                fork = trustedHeight;  // Deeper than we can rewind.
+                break;
+            }
+            if (synced.blockHash.equals(headers.getHashAtHeight(fork)))
+                break;
+            fork--;
+        }
+        if (fork == headersSyncedTo)
+            return;
+        log.info("Best chain reorganised, rewinding filter headers from height {} to {}", headersSyncedTo, fork);
+        lastFilterHeader = fork == trustedHeight ? trustedFilterHeader.clone() : syncedHeaders.get(fork).filterHeader;
+        headersSyncedTo = fork;
+        headerRound = null;
+        syncedHeaders.tailMap(fork, false).clear();
+        for (Iterator<Integer> it = expectedFilterHashes.keySet().iterator(); it.hasNext(); ) {
+            if (it.next() > fork)
+                it.remove();
+        }
+        for (Iterator<AwaitedFilter> it = awaitedFilters.values().iterator(); it.hasNext(); ) {
+            if (it.next().height > fork)
+                it.remove();
+        }
+        for (Iterator<MatchedFilter> it = matchedFilters.values().iterator(); it.hasNext(); ) {
+            if (it.next().height > fork)
+                it.remove();
+        }
+    }
+
+    private static int largestAgreement(HeaderRound round) {
+        int largest = 0;
+        for (List<byte[]> answer : round.answers.values()) {
+            largest = Math.max(largest, agreeing(round, answer));
+        }
+        return largest;
+    }
+
+    private static boolean isTied(HeaderRound round) {
+        final int largest = largestAgreement(round);
+        final List<byte[]> top = mostCommonAnswer(round);
+        for (List<byte[]> answer : round.answers.values()) {
+            if (!sameHashes(answer, top) && agreeing(round, answer) == largest)
+                return true;
+        }
+        return false;
+    }
+
+    @Nullable
+    private static List<byte[]> mostCommonAnswer(HeaderRound round) {
+        List<byte[]> best = null;
+        int bestCount = 0;
+        for (List<byte[]> answer : round.answers.values()) {
+            final int count = agreeing(round, answer);
+            if (count > bestCount) {
+                best = answer;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    private static int agreeing(HeaderRound round, List<byte[]> answer) {
+        int count = 0;
+        for (List<byte[]> other : round.answers.values()) {
+            if (sameHashes(answer, other))
+                count++;
+        }
+        return count;
+    }
+
+    private static boolean sameHashes(List<byte[]> a, List<byte[]> b) {
+        if (a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (!Arrays.equals(a.get(i), b.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Asks each filter from a peer that hasn't failed it, in runs of consecutive heights. Filters no peer can serve
+     * wait for {@link #addPeer(MessageChannel)}.
+     */
+    private void requestFilters(List<AwaitedFilter> wanted, Outbox outbox) {
+        Collections.sort(wanted, new Comparator<AwaitedFilter>() {
+            @Override
+            public int compare(AwaitedFilter a, AwaitedFilter b) {
+                return a.height < b.height ? -1 : (a.height == b.height ? 0 : 1);
+            }
+        });
+        int i = 0;
+        while (i < wanted.size()) {
+            final AwaitedFilter first = wanted.get(i);
+            final MessageChannel peer = pickPeer(first);
+            first.peer = peer;
+            if (peer == null) {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            while (end < wanted.size() && end - i < MAX_FILTERS_PER_REQUEST
+                    && wanted.get(end).height == wanted.get(end - 1).height + 1
+                    && !wanted.get(end).failed.contains(peer)) {
+                wanted.get(end).peer = peer;
+                end++;
+            }
+            final Sha256Hash stopHash = headers.getHashAtHeight(wanted.get(end - 1).height);
+            outbox.send(peer, GetCompactFiltersMessage.FILTERS_COMMAND,
+                    new GetCompactFiltersMessage(BlockFilter.BASIC_FILTER_TYPE, first.height, stopHash).serialize());
+            i = end;
+        }
+    }
+
+    @Nullable
+    private MessageChannel pickPeer(AwaitedFilter awaited) {
+        for (int tried = 0; tried < peers.size(); tried++) {
+            final MessageChannel peer = peers.get(nextPeer++ % peers.size());
+            if (!awaited.failed.contains(peer))
+                return peer;
+        }
+        return null;
+    }
+
+    private void onFilter(MessageChannel from, CompactFilterMessage message) throws ProtocolException {
+        if (message.getFilterType() != BlockFilter.BASIC_FILTER_TYPE)
+            return;
+        final Sha256Hash hash = message.getBlockHash();
+        final byte[] serialized = message.getFilter();
+        final Outbox outbox = new Outbox();
+        final int height;
+        boolean matched = false;
+        lock.lock();
+        try {
+            rewindToFork();
+            final AwaitedFilter awaited = awaitedFilters.get(hash);
+            if (awaited == null)
+                return;
+            height = awaited.height;
+            if (!Arrays.equals(BlockFilter.filterHash(serialized), expectedFilterHashes.get(height))) {
+                if (!peers.contains(from))
+                    return;  // Already dropped, and its filters asked elsewhere.
+                // Dropping the peer asks another one for this filter and everything else it still owed.
+                awaited.failed.add(from);
+                reportBad(from, hash, height, "filter doesn't match its committed hash", outbox);
+            } else {
+                awaitedFilters.remove(hash);
+                expectedFilterHashes.remove(height);
+                final BlockFilter filter = BlockFilter.parse(hash, serialized);
+                filtersChecked++;
+                if (filter.matchAny(watchedScripts)) {
+                    matchedFilters.put(hash, new MatchedFilter(filter, from, height));
+                    blocksMatched++;
+                    matched = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        outbox.flush();
+        if (!matched)
+            return;
+        log.debug("Filter of block {} at height {} matched", hash, height);
+        from.requestFullBlock(hash);
+        listener.onBlockMatched(hash, height);
+    }
+
+    private void reportBad(MessageChannel peer, Sha256Hash hash, int height, String reason, Outbox outbox) {
+        badFilters++;
+        outbox.bad.add(new BadReport(peer, hash, height, reason));
+        dropPeer(peer, outbox);
+    }
+
+    /**
+     * Takes the peer out of rotation and asks others for what it still owed.
+     */
+    private void dropPeer(MessageChannel peer, Outbox outbox) {
+        if (!peers.remove(peer))
+            return;
+        final HeaderRound round = headerRound;
+        if (round != null && round.asked.contains(peer) && !round.answers.containsKey(peer)) {
+            round.asked.remove(peer);
+            // The answers in may be all there will be now.
+            if (!decideHeaders(round, outbox))
+                askMoreForHeaders(outbox);
+        }
+        final List<AwaitedFilter> orphaned = new ArrayList<AwaitedFilter>();
+        for (AwaitedFilter awaited : awaitedFilters.values()) {
+            if (awaited.peer == peer) {
+                awaited.failed.add(peer);
+                orphaned.add(awaited);
+            }
+        }
+        filtersRerequested += orphaned.size();
+        requestFilters(orphaned, outbox);
+    }
+
+    public int getHeadersSyncedTo() {
+        lock.lock();
+        try {
+            return headersSyncedTo;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFiltersChecked() {
+        lock.lock();
+        try {
+            return filtersChecked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBlocksMatched() {
+        lock.lock();
+        try {
+            return blocksMatched;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBadFilterCount() {
+        lock.lock();
+        try {
+            return badFilters;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return filters asked again after a bad answer or a lost peer.
+     */
+    public long getFiltersRerequested() {
+        lock.lock();
+        try {
+            return filtersRerequested;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return filters whose blocks haven't been scanned yet.
+     */
+    public int getAwaitedFilterCount() {
+        lock.lock();
+        try {
+            return awaitedFilters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The <tt>cfheaders</tt> message: the filter header preceding the range and the filter hashes of the range, from
+ * which the receiver chains the filter headers itself. Hashes are raw 32 byte arrays in internal byte order.
+ */
+public final class CompactFilterHeadersMessage {
+
+    public static final String COMMAND = "cfheaders";
+
+    private final int filterType;
+    private final Sha256Hash stopHash;
+    private final byte[] previousHeader;
+    private final List<byte[]> filterHashes;
+
+    public CompactFilterHeadersMessage(int filterType, Sha256Hash stopHash, byte[] previousHeader, List<byte[]> filterHashes) {
+        checkArgument(previousHeader.length == BlockFilter.HASH_SIZE);
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+        this.previousHeader = previousHeader.clone();
+        this.filterHashes = Collections.unmodifiableList(new ArrayList<byte[]>(filterHashes));
+    }
+
+    public static CompactFilterHeadersMessage parse(byte[] payload) throws ProtocolException {
+        final PayloadReader reader = new PayloadReader(payload);
+        final int type = reader.readUint8();
+        final Sha256Hash stop = reader.readHash();
+        final byte[] previous = reader.readBytes(BlockFilter.HASH_SIZE);
+        final int count = reader.readCount(BlockFilter.HASH_SIZE);
+        final ArrayList<byte[]> hashes = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            hashes.add(reader.readBytes(BlockFilter.HASH_SIZE));
+        }
+        return new CompactFilterHeadersMessage(type, stop, previous, hashes);
+    }
+
+    public byte[] serialize() {
+        final PayloadWriter writer = new PayloadWriter(70 + filterHashes.size() * BlockFilter.HASH_SIZE);
+        writer.writeUint8(filterType).writeHash(stopHash).writeBytes(previousHeader).writeVarInt(filterHashes.size());
+        for (byte[] hash : filterHashes) {
+            writer.writeBytes(hash);
+        }
+        return writer.toByteArray();
+    }
+
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    public byte[] getPreviousHeader() {
+        return previousHeader.clone();
+    }
+
+    public List<byte[]> getFilterHashes() {
+        return filterHashes;
+    }
+
+}
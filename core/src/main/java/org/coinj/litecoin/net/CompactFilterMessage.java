@@ -0,0 +1,64 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * The <tt>cfilter</tt> message: one serialized block filter.
+ */
+public final class CompactFilterMessage {
+
+    public static final String COMMAND = "cfilter";
+
+    private final int filterType;
+    private final Sha256Hash blockHash;
+    private final byte[] filter;
+
+    public CompactFilterMessage(int filterType, Sha256Hash blockHash, byte[] filter) {
+        this.filterType = filterType;
+        this.blockHash = blockHash;
+        this.filter = filter.clone();
+    }
+
+    public static CompactFilterMessage parse(byte[] payload) throws ProtocolException {
+        final PayloadReader reader = new PayloadReader(payload);
+        final int type = reader.readUint8();
+        final Sha256Hash hash = reader.readHash();
+        final int length = reader.readCount(1);
+        return new CompactFilterMessage(type, hash, reader.readBytes(length));
+    }
+
+    public byte[] serialize() {
+        return new PayloadWriter(filter.length + 40).writeUint8(filterType).writeHash(blockHash)
+                .writeVarInt(filter.length).writeBytes(filter).toByteArray();
+    }
+
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    public byte[] getFilter() {
+        return filter.clone();
+    }
+
+}
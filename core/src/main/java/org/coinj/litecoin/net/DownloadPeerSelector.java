@@ -0,0 +1,156 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Picks the chain download peer by {@link PeerPerformance#getScore(PeerPerformance.Phase)} among the candidates
+ * PeerGroup already considers eligible (right height and protocol version). Calling {@link #select} again during
+ * the sync re-evaluates the choice, but switching has hysteresis: the current peer is only replaced once it has
+ * been downloading for the minimum dwell time and a candidate scores at least the switch ratio better. Losing the
+ * current peer always switches immediately.</p>
+ *
+ * @param <P> peer type, normally {@link org.bitcoinj.core.Peer}.
+ */
+public final class DownloadPeerSelector<P> {
+
+    private static final Logger log = LoggerFactory.getLogger(DownloadPeerSelector.class);
+
+    public static final double DEFAULT_SWITCH_RATIO = 1.5;
+    public static final long DEFAULT_MIN_DWELL_MILLIS = 30 * 1000;
+
+    private final double switchRatio;
+    private final long minDwellMillis;
+
+    private final ReentrantLock lock = Threading.lock("downloadpeerselector");
+    private final HashMap<P, PeerPerformance> performances = new HashMap<P, PeerPerformance>();
+    @Nullable private P current;
+    private long currentSinceMillis;
+    private long switches;
+
+    public DownloadPeerSelector() {
+        this(DEFAULT_SWITCH_RATIO, DEFAULT_MIN_DWELL_MILLIS);
+    }
+
+    public DownloadPeerSelector(double switchRatio, long minDwellMillis) {
+        checkArgument(switchRatio >= 1 && minDwellMillis >= 0);
+        this.switchRatio = switchRatio;
+        this.minDwellMillis = minDwellMillis;
+    }
+
+    /**
+     * The measurements of a peer, created on first use. Feed it from the peer's ping, headers and block traffic.
+     */
+    public PeerPerformance getPerformance(P peer) {
+        lock.lock();
+        try {
+            PeerPerformance performance = performances.get(peer);
+            if (performance == null) {
+                performance = new PeerPerformance();
+                performances.put(peer, performance);
+            }
+            return performance;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void removePeer(P peer) {
+        lock.lock();
+        try {
+            performances.remove(peer);
+            if (peer.equals(current))
+                current = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the peer to download from, which is the current one unless switching is warranted, or null if there
+     * are no candidates.
+     */
+    @Nullable
+    public P select(Collection<P> candidates, PeerPerformance.Phase phase) {
+        lock.lock();
+        try {
+            if (candidates.isEmpty()) {
+                current = null;
+                return null;
+            }
+            P best = null;
+            double bestScore = -1;
+            for (P candidate : candidates) {
+                final double score = getPerformance(candidate).getScore(phase);
+                if (score > bestScore) {
+                    best = candidate;
+                    bestScore = score;
+                }
+            }
+
+            final long now = Utils.currentTimeMillis();
+            if (current == null || !candidates.contains(current)) {
+                setCurrent(best, now);
+            } else if (best != current && now - currentSinceMillis >= minDwellMillis
+                    && bestScore > getPerformance(current).getScore(phase) * switchRatio) {
+                log.info("Switching download peer from {} ({}) to {} ({})", current, getPerformance(current), best, getPerformance(best));
+                setCurrent(best, now);
+            }
+            return current;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    public P getCurrent() {
+        lock.lock();
+        try {
+            return current;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSwitchCount() {
+        lock.lock();
+        try {
+            return switches;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void setCurrent(P peer, long now) {
+        if (current != null)
+            switches++;
+        current = peer;
+        currentSinceMillis = now;
+    }
+
+}
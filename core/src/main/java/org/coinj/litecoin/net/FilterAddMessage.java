@@ -0,0 +1,55 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.ProtocolException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The BIP 37 <tt>filteradd</tt> message: inserts one element into the Bloom filter the peer already has loaded.
+ */
+public final class FilterAddMessage {
+
+    public static final String COMMAND = "filteradd";
+    /** Same limit as a script push, enforced by the remote side. */
+    public static final int MAX_ELEMENT_SIZE = 520;
+
+    private final byte[] element;
+
+    public FilterAddMessage(byte[] element) {
+        checkArgument(element.length <= MAX_ELEMENT_SIZE, "filteradd element too large: %s", element.length);
+        this.element = element;
+    }
+
+    public static FilterAddMessage parse(byte[] payload) throws ProtocolException {
+        final PayloadReader reader = new PayloadReader(payload);
+        final int length = reader.readCount(1);
+        if (length > MAX_ELEMENT_SIZE)
+            throw new ProtocolException("filteradd element too large: " + length);
+        return new FilterAddMessage(reader.readBytes(length));
+    }
+
+    public byte[] serialize() {
+        return new PayloadWriter(element.length + 3).writeVarInt(element.length).writeBytes(element).toByteArray();
+    }
+
+    public byte[] getElement() {
+        return element;
+    }
+
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The <tt>getblocktxn</tt> message: asks the announcing peer for the transactions of a compact block that
+ * couldn't be found in our mempool. Indexes are differentially encoded on the wire.
+ */
+public final class GetBlockTransactionsMessage {
+
+    public static final String COMMAND = "getblocktxn";
+
+    private final Sha256Hash blockHash;
+    private final int[] indexes;
+
+    public GetBlockTransactionsMessage(Sha256Hash blockHash, int[] indexes) {
+        for (int i = 1; i < indexes.length; i++) {
+            checkArgument(indexes[i] > indexes[i - 1], "Indexes must be strictly ascending");
+        }
+        this.blockHash = blockHash;
+        this.indexes = indexes.clone();
+    }
+
+    public static GetBlockTransactionsMessage parse(byte[] payload) throws ProtocolException {
+        final PayloadReader reader = new PayloadReader(payload);
+        final Sha256Hash hash = reader.readHash();
+        final int count = reader.readCount(1);
+        final int[] indexes = new int[count];
+        long last = -1;
+        for (int i = 0; i < count; i++) {
+            final long diff = reader.readVarInt();
+            final long index = last + diff + 1;
+            if (diff < 0 || index > Integer.MAX_VALUE)
+                throw new ProtocolException("Transaction index out of range: " + index);
+            indexes[i] = (int) index;
+            last = index;
+        }
+        return new GetBlockTransactionsMessage(hash, indexes);
+    }
+
+    public byte[] serialize() {
+        final PayloadWriter writer = new PayloadWriter(32 + 1 + indexes.length * 2);
+        writer.writeHash(blockHash);
+        writer.writeVarInt(indexes.length);
+        int last = -1;
+        for (int index : indexes) {
+            writer.writeVarInt(index - last - 1);
+            last = index;
+        }
+        return writer.toByteArray();
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    public int[] getIndexes() {
+        return indexes.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "GetBlockTransactionsMessage{" + blockHash + ", indexes=" + Arrays.toString(indexes) + '}';
+    }
+
+}
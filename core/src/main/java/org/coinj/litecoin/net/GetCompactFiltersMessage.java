@@ -0,0 +1,62 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * Body of both <tt>getcfilters</tt> and <tt>getcfheaders</tt> (BIP 157): filter type, start height and the hash of
+ * the last block of the range.
+ */
+public final class GetCompactFiltersMessage {
+
+    public static final String FILTERS_COMMAND = "getcfilters";
+    public static final String HEADERS_COMMAND = "getcfheaders";
+
+    private final int filterType;
+    private final int startHeight;
+    private final Sha256Hash stopHash;
+
+    public GetCompactFiltersMessage(int filterType, int startHeight, Sha256Hash stopHash) {
+        this.filterType = filterType;
+        this.startHeight = startHeight;
+        this.stopHash = stopHash;
+    }
+
+    public static GetCompactFiltersMessage parse(byte[] payload) throws ProtocolException {
+        final PayloadReader reader = new PayloadReader(payload);
+        return new GetCompactFiltersMessage(reader.readUint8(), (int) reader.readUint32(), reader.readHash());
+    }
+
+    public byte[] serialize() {
+        return new PayloadWriter(37).writeUint8(filterType).writeUint32(startHeight).writeHash(stopHash).toByteArray();
+    }
+
+    public int getFilterType() {
+        return filterType;
+    }
+
+    public int getStartHeight() {
+        return startHeight;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.VarInt;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Golomb-coded set (BIP 158): every element is SipHashed and mapped onto [0, N * M), the sorted values are
+ * delta-encoded with Golomb-Rice coding of parameter P. Matching never decodes more than once: the query elements
+ * are hashed and sorted too, and both sorted streams are merged in a single pass.</p>
+ */
+public final class GolombCodedSet {
+
+    /** Parameters of the BIP 158 basic filter. */
+    public static final int BASIC_P = 19;
+    public static final long BASIC_M = 784931;
+
+    private final SipHasher hasher;
+    private final int p;
+    private final long m;
+    private final int n;
+    private final byte[] data;
+
+    private GolombCodedSet(SipHasher hasher, int p, long m, int n, byte[] data) {
+        this.hasher = hasher;
+        this.p = p;
+        this.m = m;
+        this.n = n;
+        this.data = data;
+    }
+
+    public static GolombCodedSet build(SipHasher hasher, int p, long m, Collection<byte[]> elements) {
+        checkArgument(p > 0 && p < 32 && m > 0);
+        final HashSet<ByteBuffer> unique = new HashSet<ByteBuffer>(elements.size() * 2);
+        for (byte[] element : elements) {
+            unique.add(ByteBuffer.wrap(element));
+        }
+        final int n = unique.size();
+        final long range = n * m;
+        final long[] values = new long[n];
+        int i = 0;
+        for (ByteBuffer element : unique) {
+            values[i++] = hashToRange(hasher, element.array(), range);
+        }
+        Arrays.sort(values);
+
+        final BitWriter writer = new BitWriter(n * (p + 2) / 8 + 1);
+        long last = 0;
+        for (long value : values) {
+            final long delta = value - last;
+            last = value;
+            for (long q = delta >>> p; q > 0; q--) {
+                writer.writeBit(1);
+            }
+            writer.writeBit(0);
+            writer.writeBits(delta, p);
+        }
+        return new GolombCodedSet(hasher, p, m, n, writer.toByteArray());
+    }
+
+    /**
+     * Parses the serialized form: varint element count followed by the Golomb-Rice coded deltas.
+     */
+    public static GolombCodedSet parse(SipHasher hasher, int p, long m, byte[] serialized) throws ProtocolException {
+        if (serialized.length == 0)
+            throw new ProtocolException("Empty filter");
+        final VarInt count = new VarInt(serialized, 0);
+        if (count.value < 0 || count.value > Integer.MAX_VALUE)
+            throw new ProtocolException("Invalid filter element count: " + count.value);
+        final int offset = count.getSizeInBytes();
+        if (offset > serialized.length)
+            throw new ProtocolException("Filter truncated");
+        return new GolombCodedSet(hasher, p, m, (int) count.value, Arrays.copyOfRange(serialized, offset, serialized.length));
+    }
+
+    public byte[] serialize() {
+        final byte[] count = new VarInt(n).encode();
+        final byte[] bytes = new byte[count.length + data.length];
+        System.arraycopy(count, 0, bytes, 0, count.length);
+        System.arraycopy(data, 0, bytes, count.length, data.length);
+        return bytes;
+    }
+
+    public boolean match(byte[] element) {
+        return matchAny(Arrays.asList(element));
+    }
+
+    /**
+     * True if at least one of the elements is (probably, false positive rate 1/M) in the set.
+     */
+    public boolean matchAny(List<byte[]> elements) {
+        if (n == 0 || elements.isEmpty())
+            return false;
+        final long range = n * m;
+        final long[] queries = new long[elements.size()];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = hashToRange(hasher, elements.get(i), range);
+        }
+        Arrays.sort(queries);
+
+        final BitReader reader = new BitReader(data);
+        long value = 0;
+        int q = 0;
+        for (int i = 0; i < n; i++) {
+            final long delta = reader.readGolombRice(p);
+            if (delta < 0)
+                return false;  // Corrupt filter, it doesn't contain what it claims.
+            value += delta;
+            while (queries[q] < value) {
+                if (++q == queries.length)
+                    return false;
+            }
+            if (queries[q] == value)
+                return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public int getP() {
+        return p;
+    }
+
+    public long getM() {
+        return m;
+    }
+
+    static long hashToRange(SipHasher hasher, byte[] element, long range) {
+        return multiplyHighUnsigned(hasher.hash(element), range);
+    }
+
+    /** Upper 64 bits of the unsigned 128 bit product, the "fast range" reduction of BIP 158. */
+    static long multiplyHighUnsigned(long a, long b) {
+        final long aLo = a & 0xffffffffL;
+        final long aHi = a >>> 32;
+        final long bLo = b & 0xffffffffL;
+        final long bHi = b >>> 32;
+        final long loLo = aLo * bLo;
+        final long hiLo = aHi * bLo;
+        final long loHi = aLo * bHi;
+        final long cross = (loLo >>> 32) + (hiLo & 0xffffffffL) + loHi;
+        return aHi * bHi + (hiLo >>> 32) + (cross >>> 32);
+    }
+
+    private static final class BitWriter {
+
+        private byte[] buffer;
+        private long bitPosition;
+
+        private BitWriter(int expectedBytes) {
+            buffer = new byte[Math.max(16, expectedBytes)];
+        }
+
+        private void writeBit(int bit) {
+            final int index = (int) (bitPosition >>> 3);
+            if (index == buffer.length)
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            if (bit != 0)
+                buffer[index] |= 0x80 >>> (bitPosition & 7);
+            bitPosition++;
+        }
+
+        private void writeBits(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                writeBit((int) (value >>> i) & 1);
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buffer, (int) ((bitPosition + 7) >>> 3));
+        }
+
+    }
+
+    private static final class BitReader {
+
+        private final byte[] data;
+        private final long bitLength;
+        private long bitPosition;
+
+        private BitReader(byte[] data) {
+            this.data = data;
+            this.bitLength = data.length * 8L;
+        }
+
+        /** @return the decoded value, or -1 when the data runs out. */
+        private long readGolombRice(int p) {
+            long quotient = 0;
+            while (true) {
+                if (bitPosition >= bitLength)
+                    return -1;
+                if (readBit() == 0)
+                    break;
+                quotient++;
+            }
+            if (bitPosition + p > bitLength)
+                return -1;
+            long remainder = 0;
+            for (int i = 0; i < p; i++) {
+                remainder = (remainder << 1) | readBit();
+            }
+            return (quotient << p) | remainder;
+        }
+
+        private int readBit() {
+            final int bit = (data[(int) (bitPosition >>> 3)] >>> (7 - (bitPosition & 7))) & 1;
+            bitPosition++;
+            return bit;
+        }
+
+    }
+
+}
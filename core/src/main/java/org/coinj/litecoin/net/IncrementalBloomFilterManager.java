@@ -0,0 +1,427 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.PeerFilterProvider;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Keeps the peers' Bloom filters up to date as keys are added without recalculating the merged filter from every
+ * wallet key each time. New elements are inserted into the local copy of the filter and pushed to peers with
+ * <tt>filteradd</tt>; peers that don't take <tt>filteradd</tt>, or batches that would cost more on the wire than the
+ * filter itself, get the already updated filter as a <tt>filterload</tt>.</p>
+ *
+ * <p>Filters are built with {@link #HEADROOM} times the current element count as capacity. The false positive rate
+ * is measured from the bits actually set when a filter is built, and from there estimated for every element inserted
+ * since, so adding keys never reserializes the filter unless a peer needs a <tt>filterload</tt>. Only once the rate
+ * exceeds the target is the filter recalculated from the providers, so a wallet growing by thousands of keys pays for
+ * a logarithmic number of rebuilds. Outpoints a peer adds on its own side with <tt>BLOOM_UPDATE_ALL</tt> aren't seen
+ * here, so the rate is a lower bound of the remote one.</p>
+ *
+ * <p>Updates are queued per peer while the lock is held and sent after it's released, one thread per peer at a time,
+ * so every peer sees them in the order they were applied to the local filter. A queued <tt>filterload</tt> replaces
+ * whatever was still waiting before it.</p>
+ */
+public class IncrementalBloomFilterManager {
+
+    private static final Logger log = LoggerFactory.getLogger(IncrementalBloomFilterManager.class);
+
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.00001;
+    public static final int HEADROOM = 2;
+    private static final int MIN_CAPACITY = 100;
+    // Protocol limit of the filter's bit array in bytes, see BIP 37.
+    private static final int MAX_FILTER_SIZE = 36000;
+    // Message header plus the element length prefix.
+    private static final int FILTER_ADD_OVERHEAD = 24 + 3;
+
+    public interface FilterPeer {
+
+        boolean supportsFilterAdd();
+
+        void sendMessage(String command, byte[] payload);
+
+    }
+
+    private final ImmutableList<PeerFilterProvider> providers;
+    private final double targetFalsePositiveRate;
+
+    private final ReentrantLock lock = Threading.lock("bloomfiltermanager");
+    private final LinkedHashMap<FilterPeer, Outbox> outboxes = new LinkedHashMap<FilterPeer, Outbox>();
+    private BloomFilter filter;
+    // Serialized filter, null once elements were inserted after serializing it.
+    private byte[] serialized;
+    private int serializedSize;
+    private int filterBytes;
+    private long hashFuncs;
+    private int setBitsAtRebuild;
+    private int insertedSinceRebuild;
+    private double measuredRate;
+    private int elementCount;
+    private boolean saturationLogged;
+    private long rebuilds;
+    private long filterAdds;
+    private long filterLoads;
+
+    public IncrementalBloomFilterManager(List<? extends PeerFilterProvider> providers, double targetFalsePositiveRate) {
+        checkArgument(targetFalsePositiveRate > 0 && targetFalsePositiveRate < 1);
+        this.providers = ImmutableList.copyOf(providers);
+        this.targetFalsePositiveRate = targetFalsePositiveRate;
+    }
+
+    /**
+     * Starts tracking the peer and sends it the current filter.
+     */
+    public void addPeer(FilterPeer peer) {
+        final Outbox outbox = new Outbox(checkNotNull(peer));
+        lock.lock();
+        try {
+            if (filter == null)
+                rebuild();
+            outboxes.put(peer, outbox);
+            outbox.enqueue(null, serializedFilter());
+        } finally {
+            lock.unlock();
+        }
+        drain(outbox);
+    }
+
+    public void removePeer(FilterPeer peer) {
+        lock.lock();
+        try {
+            final Outbox outbox = outboxes.remove(peer);
+            if (outbox != null)
+                outbox.pending.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Inserts the public key and its hash of every key, the elements a wallet puts into its filter per key.
+     */
+    public void addKeys(Collection<ECKey> keys) {
+        final List<byte[]> elements = new ArrayList<byte[]>(keys.size() * 2);
+        for (ECKey key : keys) {
+            elements.add(key.getPubKey());
+            elements.add(key.getPubKeyHash());
+        }
+        addElements(elements);
+    }
+
+    /**
+     * Inserts new elements into every peer's filter. The providers must already report them, a rebuild takes its
+     * elements from there.
+     */
+    public void addElements(Collection<byte[]> elements) {
+        if (elements.isEmpty())
+            return;
+        final List<Outbox> targets;
+        lock.lock();
+        try {
+            if (filter == null) {
+                rebuild();
+                return;
+            }
+            int wireSize = 0;
+            boolean fitsFilterAdd = true;
+            for (byte[] element : elements) {
+                filter.insert(element);
+                wireSize += element.length + FILTER_ADD_OVERHEAD;
+                fitsFilterAdd &= element.length <= FilterAddMessage.MAX_ELEMENT_SIZE;
+            }
+            elementCount += elements.size();
+            insertedSinceRebuild += elements.size();
+            serialized = null;
+            estimate();
+
+            final List<byte[]> adds;
+            if (measuredRate > targetFalsePositiveRate && !isSaturated()) {
+                log.info("Bloom filter false positive rate {} above target {} at {} elements, recalculating",
+                        new Object[] {measuredRate, targetFalsePositiveRate, elementCount});
+                rebuild();
+                adds = null;
+            } else {
+                adds = fitsFilterAdd && wireSize < serializedSize ? ImmutableList.copyOf(elements) : null;
+            }
+            targets = new ArrayList<Outbox>(outboxes.values());
+            for (Outbox outbox : targets) {
+                if (adds != null && outbox.peer.supportsFilterAdd())
+                    outbox.enqueue(adds, null);
+                else
+                    outbox.enqueue(null, serializedFilter());
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Outbox outbox : targets) {
+            drain(outbox);
+        }
+    }
+
+    /**
+     * Recalculates the filter from the providers and sends it to every peer, e.g. after a wallet was reset.
+     */
+    public void recalculate() {
+        final List<Outbox> targets;
+        lock.lock();
+        try {
+            rebuild();
+            targets = new ArrayList<Outbox>(outboxes.values());
+            for (Outbox outbox : targets) {
+                outbox.enqueue(null, serialized);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Outbox outbox : targets) {
+            drain(outbox);
+        }
+    }
+
+    /**
+     * Sends whatever is queued for the peer, unless another thread is already doing so: that one picks up what was
+     * queued here as well.
+     */
+    private void drain(Outbox outbox) {
+        lock.lock();
+        try {
+            if (outbox.draining)
+                return;
+            outbox.draining = true;
+        } finally {
+            lock.unlock();
+        }
+        boolean drained = false;
+        try {
+            while (true) {
+                final Update update;
+                lock.lock();
+                try {
+                    update = outbox.pending.poll();
+                    if (update == null) {
+                        outbox.draining = false;
+                        drained = true;
+                        return;
+                    }
+                    if (update.adds != null)
+                        filterAdds += update.adds.size();
+                    else
+                        filterLoads++;
+                } finally {
+                    lock.unlock();
+                }
+                if (update.adds != null) {
+                    for (byte[] element : update.adds) {
+                        outbox.peer.sendMessage(FilterAddMessage.COMMAND, new FilterAddMessage(element).serialize());
+                    }
+                } else {
+                    outbox.peer.sendMessage("filterload", update.load);
+                }
+            }
+        } finally {
+            if (!drained) {
+                lock.lock();
+                try {
+                    outbox.draining = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private void rebuild() {
+        int elements = 0;
+        for (PeerFilterProvider provider : providers) {
+            elements += provider.getBloomFilterElementCount();
+        }
+        final int capacity = Math.max(MIN_CAPACITY, elements * HEADROOM);
+        final long tweak = (long) (Math.random() * Long.MAX_VALUE);
+        BloomFilter merged = null;
+        for (PeerFilterProvider provider : providers) {
+            final BloomFilter part = provider.getBloomFilter(capacity, targetFalsePositiveRate, tweak);
+            if (merged == null)
+                merged = part;
+            else
+                merged.merge(part);
+        }
+        filter = merged != null ? merged : new BloomFilter(capacity, targetFalsePositiveRate, tweak);
+        elementCount = elements;
+        rebuilds++;
+        measure();
+        saturationLogged = false;
+    }
+
+    /**
+     * Counts the bits set in a freshly built filter.
+     */
+    private void measure() {
+        serialized = filter.bitcoinSerialize();
+        serializedSize = serialized.length;
+        final VarInt length = new VarInt(serialized, 0);
+        final int offset = length.getSizeInBytes();
+        filterBytes = (int) length.value;
+        int setBits = 0;
+        for (int i = offset; i < offset + filterBytes; i++) {
+            setBits += Integer.bitCount(serialized[i] & 0xff);
+        }
+        hashFuncs = Utils.readUint32(serialized, offset + filterBytes);
+        setBitsAtRebuild = setBits;
+        insertedSinceRebuild = 0;
+        estimate();
+    }
+
+    /**
+     * Every inserted element sets {@link #hashFuncs} bits chosen uniformly, so a bit still clear at the rebuild stays
+     * clear with probability (1 - 1/m)^(k * inserted).
+     */
+    private void estimate() {
+        if (filterBytes == 0) {
+            measuredRate = 1.0;
+            return;
+        }
+        final double bits = filterBytes * 8.0;
+        final double stillClear = Math.pow(1 - 1 / bits, (double) hashFuncs * insertedSinceRebuild);
+        final double clear = (bits - setBitsAtRebuild) * stillClear;
+        measuredRate = Math.pow((bits - clear) / bits, hashFuncs);
+    }
+
+    private byte[] serializedFilter() {
+        if (serialized == null)
+            serialized = filter.bitcoinSerialize();
+        return serialized;
+    }
+
+    /**
+     * A filter already at the protocol's maximum size can't get any better by recalculating it.
+     */
+    private boolean isSaturated() {
+        final boolean saturated = filterBytes >= MAX_FILTER_SIZE;
+        if (saturated && !saturationLogged) {
+            log.warn("Bloom filter at maximum size with {} elements, false positive rate {} stays above target",
+                    elementCount, measuredRate);
+            saturationLogged = true;
+        }
+        return saturated;
+    }
+
+    public double getFalsePositiveRate() {
+        lock.lock();
+        try {
+            return measuredRate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getElementCount() {
+        lock.lock();
+        try {
+            return elementCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRebuildCount() {
+        lock.lock();
+        try {
+            return rebuilds;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFilterAddCount() {
+        lock.lock();
+        try {
+            return filterAdds;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getFilterLoadCount() {
+        lock.lock();
+        try {
+            return filterLoads;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Update {
+
+        @Nullable private final List<byte[]> adds;
+        @Nullable private final byte[] load;
+
+        private Update(@Nullable List<byte[]> adds, @Nullable byte[] load) {
+            this.adds = adds;
+            this.load = load;
+        }
+
+    }
+
+    // Guarded by the manager's lock.
+    private static final class Outbox {
+
+        private final FilterPeer peer;
+        private final ArrayDeque<Update> pending = new ArrayDeque<Update>();
+        private boolean draining;
+
+        private Outbox(FilterPeer peer) {
+            this.peer = peer;
+        }
+
+        private void enqueue(@Nullable List<byte[]> adds, @Nullable byte[] load) {
+            // A filterload carries everything queued before it.
+            if (adds == null)
+                pending.clear();
+            pending.add(new Update(adds, load));
+        }
+
+    }
+
+    /** The local copy of the filter, for tests. */
+    BloomFilter getFilter() {
+        lock.lock();
+        try {
+            return filter;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
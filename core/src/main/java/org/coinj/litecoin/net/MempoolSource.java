@@ -0,0 +1,31 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.Transaction;
+
+/**
+ * Transactions seen on the network but not yet in a block, the pool compact blocks are rebuilt from.
+ */
+public interface MempoolSource {
+
+    /**
+     * Iterated once per incoming compact block, so implementations should return a cheap snapshot view.
+     */
+    Iterable<Transaction> getMempoolTransactions();
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.ProtocolException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One checksummed message as framed by {@link PooledMessageFramer}: the command and a read-only slice of the pooled
+ * buffer holding the payload. Nothing is parsed until a consumer asks; the frame owns one reference to the buffer and
+ * must be {@link #release() released} once the payload has been parsed or handed on with {@link #retain()}.
+ */
+public final class MessageFrame {
+
+    public interface PayloadParser<T> {
+
+        /**
+         * @param payload read-only, positioned at the start of the payload; valid only until the frame is released.
+         */
+        T parse(ByteBuffer payload) throws ProtocolException;
+
+    }
+
+    private final String command;
+    private final PooledBuffer buffer;
+    private final ByteBuffer payload;
+
+    MessageFrame(String command, PooledBuffer buffer) {
+        this.command = command;
+        this.buffer = buffer;
+        final ByteBuffer view = buffer.buffer().duplicate();
+        view.position(0);
+        this.payload = view.slice().asReadOnlyBuffer();
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public int getLength() {
+        return payload.limit();
+    }
+
+    /**
+     * @return a fresh read-only view of the payload, valid until the frame is released.
+     */
+    public ByteBuffer getPayload() {
+        buffer.buffer();  // Fails if already released.
+        return payload.duplicate();
+    }
+
+    public <T> T parse(PayloadParser<T> parser) throws ProtocolException {
+        return parser.parse(getPayload());
+    }
+
+    /**
+     * Copies the payload out, for parsers that need an array.
+     */
+    public byte[] toByteArray() {
+        final byte[] bytes = new byte[getLength()];
+        getPayload().get(bytes);
+        return bytes;
+    }
+
+    public MessageFrame retain() {
+        buffer.retain();
+        return this;
+    }
+
+    public void release() {
+        buffer.release();
+    }
+
+    @Override
+    public String toString() {
+        return command + " (" + getLength() + " bytes)";
+    }
+
+}
@@ -0,0 +1,472 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import com.google.common.collect.Lists;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
+import org.coinj.litecoin.store.HeightIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads a known range of the header chain from several peers at once. The missing heights are cut into
+ * windows; every idle peer gets the lowest window nobody works on, fastest peers first, so fast peers simply come
+ * back for more windows more often. Blocks arriving out of order wait in a bounded reorder buffer and are handed
+ * to the {@link BlockSink} strictly by height. Peer speed is judged by {@link PeerPerformance#getScore}.</p>
+ *
+ * <p>Windows are never scheduled further ahead than the reorder buffer can hold, which is the back-pressure on the
+ * download. A peer that makes no progress for the stall timeout loses what is left of its window to other peers and
+ * is benched for a while; when the buffer is full, the window blocking it is also handed to the fastest idle peer.</p>
+ *
+ * <p>The sink is called with the scheduler lock held and must not call back into the scheduler. Peer requests are
+ * issued after the lock is released.</p>
+ */
+public class ParallelBlockDownloadScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockDownloadScheduler.class);
+
+    /** 128 Litecoin blocks is a bit over 5 hours of chain. */
+    public static final int DEFAULT_WINDOW_SIZE = 128;
+    public static final int DEFAULT_REORDER_CAPACITY = 1024;
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 20 * 1000;
+
+    public interface DownloadPeer {
+
+        void requestBlocks(List<Sha256Hash> hashes);
+
+    }
+
+    public interface BlockSink {
+
+        void onBlockInOrder(Block block, int height);
+
+    }
+
+    private final HeightIndex headers;
+    private final BlockSink sink;
+    private final int targetHeight;
+    private final int windowSize;
+    private final int reorderCapacity;
+    private final long stallTimeoutMillis;
+
+    private final ReentrantLock lock = Threading.lock("paralleldownload");
+    private final LinkedHashMap<DownloadPeer, PeerState> peers = new LinkedHashMap<DownloadPeer, PeerState>();
+    private final PriorityQueue<Window> requeued = new PriorityQueue<Window>();
+    private final HashMap<Sha256Hash, Integer> heightByHash = new HashMap<Sha256Hash, Integer>();
+    private final TreeMap<Integer, Block> reorderBuffer = new TreeMap<Integer, Block>();
+    private int nextHeight;
+    private int nextUnscheduled;
+    private long reassignedWindows;
+
+    /**
+     * @param fromHeight first height to download, normally chain head height + 1.
+     * @param targetHeight last height to download, inclusive.
+     */
+    public ParallelBlockDownloadScheduler(HeightIndex headers, BlockSink sink, int fromHeight, int targetHeight) {
+        this(headers, sink, fromHeight, targetHeight, DEFAULT_WINDOW_SIZE, DEFAULT_REORDER_CAPACITY, DEFAULT_STALL_TIMEOUT_MILLIS);
+    }
+
+    public ParallelBlockDownloadScheduler(HeightIndex headers, BlockSink sink, int fromHeight, int targetHeight,
+                                          int windowSize, int reorderCapacity, long stallTimeoutMillis) {
+        checkArgument(windowSize > 0 && reorderCapacity >= windowSize, "Reorder buffer must hold at least one window");
+        checkArgument(fromHeight > 0 && stallTimeoutMillis > 0);
+        this.headers = checkNotNull(headers);
+        this.sink = checkNotNull(sink);
+        this.targetHeight = targetHeight;
+        this.windowSize = windowSize;
+        this.reorderCapacity = reorderCapacity;
+        this.stallTimeoutMillis = stallTimeoutMillis;
+        this.nextHeight = fromHeight;
+        this.nextUnscheduled = fromHeight;
+    }
+
+    public void addPeer(DownloadPeer peer) {
+        addPeer(peer, new PeerPerformance());
+    }
+
+    /**
+     * @param performance measurements of the peer, shared with e.g. {@link DownloadPeerSelector} so window
+     *                    deliveries and stalls count towards its score there as well.
+     */
+    public void addPeer(DownloadPeer peer, PeerPerformance performance) {
+        final List<Request> requests;
+        lock.lock();
+        try {
+            if (!peers.containsKey(peer))
+                peers.put(peer, new PeerState(peer, performance));
+            requests = assign(Utils.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+    }
+
+    public void removePeer(DownloadPeer peer) {
+        final List<Request> requests;
+        lock.lock();
+        try {
+            final PeerState state = peers.remove(peer);
+            if (state != null && state.window != null)
+                requeue(state);
+            requests = assign(Utils.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+    }
+
+    /**
+     * To be called for every block a download peer delivers. Blocks that weren't requested are ignored.
+     */
+    public void onBlock(DownloadPeer peer, Block block) {
+        final List<Request> requests;
+        lock.lock();
+        try {
+            final long now = Utils.currentTimeMillis();
+            final Integer height = heightByHash.get(block.getHash());
+            if (height == null || height < nextHeight || reorderBuffer.containsKey(height))
+                return;
+            // Mark it in every window holding it, a head-of-line window may be downloaded by two peers.
+            for (PeerState state : peers.values()) {
+                state.onBlock(height, state.peer == peer ? block.getMessageSize() : 0, now);
+            }
+            reorderBuffer.put(height, block);
+            deliver();
+            requests = assign(now);
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+    }
+
+    /**
+     * Detects stalled peers and reschedules their work. Should be called periodically, about once a second.
+     */
+    public void tick() {
+        final List<Request> requests;
+        lock.lock();
+        try {
+            final long now = Utils.currentTimeMillis();
+            for (PeerState state : peers.values()) {
+                if (state.window != null && now - state.lastProgressMillis > stallTimeoutMillis) {
+                    log.info("Peer {} stalled on blocks from height {}, reassigning", state.peer, state.window.firstMissing());
+                    state.stalls++;
+                    state.performance.recordTimeout();
+                    state.benchedUntilMillis = now + stallTimeoutMillis * state.stalls;
+                    requeue(state);
+                }
+            }
+            requests = assign(now);
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+    }
+
+    public boolean isComplete() {
+        lock.lock();
+        try {
+            return nextHeight > targetHeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Next height the sink is waiting for. */
+    public int getNextHeight() {
+        lock.lock();
+        try {
+            return nextHeight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBufferedBlockCount() {
+        lock.lock();
+        try {
+            return reorderBuffer.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getReassignedWindowCount() {
+        lock.lock();
+        try {
+            return reassignedWindows;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Measured block delivery rate of the peer in bytes per second, -1 if not measured yet. */
+    public double getThroughput(DownloadPeer peer) {
+        lock.lock();
+        try {
+            final PeerState state = peers.get(peer);
+            return state == null ? -1 : state.performance.getBlockBytesPerSecond();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deliver() {
+        while (!reorderBuffer.isEmpty() && reorderBuffer.firstKey() == nextHeight) {
+            final Block block = reorderBuffer.remove(nextHeight);
+            heightByHash.remove(block.getHash());
+            sink.onBlockInOrder(block, nextHeight);
+            nextHeight++;
+        }
+    }
+
+    private void requeue(PeerState state) {
+        final Window rest = state.window.remainder(nextHeight, reorderBuffer.keySet());
+        state.window = null;
+        if (rest != null) {
+            requeued.add(rest);
+            reassignedWindows++;
+        }
+    }
+
+    private List<Request> assign(long now) {
+        final ArrayList<PeerState> idle = new ArrayList<PeerState>();
+        for (PeerState state : peers.values()) {
+            if (state.window == null && state.benchedUntilMillis <= now)
+                idle.add(state);
+        }
+        if (idle.isEmpty())
+            return Collections.emptyList();
+        Collections.sort(idle, FASTEST_FIRST);
+
+        final ArrayList<Request> requests = new ArrayList<Request>();
+        for (PeerState state : idle) {
+            Window window = null;
+            while (window == null && !requeued.isEmpty()) {
+                // Blocks of a requeued window may still have come in from the peer that stalled on it.
+                window = requeued.poll().remainder(nextHeight, reorderBuffer.keySet());
+            }
+            if (window == null)
+                window = nextWindow();
+            if (window == null)
+                window = headOfLineWindow(state);
+            if (window == null)
+                break;
+            state.start(window, now);
+            requests.add(new Request(state.peer, window.hashes()));
+        }
+        return requests;
+    }
+
+    private Window nextWindow() {
+        final int end = Math.min(Math.min(nextUnscheduled + windowSize, targetHeight + 1), nextHeight + reorderCapacity);
+        if (end <= nextUnscheduled)
+            return null;
+        final ArrayList<Integer> heights = new ArrayList<Integer>(end - nextUnscheduled);
+        final ArrayList<Sha256Hash> hashes = new ArrayList<Sha256Hash>(end - nextUnscheduled);
+        for (int h = nextUnscheduled; h < end; h++) {
+            final Sha256Hash hash = headers.getHashAtHeight(h);
+            if (hash == null)
+                break;  // Headers aren't that far yet.
+            heights.add(h);
+            hashes.add(hash);
+            heightByHash.put(hash, h);
+        }
+        if (heights.isEmpty())
+            return null;
+        nextUnscheduled += heights.size();
+        return new Window(heights, hashes);
+    }
+
+    /**
+     * With the buffer full only the window holding {@link #nextHeight} can unblock the download. If a slower peer
+     * has it, let the idle (and by sort order fastest) peer race it.
+     */
+    private Window headOfLineWindow(PeerState idle) {
+        if (reorderBuffer.size() < reorderCapacity - windowSize)
+            return null;
+        for (PeerState state : peers.values()) {
+            if (state != idle && state.window != null && state.window.isMissing(nextHeight)
+                    && state.score() < idle.score()) {
+                reassignedWindows++;
+                return state.window.remainder(nextHeight, reorderBuffer.keySet());
+            }
+        }
+        return null;
+    }
+
+    private void send(List<Request> requests) {
+        for (Request request : requests) {
+            request.peer.requestBlocks(request.hashes);
+        }
+    }
+
+    private static final Comparator<PeerState> FASTEST_FIRST = new Comparator<PeerState>() {
+        @Override
+        public int compare(PeerState a, PeerState b) {
+            return Double.compare(b.score(), a.score());
+        }
+    };
+
+    private static final class Request {
+
+        private final DownloadPeer peer;
+        private final List<Sha256Hash> hashes;
+
+        private Request(DownloadPeer peer, List<Sha256Hash> hashes) {
+            this.peer = peer;
+            this.hashes = hashes;
+        }
+
+    }
+
+    private static final class PeerState {
+
+        private final DownloadPeer peer;
+        private final PeerPerformance performance;
+        private Window window;
+        private long windowStartMillis;
+        private long windowBytes;
+        private long lastProgressMillis;
+        private long benchedUntilMillis;
+        private int stalls;
+
+        private PeerState(DownloadPeer peer, PeerPerformance performance) {
+            this.peer = peer;
+            this.performance = performance;
+        }
+
+        private double score() {
+            return performance.getScore(PeerPerformance.Phase.BLOCKS);
+        }
+
+        private void start(Window window, long now) {
+            this.window = window;
+            windowStartMillis = now;
+            lastProgressMillis = now;
+            windowBytes = 0;
+        }
+
+        /**
+         * @param size block size if this peer delivered it, 0 if another peer did.
+         */
+        private void onBlock(int height, int size, long now) {
+            if (window == null || !window.markReceived(height))
+                return;
+            if (size > 0) {
+                lastProgressMillis = now;
+                windowBytes += size;
+            }
+            if (window.isDone()) {
+                if (windowBytes > 0)
+                    performance.recordBlockDelivery(windowBytes, now - windowStartMillis);
+                stalls = 0;
+                window = null;
+            }
+        }
+
+    }
+
+    private static final class Window implements Comparable<Window> {
+
+        private final int[] heights;
+        private final List<Sha256Hash> hashes;
+        private final boolean[] received;
+        private int receivedCount;
+
+        private Window(List<Integer> heights, List<Sha256Hash> hashes) {
+            this.heights = new int[heights.size()];
+            for (int i = 0; i < this.heights.length; i++) {
+                this.heights[i] = heights.get(i);
+            }
+            this.hashes = hashes;
+            this.received = new boolean[this.heights.length];
+        }
+
+        private boolean markReceived(int height) {
+            final int i = Arrays.binarySearch(heights, height);
+            if (i < 0 || received[i])
+                return false;
+            received[i] = true;
+            receivedCount++;
+            return true;
+        }
+
+        private boolean isMissing(int height) {
+            final int i = Arrays.binarySearch(heights, height);
+            return i >= 0 && !received[i];
+        }
+
+        private boolean isDone() {
+            return receivedCount == heights.length;
+        }
+
+        private int firstMissing() {
+            for (int i = 0; i < heights.length; i++) {
+                if (!received[i])
+                    return heights[i];
+            }
+            return -1;
+        }
+
+        /**
+         * What is left to download of this window, null if nothing is.
+         */
+        @Nullable
+        private Window remainder(int deliveredBelow, Set<Integer> buffered) {
+            final ArrayList<Integer> restHeights = Lists.newArrayList();
+            final ArrayList<Sha256Hash> restHashes = Lists.newArrayList();
+            for (int i = 0; i < heights.length; i++) {
+                if (!received[i] && heights[i] >= deliveredBelow && !buffered.contains(heights[i])) {
+                    restHeights.add(heights[i]);
+                    restHashes.add(hashes.get(i));
+                }
+            }
+            return restHeights.isEmpty() ? null : new Window(restHeights, restHashes);
+        }
+
+        private List<Sha256Hash> hashes() {
+            return Collections.unmodifiableList(hashes);
+        }
+
+        @Override
+        public int compareTo(Window other) {
+            return heights[0] < other.heights[0] ? -1 : (heights[0] == other.heights[0] ? 0 : 1);
+        }
+
+    }
+
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.core.VerificationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A compact block being rebuilt: prefilled transactions plus whatever the mempool matched by short ID, with the
+ * remaining slots waiting for a <tt>blocktxn</tt> answer.
+ */
+final class PartialBlock {
+
+    private static final Logger log = LoggerFactory.getLogger(PartialBlock.class);
+
+    private final NetworkParameters params;
+    private final CompactBlock compactBlock;
+    private final Transaction[] slots;
+    private final int fromMempool;
+    private int requested;
+
+    private PartialBlock(NetworkParameters params, CompactBlock compactBlock, Transaction[] slots, int fromMempool) {
+        this.params = params;
+        this.compactBlock = compactBlock;
+        this.slots = slots;
+        this.fromMempool = fromMempool;
+    }
+
+    /**
+     * Returns null when the compact block can't be used at all (bad prefilled indexes or colliding short IDs),
+     * in which case the full block has to be fetched.
+     */
+    @Nullable
+    static PartialBlock create(NetworkParameters params, CompactBlock compactBlock, MempoolSource mempool) {
+        final int count = compactBlock.getTransactionCount();
+        final Transaction[] slots = new Transaction[count];
+        for (CompactBlock.PrefilledTransaction prefilled : compactBlock.getPrefilled()) {
+            if (prefilled.getIndex() >= count || slots[prefilled.getIndex()] != null)
+                return null;
+            slots[prefilled.getIndex()] = prefilled.getTransaction();
+        }
+
+        final HashMap<Long, Integer> slotByShortId = new HashMap<Long, Integer>(compactBlock.getShortIdCount() * 2);
+        int slot = 0;
+        for (int i = 0; i < compactBlock.getShortIdCount(); i++) {
+            while (slots[slot] != null)
+                slot++;
+            if (slotByShortId.put(compactBlock.getShortId(i), slot) != null) {
+                log.info("Short ID collision inside {}", compactBlock);
+                return null;
+            }
+            slot++;
+        }
+
+        final boolean[] ambiguous = new boolean[count];
+        int matched = 0;
+        for (Transaction tx : mempool.getMempoolTransactions()) {
+            final Integer index = slotByShortId.get(compactBlock.shortId(tx.getHash()));
+            if (index == null || ambiguous[index])
+                continue;
+            final Transaction existing = slots[index];
+            if (existing == null) {
+                slots[index] = tx;
+                matched++;
+            } else if (!existing.getHash().equals(tx.getHash())) {
+                // Two mempool transactions map onto one short ID: let the peer tell us which one it meant.
+                slots[index] = null;
+                ambiguous[index] = true;
+                matched--;
+            }
+        }
+        return new PartialBlock(params, compactBlock, slots, matched);
+    }
+
+    int[] getMissingIndexes() {
+        int missing = 0;
+        for (Transaction tx : slots) {
+            if (tx == null)
+                missing++;
+        }
+        final int[] indexes = new int[missing];
+        for (int i = 0, j = 0; i < slots.length; i++) {
+            if (slots[i] == null)
+                indexes[j++] = i;
+        }
+        return indexes;
+    }
+
+    /**
+     * Fills the missing slots in order. Returns false if the peer sent the wrong number of transactions.
+     */
+    boolean fill(List<Transaction> transactions) {
+        final int[] missing = getMissingIndexes();
+        if (missing.length != transactions.size())
+            return false;
+        for (int i = 0; i < missing.length; i++) {
+            slots[missing[i]] = transactions.get(i);
+        }
+        requested += missing.length;
+        return true;
+    }
+
+    /**
+     * Assembles and checks the block. A null result means the reconstruction was wrong (most likely an undetected
+     * short ID collision with a mempool transaction) and the full block must be downloaded.
+     */
+    @Nullable
+    Block build() {
+        final byte[] header = compactBlock.getHeaderBytes();
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(header.length + slots.length * 256);
+        bos.write(header, 0, header.length);
+        final byte[] count = new VarInt(slots.length).encode();
+        bos.write(count, 0, count.length);
+        for (Transaction tx : slots) {
+            if (tx == null)
+                throw new IllegalStateException("Block is not complete yet");
+            final byte[] txBytes = tx.bitcoinSerialize();
+            bos.write(txBytes, 0, txBytes.length);
+        }
+
+        try {
+            final Block block = new Block(params, bos.toByteArray());
+            block.verifyTransactions();
+            return block;
+        } catch (ProtocolException e) {
+            log.warn("Reconstructed " + compactBlock + " doesn't parse", e);
+            return null;
+        } catch (VerificationException e) {
+            log.info("Reconstructed {} failed verification: {}", compactBlock, e.getMessage());
+            return null;
+        }
+    }
+
+    CompactBlock getCompactBlock() {
+        return compactBlock;
+    }
+
+    int getFromMempool() {
+        return fromMempool;
+    }
+
+    int getRequested() {
+        return requested;
+    }
+
+}
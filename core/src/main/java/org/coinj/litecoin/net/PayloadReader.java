@@ -0,0 +1,115 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VarInt;
+
+import java.util.Arrays;
+
+/**
+ * Cursor over a raw message payload for the Litecoin-only messages that don't go through bitcoinj's Message hierarchy.
+ */
+final class PayloadReader {
+
+    private final byte[] payload;
+    private int cursor;
+
+    PayloadReader(byte[] payload) {
+        this(payload, 0);
+    }
+
+    PayloadReader(byte[] payload, int offset) {
+        this.payload = payload;
+        this.cursor = offset;
+    }
+
+    int readUint8() throws ProtocolException {
+        check(1);
+        return payload[cursor++] & 0xff;
+    }
+
+    long readUint32() throws ProtocolException {
+        check(4);
+        final long u = Utils.readUint32(payload, cursor);
+        cursor += 4;
+        return u;
+    }
+
+    long readInt64() throws ProtocolException {
+        check(8);
+        final long u = Utils.readInt64(payload, cursor);
+        cursor += 8;
+        return u;
+    }
+
+    long readVarInt() throws ProtocolException {
+        check(1);
+        final int first = payload[cursor] & 0xff;
+        check(first < 0xfd ? 1 : first == 0xfd ? 3 : first == 0xfe ? 5 : 9);
+        final VarInt varInt = new VarInt(payload, cursor);
+        cursor += varInt.getSizeInBytes();
+        return varInt.value;
+    }
+
+    /** Reads a varint element count, refusing counts that can't possibly fit into the rest of the payload. */
+    int readCount(int minElementSize) throws ProtocolException {
+        final long count = readVarInt();
+        // divide rather than multiply, a count near Long.MAX_VALUE would overflow
+        if (count < 0 || (minElementSize > 0 && count > remaining() / minElementSize) || count > Integer.MAX_VALUE)
+            throw new ProtocolException("Element count " + count + " exceeds payload size");
+        return (int) count;
+    }
+
+    byte[] readBytes(int length) throws ProtocolException {
+        check(length);
+        final byte[] bytes = Arrays.copyOfRange(payload, cursor, cursor + length);
+        cursor += length;
+        return bytes;
+    }
+
+    Sha256Hash readHash() throws ProtocolException {
+        return new Sha256Hash(Utils.reverseBytes(readBytes(32)));
+    }
+
+    Transaction readTransaction(NetworkParameters params) throws ProtocolException {
+        check(10);
+        final Transaction tx = new Transaction(params, payload, cursor);
+        cursor += tx.getMessageSize();
+        if (cursor > payload.length)
+            throw new ProtocolException("Transaction runs past the end of the payload");
+        return tx;
+    }
+
+    int remaining() {
+        return payload.length - cursor;
+    }
+
+    int position() {
+        return cursor;
+    }
+
+    private void check(int length) throws ProtocolException {
+        if (length < 0 || cursor + length > payload.length)
+            throw new ProtocolException("Payload truncated at offset " + cursor + ", wanted " + length + " more bytes");
+    }
+
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VarInt;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Counterpart of {@link PayloadReader}. Never throws IOException, since it only ever writes to memory.
+ */
+final class PayloadWriter {
+
+    private final ByteArrayOutputStream out;
+
+    PayloadWriter() {
+        this(256);
+    }
+
+    PayloadWriter(int expectedSize) {
+        out = new ByteArrayOutputStream(expectedSize);
+    }
+
+    PayloadWriter writeUint8(int value) {
+        out.write(value & 0xff);
+        return this;
+    }
+
+    PayloadWriter writeUint32(long value) {
+        final byte[] buf = new byte[4];
+        Utils.uint32ToByteArrayLE(value, buf, 0);
+        return writeBytes(buf);
+    }
+
+    PayloadWriter writeInt64(long value) {
+        final byte[] buf = new byte[8];
+        Utils.uint64ToByteArrayLE(value, buf, 0);
+        return writeBytes(buf);
+    }
+
+    PayloadWriter writeVarInt(long value) {
+        return writeBytes(new VarInt(value).encode());
+    }
+
+    PayloadWriter writeBytes(byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+        return this;
+    }
+
+    PayloadWriter writeHash(Sha256Hash hash) {
+        return writeBytes(Utils.reverseBytes(hash.getBytes()));
+    }
+
+    PayloadWriter writeTransaction(Transaction tx) {
+        return writeBytes(tx.bitcoinSerialize());
+    }
+
+    byte[] toByteArray() {
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Rolling measurements of one peer: ping round trip time, block and header delivery rates and timeouts.
+ * Rates and RTT are exponentially weighted moving averages, so a peer that slows down mid-sync loses its place
+ * within a handful of samples. Timeouts are counted in full but also as a decaying recent count, which is the one
+ * the score uses: every successful delivery halves the weight of past timeouts.</p>
+ *
+ * <p>All methods are thread safe.</p>
+ */
+public final class PeerPerformance {
+
+    public enum Phase {
+        HEADERS, BLOCKS
+    }
+
+    /** Weight of a new sample in the moving averages. */
+    static final double SMOOTHING = 0.25;
+    /** Assumed rate of a peer nothing has been measured from yet, 64 KB/s. */
+    static final double UNMEASURED_BYTES_PER_SECOND = 64 * 1024;
+    /** Assumed RTT of a peer that hasn't answered a ping yet. */
+    static final double UNMEASURED_RTT_MILLIS = 500;
+    /** RTT at which the latency factor halves the score. */
+    static final double RTT_HALF_SCORE_MILLIS = 1000;
+
+    private double pingRttMillis = -1;
+    private double blockBytesPerSecond = -1;
+    private double headerBytesPerSecond = -1;
+    private long totalTimeouts;
+    private double recentTimeouts;
+    private long bytesReceived;
+
+    public synchronized void recordPing(long rttMillis) {
+        checkArgument(rttMillis >= 0);
+        pingRttMillis = average(pingRttMillis, rttMillis);
+    }
+
+    public synchronized void recordBlockDelivery(long bytes, long elapsedMillis) {
+        blockBytesPerSecond = average(blockBytesPerSecond, rate(bytes, elapsedMillis));
+        onDelivery(bytes);
+    }
+
+    public synchronized void recordHeadersDelivery(long bytes, long elapsedMillis) {
+        headerBytesPerSecond = average(headerBytesPerSecond, rate(bytes, elapsedMillis));
+        onDelivery(bytes);
+    }
+
+    /**
+     * A request (ping, headers or blocks) that went unanswered.
+     */
+    public synchronized void recordTimeout() {
+        totalTimeouts++;
+        recentTimeouts += 1;
+    }
+
+    /**
+     * Expected usefulness of the peer as a download peer in the given phase, higher is better. It is the measured
+     * delivery rate, discounted by latency and by recent timeouts.
+     */
+    public synchronized double getScore(Phase phase) {
+        double bps = phase == Phase.HEADERS ? headerBytesPerSecond : blockBytesPerSecond;
+        if (bps < 0)
+            bps = UNMEASURED_BYTES_PER_SECOND;
+        final double rtt = pingRttMillis < 0 ? UNMEASURED_RTT_MILLIS : pingRttMillis;
+        return bps / (1 + rtt / RTT_HALF_SCORE_MILLIS) / (1 + recentTimeouts);
+    }
+
+    public synchronized double getPingRttMillis() {
+        return pingRttMillis;
+    }
+
+    /** Block delivery rate, -1 if none was measured yet. */
+    public synchronized double getBlockBytesPerSecond() {
+        return blockBytesPerSecond;
+    }
+
+    /** Header delivery rate, -1 if none was measured yet. */
+    public synchronized double getHeaderBytesPerSecond() {
+        return headerBytesPerSecond;
+    }
+
+    public synchronized long getTotalTimeouts() {
+        return totalTimeouts;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    private void onDelivery(long bytes) {
+        bytesReceived += bytes;
+        recentTimeouts /= 2;
+    }
+
+    private static double rate(long bytes, long elapsedMillis) {
+        checkArgument(bytes >= 0 && elapsedMillis >= 0);
+        return bytes * 1000.0 / Math.max(1, elapsedMillis);
+    }
+
+    private static double average(double current, double sample) {
+        return current < 0 ? sample : current + SMOOTHING * (sample - current);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("PeerPerformance{rtt=%.0fms, blocks=%.0fB/s, headers=%.0fB/s, timeouts=%d}",
+                pingRttMillis, blockBytesPerSecond, headerBytesPerSecond, totalTimeouts);
+    }
+
+}
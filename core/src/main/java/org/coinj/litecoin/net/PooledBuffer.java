@@ -0,0 +1,68 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A buffer borrowed from a {@link ByteBufferPool}, returned to it when the reference count drops to zero. Whoever
+ * passes the buffer on to another owner calls {@link #retain()} first; every owner calls {@link #release()} exactly
+ * once when done.
+ */
+public final class PooledBuffer {
+
+    private final ByteBufferPool pool;
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    PooledBuffer(ByteBufferPool pool, ByteBuffer buffer) {
+        this.pool = pool;
+        this.buffer = buffer;
+    }
+
+    /**
+     * The underlying buffer; must not be touched once released.
+     */
+    public ByteBuffer buffer() {
+        checkState(references.get() > 0, "buffer already released");
+        return buffer;
+    }
+
+    public PooledBuffer retain() {
+        while (true) {
+            final int count = references.get();
+            checkState(count > 0, "buffer already released");
+            if (references.compareAndSet(count, count + 1))
+                return this;
+        }
+    }
+
+    public void release() {
+        final int count = references.decrementAndGet();
+        checkState(count >= 0, "buffer released too often");
+        if (count == 0)
+            pool.recycle(buffer);
+    }
+
+    public int referenceCount() {
+        return references.get();
+    }
+
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Splits one connection's inbound byte stream into {@link MessageFrame}s without intermediate copies. The 24 byte
+ * header is collected in a small buffer; once it's complete the payload is read straight into a buffer from the
+ * shared {@link ByteBufferPool}, either from the socket with {@link #readFrom(ReadableByteChannel)} or from whatever
+ * the caller already holds with {@link #feed(ByteBuffer)}. The checksum is computed over the pooled buffer in place
+ * and the frame hands out read-only slices of it.</p>
+ *
+ * <p>Like the stock serializer, bytes before the network's packet magic
+ * ({@link org.coinj.litecoin.LitecoinDefinition#MAIN_PACKET_MAGIC} or
+ * {@link org.coinj.litecoin.LitecoinDefinition#TEST_PACKET_MAGIC}) are skipped. Not thread safe: one framer per
+ * connection.</p>
+ */
+public class PooledMessageFramer {
+
+    public static final int HEADER_SIZE = 24;
+    public static final int COMMAND_LENGTH = 12;
+    public static final int MAX_MESSAGE_SIZE = 0x02000000;
+
+    public interface FrameListener {
+
+        /**
+         * Receives ownership of the frame, which has to be released eventually.
+         */
+        void onFrame(MessageFrame frame);
+
+    }
+
+    private final byte[] magic;
+    private final ByteBufferPool pool;
+    private final FrameListener listener;
+    private final MessageDigest digest;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private final byte[] expectedChecksum = new byte[4];
+    private String command;
+    private PooledBuffer payload;
+    private long skippedBytes;
+    private long frames;
+
+    public PooledMessageFramer(long packetMagic, ByteBufferPool pool, FrameListener listener) {
+        this.magic = new byte[4];
+        Utils.uint32ToByteArrayBE(packetMagic, magic, 0);
+        this.pool = checkNotNull(pool);
+        this.listener = checkNotNull(listener);
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
+    /**
+     * Consumes all of the data, emitting every frame it completes.
+     */
+    public void feed(ByteBuffer data) throws ProtocolException {
+        while (data.hasRemaining()) {
+            final ByteBuffer target = payload == null ? header : payload.buffer();
+            final int count = Math.min(target.remaining(), data.remaining());
+            final ByteBuffer chunk = data.duplicate();
+            chunk.limit(chunk.position() + count);
+            target.put(chunk);
+            data.position(data.position() + count);
+            progress();
+        }
+    }
+
+    /**
+     * Reads once from the channel, straight into the pooled payload buffer once the header is in.
+     *
+     * @return the number of bytes read, -1 at end of stream.
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        final int read = channel.read(payload == null ? header : payload.buffer());
+        if (read > 0)
+            progress();
+        return read;
+    }
+
+    private void progress() throws ProtocolException {
+        if (payload == null) {
+            if (!headerComplete())
+                return;
+            startPayload();
+        }
+        if (!payload.buffer().hasRemaining())
+            completeFrame();
+    }
+
+    private boolean headerComplete() {
+        // Slide past anything that isn't the packet magic.
+        while (header.position() >= 4 && !magicAtStart()) {
+            header.flip();
+            header.get();
+            header.compact();
+            skippedBytes++;
+        }
+        return !header.hasRemaining();
+    }
+
+    private boolean magicAtStart() {
+        for (int i = 0; i < 4; i++) {
+            if (header.get(i) != magic[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void startPayload() throws ProtocolException {
+        final byte[] bytes = header.array();
+        int end = 4;
+        while (end < 4 + COMMAND_LENGTH && bytes[end] != 0) {
+            end++;
+        }
+        final char[] chars = new char[end - 4];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (bytes[4 + i] & 0xff);
+        }
+        final long length = Utils.readUint32(bytes, 4 + COMMAND_LENGTH);
+        System.arraycopy(bytes, 4 + COMMAND_LENGTH + 4, expectedChecksum, 0, 4);
+        header.clear();
+        if (length > MAX_MESSAGE_SIZE)
+            throw new ProtocolException("Message size too large: " + length);
+        command = new String(chars);
+        payload = pool.acquire((int) length);
+    }
+
+    private void completeFrame() throws ProtocolException {
+        final PooledBuffer complete = payload;
+        payload = null;
+        final ByteBuffer view = complete.buffer().duplicate();
+        view.flip();
+        digest.reset();
+        digest.update(view);
+        final byte[] hash = digest.digest(digest.digest());
+        for (int i = 0; i < 4; i++) {
+            if (hash[i] != expectedChecksum[i]) {
+                complete.release();
+                throw new ProtocolException("Checksum failed to verify for " + command);
+            }
+        }
+        complete.buffer().flip();
+        frames++;
+        listener.onFrame(new MessageFrame(command, complete));
+    }
+
+    /**
+     * Writes a complete message, header included, for the given network into the buffer.
+     */
+    public static void writeFrame(long packetMagic, String command, byte[] payload, ByteBuffer out) {
+        checkArgument(command.length() <= COMMAND_LENGTH);
+        final byte[] header = new byte[HEADER_SIZE];
+        Utils.uint32ToByteArrayBE(packetMagic, header, 0);
+        for (int i = 0; i < command.length(); i++) {
+            header[4 + i] = (byte) command.charAt(i);
+        }
+        Utils.uint32ToByteArrayLE(payload.length, header, 4 + COMMAND_LENGTH);
+        final MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+        System.arraycopy(sha256.digest(sha256.digest(payload)), 0, header, 4 + COMMAND_LENGTH + 4, 4);
+        out.put(header).put(payload);
+    }
+
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Returns a partially read payload buffer to the pool, e.g. when the connection closes mid-message.
+     */
+    public void close() {
+        if (payload != null) {
+            payload.release();
+            payload = null;
+        }
+        header.clear();
+    }
+
+}
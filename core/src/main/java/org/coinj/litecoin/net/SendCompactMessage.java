@@ -0,0 +1,58 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.ProtocolException;
+
+/**
+ * The <tt>sendcmpct</tt> message: announces compact block support and whether the sender wants new blocks
+ * pushed as <tt>cmpctblock</tt> without a preceding <tt>inv</tt>/<tt>headers</tt> (high bandwidth mode).
+ */
+public final class SendCompactMessage {
+
+    public static final String COMMAND = "sendcmpct";
+    public static final long VERSION = 1;
+
+    private final boolean highBandwidth;
+    private final long version;
+
+    public SendCompactMessage(boolean highBandwidth, long version) {
+        this.highBandwidth = highBandwidth;
+        this.version = version;
+    }
+
+    public static SendCompactMessage parse(byte[] payload) throws ProtocolException {
+        final PayloadReader reader = new PayloadReader(payload);
+        final int announce = reader.readUint8();
+        if (announce > 1)
+            throw new ProtocolException("Invalid sendcmpct announce flag: " + announce);
+        return new SendCompactMessage(announce == 1, reader.readInt64());
+    }
+
+    public byte[] serialize() {
+        return new PayloadWriter(9).writeUint8(highBandwidth ? 1 : 0).writeInt64(version).toByteArray();
+    }
+
+    public boolean isHighBandwidth() {
+        return highBandwidth;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+}
@@ -0,0 +1,457 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Confidence table for transactions announced by peers: who has seen each transaction and at which height it
+ * appeared, so its depth. Transactions are keyed by the first 8 bytes of their hash in open addressing tables
+ * split over {@link #STRIPES} independently locked stripes, so an announcement storm for many transactions doesn't
+ * serialise on one lock and tracking hundreds of thousands of them doesn't cost a map entry object each.</p>
+ *
+ * <p>Listener notifications are coalesced per transaction: a change schedules one notification after the
+ * coalescing window and further changes within it ride along, so a transaction announced by fifty peers in a burst
+ * is reported once or twice rather than fifty times. Depth follows from {@link #setBestHeight(int)} without touching
+ * the entries; a new best height schedules a notification for the confirmed transactions no deeper than the depth
+ * horizon, found through an index by confirmation height, so listeners get each block's depth changes as one batch
+ * and a block costs the same however many buried transactions are still tracked.</p>
+ */
+public class StripedConfidenceTable {
+
+    private static final Logger log = LoggerFactory.getLogger(StripedConfidenceTable.class);
+
+    public static final int STRIPES = 64;
+    public static final long DEFAULT_COALESCING_MILLIS = 100;
+    /** Same as the wallet's default event horizon. */
+    public static final int DEFAULT_DEPTH_HORIZON = 100;
+    private static final int STRIPE_SHIFT = 64 - 6;
+    private static final int INITIAL_STRIPE_CAPACITY = 64;
+
+    public interface Listener {
+
+        /**
+         * @param depth 0 while the transaction is unconfirmed.
+         */
+        void onConfidenceChanged(Sha256Hash txHash, int seenByPeers, int depth);
+
+    }
+
+    private static final class ListenerRegistration {
+        private final Listener listener;
+        private final Executor executor;
+
+        private ListenerRegistration(Listener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+    }
+
+    private static final class Entry {
+        private final Sha256Hash hash;
+        private PeerAddress[] seenBy = new PeerAddress[2];
+        private int seenByCount;
+        private int appearedAtHeight = -1;
+        private final AtomicBoolean notificationPending = new AtomicBoolean();
+
+        private Entry(Sha256Hash hash) {
+            this.hash = hash;
+        }
+
+        private boolean addPeer(PeerAddress peer) {
+            for (int i = 0; i < seenByCount; i++) {
+                if (seenBy[i].equals(peer))
+                    return false;
+            }
+            if (seenByCount == seenBy.length)
+                seenBy = Arrays.copyOf(seenBy, seenByCount * 2);
+            seenBy[seenByCount++] = peer;
+            return true;
+        }
+    }
+
+    private static final class Stripe {
+        private final ReentrantLock lock = Threading.lock("confidencestripe");
+        private long[] keys = new long[INITIAL_STRIPE_CAPACITY];
+        private Entry[] entries = new Entry[INITIAL_STRIPE_CAPACITY];
+        private int size;
+
+        private int indexOf(long key, Sha256Hash hash) {
+            final int mask = entries.length - 1;
+            for (int i = (int) key & mask; entries[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key && entries[i].hash.equals(hash))
+                    return i;
+            }
+            return -1;
+        }
+
+        private Entry getOrCreate(long key, Sha256Hash hash) {
+            final int index = indexOf(key, hash);
+            if (index >= 0)
+                return entries[index];
+            if ((size + 1) * 2 > entries.length)
+                resize(entries.length * 2);
+            final Entry entry = new Entry(hash);
+            insert(key, entry);
+            size++;
+            return entry;
+        }
+
+        private void insert(long key, Entry entry) {
+            final int mask = entries.length - 1;
+            int i = (int) key & mask;
+            while (entries[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            entries[i] = entry;
+        }
+
+        private void resize(int capacity) {
+            final long[] oldKeys = keys;
+            final Entry[] oldEntries = entries;
+            keys = new long[capacity];
+            entries = new Entry[capacity];
+            for (int i = 0; i < oldEntries.length; i++) {
+                if (oldEntries[i] != null)
+                    insert(oldKeys[i], oldEntries[i]);
+            }
+        }
+
+        @Nullable
+        private Entry remove(long key, Sha256Hash hash) {
+            int index = indexOf(key, hash);
+            if (index < 0)
+                return null;
+            final Entry removed = entries[index];
+            // Backward shift deletion keeps probe sequences intact without tombstones.
+            final int mask = entries.length - 1;
+            entries[index] = null;
+            for (int i = (index + 1) & mask; entries[i] != null; i = (i + 1) & mask) {
+                final int home = (int) keys[i] & mask;
+                if (((i - home) & mask) >= ((i - index) & mask)) {
+                    keys[index] = keys[i];
+                    entries[index] = entries[i];
+                    entries[i] = null;
+                    index = i;
+                }
+            }
+            size--;
+            return removed;
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final CopyOnWriteArrayList<ListenerRegistration> listeners = new CopyOnWriteArrayList<ListenerRegistration>();
+    private final ConcurrentLinkedQueue<Entry> pendingNotifications = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drainNotifications();
+        }
+    };
+    private final ScheduledExecutorService scheduler;
+    private final long coalescingMillis;
+    private final int depthHorizon;
+    private volatile int bestHeight = -1;
+    // Confirmed entries by height. Taken inside a stripe lock, never the other way round.
+    private final ReentrantLock heightLock = Threading.lock("confidenceheights");
+    private final TreeMap<Integer, HashSet<Entry>> byHeight = new TreeMap<Integer, HashSet<Entry>>();
+
+    public StripedConfidenceTable(ScheduledExecutorService scheduler, long coalescingMillis) {
+        this(scheduler, coalescingMillis, DEFAULT_DEPTH_HORIZON);
+    }
+
+    /**
+     * @param scheduler runs the coalesced notification drain, listeners are then called on their own executors.
+     * @param depthHorizon deepest depth a new block still notifies about.
+     */
+    public StripedConfidenceTable(ScheduledExecutorService scheduler, long coalescingMillis, int depthHorizon) {
+        checkArgument(coalescingMillis >= 0 && depthHorizon >= 1);
+        this.scheduler = checkNotNull(scheduler);
+        this.coalescingMillis = coalescingMillis;
+        this.depthHorizon = depthHorizon;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        addListener(listener, Threading.USER_THREAD);
+    }
+
+    public void addListener(Listener listener, Executor executor) {
+        listeners.add(new ListenerRegistration(checkNotNull(listener), checkNotNull(executor)));
+    }
+
+    public boolean removeListener(Listener listener) {
+        for (ListenerRegistration registration : listeners) {
+            if (registration.listener == listener)
+                return listeners.remove(registration);
+        }
+        return false;
+    }
+
+    /**
+     * Records that the peer announced the transaction, starting to track it if needed.
+     *
+     * @return the number of distinct peers that have now announced it.
+     */
+    public int seen(Sha256Hash txHash, PeerAddress peer) {
+        checkNotNull(peer);
+        final long key = keyOf(txHash);
+        final Stripe stripe = stripeOf(key);
+        final Entry entry;
+        final int count;
+        final boolean added;
+        stripe.lock.lock();
+        try {
+            entry = stripe.getOrCreate(key, txHash);
+            added = entry.addPeer(peer);
+            count = entry.seenByCount;
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (added)
+            scheduleNotification(entry);
+        return count;
+    }
+
+    /**
+     * Records the height of the block the transaction was included in, or -1 if it went back to the mempool.
+     */
+    public void setAppearedAtHeight(Sha256Hash txHash, int height) {
+        checkArgument(height >= -1);
+        final long key = keyOf(txHash);
+        final Stripe stripe = stripeOf(key);
+        final Entry entry;
+        stripe.lock.lock();
+        try {
+            entry = stripe.getOrCreate(key, txHash);
+            if (entry.appearedAtHeight == height)
+                return;
+            heightLock.lock();
+            try {
+                unindex(entry);
+                entry.appearedAtHeight = height;
+                if (height >= 0) {
+                    HashSet<Entry> atHeight = byHeight.get(height);
+                    if (atHeight == null) {
+                        atHeight = new HashSet<Entry>();
+                        byHeight.put(height, atHeight);
+                    }
+                    atHeight.add(entry);
+                }
+            } finally {
+                heightLock.unlock();
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        scheduleNotification(entry);
+    }
+
+    public void setBestHeight(int height) {
+        if (bestHeight == height)
+            return;
+        bestHeight = height;
+        if (listeners.isEmpty())
+            return;
+        // Everything confirmed above height - horizon: within the horizon now, or above the tip after a reorganisation.
+        final List<Entry> confirmed = new ArrayList<Entry>();
+        heightLock.lock();
+        try {
+            for (HashSet<Entry> atHeight : byHeight.tailMap(height - depthHorizon, false).values()) {
+                confirmed.addAll(atHeight);
+            }
+        } finally {
+            heightLock.unlock();
+        }
+        for (Entry entry : confirmed) {
+            scheduleNotification(entry);
+        }
+    }
+
+    public int getSeenByCount(Sha256Hash txHash) {
+        final long key = keyOf(txHash);
+        final Stripe stripe = stripeOf(key);
+        stripe.lock.lock();
+        try {
+            final int index = stripe.indexOf(key, txHash);
+            return index < 0 ? 0 : stripe.entries[index].seenByCount;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public List<PeerAddress> getSeenBy(Sha256Hash txHash) {
+        final long key = keyOf(txHash);
+        final Stripe stripe = stripeOf(key);
+        stripe.lock.lock();
+        try {
+            final int index = stripe.indexOf(key, txHash);
+            if (index < 0)
+                return ImmutableList.of();
+            final Entry entry = stripe.entries[index];
+            return ImmutableList.copyOf(Arrays.asList(entry.seenBy).subList(0, entry.seenByCount));
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of blocks the transaction is buried under counting its own, 0 if unconfirmed or unknown.
+     */
+    public int getDepth(Sha256Hash txHash) {
+        final long key = keyOf(txHash);
+        final Stripe stripe = stripeOf(key);
+        stripe.lock.lock();
+        try {
+            final int index = stripe.indexOf(key, txHash);
+            return index < 0 ? 0 : depthOf(stripe.entries[index]);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops tracking the transaction, e.g. once it is buried deep enough or dropped from the mempool.
+     */
+    public boolean remove(Sha256Hash txHash) {
+        final long key = keyOf(txHash);
+        final Stripe stripe = stripeOf(key);
+        stripe.lock.lock();
+        try {
+            final Entry removed = stripe.remove(key, txHash);
+            if (removed == null)
+                return false;
+            heightLock.lock();
+            try {
+                unindex(removed);
+            } finally {
+                heightLock.unlock();
+            }
+            return true;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private void unindex(Entry entry) {
+        if (entry.appearedAtHeight < 0)
+            return;
+        final HashSet<Entry> atHeight = byHeight.get(entry.appearedAtHeight);
+        atHeight.remove(entry);
+        if (atHeight.isEmpty())
+            byHeight.remove(entry.appearedAtHeight);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.size;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    private int depthOf(Entry entry) {
+        final int best = bestHeight;
+        return entry.appearedAtHeight < 0 || best < entry.appearedAtHeight ? 0 : best - entry.appearedAtHeight + 1;
+    }
+
+    private void scheduleNotification(Entry entry) {
+        if (listeners.isEmpty() || !entry.notificationPending.compareAndSet(false, true))
+            return;
+        pendingNotifications.add(entry);
+        if (drainScheduled.compareAndSet(false, true))
+            scheduler.schedule(drainTask, coalescingMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delivers every pending notification now. Normally run by the scheduler at the end of the coalescing window.
+     */
+    void drainNotifications() {
+        drainScheduled.set(false);
+        Entry entry;
+        while ((entry = pendingNotifications.poll()) != null) {
+            // Cleared before reading so a change racing with this read schedules a fresh notification.
+            entry.notificationPending.set(false);
+            final Sha256Hash hash = entry.hash;
+            final long key = keyOf(hash);
+            final Stripe stripe = stripeOf(key);
+            final int seenBy;
+            final int depth;
+            stripe.lock.lock();
+            try {
+                seenBy = entry.seenByCount;
+                depth = depthOf(entry);
+            } finally {
+                stripe.lock.unlock();
+            }
+            for (final ListenerRegistration registration : listeners) {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            registration.listener.onConfidenceChanged(hash, seenBy, depth);
+                        } catch (RuntimeException e) {
+                            log.error("Confidence listener threw", e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private Stripe stripeOf(long key) {
+        return stripes[(int) (key >>> STRIPE_SHIFT)];
+    }
+
+    private static long keyOf(Sha256Hash hash) {
+        return Utils.readInt64(hash.getBytes(), 0);
+    }
+
+}
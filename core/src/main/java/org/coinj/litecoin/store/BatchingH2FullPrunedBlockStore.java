@@ -0,0 +1,825 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>H2 backed {@link FullPrunedBlockStore} that groups writes. Output additions and removals, headers, undo data and
+ * chain heads are buffered in memory and written with prepared statement batches, so connecting a block costs a few
+ * {@code executeBatch} calls instead of one auto-committed statement per output. An output created and spent before
+ * the buffer is written never reaches the database.</p>
+ *
+ * <p>Several committed database batches share one JDBC transaction: the buffer is written and committed every
+ * {@code maxBlocksPerTransaction} blocks, once it holds {@code maxPendingOutputs} outputs, and after every block when
+ * the verified head is less than {@link #NEAR_TIP_SECONDS} old. A crash loses at most the blocks of the open
+ * transaction; the database keeps the heads they were connected from, so the chain connects them again.
+ * {@link #abortDatabaseBatchWrite()} only undoes the changes of the open database batch.</p>
+ *
+ * <p>Removals of outputs that aren't buffered are checked against the database when written, so removing an output
+ * the store doesn't have fails at the next write instead of immediately.</p>
+ *
+ * <p>Only {@code java.sql} is used; the H2 driver has to be on the class path at runtime.</p>
+ */
+public class BatchingH2FullPrunedBlockStore implements FullPrunedBlockStore {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchingH2FullPrunedBlockStore.class);
+
+    public static final int DEFAULT_MAX_BLOCKS_PER_TRANSACTION = 500;
+    public static final int DEFAULT_MAX_PENDING_OUTPUTS = 200000;
+    public static final long NEAR_TIP_SECONDS = 60 * 60;
+
+    private static final String CHAIN_HEAD_SETTING = "chainhead";
+    private static final String VERIFIED_CHAIN_HEAD_SETTING = "verifiedchainhead";
+
+    private static final String CREATE_SETTINGS_TABLE = "CREATE TABLE IF NOT EXISTS settings ( "
+            + "name VARCHAR(32) NOT NULL CONSTRAINT settings_pk PRIMARY KEY,"
+            + "value BLOB"
+            + ")";
+    private static final String CREATE_HEADERS_TABLE = "CREATE TABLE IF NOT EXISTS headers ( "
+            + "hash BINARY(32) NOT NULL CONSTRAINT headers_pk PRIMARY KEY,"
+            + "header BLOB NOT NULL,"
+            + "wasUndoable BOOL NOT NULL DEFAULT FALSE"
+            + ")";
+    private static final String CREATE_UNDOABLE_TABLE = "CREATE TABLE IF NOT EXISTS undoableBlocks ( "
+            + "hash BINARY(32) NOT NULL CONSTRAINT undoableBlocks_pk PRIMARY KEY,"
+            + "height INT NOT NULL,"
+            + "txOutChanges BLOB,"
+            + "transactions BLOB"
+            + ")";
+    private static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX IF NOT EXISTS heightIndex ON undoableBlocks (height)";
+    private static final String CREATE_OPEN_OUTPUT_TABLE = "CREATE TABLE IF NOT EXISTS openOutputs ( "
+            + "hash BINARY(32) NOT NULL,"
+            + "index INT NOT NULL,"
+            + "height INT NOT NULL,"
+            + "value BIGINT NOT NULL,"
+            + "coinbase BOOL NOT NULL,"
+            + "scriptBytes BLOB NOT NULL,"
+            + "PRIMARY KEY (hash, index)"
+            + ")";
+
+    private static final class OutPointKey {
+        private final Sha256Hash hash;
+        private final long index;
+
+        private OutPointKey(Sha256Hash hash, long index) {
+            this.hash = hash;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof OutPointKey)) return false;
+            final OutPointKey other = (OutPointKey) o;
+            return index == other.index && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * hash.hashCode() + (int) index;
+        }
+    }
+
+    /**
+     * Buffered state of one outpoint: {@code inDatabase} means the database row has to be deleted, a non null
+     * {@code output} that it has to be inserted afterwards.
+     */
+    private static final class PendingOutput {
+        @Nullable
+        private final StoredTransactionOutput output;
+        private final boolean inDatabase;
+
+        private PendingOutput(@Nullable StoredTransactionOutput output, boolean inDatabase) {
+            this.output = output;
+            this.inDatabase = inDatabase;
+        }
+    }
+
+    /**
+     * Buffered header; {@code undoable} headers set the flag, the others leave it as it is in the database.
+     */
+    private static final class PendingHeader {
+        private final StoredBlock block;
+        private final boolean undoable;
+
+        private PendingHeader(StoredBlock block, boolean undoable) {
+            this.block = block;
+            this.undoable = undoable;
+        }
+    }
+
+    /**
+     * Buffered undo data, kept serialized so buffered blocks don't hold on to their transactions.
+     */
+    private static final class PendingUndo {
+        private final int height;
+        @Nullable
+        private final byte[] txOutChanges;
+        @Nullable
+        private final byte[] transactions;
+
+        private PendingUndo(int height, @Nullable byte[] txOutChanges, @Nullable byte[] transactions) {
+            this.height = height;
+            this.txOutChanges = txOutChanges;
+            this.transactions = transactions;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final String connectionURL;
+    private final int fullStoreDepth;
+    private final int maxBlocksPerTransaction;
+    private final int maxPendingOutputs;
+
+    private Connection connection;
+    private PreparedStatement selectOutput;
+    private PreparedStatement selectOutputIndexes;
+    private PreparedStatement selectHeader;
+    private PreparedStatement selectUndo;
+    private PreparedStatement insertOutput;
+    private PreparedStatement deleteOutput;
+    private PreparedStatement mergeHeader;
+    private PreparedStatement mergeUndoableHeader;
+    private PreparedStatement mergeUndo;
+    private PreparedStatement deleteUndo;
+    private PreparedStatement mergeSetting;
+
+    private final HashMap<OutPointKey, PendingOutput> pendingOutputs = new HashMap<OutPointKey, PendingOutput>();
+    private final HashMap<Sha256Hash, PendingHeader> pendingHeaders = new HashMap<Sha256Hash, PendingHeader>();
+    private final HashMap<Sha256Hash, PendingUndo> pendingUndos = new HashMap<Sha256Hash, PendingUndo>();
+    private int pendingBlocks;
+
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+    // undo data below this height is gone or will be deleted by the next write
+    private int prunedBelow;
+    private int writtenPrunedBelow;
+
+    // state before the open batch: previous buffer entries (null if absent), heads and pruning height
+    @Nullable
+    private HashMap<OutPointKey, PendingOutput> outputJournal;
+    private HashMap<Sha256Hash, PendingHeader> headerJournal;
+    private HashMap<Sha256Hash, PendingUndo> undoJournal;
+    private StoredBlock journalChainHead;
+    private StoredBlock journalVerifiedChainHead;
+    private int journalPrunedBelow;
+
+    private long transactions;
+
+    /**
+     * Opens or creates the H2 database {@code dbName} in the working directory.
+     */
+    public BatchingH2FullPrunedBlockStore(NetworkParameters params, String dbName, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, "jdbc:h2:" + dbName + ";create=true;LOCK_TIMEOUT=60000", fullStoreDepth,
+                DEFAULT_MAX_BLOCKS_PER_TRANSACTION, DEFAULT_MAX_PENDING_OUTPUTS);
+    }
+
+    /**
+     * @param fullStoreDepth number of blocks below the verified head to keep undo data for.
+     * @param maxBlocksPerTransaction blocks connected in one JDBC transaction while far from the tip; 1 commits every
+     *                                block.
+     * @param maxPendingOutputs buffered outputs that force a write regardless of the block count.
+     */
+    public BatchingH2FullPrunedBlockStore(NetworkParameters params, String connectionURL, int fullStoreDepth,
+                                          int maxBlocksPerTransaction, int maxPendingOutputs) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.connectionURL = checkNotNull(connectionURL);
+        checkArgument(fullStoreDepth > 0, "Full store depth must be positive");
+        checkArgument(maxBlocksPerTransaction > 0, "Blocks per transaction must be positive");
+        checkArgument(maxPendingOutputs > 0, "Pending outputs limit must be positive");
+        this.fullStoreDepth = fullStoreDepth;
+        this.maxBlocksPerTransaction = maxBlocksPerTransaction;
+        this.maxPendingOutputs = maxPendingOutputs;
+        try {
+            connection = DriverManager.getConnection(connectionURL);
+            connection.setAutoCommit(false);
+            createTables();
+            prepareStatements();
+            final byte[] head = getSetting(CHAIN_HEAD_SETTING);
+            if (head == null) {
+                createNewStore();
+            } else {
+                chainHead = get(new Sha256Hash(head));
+                final byte[] verified = getSetting(VERIFIED_CHAIN_HEAD_SETTING);
+                verifiedChainHead = verified == null ? null : get(new Sha256Hash(verified));
+                if (chainHead == null || verifiedChainHead == null)
+                    throw new BlockStoreException("Corrupt database, chain heads are missing: " + connectionURL);
+                prunedBelow = Math.max(0, verifiedChainHead.getHeight() - fullStoreDepth);
+                writtenPrunedBelow = prunedBelow;
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void createTables() throws SQLException {
+        final Statement s = connection.createStatement();
+        try {
+            s.executeUpdate(CREATE_SETTINGS_TABLE);
+            s.executeUpdate(CREATE_HEADERS_TABLE);
+            s.executeUpdate(CREATE_UNDOABLE_TABLE);
+            s.executeUpdate(CREATE_UNDOABLE_TABLE_INDEX);
+            s.executeUpdate(CREATE_OPEN_OUTPUT_TABLE);
+        } finally {
+            s.close();
+        }
+        connection.commit();
+    }
+
+    private void prepareStatements() throws SQLException {
+        selectOutput = connection.prepareStatement(
+                "SELECT height, value, coinbase, scriptBytes FROM openOutputs WHERE hash = ? AND index = ?");
+        selectOutputIndexes = connection.prepareStatement(
+                "SELECT index FROM openOutputs WHERE hash = ? AND index < ?");
+        selectHeader = connection.prepareStatement("SELECT header, wasUndoable FROM headers WHERE hash = ?");
+        selectUndo = connection.prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+        insertOutput = connection.prepareStatement(
+                "INSERT INTO openOutputs (hash, index, height, value, coinbase, scriptBytes) VALUES (?, ?, ?, ?, ?, ?)");
+        deleteOutput = connection.prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+        // without the flag column MERGE keeps the stored flag of an existing row
+        mergeHeader = connection.prepareStatement("MERGE INTO headers (hash, header) KEY (hash) VALUES (?, ?)");
+        mergeUndoableHeader = connection.prepareStatement(
+                "MERGE INTO headers (hash, header, wasUndoable) KEY (hash) VALUES (?, ?, TRUE)");
+        mergeUndo = connection.prepareStatement(
+                "MERGE INTO undoableBlocks (hash, height, txOutChanges, transactions) KEY (hash) VALUES (?, ?, ?, ?)");
+        deleteUndo = connection.prepareStatement("DELETE FROM undoableBlocks WHERE height < ?");
+        mergeSetting = connection.prepareStatement("MERGE INTO settings (name, value) KEY (name) VALUES (?, ?)");
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            final Block genesis = params.getGenesisBlock();
+            final StoredBlock storedGenesisHeader = new StoredBlock(genesis.cloneAsHeader(), genesis.getWork(), 0);
+            // The coinbase in the genesis block is not spendable, as in the reference client.
+            final List<Transaction> genesisTransactions = new LinkedList<Transaction>();
+            final StoredUndoableBlock storedGenesis = new StoredUndoableBlock(genesis.getHash(), genesisTransactions);
+            prunedBelow = 0;
+            writtenPrunedBelow = 0;
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            write();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    /**
+     * Drops all tables and starts over from genesis.
+     */
+    public synchronized void resetStore() throws BlockStoreException {
+        try {
+            connection.rollback();
+            clearBatches();
+            clearPending();
+            outputJournal = null;
+            headerJournal = null;
+            undoJournal = null;
+            final Statement s = connection.createStatement();
+            try {
+                s.executeUpdate("DROP TABLE IF EXISTS settings");
+                s.executeUpdate("DROP TABLE IF EXISTS headers");
+                s.executeUpdate("DROP TABLE IF EXISTS undoableBlocks");
+                s.executeUpdate("DROP TABLE IF EXISTS openOutputs");
+            } finally {
+                s.close();
+            }
+            createTables();
+            createNewStore();
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock) throws BlockStoreException {
+        final Sha256Hash hash = storedBlock.getHeader().getHash();
+        final PendingHeader previous = pendingHeaders.get(hash);
+        final boolean undoable = previous != null && previous.undoable;
+        updateHeader(hash, previous, new PendingHeader(storedBlock, undoable));
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        final Sha256Hash hash = storedBlock.getHeader().getHash();
+        final byte[] txOutChanges;
+        final byte[] transactions;
+        try {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            if (undoableBlock.getTxOutChanges() != null) {
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+                txOutChanges = bos.toByteArray();
+                transactions = null;
+            } else {
+                final List<Transaction> txList = undoableBlock.getTransactions();
+                final byte[] count = new byte[4];
+                Utils.uint32ToByteArrayLE(txList.size(), count, 0);
+                bos.write(count);
+                for (Transaction tx : txList) {
+                    tx.bitcoinSerialize(bos);
+                }
+                txOutChanges = null;
+                transactions = bos.toByteArray();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        updateHeader(hash, pendingHeaders.get(hash), new PendingHeader(storedBlock, true));
+        if (undoJournal != null && !undoJournal.containsKey(hash))
+            undoJournal.put(hash, pendingUndos.get(hash));
+        pendingUndos.put(hash, new PendingUndo(storedBlock.getHeight(), txOutChanges, transactions));
+    }
+
+    private void updateHeader(Sha256Hash hash, @Nullable PendingHeader previous, PendingHeader next) {
+        if (headerJournal != null && !headerJournal.containsKey(hash))
+            headerJournal.put(hash, previous);
+        pendingHeaders.put(hash, next);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        // Optimize for chain head
+        if (chainHead != null && chainHead.getHeader().getHash().equals(hash))
+            return chainHead;
+        if (verifiedChainHead != null && verifiedChainHead.getHeader().getHash().equals(hash))
+            return verifiedChainHead;
+        final PendingHeader pending = pendingHeaders.get(hash);
+        if (pending != null && (pending.undoable || !wasUndoableOnly))
+            return pending.block;
+        try {
+            selectHeader.setBytes(1, hash.getBytes());
+            final ResultSet results = selectHeader.executeQuery();
+            try {
+                if (!results.next() || (wasUndoableOnly && !results.getBoolean(2)))
+                    return null;
+                return pending != null ? pending.block
+                        : StoredBlock.deserializeCompact(params, ByteBuffer.wrap(results.getBytes(1)));
+            } finally {
+                results.close();
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        try {
+            byte[] txOutChanges;
+            byte[] transactions;
+            final PendingUndo pending = pendingUndos.get(hash);
+            if (pending != null) {
+                txOutChanges = pending.txOutChanges;
+                transactions = pending.transactions;
+            } else {
+                selectUndo.setBytes(1, hash.getBytes());
+                final ResultSet results = selectUndo.executeQuery();
+                try {
+                    if (!results.next())
+                        return null;
+                    txOutChanges = results.getBytes(1);
+                    transactions = results.getBytes(2);
+                } finally {
+                    results.close();
+                }
+            }
+            if (txOutChanges != null)
+                return new StoredUndoableBlock(hash, new TransactionOutputChanges(new ByteArrayInputStream(txOutChanges)));
+            final int count = (int) Utils.readUint32(checkNotNull(transactions), 0);
+            int offset = 4;
+            final List<Transaction> txList = new LinkedList<Transaction>();
+            for (int i = 0; i < count; i++) {
+                final Transaction tx = new Transaction(params, transactions, offset);
+                txList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, txList);
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.chainHead = chainHead;
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.verifiedChainHead = chainHead;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        final int height = chainHead.getHeight() - fullStoreDepth;
+        if (height > prunedBelow) {
+            prunedBelow = height;
+            for (Iterator<Map.Entry<Sha256Hash, PendingUndo>> it = pendingUndos.entrySet().iterator(); it.hasNext(); ) {
+                final Map.Entry<Sha256Hash, PendingUndo> undo = it.next();
+                if (undo.getValue().height < height) {
+                    if (undoJournal != null && !undoJournal.containsKey(undo.getKey()))
+                        undoJournal.put(undo.getKey(), undo.getValue());
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        final PendingOutput pending = pendingOutputs.get(new OutPointKey(hash, index));
+        if (pending != null)
+            return pending.output;
+        try {
+            selectOutput.setBytes(1, hash.getBytes());
+            selectOutput.setInt(2, (int) index);
+            final ResultSet results = selectOutput.executeQuery();
+            try {
+                if (!results.next())
+                    return null;
+                final int height = results.getInt(1);
+                final Coin value = Coin.valueOf(results.getLong(2));
+                final boolean coinbase = results.getBoolean(3);
+                return new StoredTransactionOutput(hash, index, value, height, coinbase, results.getBytes(4));
+            } finally {
+                results.close();
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        final OutPointKey key = new OutPointKey(out.getHash(), out.getIndex());
+        final PendingOutput previous = pendingOutputs.get(key);
+        updateOutput(key, previous, new PendingOutput(out, previous != null && previous.inDatabase));
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        final OutPointKey key = new OutPointKey(out.getHash(), out.getIndex());
+        final PendingOutput previous = pendingOutputs.get(key);
+        if (previous == null) {
+            updateOutput(key, null, new PendingOutput(null, true));
+        } else if (previous.output == null) {
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from BatchingH2FullPrunedBlockStore that it didn't have!");
+        } else {
+            // created since the last write: nothing to insert, and nothing to delete unless the row predates it
+            updateOutput(key, previous, previous.inDatabase ? new PendingOutput(null, true) : null);
+        }
+    }
+
+    private void updateOutput(OutPointKey key, @Nullable PendingOutput previous, @Nullable PendingOutput next) {
+        if (outputJournal != null && !outputJournal.containsKey(key))
+            outputJournal.put(key, previous);
+        if (next == null)
+            pendingOutputs.remove(key);
+        else
+            pendingOutputs.put(key, next);
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++) {
+            final PendingOutput pending = pendingOutputs.get(new OutPointKey(hash, i));
+            if (pending != null && pending.output != null)
+                return true;
+        }
+        try {
+            selectOutputIndexes.setBytes(1, hash.getBytes());
+            selectOutputIndexes.setInt(2, numOutputs);
+            final ResultSet results = selectOutputIndexes.executeQuery();
+            try {
+                while (results.next()) {
+                    // buffered outpoints were checked above
+                    if (!pendingOutputs.containsKey(new OutPointKey(hash, results.getInt(1))))
+                        return true;
+                }
+                return false;
+            } finally {
+                results.close();
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (outputJournal == null) {
+            outputJournal = new HashMap<OutPointKey, PendingOutput>();
+            headerJournal = new HashMap<Sha256Hash, PendingHeader>();
+            undoJournal = new HashMap<Sha256Hash, PendingUndo>();
+            journalChainHead = chainHead;
+            journalVerifiedChainHead = verifiedChainHead;
+            journalPrunedBelow = prunedBelow;
+        }
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        final boolean wasBatch = outputJournal != null;
+        outputJournal = null;
+        headerJournal = null;
+        undoJournal = null;
+        if (wasBatch)
+            pendingBlocks++;
+        if (pendingBlocks >= maxBlocksPerTransaction || pendingOutputs.size() >= maxPendingOutputs
+                || verifiedChainHead.getHeader().getTimeSeconds() >= Utils.currentTimeSeconds() - NEAR_TIP_SECONDS)
+            write();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (outputJournal == null)
+            return;
+        for (Map.Entry<OutPointKey, PendingOutput> saved : outputJournal.entrySet()) {
+            if (saved.getValue() == null)
+                pendingOutputs.remove(saved.getKey());
+            else
+                pendingOutputs.put(saved.getKey(), saved.getValue());
+        }
+        for (Map.Entry<Sha256Hash, PendingHeader> saved : headerJournal.entrySet()) {
+            if (saved.getValue() == null)
+                pendingHeaders.remove(saved.getKey());
+            else
+                pendingHeaders.put(saved.getKey(), saved.getValue());
+        }
+        for (Map.Entry<Sha256Hash, PendingUndo> saved : undoJournal.entrySet()) {
+            if (saved.getValue() == null)
+                pendingUndos.remove(saved.getKey());
+            else
+                pendingUndos.put(saved.getKey(), saved.getValue());
+        }
+        chainHead = journalChainHead;
+        verifiedChainHead = journalVerifiedChainHead;
+        prunedBelow = journalPrunedBelow;
+        outputJournal = null;
+        headerJournal = null;
+        undoJournal = null;
+    }
+
+    /**
+     * Writes everything buffered in statement batches and commits the JDBC transaction. Must not be called with a
+     * database batch open.
+     */
+    public synchronized void write() throws BlockStoreException {
+        checkState(outputJournal == null, "Can't write inside a batch");
+        try {
+            try {
+                writePending();
+                connection.commit();
+            } catch (SQLException e) {
+                clearBatches();
+                connection.rollback();
+                throw e;
+            } catch (BlockStoreException e) {
+                clearBatches();
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+        if (log.isDebugEnabled())
+            log.debug("Committed {} blocks, {} outputs at height {}", pendingBlocks, pendingOutputs.size(),
+                    verifiedChainHead.getHeight());
+        clearPending();
+        transactions++;
+    }
+
+    private void writePending() throws SQLException, BlockStoreException {
+        boolean deletes = false;
+        boolean inserts = false;
+        for (Map.Entry<OutPointKey, PendingOutput> entry : pendingOutputs.entrySet()) {
+            final PendingOutput pending = entry.getValue();
+            if (pending.inDatabase) {
+                deleteOutput.setBytes(1, entry.getKey().hash.getBytes());
+                deleteOutput.setInt(2, (int) entry.getKey().index);
+                deleteOutput.addBatch();
+                deletes = true;
+            }
+            final StoredTransactionOutput out = pending.output;
+            if (out != null) {
+                insertOutput.setBytes(1, out.getHash().getBytes());
+                insertOutput.setInt(2, (int) out.getIndex());
+                insertOutput.setInt(3, out.getHeight());
+                insertOutput.setLong(4, out.getValue().value);
+                insertOutput.setBoolean(5, out.isCoinbase());
+                insertOutput.setBytes(6, out.getScriptBytes());
+                insertOutput.addBatch();
+                inserts = true;
+            }
+        }
+        // deletes first, a re-added output replaces its old row
+        if (deletes) {
+            for (int count : deleteOutput.executeBatch()) {
+                if (count == 0)
+                    throw new BlockStoreException("Tried to remove a StoredTransactionOutput from BatchingH2FullPrunedBlockStore that it didn't have!");
+            }
+        }
+        if (inserts)
+            insertOutput.executeBatch();
+
+        boolean headers = false;
+        boolean undoableHeaders = false;
+        final ByteBuffer compact = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (Map.Entry<Sha256Hash, PendingHeader> entry : pendingHeaders.entrySet()) {
+            final PendingHeader pending = entry.getValue();
+            compact.clear();
+            pending.block.serializeCompact(compact);
+            final PreparedStatement statement = pending.undoable ? mergeUndoableHeader : mergeHeader;
+            statement.setBytes(1, entry.getKey().getBytes());
+            statement.setBytes(2, compact.array().clone());
+            statement.addBatch();
+            if (pending.undoable)
+                undoableHeaders = true;
+            else
+                headers = true;
+        }
+        if (headers)
+            mergeHeader.executeBatch();
+        if (undoableHeaders)
+            mergeUndoableHeader.executeBatch();
+
+        if (prunedBelow > writtenPrunedBelow) {
+            deleteUndo.setInt(1, prunedBelow);
+            deleteUndo.executeUpdate();
+        }
+        if (!pendingUndos.isEmpty()) {
+            for (Map.Entry<Sha256Hash, PendingUndo> entry : pendingUndos.entrySet()) {
+                final PendingUndo pending = entry.getValue();
+                mergeUndo.setBytes(1, entry.getKey().getBytes());
+                mergeUndo.setInt(2, pending.height);
+                mergeUndo.setBytes(3, pending.txOutChanges);
+                mergeUndo.setBytes(4, pending.transactions);
+                mergeUndo.addBatch();
+            }
+            mergeUndo.executeBatch();
+        }
+
+        mergeSetting.setString(1, CHAIN_HEAD_SETTING);
+        mergeSetting.setBytes(2, chainHead.getHeader().getHash().getBytes());
+        mergeSetting.addBatch();
+        mergeSetting.setString(1, VERIFIED_CHAIN_HEAD_SETTING);
+        mergeSetting.setBytes(2, verifiedChainHead.getHeader().getHash().getBytes());
+        mergeSetting.addBatch();
+        mergeSetting.executeBatch();
+    }
+
+    private void clearBatches() throws SQLException {
+        insertOutput.clearBatch();
+        deleteOutput.clearBatch();
+        mergeHeader.clearBatch();
+        mergeUndoableHeader.clearBatch();
+        mergeUndo.clearBatch();
+        mergeSetting.clearBatch();
+    }
+
+    private void clearPending() {
+        pendingOutputs.clear();
+        pendingHeaders.clear();
+        pendingUndos.clear();
+        pendingBlocks = 0;
+        writtenPrunedBelow = prunedBelow;
+    }
+
+    @Nullable
+    private byte[] getSetting(String name) throws SQLException {
+        final PreparedStatement s = connection.prepareStatement("SELECT value FROM settings WHERE name = ?");
+        try {
+            s.setString(1, name);
+            final ResultSet results = s.executeQuery();
+            return results.next() ? results.getBytes(1) : null;
+        } finally {
+            s.close();
+        }
+    }
+
+    public synchronized int getPendingOutputCount() {
+        return pendingOutputs.size();
+    }
+
+    public synchronized int getPendingBlockCount() {
+        return pendingBlocks;
+    }
+
+    /**
+     * Number of JDBC transactions committed so far.
+     */
+    public synchronized long getTransactionCount() {
+        return transactions;
+    }
+
+    public String getConnectionURL() {
+        return connectionURL;
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    /**
+     * Writes what's buffered and closes the connection.
+     */
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (connection == null)
+            return;
+        abortDatabaseBatchWrite();
+        try {
+            write();
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.warn("Failed to close the database connection", e);
+            }
+            connection = null;
+        }
+    }
+
+}
@@ -0,0 +1,724 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.coinj.litecoin.chain.BlockFileScanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Index of the blocks in a reference client {@code blocks} directory, looking a block up by hash or main chain
+ * height without reading the {@code blk*.dat} files in front of it. The index is one file, memory mapped for
+ * lookups:</p>
+ * <ul>
+ *     <li>magic and version, file count, entry count, best height;</li>
+ *     <li>per {@code blk*.dat} file: where scanning resumes, and the length and modification time it was scanned
+ *     at;</li>
+ *     <li>entries sorted by block hash: hash, file number, offset and length of the block, height or
+ *     {@link #UNCONNECTED};</li>
+ *     <li>the main chain: entry number per height.</li>
+ * </ul>
+ * <p>The first {@link #update()} scans all files in parallel, later ones only the files that changed, from where
+ * their last complete block ended, and rewrite the index merging the new blocks in. Blocks whose parent wasn't found
+ * yet are retried on every update.</p>
+ * <p>Heights follow the longest chain: the forks left in block files are short and stale, so unlike in a block
+ * store work isn't compared.</p>
+ * <p>Lookups may run concurrently with each other and with an update.</p>
+ */
+public class BlockFileIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(BlockFileIndex.class);
+
+    /** Height of a block whose ancestry doesn't reach genesis in the indexed files. */
+    public static final int UNCONNECTED = -1;
+
+    private static final byte[] MAGIC = {'L', 'T', 'C', 'B', 'I', 'D', 'X', 1};
+    private static final int HEADER_BYTES = MAGIC.length + 12;
+    private static final int FILE_STATE_BYTES = 24;
+    private static final int ENTRY_BYTES = 48;
+    private static final int UNKNOWN = -2;
+
+    private final NetworkParameters params;
+    private final File blocksDir;
+    private final File indexFile;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private volatile Snapshot snapshot;
+
+    /**
+     * Loads the index, if there is one, and brings it up to date with the block files. Scans on a new daemon pool
+     * with a thread per available processor.
+     */
+    public static BlockFileIndex open(NetworkParameters params, File blocksDir, File indexFile) throws IOException {
+        final BlockFileIndex index = new BlockFileIndex(params, blocksDir, indexFile,
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Block file index %d").build()), true);
+        index.update();
+        return index;
+    }
+
+    /**
+     * Loads the index without updating it.
+     *
+     * @param executor shared executor for scanning, not shut down by {@link #close()}.
+     */
+    public BlockFileIndex(NetworkParameters params, File blocksDir, File indexFile, ExecutorService executor)
+            throws IOException {
+        this(params, blocksDir, indexFile, executor, false);
+    }
+
+    private BlockFileIndex(NetworkParameters params, File blocksDir, File indexFile, ExecutorService executor,
+                           boolean ownsExecutor) throws IOException {
+        this.params = checkNotNull(params);
+        this.blocksDir = checkNotNull(blocksDir);
+        this.indexFile = checkNotNull(indexFile);
+        this.executor = checkNotNull(executor);
+        this.ownsExecutor = ownsExecutor;
+        Snapshot loaded = Snapshot.EMPTY;
+        if (indexFile.exists()) {
+            loaded = Snapshot.map(indexFile);
+            if (loaded == null) {
+                log.warn("{} isn't a block file index of this version, rebuilding it", indexFile);
+                loaded = Snapshot.EMPTY;
+            }
+        }
+        snapshot = loaded;
+    }
+
+    /**
+     * Location of a block in the block files.
+     */
+    public static final class Location {
+        private final Sha256Hash hash;
+        private final int fileNumber;
+        private final int offset;
+        private final int length;
+        private final int height;
+
+        private Location(Sha256Hash hash, int fileNumber, int offset, int length, int height) {
+            this.hash = hash;
+            this.fileNumber = fileNumber;
+            this.offset = offset;
+            this.length = length;
+            this.height = height;
+        }
+
+        public Sha256Hash getHash() {
+            return hash;
+        }
+
+        /** {@code N} of {@code blkN.dat}. */
+        public int getFileNumber() {
+            return fileNumber;
+        }
+
+        /** Offset of the serialized block, after its magic and length. */
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return height, or {@link #UNCONNECTED}. Blocks off the main chain have heights too.
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public String toString() {
+            return hash + " at " + fileNumber + ":" + offset + "+" + length + ", height " + height;
+        }
+    }
+
+    @Nullable
+    public Location get(Sha256Hash hash) {
+        final Snapshot current = snapshot;
+        final int entry = current.find(hash.getBytes(), 0);
+        return entry < 0 ? null : current.location(entry);
+    }
+
+    /**
+     * @return the main chain block at {@code height}.
+     */
+    @Nullable
+    public Location get(int height) {
+        final Snapshot current = snapshot;
+        if (height < 0 || height > current.bestHeight)
+            return null;
+        return current.location(current.mainChainEntry(height));
+    }
+
+    /**
+     * @return height of the main chain's tip, -1 while nothing connects to genesis.
+     */
+    public int getBestHeight() {
+        return snapshot.bestHeight;
+    }
+
+    /**
+     * @return number of blocks indexed, including side chains and unconnected ones.
+     */
+    public int size() {
+        return snapshot.entryCount;
+    }
+
+    public File getBlockFile(int fileNumber) {
+        return new File(blocksDir, String.format(Locale.US, "blk%05d.dat", fileNumber));
+    }
+
+    public byte[] readBlockBytes(Location location) throws IOException {
+        return read(location.getFileNumber(), location.getOffset(), location.getLength());
+    }
+
+    public Block readBlock(Location location) throws IOException, ProtocolException {
+        return new Block(params, readBlockBytes(location));
+    }
+
+    private byte[] read(int fileNumber, int offset, int length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(getBlockFile(fileNumber), "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0)
+                    throw new IOException("Block file " + fileNumber + " ends before " + (offset + length));
+            }
+            return buffer.array();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private byte[] readPrevHash(int fileNumber, int offset) throws IOException {
+        return prevHash(read(fileNumber, offset, Block.HEADER_SIZE));
+    }
+
+    private static byte[] prevHash(byte[] header) {
+        final byte[] prev = new byte[32];
+        System.arraycopy(header, 4, prev, 0, 32);
+        return Utils.reverseBytes(prev);
+    }
+
+    /**
+     * Indexes blocks added to the block files since the last update.
+     *
+     * @return number of blocks newly indexed.
+     */
+    public synchronized int update() throws IOException {
+        Snapshot old = snapshot;
+        final List<File> files = new ArrayList<File>();
+        for (File file = getBlockFile(0); file.exists(); file = getBlockFile(files.size())) {
+            files.add(file);
+        }
+        if (files.size() < old.fileCount) {
+            log.info("Block files of {} were removed, rebuilding the index", blocksDir);
+            old = Snapshot.EMPTY;
+        }
+
+        final long[] fileStates = new long[files.size() * 3];
+        final List<Future<Scanned>> scans = new ArrayList<Future<Scanned>>();
+        for (int i = 0; i < files.size(); i++) {
+            final File file = files.get(i);
+            final long length = file.length();
+            final long modified = file.lastModified();
+            final long from = i < old.fileCount ? old.fileState(i, 0) : 0;
+            fileStates[i * 3] = from;
+            fileStates[i * 3 + 1] = length;
+            fileStates[i * 3 + 2] = modified;
+            if (i < old.fileCount && old.fileState(i, 1) == length && old.fileState(i, 2) == modified)
+                continue;
+            final int number = i;
+            scans.add(executor.submit(new Callable<Scanned>() {
+                @Override
+                public Scanned call() throws IOException {
+                    return scan(number, file, from, length);
+                }
+            }));
+        }
+        if (scans.isEmpty() && old != Snapshot.EMPTY)
+            return 0;
+
+        final Batch batch = new Batch();
+        for (Future<Scanned> scan : scans) {
+            final Scanned scanned;
+            try {
+                scanned = Uninterruptibles.getUninterruptibly(scan);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), IOException.class);
+                throw new RuntimeException(e.getCause());
+            }
+            fileStates[scanned.fileNumber * 3] = scanned.resumeAt;
+            batch.addAll(scanned.blocks);
+        }
+        final int added = batch.size;
+        // retry the blocks whose parents were missing
+        for (int entry = 0; entry < old.entryCount; entry++) {
+            if (old.height(entry) == UNCONNECTED) {
+                final byte[] hash = old.hash(entry);
+                final int fileNumber = old.fileNumber(entry);
+                final int offset = old.offset(entry);
+                batch.add(hash, 0, readPrevHash(fileNumber, offset), fileNumber, offset, old.length(entry));
+            }
+        }
+
+        write(old, batch, fileStates);
+        snapshot = Snapshot.map(indexFile);
+        if (snapshot == null)
+            throw new IOException("Couldn't read back " + indexFile);
+        log.info("Indexed {} new blocks of {}, {} in total, best height {}",
+                added, blocksDir, snapshot.entryCount, snapshot.bestHeight);
+        return added;
+    }
+
+    private static final class Scanned {
+        private final int fileNumber;
+        private final Batch blocks;
+        private final long resumeAt;
+
+        private Scanned(int fileNumber, Batch blocks, long resumeAt) {
+            this.fileNumber = fileNumber;
+            this.blocks = blocks;
+            this.resumeAt = resumeAt;
+        }
+    }
+
+    private Scanned scan(int fileNumber, File file, long from, long length) throws IOException {
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("Block file too large: " + file);
+        final ByteBuffer contents;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            contents = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            raf.close();
+        }
+        contents.position((int) Math.min(from, length));
+        final BlockFileScanner scanner = BlockFileScanner.forParams(contents, params);
+        final Batch blocks = new Batch();
+        final byte[] header = new byte[Block.HEADER_SIZE];
+        // resume after the last complete block, the zero padding behind it may still be written to
+        long resumeAt = contents.position();
+        while (scanner.next()) {
+            final int offset = scanner.getBlockOffset();
+            final int blockLength = scanner.getBlockLength();
+            resumeAt = offset + blockLength;
+            if (blockLength < Block.HEADER_SIZE)
+                continue;
+            for (int i = 0; i < header.length; i++) {
+                header[i] = contents.get(offset + i);
+            }
+            // as in LitecoinBlockHasher, the block's identity is the double SHA-256 of its header
+            blocks.add(Utils.dSha256Hash(header), 0, prevHash(header), fileNumber, offset, blockLength);
+        }
+        return new Scanned(fileNumber, blocks, resumeAt);
+    }
+
+    /**
+     * Blocks found by scanning, in file order.
+     */
+    private static final class Batch {
+        private byte[] hashes = new byte[32 * 64];
+        private byte[] prevs = new byte[32 * 64];
+        private int[] locations = new int[3 * 64];
+        private int size;
+
+        private void add(byte[] hash, int hashOffset, byte[] prev, int fileNumber, int offset, int length) {
+            if (size * 3 == locations.length) {
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                prevs = Arrays.copyOf(prevs, prevs.length * 2);
+                locations = Arrays.copyOf(locations, locations.length * 2);
+            }
+            System.arraycopy(hash, hashOffset, hashes, size * 32, 32);
+            System.arraycopy(prev, 0, prevs, size * 32, 32);
+            locations[size * 3] = fileNumber;
+            locations[size * 3 + 1] = offset;
+            locations[size * 3 + 2] = length;
+            size++;
+        }
+
+        private void addAll(Batch other) {
+            final byte[] prev = new byte[32];
+            for (int i = 0; i < other.size; i++) {
+                System.arraycopy(other.prevs, i * 32, prev, 0, 32);
+                add(other.hashes, i * 32, prev, other.locations[i * 3], other.locations[i * 3 + 1],
+                        other.locations[i * 3 + 2]);
+            }
+        }
+
+        private boolean isGenesis(int i) {
+            for (int j = 0; j < 32; j++) {
+                if (prevs[i * 32 + j] != 0)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static int compare(byte[] a, int aOffset, byte[] b, int bOffset) {
+        for (int i = 0; i < 32; i++) {
+            final int diff = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+            if (diff != 0)
+                return diff;
+        }
+        return 0;
+    }
+
+    /**
+     * Merges {@code batch} into the entries of {@code old} and writes the result to the index file.
+     */
+    private void write(Snapshot old, final Batch batch, long[] fileStates) throws IOException {
+        // batch in hash order; the sort is stable, so of duplicates the first scanned comes first
+        final Integer[] order = new Integer[batch.size];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return BlockFileIndex.compare(batch.hashes, a * 32, batch.hashes, b * 32);
+            }
+        });
+
+        final int[] heights = new int[batch.size];
+        Arrays.fill(heights, UNKNOWN);
+        int tip = -1;
+        for (int i = 0; i < batch.size; i++) {
+            final int height = resolveHeight(old, batch, order, heights, i);
+            if (height > old.bestHeight && (tip < 0 || height > heights[tip]))
+                tip = i;
+        }
+
+        // the new main chain from the tip down to where it joins the old one, as batch indexes or ~old entry
+        final List<Integer> branch = new ArrayList<Integer>();
+        int forkHeight = -1;
+        if (tip >= 0) {
+            int current = tip;
+            while (true) {
+                branch.add(current);
+                if (batch.isGenesis(current))
+                    break;
+                final int parent = findInBatch(batch, order, batch.prevs, current * 32);
+                if (parent >= 0) {
+                    current = parent;
+                    continue;
+                }
+                int entry = old.find(batch.prevs, current * 32);
+                while (old.mainChainEntry(old.height(entry)) != entry) {
+                    branch.add(~entry);
+                    entry = old.find(readPrevHash(old.fileNumber(entry), old.offset(entry)), 0);
+                }
+                forkHeight = old.height(entry);
+                break;
+            }
+        }
+        final int bestHeight = tip >= 0 ? heights[tip] : old.bestHeight;
+
+        final int[] oldToNew = new int[old.entryCount];
+        final int[] batchToNew = new int[batch.size];
+        final File tmp = new File(indexFile.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+        int entryCount = 0;
+        try {
+            out.write(MAGIC);
+            out.writeInt(fileStates.length / 3);
+            out.writeInt(0);
+            out.writeInt(bestHeight);
+            for (long state : fileStates) {
+                out.writeLong(state);
+            }
+
+            int o = 0;
+            int b = 0;
+            while (o < old.entryCount || b < batch.size) {
+                if (o < old.entryCount && old.height(o) == UNCONNECTED) {
+                    o++;
+                    continue;
+                }
+                final int cmp;
+                if (o == old.entryCount)
+                    cmp = 1;
+                else if (b == batch.size)
+                    cmp = -1;
+                else
+                    cmp = old.compareHash(o, batch.hashes, order[b] * 32);
+                if (cmp <= 0) {
+                    writeEntry(out, old.hash(o), 0, old.fileNumber(o), old.offset(o), old.length(o), old.height(o));
+                    oldToNew[o++] = entryCount;
+                    // the same block scanned again maps to the entry already there
+                    while (cmp == 0 && b < batch.size && old.compareHash(o - 1, batch.hashes, order[b] * 32) == 0)
+                        batchToNew[order[b++]] = entryCount;
+                } else {
+                    final int i = order[b];
+                    writeEntry(out, batch.hashes, i * 32, batch.locations[i * 3], batch.locations[i * 3 + 1],
+                            batch.locations[i * 3 + 2], heights[i]);
+                    batchToNew[i] = entryCount;
+                    b++;
+                    while (b < batch.size && compare(batch.hashes, i * 32, batch.hashes, order[b] * 32) == 0)
+                        batchToNew[order[b++]] = entryCount;
+                }
+                entryCount++;
+            }
+
+            final int[] mainChain = new int[bestHeight + 1];
+            final int keptHeight = tip >= 0 ? forkHeight : bestHeight;
+            for (int height = 0; height <= keptHeight; height++) {
+                mainChain[height] = oldToNew[old.mainChainEntry(height)];
+            }
+            for (int node : branch) {
+                if (node >= 0)
+                    mainChain[heights[node]] = batchToNew[node];
+                else
+                    mainChain[old.height(~node)] = oldToNew[~node];
+            }
+            for (int entry : mainChain) {
+                out.writeInt(entry);
+            }
+        } finally {
+            out.close();
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.seek(MAGIC.length + 4);
+            raf.writeInt(entryCount);
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(indexFile) && !(indexFile.delete() && tmp.renameTo(indexFile)))
+            throw new IOException("Couldn't replace " + indexFile);
+    }
+
+    private static void writeEntry(DataOutputStream out, byte[] hash, int hashOffset, int fileNumber, int offset,
+                                   int length, int height) throws IOException {
+        out.write(hash, hashOffset, 32);
+        out.writeInt(fileNumber);
+        out.writeInt(offset);
+        out.writeInt(length);
+        out.writeInt(height);
+    }
+
+    /**
+     * @return batch index of the first block scanned with the given hash, or -1.
+     */
+    private static int findInBatch(Batch batch, Integer[] order, byte[] hash, int hashOffset) {
+        int low = 0;
+        int high = order.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compare(batch.hashes, order[mid] * 32, hash, hashOffset) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        if (low < order.length && compare(batch.hashes, order[low] * 32, hash, hashOffset) == 0)
+            return order[low];
+        return -1;
+    }
+
+    private static int resolveHeight(Snapshot old, Batch batch, Integer[] order, int[] heights, int i) {
+        // walk up to a block of known height without recursing, chains are millions of blocks deep
+        final List<Integer> path = new ArrayList<Integer>();
+        int current = i;
+        int height;
+        while (true) {
+            if (heights[current] != UNKNOWN) {
+                height = heights[current];
+                break;
+            }
+            if (batch.isGenesis(current)) {
+                height = heights[current] = 0;
+                break;
+            }
+            final int parent = findInBatch(batch, order, batch.prevs, current * 32);
+            if (parent >= 0) {
+                path.add(current);
+                current = parent;
+                continue;
+            }
+            final int entry = old.find(batch.prevs, current * 32);
+            final int parentHeight = entry < 0 ? UNCONNECTED : old.height(entry);
+            height = heights[current] = parentHeight == UNCONNECTED ? UNCONNECTED : parentHeight + 1;
+            break;
+        }
+        for (int k = path.size() - 1; k >= 0; k--) {
+            height = height == UNCONNECTED ? UNCONNECTED : height + 1;
+            heights[path.get(k)] = height;
+        }
+        return height;
+    }
+
+    public void close() {
+        if (ownsExecutor)
+            executor.shutdown();
+    }
+
+    /**
+     * A written index, immutable once mapped.
+     */
+    private static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(ByteBuffer.allocate(HEADER_BYTES), 0, 0, -1);
+
+        private final ByteBuffer buffer;
+        private final int fileCount;
+        private final int entryCount;
+        private final int bestHeight;
+        private final int entriesStart;
+        private final int mainChainStart;
+
+        private Snapshot(ByteBuffer buffer, int fileCount, int entryCount, int bestHeight) {
+            this.buffer = buffer;
+            this.fileCount = fileCount;
+            this.entryCount = entryCount;
+            this.bestHeight = bestHeight;
+            entriesStart = HEADER_BYTES + fileCount * FILE_STATE_BYTES;
+            mainChainStart = entriesStart + entryCount * ENTRY_BYTES;
+        }
+
+        /**
+         * @return null if the file isn't an index of this version.
+         */
+        @Nullable
+        private static Snapshot map(File file) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            final ByteBuffer buffer;
+            try {
+                final long size = raf.length();
+                if (size < HEADER_BYTES || size > Integer.MAX_VALUE)
+                    return null;
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } finally {
+                raf.close();
+            }
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (buffer.get(i) != MAGIC[i])
+                    return null;
+            }
+            final int fileCount = buffer.getInt(MAGIC.length);
+            final int entryCount = buffer.getInt(MAGIC.length + 4);
+            final int bestHeight = buffer.getInt(MAGIC.length + 8);
+            final long expected = HEADER_BYTES + (long) fileCount * FILE_STATE_BYTES + (long) entryCount * ENTRY_BYTES
+                    + (bestHeight + 1L) * 4;
+            if (fileCount < 0 || entryCount < 0 || bestHeight < -1 || expected != buffer.capacity())
+                return null;
+            return new Snapshot(buffer, fileCount, entryCount, bestHeight);
+        }
+
+        private long fileState(int file, int field) {
+            return buffer.getLong(HEADER_BYTES + file * FILE_STATE_BYTES + field * 8);
+        }
+
+        private byte[] hash(int entry) {
+            final byte[] hash = new byte[32];
+            final int start = entriesStart + entry * ENTRY_BYTES;
+            for (int i = 0; i < 32; i++) {
+                hash[i] = buffer.get(start + i);
+            }
+            return hash;
+        }
+
+        private int compareHash(int entry, byte[] hash, int hashOffset) {
+            final int start = entriesStart + entry * ENTRY_BYTES;
+            for (int i = 0; i < 32; i++) {
+                final int diff = (buffer.get(start + i) & 0xFF) - (hash[hashOffset + i] & 0xFF);
+                if (diff != 0)
+                    return diff;
+            }
+            return 0;
+        }
+
+        private int fileNumber(int entry) {
+            return buffer.getInt(entriesStart + entry * ENTRY_BYTES + 32);
+        }
+
+        private int offset(int entry) {
+            return buffer.getInt(entriesStart + entry * ENTRY_BYTES + 36);
+        }
+
+        private int length(int entry) {
+            return buffer.getInt(entriesStart + entry * ENTRY_BYTES + 40);
+        }
+
+        private int height(int entry) {
+            return buffer.getInt(entriesStart + entry * ENTRY_BYTES + 44);
+        }
+
+        private int mainChainEntry(int height) {
+            return buffer.getInt(mainChainStart + height * 4);
+        }
+
+        /**
+         * @return entry with the given hash, or -1.
+         */
+        private int find(byte[] hash, int hashOffset) {
+            int low = 0;
+            int high = entryCount - 1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int cmp = compareHash(mid, hash, hashOffset);
+                if (cmp < 0)
+                    low = mid + 1;
+                else if (cmp > 0)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        private Location location(int entry) {
+            return new Location(new Sha256Hash(hash(entry)), fileNumber(entry), offset(entry), length(entry),
+                    height(entry));
+        }
+    }
+
+}
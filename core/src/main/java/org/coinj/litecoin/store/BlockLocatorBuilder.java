@@ -0,0 +1,142 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Builds getblocks/getheaders locators from a {@link HeightIndex} instead of walking parents through the block
+ * store: the ten most recent hashes, then exponentially spaced ones down to genesis, which is about thirty height
+ * lookups for the whole Litecoin chain. The locator of the best tip is cached until the tip changes. Tips off the
+ * best chain walk parents through the store only until they meet it.
+ */
+public class BlockLocatorBuilder {
+
+    private static final int DENSE_ENTRIES = 10;
+
+    private final NetworkParameters params;
+    private final HeightIndex index;
+
+    private volatile CachedLocator cached;
+
+    private static final class CachedLocator {
+        private final Sha256Hash tip;
+        private final int height;
+        private final ImmutableList<Sha256Hash> locator;
+
+        private CachedLocator(Sha256Hash tip, int height, ImmutableList<Sha256Hash> locator) {
+            this.tip = tip;
+            this.height = height;
+            this.locator = locator;
+        }
+    }
+
+    public BlockLocatorBuilder(NetworkParameters params, HeightIndex index) {
+        this.params = checkNotNull(params);
+        this.index = checkNotNull(index);
+    }
+
+    /**
+     * @return locator for the current best tip of the index, newest first.
+     */
+    public ImmutableList<Sha256Hash> build() {
+        final int height = index.getBestHeight();
+        final Sha256Hash tip = index.getHashAtHeight(height);
+        if (tip == null)
+            return ImmutableList.of(params.getGenesisBlock().getHash());
+        final CachedLocator current = cached;
+        if (current != null && current.height == height && current.tip.equals(tip))
+            return current.locator;
+
+        final ImmutableList<Sha256Hash> locator = ImmutableList.copyOf(fromBestChain(new ArrayList<Sha256Hash>(), height, 0));
+        cached = new CachedLocator(tip, height, locator);
+        return locator;
+    }
+
+    /**
+     * Locator for any stored block, which may sit on a side chain. Parents are read from the store until the walk
+     * reaches a block the index holds at the same height.
+     */
+    public ImmutableList<Sha256Hash> build(StoredBlock tip, BlockStore store) throws BlockStoreException {
+        final Sha256Hash tipHash = tip.getHeader().getHash();
+        if (tipHash.equals(index.getHashAtHeight(tip.getHeight())))
+            return build();
+
+        final List<Sha256Hash> locator = new ArrayList<Sha256Hash>();
+        StoredBlock cursor = tip;
+        int step = 1;
+        int skipped = 0;
+        while (true) {
+            if (skipped == 0) {
+                locator.add(cursor.getHeader().getHash());
+                if (locator.size() >= DENSE_ENTRIES)
+                    step *= 2;
+                skipped = step;
+            }
+            final StoredBlock prev = cursor.getPrev(store);
+            if (prev == null)
+                return ImmutableList.copyOf(withGenesis(locator));
+            cursor = prev;
+            skipped--;
+            if (cursor.getHeader().getHash().equals(index.getHashAtHeight(cursor.getHeight())))
+                break;
+        }
+        // rejoined the best chain: continue with the same spacing through the index
+        return ImmutableList.copyOf(fromBestChain(locator, cursor.getHeight() - skipped, step));
+    }
+
+    /**
+     * Drops the cached best-chain locator; only needed if the index changes below an unchanged tip.
+     */
+    public void invalidate() {
+        cached = null;
+    }
+
+    private List<Sha256Hash> fromBestChain(List<Sha256Hash> locator, int height, int step) {
+        if (step == 0)
+            step = 1;
+        while (height > 0) {
+            final Sha256Hash hash = index.getHashAtHeight(height);
+            if (hash == null)
+                break;
+            locator.add(hash);
+            if (locator.size() >= DENSE_ENTRIES)
+                step *= 2;
+            height -= step;
+        }
+        return withGenesis(locator);
+    }
+
+    private List<Sha256Hash> withGenesis(List<Sha256Hash> locator) {
+        final Sha256Hash genesis = params.getGenesisBlock().getHash();
+        if (locator.isEmpty() || !locator.get(locator.size() - 1).equals(genesis))
+            locator.add(genesis);
+        return locator;
+    }
+
+}
@@ -0,0 +1,403 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Write-back UTXO cache in front of any {@link FullPrunedBlockStore}. Outputs read, created and spent by connected
+ * blocks live in a map; an output created and spent between two flushes never reaches the store at all. Dirty
+ * entries are written in one store batch every {@code flushInterval} blocks or once the cache grows past
+ * {@code maxCacheBytes}, together with the verified chain head they correspond to.</p>
+ *
+ * <p>Headers and undo data pass straight through. The store's verified head only moves on flush, so after a crash
+ * the store holds the UTXO set of an older verified block, whose descendants' undo data is present as well, and the
+ * chain reconnects from there. Open batches are journalled so {@link #abortDatabaseBatchWrite()} undoes their cache
+ * changes too.</p>
+ *
+ * <p>Created non-coinbase outputs are assumed absent from the store. Coinbase outputs may duplicate an older
+ * transaction id (BIP30), so whether the store has them is checked when they're flushed.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    public static final int DEFAULT_FLUSH_INTERVAL = 2000;
+    public static final long DEFAULT_MAX_CACHE_BYTES = 256L * 1024 * 1024;
+    private static final int ENTRY_OVERHEAD = 200;
+
+    private static final class OutPointKey {
+        private final Sha256Hash hash;
+        private final long index;
+
+        private OutPointKey(Sha256Hash hash, long index) {
+            this.hash = hash;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof OutPointKey)) return false;
+            final OutPointKey other = (OutPointKey) o;
+            return index == other.index && hash.equals(other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * hash.hashCode() + (int) index;
+        }
+    }
+
+    /**
+     * Cached state of one outpoint. {@code dirty} means the store differs from it; {@code fresh} means the store
+     * doesn't have the output, so spending it needs no store write; {@code uncertain} means it isn't known whether the
+     * store has it. Spent entries keep the output for the removal.
+     */
+    private static final class Entry {
+        private final StoredTransactionOutput output;
+        private final boolean spent;
+        private final boolean dirty;
+        private final boolean fresh;
+        private final boolean uncertain;
+
+        private Entry(StoredTransactionOutput output, boolean spent, boolean dirty, boolean fresh, boolean uncertain) {
+            this.output = output;
+            this.spent = spent;
+            this.dirty = dirty;
+            this.fresh = fresh;
+            this.uncertain = uncertain;
+        }
+
+        @Nullable
+        private StoredTransactionOutput unspent() {
+            return spent ? null : output;
+        }
+
+        private long size() {
+            return ENTRY_OVERHEAD + output.getScriptBytes().length;
+        }
+    }
+
+    private final FullPrunedBlockStore store;
+    private final int flushInterval;
+    private final long maxCacheBytes;
+
+    private final HashMap<OutPointKey, Entry> cache = new HashMap<OutPointKey, Entry>();
+    private long cacheBytes;
+    private int blocksSinceFlush;
+
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+
+    // state before the open batch: previous entries (null if absent) and heads
+    @Nullable
+    private HashMap<OutPointKey, Entry> journal;
+    private StoredBlock journalChainHead;
+    private StoredBlock journalVerifiedChainHead;
+
+    private long flushes;
+    private long annihilated;
+
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) throws BlockStoreException {
+        this(store, DEFAULT_FLUSH_INTERVAL, DEFAULT_MAX_CACHE_BYTES);
+    }
+
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, int flushInterval, long maxCacheBytes)
+            throws BlockStoreException {
+        this.store = checkNotNull(store);
+        checkArgument(flushInterval > 0, "Flush interval must be positive");
+        checkArgument(maxCacheBytes > 0, "Cache size must be positive");
+        this.flushInterval = flushInterval;
+        this.maxCacheBytes = maxCacheBytes;
+        chainHead = store.getChainHead();
+        verifiedChainHead = store.getVerifiedChainHead();
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        final OutPointKey key = new OutPointKey(hash, index);
+        final Entry entry = cache.get(key);
+        if (entry != null)
+            return entry.unspent();
+        final StoredTransactionOutput output = store.getTransactionOutput(hash, index);
+        if (output != null)
+            update(key, null, new Entry(output, false, false, false, false));
+        return output;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        final OutPointKey key = new OutPointKey(out.getHash(), out.getIndex());
+        final Entry entry = cache.get(key);
+        if (entry == null) {
+            update(key, null, new Entry(out, false, true, !out.isCoinbase(), out.isCoinbase()));
+        } else {
+            update(key, entry, new Entry(out, false, true, entry.fresh, entry.uncertain));
+        }
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        final OutPointKey key = new OutPointKey(out.getHash(), out.getIndex());
+        Entry entry = cache.get(key);
+        if (entry == null) {
+            final StoredTransactionOutput stored = store.getTransactionOutput(out.getHash(), out.getIndex());
+            if (stored != null)
+                entry = new Entry(stored, false, false, false, false);
+        }
+        if (entry == null || entry.spent)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+        if (entry.fresh) {
+            update(key, cache.get(key), null);
+            annihilated++;
+        } else {
+            update(key, cache.get(key), new Entry(entry.output, true, true, false, entry.uncertain));
+        }
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        boolean anyCached = false;
+        for (int i = 0; i < numOutputs; i++) {
+            final Entry entry = cache.get(new OutPointKey(hash, i));
+            if (entry != null) {
+                if (!entry.spent)
+                    return true;
+                anyCached = true;
+            }
+        }
+        if (!store.hasUnspentOutputs(hash, numOutputs))
+            return false;
+        if (!anyCached)
+            return true;
+        // some of the store's outputs may have been spent in the cache
+        for (int i = 0; i < numOutputs; i++) {
+            if (!cache.containsKey(new OutPointKey(hash, i)) && store.getTransactionOutput(hash, i) != null)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+        this.chainHead = chainHead;
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead;
+    }
+
+    /**
+     * Moves the verified head in the cache only; the store follows on the next flush.
+     */
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        verifiedChainHead = chainHead;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            this.chainHead = chainHead;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (journal == null) {
+            journal = new HashMap<OutPointKey, Entry>();
+            journalChainHead = chainHead;
+            journalVerifiedChainHead = verifiedChainHead;
+        }
+        store.beginDatabaseBatchWrite();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        store.commitDatabaseBatchWrite();
+        journal = null;
+        blocksSinceFlush++;
+        if (blocksSinceFlush >= flushInterval || cacheBytes >= maxCacheBytes)
+            flush();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        store.abortDatabaseBatchWrite();
+        if (journal == null)
+            return;
+        for (Map.Entry<OutPointKey, Entry> saved : journal.entrySet()) {
+            final Entry current = cache.get(saved.getKey());
+            if (current != null)
+                cacheBytes -= current.size();
+            if (saved.getValue() == null) {
+                cache.remove(saved.getKey());
+            } else {
+                cache.put(saved.getKey(), saved.getValue());
+                cacheBytes += saved.getValue().size();
+            }
+        }
+        chainHead = journalChainHead;
+        verifiedChainHead = journalVerifiedChainHead;
+        journal = null;
+    }
+
+    /**
+     * Writes dirty outputs and the verified head to the store in one batch, then trims the cache if it's over its
+     * size. Must not be called with a batch open.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        checkState(journal == null, "Can't flush inside a batch");
+        int written = 0;
+        store.beginDatabaseBatchWrite();
+        try {
+            for (Map.Entry<OutPointKey, Entry> cached : cache.entrySet()) {
+                final Entry entry = cached.getValue();
+                if (!entry.dirty)
+                    continue;
+                final boolean inStore = !entry.fresh && (!entry.uncertain
+                        || store.getTransactionOutput(entry.output.getHash(), entry.output.getIndex()) != null);
+                if (inStore)
+                    store.removeUnspentTransactionOutput(entry.output);
+                if (!entry.spent)
+                    store.addUnspentTransactionOutput(entry.output);
+                written++;
+            }
+            store.setVerifiedChainHead(verifiedChainHead);
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+
+        final boolean trim = cacheBytes >= maxCacheBytes;
+        for (Iterator<Map.Entry<OutPointKey, Entry>> it = cache.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<OutPointKey, Entry> cached = it.next();
+            final Entry entry = cached.getValue();
+            if (trim || entry.spent) {
+                cacheBytes -= entry.size();
+                it.remove();
+            } else if (entry.dirty || entry.fresh || entry.uncertain) {
+                cached.setValue(new Entry(entry.output, false, false, false, false));
+            }
+        }
+        blocksSinceFlush = 0;
+        flushes++;
+        log.info("Flushed {} UTXO changes at height {}, {} created outputs were spent before reaching the store",
+                written, verifiedChainHead.getHeight(), annihilated);
+    }
+
+    private void update(OutPointKey key, @Nullable Entry previous, @Nullable Entry next) {
+        if (journal != null && !journal.containsKey(key))
+            journal.put(key, previous);
+        if (previous != null)
+            cacheBytes -= previous.size();
+        if (next == null) {
+            cache.remove(key);
+        } else {
+            cache.put(key, next);
+            cacheBytes += next.size();
+        }
+    }
+
+    public synchronized int getCachedOutputCount() {
+        return cache.size();
+    }
+
+    public synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    public synchronized long getFlushCount() {
+        return flushes;
+    }
+
+    public synchronized long getAnnihilatedCount() {
+        return annihilated;
+    }
+
+    public FullPrunedBlockStore getStore() {
+        return store;
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+
+    /**
+     * Flushes and closes the underlying store.
+     */
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (journal != null)
+            abortDatabaseBatchWrite();
+        flush();
+        store.close();
+    }
+
+}
@@ -0,0 +1,385 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.store.BlockStoreException;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * In-memory best header chain kept in parallel primitive arrays indexed by height: version, time, bits and nonce as
+ * ints, merkle root, block hash and chain work as longs. That is 96 bytes per header plus about 8 for the hash index,
+ * roughly 320MB for three million Litecoin headers, against several hundred bytes and five objects per
+ * {@link StoredBlock}. {@link StoredBlock} views are built only when asked for; ancestor, time and difficulty lookups
+ * read the arrays directly. The chain may start at any height, e.g. a checkpoint, and reorgs go through
+ * {@link #truncate(int)} followed by {@link #add(StoredBlock)} of the new branch.
+ */
+public class CompactHeaderChain implements HeightIndex {
+
+    private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+    private static final BigInteger LONG_MASK = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+
+    private final NetworkParameters params;
+
+    private int baseHeight = -1;
+    private final long[] basePrevHash = new long[4];
+    private int size;
+
+    private int[] versions;
+    private int[] times;
+    private int[] bits;
+    private int[] nonces;
+    private long[] merkleRoots;
+    private long[] hashes;
+    private long[] chainWork;
+
+    // open addressing over the last 8 hash bytes, values are index + 1
+    private int[] hashTable;
+
+    public CompactHeaderChain(NetworkParameters params) {
+        this(params, DEFAULT_INITIAL_CAPACITY);
+    }
+
+    public CompactHeaderChain(NetworkParameters params, int expectedHeaders) {
+        this.params = checkNotNull(params);
+        checkArgument(expectedHeaders > 0, "Expected headers must be positive");
+        allocate(expectedHeaders);
+        hashTable = new int[tableSizeFor(expectedHeaders)];
+    }
+
+    /**
+     * Copies the best chain of the store from its head down to the lowest height the store knows.
+     */
+    public static CompactHeaderChain fromStore(LitecoinSPVBlockStore store) throws BlockStoreException {
+        final int best = store.getBestHeight();
+        int low = best;
+        while (low > 0 && store.getHashAtHeight(low - 1) != null) {
+            low--;
+        }
+        final CompactHeaderChain chain = new CompactHeaderChain(store.getParams(), best - low + 1);
+        for (int height = low; height <= best; height++) {
+            chain.add(store.getBlockAtHeight(height));
+        }
+        return chain;
+    }
+
+    /**
+     * Appends a header on top of the tip. The first header added sets the base of the chain.
+     */
+    public synchronized void add(StoredBlock block) {
+        final Block header = block.getHeader();
+        if (size == 0) {
+            baseHeight = block.getHeight();
+            toLongs(header.getPrevBlockHash().getBytes(), basePrevHash, 0);
+        } else {
+            checkArgument(block.getHeight() == getBestHeight() + 1,
+                    "Header at height %s doesn't extend tip at %s", block.getHeight(), getBestHeight());
+            checkArgument(prevHashMatches(header.getPrevBlockHash().getBytes(), size - 1),
+                    "Header %s doesn't connect to the tip", header.getHash());
+        }
+
+        if (size == versions.length)
+            allocate(size + (size >> 1));
+        final int i = size;
+        versions[i] = (int) header.getVersion();
+        times[i] = (int) header.getTimeSeconds();
+        bits[i] = (int) header.getDifficultyTarget();
+        nonces[i] = (int) header.getNonce();
+        toLongs(header.getMerkleRoot().getBytes(), merkleRoots, i * 4);
+        toLongs(header.getHash().getBytes(), hashes, i * 4);
+        final BigInteger work = block.getChainWork();
+        chainWork[i * 2] = work.shiftRight(64).longValue();
+        chainWork[i * 2 + 1] = work.and(LONG_MASK).longValue();
+        insert(i);
+        size++;
+
+        if (size * 2 > hashTable.length)
+            rehash(hashTable.length * 2);
+    }
+
+    /**
+     * Drops every header above the given height, e.g. before connecting the winning branch of a reorg.
+     */
+    public synchronized void truncate(int height) {
+        checkState(size > 0, "Chain is empty");
+        checkArgument(height >= baseHeight - 1, "Height %s is below the chain base %s", height, baseHeight);
+        while (getBestHeight() > height) {
+            size--;
+            delete(size);
+        }
+    }
+
+    @Override
+    public synchronized int getBestHeight() {
+        return size == 0 ? -1 : baseHeight + size - 1;
+    }
+
+    /**
+     * @return lowest height held, or -1 when empty.
+     */
+    public synchronized int getBaseHeight() {
+        return baseHeight;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    @Nullable
+    public synchronized Sha256Hash getHashAtHeight(int height) {
+        final int i = index(height);
+        return i < 0 ? null : new Sha256Hash(toBytes(hashes, i * 4));
+    }
+
+    /**
+     * @return height of the header on this chain, or -1 when it isn't on it.
+     */
+    public synchronized int getHeight(Sha256Hash hash) {
+        final int i = find(hash.getBytes());
+        return i < 0 ? -1 : baseHeight + i;
+    }
+
+    public synchronized boolean contains(Sha256Hash hash) {
+        return find(hash.getBytes()) >= 0;
+    }
+
+    /**
+     * @return hash of the ancestor of the given block at the given height, or null if the block isn't on this chain,
+     * the height is above it or below the chain base.
+     */
+    @Nullable
+    public synchronized Sha256Hash getAncestor(Sha256Hash hash, int height) {
+        final int i = find(hash.getBytes());
+        if (i < 0 || height > baseHeight + i)
+            return null;
+        return getHashAtHeight(height);
+    }
+
+    public synchronized long getTimeAtHeight(int height) {
+        return times[checkedIndex(height)] & 0xffffffffL;
+    }
+
+    public synchronized long getDifficultyTargetAtHeight(int height) {
+        return bits[checkedIndex(height)] & 0xffffffffL;
+    }
+
+    /**
+     * @return median of the timestamps of the header at the given height and up to ten before it.
+     */
+    public synchronized long getMedianTimePast(int height) {
+        final int i = checkedIndex(height);
+        final int from = Math.max(0, i - 10);
+        final long[] window = new long[i - from + 1];
+        for (int j = from; j <= i; j++) {
+            window[j - from] = times[j] & 0xffffffffL;
+        }
+        Arrays.sort(window);
+        return window[window.length / 2];
+    }
+
+    @Nullable
+    public synchronized StoredBlock getChainHead() {
+        return size == 0 ? null : materialise(size - 1);
+    }
+
+    @Nullable
+    public synchronized StoredBlock getBlockAtHeight(int height) {
+        final int i = index(height);
+        return i < 0 ? null : materialise(i);
+    }
+
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) {
+        final int i = find(hash.getBytes());
+        return i < 0 ? null : materialise(i);
+    }
+
+    public synchronized byte[] getHeaderBytes(int height) {
+        return headerBytes(checkedIndex(height));
+    }
+
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    private StoredBlock materialise(int i) {
+        final BigInteger work = unsigned(chainWork[i * 2]).shiftLeft(64).or(unsigned(chainWork[i * 2 + 1]));
+        try {
+            return new StoredBlock(new Block(params, headerBytes(i)), work, baseHeight + i);
+        } catch (ProtocolException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static BigInteger unsigned(long value) {
+        final BigInteger result = BigInteger.valueOf(value & Long.MAX_VALUE);
+        return value < 0 ? result.setBit(63) : result;
+    }
+
+    private byte[] headerBytes(int i) {
+        final byte[] header = new byte[Block.HEADER_SIZE];
+        Utils.uint32ToByteArrayLE(versions[i] & 0xffffffffL, header, 0);
+        final byte[] prev = i == 0 ? toBytes(basePrevHash, 0) : toBytes(hashes, (i - 1) * 4);
+        System.arraycopy(Utils.reverseBytes(prev), 0, header, 4, 32);
+        System.arraycopy(Utils.reverseBytes(toBytes(merkleRoots, i * 4)), 0, header, 36, 32);
+        Utils.uint32ToByteArrayLE(times[i] & 0xffffffffL, header, 68);
+        Utils.uint32ToByteArrayLE(bits[i] & 0xffffffffL, header, 72);
+        Utils.uint32ToByteArrayLE(nonces[i] & 0xffffffffL, header, 76);
+        return header;
+    }
+
+    private int index(int height) {
+        final int i = height - baseHeight;
+        return size == 0 || i < 0 || i >= size ? -1 : i;
+    }
+
+    private int checkedIndex(int height) {
+        final int i = index(height);
+        checkArgument(i >= 0, "No header at height %s", height);
+        return i;
+    }
+
+    private boolean prevHashMatches(byte[] prevHash, int tip) {
+        final int offset = tip * 4;
+        for (int k = 0; k < 4; k++) {
+            if (hashes[offset + k] != readLong(prevHash, k * 8))
+                return false;
+        }
+        return true;
+    }
+
+    private void allocate(int capacity) {
+        versions = versions == null ? new int[capacity] : Arrays.copyOf(versions, capacity);
+        times = times == null ? new int[capacity] : Arrays.copyOf(times, capacity);
+        bits = bits == null ? new int[capacity] : Arrays.copyOf(bits, capacity);
+        nonces = nonces == null ? new int[capacity] : Arrays.copyOf(nonces, capacity);
+        merkleRoots = merkleRoots == null ? new long[capacity * 4] : Arrays.copyOf(merkleRoots, capacity * 4);
+        hashes = hashes == null ? new long[capacity * 4] : Arrays.copyOf(hashes, capacity * 4);
+        chainWork = chainWork == null ? new long[capacity * 2] : Arrays.copyOf(chainWork, capacity * 2);
+    }
+
+    private static int tableSizeFor(int headers) {
+        return Integer.highestOneBit(Math.max(headers, 8)) << 2;
+    }
+
+    private int slotOf(int i) {
+        return mix(hashes[i * 4 + 3]) & (hashTable.length - 1);
+    }
+
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private void insert(int i) {
+        final int mask = hashTable.length - 1;
+        int slot = slotOf(i);
+        while (hashTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        hashTable[slot] = i + 1;
+    }
+
+    private int find(byte[] hash) {
+        if (size == 0)
+            return -1;
+        final long last = readLong(hash, 24);
+        final int mask = hashTable.length - 1;
+        int slot = mix(last) & mask;
+        while (true) {
+            final int value = hashTable[slot];
+            if (value == 0)
+                return -1;
+            final int offset = (value - 1) * 4;
+            if (hashes[offset + 3] == last && hashes[offset] == readLong(hash, 0)
+                    && hashes[offset + 1] == readLong(hash, 8) && hashes[offset + 2] == readLong(hash, 16))
+                return value - 1;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Backward-shift deletion, so probe chains stay unbroken without tombstones.
+     */
+    private void delete(int i) {
+        final int mask = hashTable.length - 1;
+        int slot = slotOf(i);
+        while (hashTable[slot] != i + 1) {
+            slot = (slot + 1) & mask;
+        }
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (hashTable[next] != 0) {
+            final int home = slotOf(hashTable[next] - 1);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                hashTable[hole] = hashTable[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        hashTable[hole] = 0;
+    }
+
+    private void rehash(int tableSize) {
+        hashTable = new int[tableSize];
+        for (int i = 0; i < size; i++) {
+            insert(i);
+        }
+    }
+
+    private static void toLongs(byte[] bytes, long[] target, int offset) {
+        for (int k = 0; k < 4; k++) {
+            target[offset + k] = readLong(bytes, k * 8);
+        }
+    }
+
+    private static byte[] toBytes(long[] source, int offset) {
+        final byte[] bytes = new byte[32];
+        for (int k = 0; k < 4; k++) {
+            final long value = source[offset + k];
+            for (int b = 0; b < 8; b++) {
+                bytes[k * 8 + b] = (byte) (value >>> (56 - 8 * b));
+            }
+        }
+        return bytes;
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int b = 0; b < 8; b++) {
+            value = (value << 8) | (bytes[offset + b] & 0xffL);
+        }
+        return value;
+    }
+
+}
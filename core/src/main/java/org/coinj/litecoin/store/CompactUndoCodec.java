@@ -0,0 +1,186 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.bitcoinj.core.TransactionOutputChanges;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Compact form of a block's {@link TransactionOutputChanges}, deflated per block:</p>
+ * <ul>
+ *     <li>spent outputs in full, since disconnecting the block has to restore them: transaction hash, varint index
+ *     and the {@link OutputCompression} encoding;</li>
+ *     <li>created outputs grouped per transaction: hash, {@code varint(height * 2 + coinbase)} and output count
+ *     once, then per output a delta coded index, the compressed amount and the compressed script. They are kept
+ *     whole because reconnecting the block after a reorg puts them back into the store.</li>
+ * </ul>
+ */
+public final class CompactUndoCodec {
+
+    private static final int FORMAT = 2;
+
+    private CompactUndoCodec() {}
+
+    public static byte[] encode(TransactionOutputChanges changes) {
+        final ByteArrayOutputStream raw = new ByteArrayOutputStream(256);
+        raw.write(FORMAT);
+        OutputCompression.writeVarInt(raw, changes.txOutsSpent.size());
+        for (StoredTransactionOutput out : changes.txOutsSpent) {
+            raw.write(out.getHash().getBytes(), 0, 32);
+            OutputCompression.writeVarInt(raw, out.getIndex());
+            final byte[] encoded = OutputCompression.encode(out);
+            raw.write(encoded, 0, encoded.length);
+        }
+
+        final List<StoredTransactionOutput> created = changes.txOutsCreated;
+        final ByteArrayOutputStream groups = new ByteArrayOutputStream(created.size() * 4 + 16);
+        int groupCount = 0;
+        for (int start = 0; start < created.size(); ) {
+            final StoredTransactionOutput first = created.get(start);
+            int end = start + 1;
+            while (end < created.size() && sameTransaction(first, created.get(end))) {
+                end++;
+            }
+            groups.write(first.getHash().getBytes(), 0, 32);
+            OutputCompression.writeVarInt(groups, ((long) first.getHeight() << 1) | (first.isCoinbase() ? 1 : 0));
+            OutputCompression.writeVarInt(groups, end - start);
+            long previous = -1;
+            for (int i = start; i < end; i++) {
+                final long index = created.get(i).getIndex();
+                // ascending in practice; fall back to the absolute index otherwise
+                if (index > previous) {
+                    OutputCompression.writeVarInt(groups, (index - previous - 1) << 1);
+                } else {
+                    OutputCompression.writeVarInt(groups, (index << 1) | 1);
+                }
+                previous = index;
+                OutputCompression.writeVarInt(groups, OutputCompression.compressAmount(created.get(i).getValue().value));
+                OutputCompression.writeScript(groups, created.get(i).getScriptBytes());
+            }
+            groupCount++;
+            start = end;
+        }
+        OutputCompression.writeVarInt(raw, groupCount);
+        final byte[] groupBytes = groups.toByteArray();
+        raw.write(groupBytes, 0, groupBytes.length);
+
+        final byte[] input = raw.toByteArray();
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+            OutputCompression.writeVarInt(out, input.length);
+            final byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                final int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static boolean sameTransaction(StoredTransactionOutput a, StoredTransactionOutput b) {
+        return a.getHash().equals(b.getHash()) && a.getHeight() == b.getHeight() && a.isCoinbase() == b.isCoinbase();
+    }
+
+    public static TransactionOutputChanges decode(byte[] encoded) throws IOException {
+        return decode(encoded, 0, encoded.length);
+    }
+
+    public static TransactionOutputChanges decode(byte[] encoded, int offset, int length) throws IOException {
+        try {
+            final ByteBuffer header = ByteBuffer.wrap(encoded, offset, length);
+            final long rawLength = OutputCompression.readVarInt(header);
+            if (rawLength < 0 || rawLength > Integer.MAX_VALUE)
+                throw new IOException("Corrupt undo data");
+            final byte[] raw = new byte[(int) rawLength];
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(encoded, header.position(), offset + length - header.position());
+                int read = 0;
+                while (read < raw.length) {
+                    final int n = inflater.inflate(raw, read, raw.length - read);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput()))
+                        throw new IOException("Truncated undo data");
+                    read += n;
+                }
+            } finally {
+                inflater.end();
+            }
+
+            final ByteBuffer in = ByteBuffer.wrap(raw);
+            final int format = in.get();
+            if (format != FORMAT)
+                throw new IOException("Unknown undo format " + format);
+            final int spentCount = (int) OutputCompression.readVarInt(in);
+            final List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>(spentCount);
+            for (int i = 0; i < spentCount; i++) {
+                final Sha256Hash hash = readHash(in);
+                final long index = OutputCompression.readVarInt(in);
+                spent.add(OutputCompression.decode(hash, index, in));
+            }
+            final int groupCount = (int) OutputCompression.readVarInt(in);
+            final List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+            for (int g = 0; g < groupCount; g++) {
+                final Sha256Hash hash = readHash(in);
+                final long code = OutputCompression.readVarInt(in);
+                final int height = (int) (code >>> 1);
+                final boolean coinbase = (code & 1) != 0;
+                final int count = (int) OutputCompression.readVarInt(in);
+                long previous = -1;
+                for (int i = 0; i < count; i++) {
+                    final long delta = OutputCompression.readVarInt(in);
+                    final long index = (delta & 1) == 0 ? previous + 1 + (delta >>> 1) : delta >>> 1;
+                    final Coin value = Coin.valueOf(OutputCompression.decompressAmount(OutputCompression.readVarInt(in)));
+                    created.add(new StoredTransactionOutput(hash, index, value, height, coinbase,
+                            OutputCompression.readScript(in)));
+                    previous = index;
+                }
+            }
+            return new TransactionOutputChanges(created, spent);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt undo data", e);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupt undo data", e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt undo data", e);
+        }
+    }
+
+    private static Sha256Hash readHash(ByteBuffer in) {
+        final byte[] hash = new byte[32];
+        in.get(hash);
+        return new Sha256Hash(hash);
+    }
+
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+
+/**
+ * Height to hash mapping of the best header chain.
+ */
+public interface HeightIndex {
+
+    /**
+     * @return hash of the best chain block at the given height, or null if no such header is known yet.
+     */
+    @Nullable
+    Sha256Hash getHashAtHeight(int height);
+
+    int getBestHeight();
+
+}
@@ -0,0 +1,405 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Memory mapped SPV block store that keeps every header instead of a ring of the most recent ones, which at
+ * Litecoin's 2.5 minute block rate covers too little history for deep reorgs and locators.<br/>
+ * A single file holds three fixed-size sections after a small prologue: an append-only array of 128 byte records
+ * (block hash followed by the compact {@link StoredBlock} form: chain work, height, header), an open-addressing hash
+ * table of record numbers, and a best-chain height index of record numbers. All three are persistent, so opening
+ * an existing store reads the prologue only. Record slots beyond those written stay sparse on disk.
+ */
+public class LitecoinSPVBlockStore implements BlockStore, HeightIndex {
+
+    /** Four million headers: the whole Litecoin chain with several years of headroom. */
+    public static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+
+    static final int RECORD_SIZE = 32 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    private static final int HASH_SLOT_SIZE = 8;
+    private static final int HEIGHT_SLOT_SIZE = 4;
+
+    private static final int PROLOGUE_SIZE = 64;
+    private static final byte[] MAGIC = {'L', 'S', 'P', 'V'};
+    private static final int FORMAT_VERSION = 1;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int HASH_SLOTS_OFFSET = 12;
+    private static final int RECORD_COUNT_OFFSET = 16;
+    private static final int HEAD_RECORD_OFFSET = 20;
+    private static final int BEST_HEIGHT_OFFSET = 24;
+
+    private final NetworkParameters params;
+    private final File file;
+    private RandomAccessFile raf;
+    private FileLock fileLock;
+    private MappedByteBuffer buffer;
+
+    private final int capacity;
+    private final int hashSlots;
+    private final int hashTableOffset;
+    private final int heightIndexOffset;
+    private int recordCount;
+    private int bestHeight;
+
+    public LitecoinSPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity maximum number of headers and maximum height + 1. Ignored when the file already exists.
+     */
+    public LitecoinSPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.file = checkNotNull(file);
+        checkArgument(capacity > 0, "Capacity must be positive");
+        try {
+            final boolean exists = file.exists() && file.length() > 0;
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                fileLock = raf.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                throw new BlockStoreException("Store file is already open in this process: " + file);
+            }
+            if (fileLock == null)
+                throw new BlockStoreException("Store file is already locked by another process: " + file);
+
+            if (exists) {
+                final ByteBuffer prologue = ByteBuffer.allocate(PROLOGUE_SIZE);
+                raf.getChannel().read(prologue, 0);
+                final byte[] magic = new byte[MAGIC.length];
+                prologue.position(0);
+                prologue.get(magic);
+                if (!Arrays.equals(MAGIC, magic) || prologue.getInt(4) != FORMAT_VERSION)
+                    throw new BlockStoreException("Not a Litecoin SPV block store: " + file);
+                this.capacity = prologue.getInt(CAPACITY_OFFSET);
+                this.hashSlots = prologue.getInt(HASH_SLOTS_OFFSET);
+            } else {
+                this.capacity = capacity;
+                this.hashSlots = Integer.highestOneBit(capacity) << 2;
+            }
+            hashTableOffset = PROLOGUE_SIZE + this.capacity * RECORD_SIZE;
+            heightIndexOffset = hashTableOffset + hashSlots * HASH_SLOT_SIZE;
+            final long fileSize = (long) heightIndexOffset + (long) this.capacity * HEIGHT_SLOT_SIZE;
+            if (hashSlots <= 0 || fileSize > Integer.MAX_VALUE)
+                throw new BlockStoreException("Store capacity too large to map: " + this.capacity);
+            if (exists && raf.length() != fileSize)
+                throw new BlockStoreException("Store file has unexpected size " + raf.length() + ", expected " + fileSize);
+            if (!exists)
+                raf.setLength(fileSize);
+
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            if (exists) {
+                recordCount = buffer.getInt(RECORD_COUNT_OFFSET);
+                bestHeight = buffer.getInt(BEST_HEIGHT_OFFSET);
+            } else {
+                initNewStore();
+            }
+        } catch (IOException e) {
+            closeQuietly();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeQuietly();
+            throw e;
+        } catch (VerificationException e) {
+            closeQuietly();
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void initNewStore() throws BlockStoreException, VerificationException {
+        buffer.position(0);
+        buffer.put(MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(HASH_SLOTS_OFFSET, hashSlots);
+        recordCount = 0;
+        bestHeight = -1;
+        buffer.putInt(RECORD_COUNT_OFFSET, 0);
+        buffer.putInt(HEAD_RECORD_OFFSET, 0);
+        buffer.putInt(BEST_HEIGHT_OFFSET, -1);
+
+        final Block genesis = params.getGenesisBlock().cloneAsHeader();
+        final StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+        put(storedGenesis);
+        setChainHead(storedGenesis);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        final byte[] hash = block.getHeader().getHash().getBytes();
+        final int slot = findSlot(hash);
+        final int existing = buffer.getInt(hashTableOffset + slot * HASH_SLOT_SIZE);
+        final int record;
+        if (existing != 0) {
+            record = existing - 1;
+        } else {
+            if (recordCount >= capacity)
+                throw new BlockStoreException("Store is full: " + capacity + " headers");
+            record = recordCount;
+        }
+        if (block.getHeight() >= capacity)
+            throw new BlockStoreException("Height " + block.getHeight() + " exceeds store capacity " + capacity);
+
+        final ByteBuffer slice = recordSlice(record);
+        slice.put(hash);
+        block.serializeCompact(slice);
+
+        if (existing == 0) {
+            final int slotOffset = hashTableOffset + slot * HASH_SLOT_SIZE;
+            buffer.putInt(slotOffset + 4, fingerprint(hash));
+            buffer.putInt(slotOffset, record + 1);
+            recordCount++;
+            buffer.putInt(RECORD_COUNT_OFFSET, recordCount);
+        }
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        final int record = findRecord(hash.getBytes());
+        return record < 0 ? null : readRecord(record);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        final int head = buffer.getInt(HEAD_RECORD_OFFSET);
+        if (head == 0)
+            throw new BlockStoreException("Store has no chain head");
+        return readRecord(head - 1);
+    }
+
+    /**
+     * Moves the head and rewrites the height index back to the fork point with the previous best chain.
+     */
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        final byte[] hash = chainHead.getHeader().getHash().getBytes();
+        int record = findRecord(hash);
+        if (record < 0)
+            throw new BlockStoreException("Chain head was not put into the store: " + chainHead);
+
+        final int height = chainHead.getHeight();
+        for (int h = bestHeight; h > height; h--) {
+            setHeightSlot(h, -1);
+        }
+        int h = height;
+        while (h >= 0 && heightSlot(h) != record) {
+            setHeightSlot(h, record);
+            record = findRecord(prevHashOf(record));
+            if (record < 0)
+                break;
+            h--;
+        }
+
+        bestHeight = height;
+        buffer.putInt(BEST_HEIGHT_OFFSET, height);
+        buffer.putInt(HEAD_RECORD_OFFSET, findRecord(hash) + 1);
+    }
+
+    /**
+     * @return best chain block at the given height, or null if the store has no header there (above the head, or
+     * below a checkpoint the store was started from).
+     */
+    @Nullable
+    public synchronized StoredBlock getBlockAtHeight(int height) throws BlockStoreException {
+        checkOpen();
+        if (height < 0 || height > bestHeight)
+            return null;
+        final int record = heightSlot(height);
+        return record < 0 ? null : readRecord(record);
+    }
+
+    @Override
+    @Nullable
+    public synchronized Sha256Hash getHashAtHeight(int height) {
+        if (buffer == null || height < 0 || height > bestHeight)
+            return null;
+        final int record = heightSlot(height);
+        if (record < 0)
+            return null;
+        final byte[] hash = new byte[32];
+        final ByteBuffer slice = recordSlice(record);
+        slice.get(hash);
+        return new Sha256Hash(hash);
+    }
+
+    @Override
+    public synchronized int getBestHeight() {
+        return bestHeight;
+    }
+
+    public synchronized int size() {
+        return recordCount;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (buffer == null)
+            return;
+        try {
+            buffer.force();
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        buffer = null;
+        try {
+            if (fileLock != null)
+                fileLock.release();
+        } catch (IOException ignore) {
+        }
+        try {
+            if (raf != null)
+                raf.close();
+        } catch (IOException ignore) {
+        }
+        fileLock = null;
+        raf = null;
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if (buffer == null)
+            throw new BlockStoreException("Store is closed");
+    }
+
+    private ByteBuffer recordSlice(int record) {
+        final ByteBuffer slice = buffer.duplicate();
+        final int offset = PROLOGUE_SIZE + record * RECORD_SIZE;
+        slice.limit(offset + RECORD_SIZE);
+        slice.position(offset);
+        return slice;
+    }
+
+    private StoredBlock readRecord(int record) throws BlockStoreException {
+        final ByteBuffer slice = recordSlice(record);
+        slice.position(slice.position() + 32);
+        try {
+            return StoredBlock.deserializeCompact(params, slice);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Previous block hash from the stored header, converted from wire order to {@link Sha256Hash} order.
+     */
+    private byte[] prevHashOf(int record) {
+        final int headerOffset = PROLOGUE_SIZE + record * RECORD_SIZE + 32 + StoredBlock.CHAIN_WORK_BYTES + 4;
+        final byte[] prev = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            prev[i] = buffer.get(headerOffset + 4 + 31 - i);
+        }
+        return prev;
+    }
+
+    private int heightSlot(int height) {
+        return buffer.getInt(heightIndexOffset + height * HEIGHT_SLOT_SIZE) - 1;
+    }
+
+    private void setHeightSlot(int height, int record) {
+        buffer.putInt(heightIndexOffset + height * HEIGHT_SLOT_SIZE, record + 1);
+    }
+
+    private int findRecord(byte[] hash) {
+        final int value = buffer.getInt(hashTableOffset + findSlot(hash) * HASH_SLOT_SIZE);
+        return value - 1;
+    }
+
+    /**
+     * Linear probe for the hash; returns its slot or the first empty slot. Entries are never deleted.
+     */
+    private int findSlot(byte[] hash) {
+        final int mask = hashSlots - 1;
+        final int fingerprint = fingerprint(hash);
+        int slot = (int) (slotKey(hash) & mask);
+        while (true) {
+            final int offset = hashTableOffset + slot * HASH_SLOT_SIZE;
+            final int value = buffer.getInt(offset);
+            if (value == 0)
+                return slot;
+            if (buffer.getInt(offset + 4) == fingerprint && recordHashEquals(value - 1, hash))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean recordHashEquals(int record, byte[] hash) {
+        final int offset = PROLOGUE_SIZE + record * RECORD_SIZE;
+        for (int i = 0; i < 32; i++) {
+            if (buffer.get(offset + i) != hash[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static long slotKey(byte[] hash) {
+        long key = 0;
+        for (int i = 24; i < 32; i++) {
+            key = (key << 8) | (hash[i] & 0xffL);
+        }
+        key ^= key >>> 29;
+        return key & Long.MAX_VALUE;
+    }
+
+    private static int fingerprint(byte[] hash) {
+        return ((hash[20] & 0xff) << 24) | ((hash[21] & 0xff) << 16) | ((hash[22] & 0xff) << 8) | (hash[23] & 0xff);
+    }
+
+}
@@ -0,0 +1,575 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>{@link FullPrunedBlockStore} on an embedded {@link LsmTree}, so full validation writes each block's UTXO changes
+ * as one sequential log append instead of a round of SQL statements. Keys are prefixed by record kind:</p>
+ * <ul>
+ *     <li>{@code 'o' | tx hash | index (big endian)}: unspent output as value, height, coinbase flag, script;</li>
+ *     <li>{@code 'h' | block hash}: compact {@link StoredBlock} and whether it was ever undoable;</li>
+ *     <li>{@code 'u' | block hash}: undo data, either {@link CompactUndoCodec} output changes or the block's
+ *     transactions;</li>
+ *     <li>{@code 'U' | height (big endian) | block hash}: empty, orders undo data by height for pruning;</li>
+ *     <li>{@code 's' | name}: chain heads and the pruning watermark.</li>
+ * </ul>
+ * <p>Database batches map to tree batches. Undo data more than {@code fullStoreDepth} blocks below the verified head
+ * pruned by a background thread once the head moves, in small batches of its own between the chain's batches, so
+ * connecting a block never waits on it.</p>
+ */
+public class LsmFullPrunedBlockStore implements FullPrunedBlockStore, UnspentOutputSource {
+
+    private static final byte OUTPUT = 'o';
+    private static final byte HEADER = 'h';
+    private static final byte UNDO = 'u';
+    private static final byte UNDO_BY_HEIGHT = 'U';
+    private static final byte[] CHAIN_HEAD_KEY = {'s', 'c', 'h', 'a', 'i', 'n'};
+    private static final byte[] VERIFIED_CHAIN_HEAD_KEY = {'s', 'v', 'e', 'r', 'i', 'f', 'i', 'e', 'd'};
+    private static final byte[] PRUNED_BELOW_KEY = {'s', 'p', 'r', 'u', 'n', 'e', 'd'};
+
+    private static final byte UNDO_TRANSACTIONS = 0;
+    private static final byte UNDO_COMPACT = 1;
+
+    private static final int PRUNE_STEP = 256;
+    private static final int POINT_LOOKUP_OUTPUTS = 16;
+
+    private static final Logger log = LoggerFactory.getLogger(LsmFullPrunedBlockStore.class);
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+    private final int memtableBytes;
+    private final boolean syncOnCommit;
+
+    private LsmTree tree;
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+    private int prunedBelow;
+    private int pruneTarget;
+    private boolean pruning;
+    private boolean closed;
+    private final ExecutorService pruner;
+
+    public LsmFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth) throws BlockStoreException {
+        this(params, directory, fullStoreDepth, LsmTree.DEFAULT_MEMTABLE_BYTES, false);
+    }
+
+    /**
+     * @param fullStoreDepth number of blocks below the verified head to keep undo data for.
+     * @param syncOnCommit fsync every committed batch; without it a power loss can lose the latest blocks, which are
+     *                     then downloaded and connected again.
+     */
+    public LsmFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth, int memtableBytes,
+                                   boolean syncOnCommit) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        checkArgument(fullStoreDepth > 0, "Full store depth must be positive");
+        this.fullStoreDepth = fullStoreDepth;
+        this.memtableBytes = memtableBytes;
+        this.syncOnCommit = syncOnCommit;
+        pruner = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Undo pruning " + directory.getName()).build());
+        open();
+    }
+
+    private void open() throws BlockStoreException {
+        try {
+            tree = new LsmTree(directory, memtableBytes, syncOnCommit);
+            final byte[] head = tree.get(CHAIN_HEAD_KEY);
+            if (head == null) {
+                createNewStore();
+            } else {
+                chainHead = get(new Sha256Hash(head));
+                verifiedChainHead = get(new Sha256Hash(checkNotNull(tree.get(VERIFIED_CHAIN_HEAD_KEY))));
+                final byte[] pruned = tree.get(PRUNED_BELOW_KEY);
+                prunedBelow = pruned == null ? 0 : (int) Utils.readUint32BE(pruned, 0);
+                pruneTarget = prunedBelow;
+                if (chainHead == null || verifiedChainHead == null)
+                    throw new BlockStoreException("Corrupt store, chain heads are missing: " + directory);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            final Block genesis = params.getGenesisBlock();
+            final StoredBlock storedGenesisHeader = new StoredBlock(genesis.cloneAsHeader(), genesis.getWork(), 0);
+            // The coinbase in the genesis block is not spendable, as in the reference client.
+            final List<Transaction> genesisTransactions = new LinkedList<Transaction>();
+            final StoredUndoableBlock storedGenesis = new StoredUndoableBlock(genesis.getHash(), genesisTransactions);
+            prunedBelow = 0;
+            pruneTarget = 0;
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    /**
+     * Deletes everything and starts over from genesis.
+     */
+    public synchronized void resetStore() throws BlockStoreException {
+        try {
+            tree.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete())
+                    throw new BlockStoreException("Couldn't delete " + file);
+            }
+        }
+        open();
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock) throws BlockStoreException {
+        try {
+            final byte[] key = hashKey(HEADER, storedBlock.getHeader().getHash());
+            final byte[] existing = tree.get(key);
+            final boolean wasUndoable = existing != null && existing[StoredBlock.COMPACT_SERIALIZED_SIZE] != 0;
+            tree.put(key, encodeHeader(storedBlock, wasUndoable));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        final Sha256Hash hash = storedBlock.getHeader().getHash();
+        try {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            final byte[] height = new byte[4];
+            Utils.uint32ToByteArrayBE(storedBlock.getHeight(), height, 0);
+            bos.write(height);
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(UNDO_COMPACT);
+                bos.write(CompactUndoCodec.encode(undoableBlock.getTxOutChanges()));
+            } else {
+                bos.write(UNDO_TRANSACTIONS);
+                final List<Transaction> transactions = undoableBlock.getTransactions();
+                final byte[] count = new byte[4];
+                Utils.uint32ToByteArrayLE(transactions.size(), count, 0);
+                bos.write(count);
+                for (Transaction tx : transactions) {
+                    tx.bitcoinSerialize(bos);
+                }
+            }
+            tree.put(hashKey(HEADER, hash), encodeHeader(storedBlock, true));
+            tree.put(hashKey(UNDO, hash), bos.toByteArray());
+            tree.put(undoByHeightKey(storedBlock.getHeight(), hash), new byte[0]);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        // Optimize for chain head
+        if (chainHead != null && chainHead.getHeader().getHash().equals(hash))
+            return chainHead;
+        if (verifiedChainHead != null && verifiedChainHead.getHeader().getHash().equals(hash))
+            return verifiedChainHead;
+        try {
+            final byte[] value = tree.get(hashKey(HEADER, hash));
+            if (value == null || (wasUndoableOnly && value[StoredBlock.COMPACT_SERIALIZED_SIZE] == 0))
+                return null;
+            return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(value));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        try {
+            final byte[] value = tree.get(hashKey(UNDO, hash));
+            if (value == null)
+                return null;
+            if (value[4] == UNDO_COMPACT)
+                return new StoredUndoableBlock(hash, CompactUndoCodec.decode(value, 5, value.length - 5));
+            final int count = (int) Utils.readUint32(value, 5);
+            int offset = 9;
+            final List<Transaction> transactions = new LinkedList<Transaction>();
+            for (int i = 0; i < count; i++) {
+                final Transaction tx = new Transaction(params, value, offset);
+                transactions.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactions);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        try {
+            tree.put(CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        this.chainHead = chainHead;
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        try {
+            tree.put(VERIFIED_CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        this.verifiedChainHead = chainHead;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        pruneTarget = Math.max(pruneTarget, chainHead.getHeight() - fullStoreDepth);
+        schedulePruning();
+    }
+
+    private void schedulePruning() {
+        // the chain's batch may still be aborted, so wait for it to end; commit and abort reschedule
+        if (pruning || closed || pruneTarget <= prunedBelow || tree.isInBatch())
+            return;
+        pruning = true;
+        pruner.execute(new Runnable() {
+            @Override
+            public void run() {
+                pruneWhileDue();
+            }
+        });
+    }
+
+    private void pruneWhileDue() {
+        while (true) {
+            synchronized (this) {
+                if (closed || pruneTarget <= prunedBelow || tree.isInBatch()) {
+                    pruning = false;
+                    notifyAll();
+                    return;
+                }
+                try {
+                    pruneStep(pruneTarget);
+                } catch (IOException e) {
+                    tree.abortBatch();
+                    log.error("Pruning undo data of " + directory + " failed, retrying with the next verified head", e);
+                    reloadPrunedBelow();
+                    pruning = false;
+                    notifyAll();
+                    return;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Removes undo data of up to {@link #PRUNE_STEP} blocks below the given height in a batch of its own.
+     */
+    private void pruneStep(int height) throws IOException {
+        tree.beginBatch();
+        final byte[] to = undoByHeightKey(height, null);
+        int newPrunedBelow = height;
+        int removed = 0;
+        final LsmTree.Range range = tree.range(undoByHeightKey(prunedBelow, null), to);
+        try {
+            while (range.next()) {
+                final byte[] key = range.getKey();
+                if (removed == PRUNE_STEP) {
+                    newPrunedBelow = (int) Utils.readUint32BE(key, 1);
+                    break;
+                }
+                final byte[] hash = new byte[32];
+                System.arraycopy(key, 5, hash, 0, 32);
+                tree.delete(hashKey(UNDO, new Sha256Hash(hash)));
+                tree.delete(key);
+                removed++;
+            }
+        } finally {
+            range.close();
+        }
+        final byte[] watermark = new byte[4];
+        Utils.uint32ToByteArrayBE(newPrunedBelow, watermark, 0);
+        tree.put(PRUNED_BELOW_KEY, watermark);
+        tree.commitBatch();
+        prunedBelow = newPrunedBelow;
+    }
+
+    private void reloadPrunedBelow() {
+        try {
+            final byte[] pruned = tree.get(PRUNED_BELOW_KEY);
+            prunedBelow = pruned == null ? 0 : (int) Utils.readUint32BE(pruned, 0);
+        } catch (IOException e) {
+            log.error("Couldn't read pruning watermark of " + directory, e);
+        }
+    }
+
+    /**
+     * Blocks until undo data below the last verified head's reorg depth is pruned.
+     */
+    public synchronized void awaitPruning() throws InterruptedException {
+        schedulePruning();
+        while (pruning) {
+            wait();
+        }
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        try {
+            final byte[] value = tree.get(outputKey(hash, index));
+            return value == null ? null : decodeOutput(hash, index, value);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static StoredTransactionOutput decodeOutput(Sha256Hash hash, long index, byte[] value) {
+        final long amount = Utils.readInt64(value, 0);
+        final int height = (int) Utils.readUint32(value, 8);
+        final boolean coinbase = value[12] != 0;
+        final byte[] script = new byte[value.length - 13];
+        System.arraycopy(value, 13, script, 0, script.length);
+        return new StoredTransactionOutput(hash, index, Coin.valueOf(amount), height, coinbase, script);
+    }
+
+    /**
+     * Walks the output keys in order with one merged range over the tree.
+     */
+    @Override
+    public synchronized void visitUnspentOutputs(Visitor visitor) throws BlockStoreException, IOException {
+        final LsmTree.Range range = tree.range(new byte[] {OUTPUT}, new byte[] {OUTPUT + 1});
+        try {
+            while (range.next()) {
+                final byte[] key = range.getKey();
+                final byte[] hash = new byte[32];
+                System.arraycopy(key, 1, hash, 0, 32);
+                visitor.visit(decodeOutput(new Sha256Hash(hash), Utils.readUint32BE(key, 33), range.getValue()));
+            }
+        } finally {
+            range.close();
+        }
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        final byte[] script = out.getScriptBytes();
+        final byte[] value = new byte[13 + script.length];
+        Utils.uint64ToByteArrayLE(out.getValue().value, value, 0);
+        Utils.uint32ToByteArrayLE(out.getHeight(), value, 8);
+        value[12] = (byte) (out.isCoinbase() ? 1 : 0);
+        System.arraycopy(script, 0, value, 13, script.length);
+        try {
+            tree.put(outputKey(out.getHash(), out.getIndex()), value);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        final byte[] key = outputKey(out.getHash(), out.getIndex());
+        try {
+            if (tree.get(key) == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from LsmFullPrunedBlockStore that it didn't have!");
+            tree.delete(key);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        if (numOutputs <= 0)
+            return false;
+        try {
+            // Run for every transaction (BIP 30): point lookups mostly stop at the tables' Bloom filters.
+            if (numOutputs <= POINT_LOOKUP_OUTPUTS) {
+                for (int i = 0; i < numOutputs; i++) {
+                    if (tree.get(outputKey(hash, i)) != null)
+                        return true;
+                }
+                return false;
+            }
+            return tree.firstKeyInRange(outputKey(hash, 0), outputKey(hash, numOutputs)) != null;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        tree.beginBatch();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        try {
+            tree.commitBatch();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        schedulePruning();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        tree.abortBatch();
+        // cached heads may have moved inside the aborted batch
+        try {
+            final byte[] head = tree.get(CHAIN_HEAD_KEY);
+            final byte[] verified = tree.get(VERIFIED_CHAIN_HEAD_KEY);
+            final byte[] pruned = tree.get(PRUNED_BELOW_KEY);
+            chainHead = null;
+            verifiedChainHead = null;
+            chainHead = get(new Sha256Hash(checkNotNull(head)));
+            verifiedChainHead = get(new Sha256Hash(checkNotNull(verified)));
+            prunedBelow = pruned == null ? 0 : (int) Utils.readUint32BE(pruned, 0);
+            // don't prune for a head that was rolled back
+            pruneTarget = Math.max(prunedBelow, verifiedChainHead.getHeight() - fullStoreDepth);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        schedulePruning();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        synchronized (this) {
+            closed = true;
+        }
+        pruner.shutdown();
+        try {
+            pruner.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                tree.close();
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+    }
+
+    private static byte[] encodeHeader(StoredBlock block, boolean wasUndoable) {
+        final ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE + 1);
+        block.serializeCompact(buffer);
+        buffer.put((byte) (wasUndoable ? 1 : 0));
+        return buffer.array();
+    }
+
+    private static byte[] hashKey(byte kind, Sha256Hash hash) {
+        final byte[] key = new byte[33];
+        key[0] = kind;
+        System.arraycopy(hash.getBytes(), 0, key, 1, 32);
+        return key;
+    }
+
+    private static byte[] outputKey(Sha256Hash hash, long index) {
+        final byte[] key = new byte[37];
+        key[0] = OUTPUT;
+        System.arraycopy(hash.getBytes(), 0, key, 1, 32);
+        Utils.uint32ToByteArrayBE(index, key, 33);
+        return key;
+    }
+
+    private static byte[] undoByHeightKey(int height, @Nullable Sha256Hash hash) {
+        final byte[] key = new byte[hash == null ? 5 : 37];
+        key[0] = UNDO_BY_HEIGHT;
+        Utils.uint32ToByteArrayBE(height, key, 1);
+        if (hash != null)
+            System.arraycopy(hash.getBytes(), 0, key, 5, 32);
+        return key;
+    }
+
+}
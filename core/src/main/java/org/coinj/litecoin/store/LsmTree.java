@@ -0,0 +1,691 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.coinj.litecoin.wallet.DeltaLog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Embedded log-structured merge tree mapping byte[] keys to byte[] values. Writes go to a {@link DeltaLog} and a
+ * sorted in-memory table; a full memtable is written out as an immutable {@link SSTable} with a Bloom filter. A
+ * background thread merges the newest {@link #FANOUT} tables of equal tier into one of the next tier, so a key is
+ * rewritten about log4(n) times over its life and lookups check a logarithmic number of tables, most of them
+ * skipped by their filter. Deletions are tombstones until a merge reaches the oldest table.</p>
+ *
+ * <p>Changes can be grouped in a batch that is logged and applied at once on {@link #commitBatch()} or dropped on
+ * {@link #abortBatch()}; reads see uncommitted batch writes. Commits are fsynced only with {@code syncOnCommit};
+ * otherwise they survive a process crash but not a power loss. Keys and values handed in must not be modified
+ * afterwards.</p>
+ */
+public class LsmTree {
+
+    private static final Logger log = LoggerFactory.getLogger(LsmTree.class);
+
+    public static final int DEFAULT_MEMTABLE_BYTES = 32 * 1024 * 1024;
+    static final int FANOUT = 4;
+    private static final int MAX_TABLES = 32;
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int MANIFEST_MAGIC = 0x4c534d46;  // "LSMF"
+    private static final String MANIFEST = "MANIFEST";
+    private static final String LOG = "LOG";
+    private static final String TABLE_SUFFIX = ".sst";
+
+    private final File directory;
+    private final int memtableBytes;
+    private final boolean syncOnCommit;
+    private final DeltaLog wal;
+    private final ExecutorService compactor;
+
+    private TreeMap<byte[], byte[]> memtable = new TreeMap<byte[], byte[]>(SSTable.KEY_ORDER);
+    private long memtableSize;
+    @Nullable
+    private TreeMap<byte[], byte[]> batch;
+    // oldest first, replaced on change and never mutated
+    private List<SSTable> tables = Collections.emptyList();
+    private long nextFileNumber = 1;
+    private boolean compacting;
+    // merged away while ranges were open
+    private final List<SSTable> retired = new ArrayList<SSTable>();
+    private int openRanges;
+    private boolean closed;
+    private long compactions;
+
+    public LsmTree(File directory) throws IOException {
+        this(directory, DEFAULT_MEMTABLE_BYTES, false);
+    }
+
+    public LsmTree(File directory, int memtableBytes, boolean syncOnCommit) throws IOException {
+        this.directory = checkNotNull(directory);
+        checkArgument(memtableBytes > 0, "Memtable size must be positive");
+        this.memtableBytes = memtableBytes;
+        this.syncOnCommit = syncOnCommit;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't create " + directory);
+
+        readManifest();
+        deleteStrayFiles();
+        wal = new DeltaLog(new File(directory, LOG));
+        wal.replay(new DeltaLog.Visitor() {
+            @Override
+            public void onRecord(byte[] payload) throws IOException {
+                apply(decode(payload));
+            }
+        });
+        compactor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("LsmTree compaction " + directory.getName()).build());
+        synchronized (this) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * @return value of the key, or null if absent or deleted.
+     */
+    @Nullable
+    public synchronized byte[] get(byte[] key) throws IOException {
+        checkOpen();
+        final byte[] value = lookup(key);
+        return value == SSTable.TOMBSTONE ? null : value;
+    }
+
+    public synchronized void put(byte[] key, byte[] value) throws IOException {
+        checkNotNull(value);
+        change(key, value);
+    }
+
+    public synchronized void delete(byte[] key) throws IOException {
+        change(key, SSTable.TOMBSTONE);
+    }
+
+    /**
+     * Starts a batch, or keeps adding to the open one: block chains begin a batch per connected block and commit
+     * once when the head moves.
+     */
+    public synchronized void beginBatch() {
+        checkOpen();
+        if (batch == null)
+            batch = new TreeMap<byte[], byte[]>(SSTable.KEY_ORDER);
+    }
+
+    /**
+     * Logs and applies the open batch; does nothing without one.
+     */
+    public synchronized void commitBatch() throws IOException {
+        checkOpen();
+        if (batch == null)
+            return;
+        final TreeMap<byte[], byte[]> changes = batch;
+        batch = null;
+        if (!changes.isEmpty())
+            write(changes);
+    }
+
+    public synchronized void abortBatch() {
+        batch = null;
+    }
+
+    public synchronized boolean isInBatch() {
+        return batch != null;
+    }
+
+    /**
+     * @return smallest live key in {@code [from, to)}, or null.
+     */
+    @Nullable
+    public byte[] firstKeyInRange(byte[] from, byte[] to) throws IOException {
+        final Range range = range(from, to);
+        try {
+            return range.next() ? range.getKey() : null;
+        } finally {
+            range.close();
+        }
+    }
+
+    /**
+     * Live entries in {@code [from, to)} in key order, as of this call: later changes, including ones made while
+     * iterating, aren't seen. Must be closed, which lets merged tables it still reads from be deleted.
+     */
+    public synchronized Range range(byte[] from, byte[] to) throws IOException {
+        checkOpen();
+        final List<Source> sources = new ArrayList<Source>();
+        for (SSTable table : tables) {
+            if (table.overlaps(from, to))
+                sources.add(new TableSource(table.seek(from)));
+        }
+        sources.add(new MapSource(memtable.subMap(from, to)));
+        if (batch != null)
+            sources.add(new MapSource(batch.subMap(from, to)));
+        openRanges++;
+        return new Range(sources, to);
+    }
+
+    /**
+     * Merged view over the batch, memtable and tables, newest value winning, tombstones skipped.
+     */
+    public final class Range implements Closeable {
+        // oldest first, like tables
+        private final List<Source> sources;
+        private final byte[] to;
+        private byte[] key;
+        private byte[] value;
+        private boolean closed;
+
+        private Range(List<Source> sources, byte[] to) throws IOException {
+            this.sources = sources;
+            this.to = to;
+            for (Source source : sources) {
+                source.next();
+            }
+        }
+
+        public boolean next() throws IOException {
+            checkState(!closed, "Range is closed");
+            while (true) {
+                int newest = -1;
+                for (int i = 0; i < sources.size(); i++) {
+                    final Source source = sources.get(i);
+                    if (source.key == null)
+                        continue;
+                    if (newest < 0 || SSTable.KEY_ORDER.compare(source.key, sources.get(newest).key) <= 0)
+                        newest = i;
+                }
+                if (newest < 0 || SSTable.KEY_ORDER.compare(sources.get(newest).key, to) >= 0) {
+                    key = null;
+                    value = null;
+                    return false;
+                }
+                key = sources.get(newest).key;
+                value = sources.get(newest).value;
+                for (Source source : sources) {
+                    if (source.key != null && SSTable.KEY_ORDER.compare(source.key, key) == 0)
+                        source.next();
+                }
+                if (value != SSTable.TOMBSTONE)
+                    return true;
+            }
+        }
+
+        public byte[] getKey() {
+            return key;
+        }
+
+        public byte[] getValue() {
+            return value;
+        }
+
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            rangeClosed();
+        }
+    }
+
+    private abstract static class Source {
+        byte[] key;
+        byte[] value;
+
+        abstract void next() throws IOException;
+    }
+
+    private static final class TableSource extends Source {
+        private final SSTable.Cursor cursor;
+
+        private TableSource(SSTable.Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        void next() throws IOException {
+            cursor.next();
+            key = cursor.key;
+            value = cursor.value;
+        }
+    }
+
+    private static final class MapSource extends Source {
+        private final Iterator<Map.Entry<byte[], byte[]>> entries;
+
+        // The map keeps changing after the range is taken, so its entries are copied up front.
+        private MapSource(SortedMap<byte[], byte[]> map) {
+            this.entries = new ArrayList<Map.Entry<byte[], byte[]>>(map.entrySet()).iterator();
+        }
+
+        @Override
+        void next() {
+            if (entries.hasNext()) {
+                final Map.Entry<byte[], byte[]> entry = entries.next();
+                key = entry.getKey();
+                value = entry.getValue();
+            } else {
+                key = null;
+                value = null;
+            }
+        }
+    }
+
+    private synchronized void rangeClosed() {
+        if (--openRanges == 0)
+            deleteRetired();
+    }
+
+    /**
+     * Closes and deletes merged tables once no range reads from them any more.
+     */
+    private void deleteRetired() {
+        for (SSTable table : retired) {
+            try {
+                table.close();
+            } catch (IOException e) {
+                log.warn("Couldn't close merged table " + table.getFile(), e);
+            }
+            if (!table.getFile().delete())
+                log.warn("Couldn't delete merged table {}", table.getFile());
+        }
+        retired.clear();
+    }
+
+    /**
+     * Writes the memtable out as a table and empties the log.
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        flushMemtable();
+    }
+
+    /**
+     * Blocks until no merge is running or due.
+     */
+    public synchronized void awaitCompaction() throws InterruptedException {
+        while (compacting) {
+            wait();
+        }
+    }
+
+    public synchronized int getTableCount() {
+        return tables.size();
+    }
+
+    public synchronized long getCompactionCount() {
+        return compactions;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            batch = null;
+            flushMemtable();
+            wal.close();
+            for (SSTable table : tables) {
+                table.close();
+            }
+            deleteRetired();
+        }
+    }
+
+    private void checkOpen() {
+        checkState(!closed, "Tree is closed");
+    }
+
+    @Nullable
+    private byte[] lookup(byte[] key) throws IOException {
+        byte[] value;
+        if (batch != null && (value = batch.get(key)) != null)
+            return value;
+        if ((value = memtable.get(key)) != null)
+            return value;
+        for (int i = tables.size() - 1; i >= 0; i--) {
+            if ((value = tables.get(i).get(key)) != null)
+                return value;
+        }
+        return null;
+    }
+
+    private void change(byte[] key, byte[] value) throws IOException {
+        checkOpen();
+        checkNotNull(key);
+        if (batch != null) {
+            batch.put(key, value);
+        } else {
+            final TreeMap<byte[], byte[]> single = new TreeMap<byte[], byte[]>(SSTable.KEY_ORDER);
+            single.put(key, value);
+            write(single);
+        }
+    }
+
+    private void write(SortedMap<byte[], byte[]> changes) throws IOException {
+        wal.append(encode(changes));
+        if (syncOnCommit)
+            wal.sync();
+        else
+            wal.write();
+        apply(changes);
+        if (memtableSize >= memtableBytes)
+            flushMemtable();
+    }
+
+    private void apply(SortedMap<byte[], byte[]> changes) {
+        for (Map.Entry<byte[], byte[]> entry : changes.entrySet()) {
+            memtable.put(entry.getKey(), entry.getValue());
+            memtableSize += entry.getKey().length + entry.getValue().length + ENTRY_OVERHEAD;
+        }
+    }
+
+    private void flushMemtable() throws IOException {
+        if (memtable.isEmpty())
+            return;
+        while (tables.size() >= MAX_TABLES && compacting) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for compaction");
+            }
+        }
+        final boolean bottom = tables.isEmpty();
+        final long number = nextFileNumber++;
+        final File file = tableFile(number);
+        final SSTable.Writer writer = new SSTable.Writer(file, memtable.size());
+        try {
+            for (Map.Entry<byte[], byte[]> entry : memtable.entrySet()) {
+                if (!(bottom && entry.getValue() == SSTable.TOMBSTONE))
+                    writer.add(entry.getKey(), entry.getValue());
+            }
+            writer.finish();
+        } catch (IOException e) {
+            writer.abandon();
+            throw e;
+        }
+
+        final List<SSTable> updated = new ArrayList<SSTable>(tables);
+        updated.add(SSTable.open(file, number, 0));
+        tables = updated;
+        writeManifest();
+        wal.reset();
+        memtable = new TreeMap<byte[], byte[]>(SSTable.KEY_ORDER);
+        memtableSize = 0;
+        scheduleCompaction();
+    }
+
+    private void scheduleCompaction() {
+        if (compacting || closed || pickRun(tables) < 0)
+            return;
+        compacting = true;
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compactWhileDue();
+            }
+        });
+    }
+
+    /**
+     * @return index of the oldest of {@link #FANOUT} adjacent tables of equal tier, or -1.
+     */
+    private static int pickRun(List<SSTable> tables) {
+        int start = 0;
+        for (int i = 1; i <= tables.size(); i++) {
+            if (i == tables.size() || tables.get(i).getTier() != tables.get(start).getTier()) {
+                if (i - start >= FANOUT)
+                    return start;
+                start = i;
+            }
+        }
+        return -1;
+    }
+
+    private void compactWhileDue() {
+        while (true) {
+            final List<SSTable> inputs;
+            final boolean bottom;
+            final long number;
+            synchronized (this) {
+                final int start = closed ? -1 : pickRun(tables);
+                if (start < 0) {
+                    compacting = false;
+                    notifyAll();
+                    return;
+                }
+                inputs = new ArrayList<SSTable>(tables.subList(start, start + FANOUT));
+                bottom = start == 0;
+                number = nextFileNumber++;
+            }
+            try {
+                final SSTable output = merge(inputs, bottom, number);
+                synchronized (this) {
+                    final List<SSTable> updated = new ArrayList<SSTable>(tables);
+                    final int start = updated.indexOf(inputs.get(0));
+                    updated.subList(start, start + FANOUT).clear();
+                    if (output != null)
+                        updated.add(start, output);
+                    tables = updated;
+                    writeManifest();
+                    compactions++;
+                    retired.addAll(inputs);
+                    if (openRanges == 0)
+                        deleteRetired();
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                log.error("Compaction of " + directory + " failed, tables are left as they are", e);
+                synchronized (this) {
+                    compacting = false;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    @Nullable
+    private SSTable merge(List<SSTable> inputs, boolean bottom, long number) throws IOException {
+        final SSTable.Cursor[] cursors = new SSTable.Cursor[inputs.size()];
+        long expected = 0;
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = inputs.get(i).cursor();
+            cursors[i].next();
+            expected += inputs.get(i).getRecordCount();
+        }
+        final File file = tableFile(number);
+        final SSTable.Writer writer = new SSTable.Writer(file, expected);
+        try {
+            while (true) {
+                int newest = -1;
+                for (int i = 0; i < cursors.length; i++) {
+                    if (cursors[i].key == null)
+                        continue;
+                    // later inputs are newer and win ties
+                    if (newest < 0 || SSTable.KEY_ORDER.compare(cursors[i].key, cursors[newest].key) <= 0)
+                        newest = i;
+                }
+                if (newest < 0)
+                    break;
+                final byte[] key = cursors[newest].key;
+                final byte[] value = cursors[newest].value;
+                if (!(bottom && value == SSTable.TOMBSTONE))
+                    writer.add(key, value);
+                for (SSTable.Cursor cursor : cursors) {
+                    if (cursor.key != null && SSTable.KEY_ORDER.compare(cursor.key, key) == 0)
+                        cursor.next();
+                }
+            }
+            if (writer.getCount() == 0) {
+                writer.abandon();
+                return null;
+            }
+            writer.finish();
+        } catch (IOException e) {
+            writer.abandon();
+            throw e;
+        }
+        log.info("Merged {} tables of {} into tier {} table with {} records",
+                inputs.size(), directory, inputs.get(0).getTier() + 1, writer.getCount());
+        return SSTable.open(file, number, inputs.get(0).getTier() + 1);
+    }
+
+    private File tableFile(long number) {
+        return new File(directory, String.format("%08d", number) + TABLE_SUFFIX);
+    }
+
+    private void readManifest() throws IOException {
+        final File file = new File(directory, MANIFEST);
+        if (!file.exists())
+            return;
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != MANIFEST_MAGIC)
+                throw new IOException("Not a manifest: " + file);
+            nextFileNumber = in.readLong();
+            final int count = in.readInt();
+            final List<SSTable> opened = new ArrayList<SSTable>(count);
+            for (int i = 0; i < count; i++) {
+                final long number = in.readLong();
+                final int tier = in.readInt();
+                opened.add(SSTable.open(tableFile(number), number, tier));
+            }
+            tables = opened;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        final File file = new File(directory, MANIFEST);
+        final File temp = new File(directory, MANIFEST + ".tmp");
+        final FileOutputStream fileOut = new FileOutputStream(temp);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeLong(nextFileNumber);
+            out.writeInt(tables.size());
+            for (SSTable table : tables) {
+                out.writeLong(table.getNumber());
+                out.writeInt(table.getTier());
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        // File.renameTo doesn't replace an existing file on Windows.
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+            throw new IOException("Failed to rename " + temp + " to " + file);
+    }
+
+    /**
+     * Removes tables left behind by a flush or merge that crashed before the manifest listed its output.
+     */
+    private void deleteStrayFiles() {
+        final Set<String> live = new HashSet<String>();
+        for (SSTable table : tables) {
+            live.add(table.getFile().getName());
+        }
+        final File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            final String name = file.getName();
+            if ((name.endsWith(TABLE_SUFFIX) && !live.contains(name)) || name.equals(MANIFEST + ".tmp")) {
+                if (!file.delete())
+                    log.warn("Couldn't delete stray file {}", file);
+            }
+        }
+    }
+
+    private static byte[] encode(SortedMap<byte[], byte[]> changes) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(changes.size());
+        for (Map.Entry<byte[], byte[]> entry : changes.entrySet()) {
+            out.writeInt(entry.getKey().length);
+            out.write(entry.getKey());
+            if (entry.getValue() == SSTable.TOMBSTONE) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static SortedMap<byte[], byte[]> decode(byte[] payload) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final SortedMap<byte[], byte[]> changes = new TreeMap<byte[], byte[]>(SSTable.KEY_ORDER);
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            final byte[] key = new byte[in.readInt()];
+            in.readFully(key);
+            final int length = in.readInt();
+            if (length < 0) {
+                changes.put(key, SSTable.TOMBSTONE);
+            } else {
+                final byte[] value = new byte[length];
+                in.readFully(value);
+                changes.put(key, value);
+            }
+        }
+        return changes;
+    }
+
+}
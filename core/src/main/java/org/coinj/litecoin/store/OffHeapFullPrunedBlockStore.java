@@ -0,0 +1,191 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>In-memory {@link FullPrunedBlockStore} that keeps the UTXO set in an {@link OffHeapUtxoMap}, each output
+ * encoded by {@link OutputCompression}: a typical output takes about a hundred bytes of direct memory instead of a
+ * few hundred of heap spread over several objects. Headers and undo data are kept as in
+ * {@link MemoryFullPrunedBlockStore}.</p>
+ *
+ * <p>Output changes of an open database batch are journalled so an abort restores them.</p>
+ */
+public class OffHeapFullPrunedBlockStore extends MemoryFullPrunedBlockStore implements UnspentOutputSource {
+
+    private static final int VISIT_KEYS_PER_PASS = 1024 * 1024;
+
+    // Hash bytes, then the index, which the map keys store little endian.
+    private static final Comparator<byte[]> OUTPOINT_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            for (int i = 0; i < 32; i++) {
+                final int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if (diff != 0)
+                    return diff;
+            }
+            final long indexA = indexOf(a);
+            final long indexB = indexOf(b);
+            return indexA < indexB ? -1 : (indexA == indexB ? 0 : 1);
+        }
+    };
+
+    private final OffHeapUtxoMap outputs;
+
+    // values before the open batch, null if absent
+    @Nullable
+    private HashMap<ByteBuffer, byte[]> journal;
+
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this(params, fullStoreDepth, 0);
+    }
+
+    /**
+     * @param expectedOutputs UTXO count to size the table for, it grows as needed.
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, long expectedOutputs) {
+        super(params, fullStoreDepth);
+        outputs = new OffHeapUtxoMap(expectedOutputs, OffHeapUtxoMap.DEFAULT_CHUNK_SIZE);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        final byte[] value = outputs.get(OffHeapUtxoMap.key(hash, index));
+        return value == null ? null : OutputCompression.decode(hash, index, value);
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        final byte[] key = OffHeapUtxoMap.key(out.getHash(), out.getIndex());
+        journal(key);
+        outputs.put(key, OutputCompression.encode(out));
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        final byte[] key = OffHeapUtxoMap.key(out.getHash(), out.getIndex());
+        journal(key);
+        if (!outputs.remove(key))
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from OffHeapFullPrunedBlockStore that it didn't have!");
+    }
+
+    private void journal(byte[] key) {
+        if (journal != null) {
+            final ByteBuffer wrapped = ByteBuffer.wrap(key);
+            if (!journal.containsKey(wrapped))
+                journal.put(wrapped, outputs.get(key));
+        }
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++) {
+            if (outputs.containsKey(OffHeapUtxoMap.key(hash, i)))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        super.beginDatabaseBatchWrite();
+        if (journal == null)
+            journal = new HashMap<ByteBuffer, byte[]>();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        super.commitDatabaseBatchWrite();
+        journal = null;
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        super.abortDatabaseBatchWrite();
+        if (journal == null)
+            return;
+        for (Map.Entry<ByteBuffer, byte[]> saved : journal.entrySet()) {
+            final byte[] key = saved.getKey().array();
+            if (saved.getValue() == null)
+                outputs.remove(key);
+            else
+                outputs.put(key, saved.getValue());
+        }
+        journal = null;
+    }
+
+    @Override
+    public synchronized void visitUnspentOutputs(final Visitor visitor) throws IOException {
+        // The table is unordered: sort one range of leading hash bytes at a time, so about a million keys are held.
+        final int passes = (int) Math.min(256, outputs.size() / VISIT_KEYS_PER_PASS + 1);
+        for (int pass = 0; pass < passes; pass++) {
+            final int from = pass * 256 / passes;
+            final int to = (pass + 1) * 256 / passes;
+            final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+            outputs.forEach(new OffHeapUtxoMap.EntryVisitor() {
+                @Override
+                public void visit(byte[] key, byte[] value) {
+                    final int first = key[0] & 0xFF;
+                    if (first >= from && first < to)
+                        keys.add(key);
+                }
+            });
+            Collections.sort(keys, OUTPOINT_ORDER);
+            for (byte[] key : keys) {
+                final byte[] hash = new byte[32];
+                System.arraycopy(key, 0, hash, 0, 32);
+                visitor.visit(OutputCompression.decode(new Sha256Hash(hash), indexOf(key), outputs.get(key)));
+            }
+        }
+    }
+
+    private static long indexOf(byte[] key) {
+        return (key[32] & 0xFFL) | (key[33] & 0xFFL) << 8 | (key[34] & 0xFFL) << 16 | (key[35] & 0xFFL) << 24;
+    }
+
+    public synchronized long getOutputCount() {
+        return outputs.size();
+    }
+
+    public synchronized long getOffHeapBytes() {
+        return outputs.getOffHeapBytes();
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        outputs.clear();
+    }
+
+}
@@ -0,0 +1,383 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Map from outpoints to encoded outputs that lives in direct memory, so a full UTXO set costs the heap only a few
+ * buffer objects and collections don't have to trace it.</p>
+ *
+ * <p>Keys are 36 bytes, the transaction hash followed by the output index (little endian). The table is open
+ * addressed with linear probing and backward shift deletion; each slot holds the key and a reference to the value.
+ * It is split into segments of {@code 2^16} slots so it isn't limited to one 2GB buffer, and doubles at 3/4 load.
+ * Values are appended to an arena of direct chunks, prefixed by their varint length. Space of removed values is
+ * reclaimed by copying the live ones to fresh chunks once they are outweighed by garbage.</p>
+ *
+ * <p>Direct memory is released when the buffers are collected, limit it with {@code -XX:MaxDirectMemorySize}.
+ * Not thread safe.</p>
+ */
+public class OffHeapUtxoMap {
+
+    public static final int KEY_SIZE = 36;
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final int SLOT_SIZE = KEY_SIZE + 8;
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int SEGMENT_SLOTS = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_BYTES = SEGMENT_SLOTS * SLOT_SIZE;
+    private static final long EMPTY = 0;
+
+    public interface EntryVisitor {
+        void visit(byte[] key, byte[] value) throws IOException;
+    }
+
+    private final int chunkSize;
+
+    private ByteBuffer[] segments;
+    private long capacity;
+    private long mask;
+    private long size;
+
+    private ArrayList<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private long chunkBytes;
+    private long liveBytes;
+    private long garbageBytes;
+
+    public OffHeapUtxoMap() {
+        this(SEGMENT_SLOTS, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param expectedSize number of entries to size the table for.
+     * @param chunkSize size of the value arena chunks.
+     */
+    public OffHeapUtxoMap(long expectedSize, int chunkSize) {
+        checkArgument(expectedSize >= 0, "Negative size");
+        checkArgument(chunkSize >= 1024, "Chunk size is too small");
+        this.chunkSize = chunkSize;
+        long slots = SEGMENT_SLOTS;
+        while (slots * 3 / 4 < expectedSize) {
+            slots <<= 1;
+        }
+        segments = allocateTable(slots);
+        capacity = slots;
+        mask = slots - 1;
+    }
+
+    public static byte[] key(Sha256Hash hash, long index) {
+        final byte[] key = new byte[KEY_SIZE];
+        System.arraycopy(hash.getBytes(), 0, key, 0, 32);
+        key[32] = (byte) index;
+        key[33] = (byte) (index >>> 8);
+        key[34] = (byte) (index >>> 16);
+        key[35] = (byte) (index >>> 24);
+        return key;
+    }
+
+    @Nullable
+    public byte[] get(byte[] key) {
+        checkArgument(key.length == KEY_SIZE, "Keys are 36 bytes");
+        final long slot = find(key);
+        return slot < 0 ? null : readValue(chunks, reference(slot));
+    }
+
+    public boolean containsKey(byte[] key) {
+        checkArgument(key.length == KEY_SIZE, "Keys are 36 bytes");
+        return find(key) >= 0;
+    }
+
+    /**
+     * @return whether an existing value was replaced.
+     */
+    public boolean put(byte[] key, byte[] value) {
+        checkArgument(key.length == KEY_SIZE, "Keys are 36 bytes");
+        long slot = find(key);
+        final boolean replaced = slot >= 0;
+        if (replaced) {
+            release(reference(slot));
+        } else {
+            if (size + 1 > capacity * 3 / 4) {
+                grow();
+                slot = find(key);
+            }
+            slot = -slot - 1;
+            final ByteBuffer segment = segments[(int) (slot >>> SEGMENT_SHIFT)];
+            final int offset = slotOffset(slot);
+            for (int i = 0; i < KEY_SIZE; i++) {
+                segment.put(offset + i, key[i]);
+            }
+            size++;
+        }
+        setReference(slot, append(value));
+        if (garbageBytes > liveBytes && garbageBytes >= chunkSize)
+            compact();
+        return replaced;
+    }
+
+    /**
+     * @return whether the key was present.
+     */
+    public boolean remove(byte[] key) {
+        checkArgument(key.length == KEY_SIZE, "Keys are 36 bytes");
+        final long slot = find(key);
+        if (slot < 0)
+            return false;
+        release(reference(slot));
+        long hole = slot;
+        long next = (slot + 1) & mask;
+        while (reference(next) != EMPTY) {
+            final long home = hashAt(next) & mask;
+            // move the entry back unless its home lies cyclically in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                copySlot(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        setReference(hole, EMPTY);
+        size--;
+        return true;
+    }
+
+    /**
+     * Visits every entry in table order. The map must not be changed meanwhile.
+     */
+    public void forEach(EntryVisitor visitor) throws IOException {
+        final byte[] key = new byte[KEY_SIZE];
+        for (long slot = 0; slot < capacity; slot++) {
+            final long reference = reference(slot);
+            if (reference == EMPTY)
+                continue;
+            final ByteBuffer segment = segments[(int) (slot >>> SEGMENT_SHIFT)];
+            final int offset = slotOffset(slot);
+            for (int i = 0; i < KEY_SIZE; i++) {
+                key[i] = segment.get(offset + i);
+            }
+            visitor.visit(key.clone(), readValue(chunks, reference));
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Direct memory held by the table and the value arena.
+     */
+    public long getOffHeapBytes() {
+        return (long) segments.length * SEGMENT_BYTES + chunkBytes;
+    }
+
+    /**
+     * Bytes of live values in the arena, length prefixes included.
+     */
+    public long getValueBytes() {
+        return liveBytes;
+    }
+
+    public void clear() {
+        segments = allocateTable(SEGMENT_SLOTS);
+        capacity = SEGMENT_SLOTS;
+        mask = capacity - 1;
+        size = 0;
+        chunks = new ArrayList<ByteBuffer>();
+        chunkBytes = 0;
+        liveBytes = 0;
+        garbageBytes = 0;
+    }
+
+    // slot of the key, or -(insertion slot) - 1
+    private long find(byte[] key) {
+        long slot = hash(key) & mask;
+        while (true) {
+            if (reference(slot) == EMPTY)
+                return -slot - 1;
+            if (keyEquals(slot, key))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(long slot, byte[] key) {
+        final ByteBuffer segment = segments[(int) (slot >>> SEGMENT_SHIFT)];
+        final int offset = slotOffset(slot);
+        for (int i = 0; i < KEY_SIZE; i++) {
+            if (segment.get(offset + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static long hash(byte[] key) {
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h |= (key[i] & 0xFFL) << (i * 8);
+        }
+        final int index = (key[32] & 0xFF) | (key[33] & 0xFF) << 8 | (key[34] & 0xFF) << 16 | (key[35] & 0xFF) << 24;
+        return mix(h, index);
+    }
+
+    private long hashAt(long slot) {
+        final ByteBuffer segment = segments[(int) (slot >>> SEGMENT_SHIFT)];
+        final int offset = slotOffset(slot);
+        return mix(segment.getLong(offset), segment.getInt(offset + 32));
+    }
+
+    private static long mix(long h, int index) {
+        h ^= index * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int slotOffset(long slot) {
+        return (int) (slot & (SEGMENT_SLOTS - 1)) * SLOT_SIZE;
+    }
+
+    private long reference(long slot) {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)].getLong(slotOffset(slot) + KEY_SIZE);
+    }
+
+    private void setReference(long slot, long reference) {
+        segments[(int) (slot >>> SEGMENT_SHIFT)].putLong(slotOffset(slot) + KEY_SIZE, reference);
+    }
+
+    private void copySlot(long from, long to) {
+        copySlotBetween(segments[(int) (from >>> SEGMENT_SHIFT)], slotOffset(from), to);
+    }
+
+    private static ByteBuffer[] allocateTable(long slots) {
+        final ByteBuffer[] table = new ByteBuffer[(int) (slots >>> SEGMENT_SHIFT)];
+        for (int i = 0; i < table.length; i++) {
+            // direct buffers start zeroed, i.e. all slots empty
+            table[i] = ByteBuffer.allocateDirect(SEGMENT_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return table;
+    }
+
+    private void grow() {
+        final ByteBuffer[] old = segments;
+        final long oldCapacity = capacity;
+        segments = allocateTable(oldCapacity << 1);
+        capacity = oldCapacity << 1;
+        mask = capacity - 1;
+        final byte[] key = new byte[KEY_SIZE];
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            final ByteBuffer segment = old[(int) (slot >>> SEGMENT_SHIFT)];
+            final int offset = slotOffset(slot);
+            final long reference = segment.getLong(offset + KEY_SIZE);
+            if (reference == EMPTY)
+                continue;
+            for (int i = 0; i < KEY_SIZE; i++) {
+                key[i] = segment.get(offset + i);
+            }
+            final long target = -find(key) - 1;
+            copySlotBetween(segment, offset, target);
+        }
+    }
+
+    private void copySlotBetween(ByteBuffer source, int sourceOffset, long to) {
+        final ByteBuffer target = segments[(int) (to >>> SEGMENT_SHIFT)];
+        final int targetOffset = slotOffset(to);
+        for (int i = 0; i < SLOT_SIZE; i += 4) {
+            target.putInt(targetOffset + i, source.getInt(sourceOffset + i));
+        }
+    }
+
+    // references are (chunk + 1) << 32 | offset, so zero stays free for empty slots
+    private long append(byte[] value) {
+        final int recordSize = OutputCompression.varIntSize(value.length) + value.length;
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.remaining() < recordSize) {
+            chunk = ByteBuffer.allocateDirect(Math.max(chunkSize, recordSize));
+            chunks.add(chunk);
+            chunkBytes += chunk.capacity();
+        }
+        final int offset = chunk.position();
+        long n = value.length;
+        // the reference client's varint, written in place
+        final byte[] tmp = new byte[5];
+        int len = 0;
+        while (true) {
+            tmp[len] = (byte) ((n & 0x7F) | (len != 0 ? 0x80 : 0x00));
+            if (n <= 0x7F)
+                break;
+            n = (n >> 7) - 1;
+            len++;
+        }
+        do {
+            chunk.put(tmp[len]);
+        } while (len-- > 0);
+        chunk.put(value);
+        liveBytes += recordSize;
+        return ((long) chunks.size() << 32) | offset;
+    }
+
+    private static byte[] readValue(ArrayList<ByteBuffer> chunks, long reference) {
+        final ByteBuffer chunk = chunks.get((int) (reference >>> 32) - 1);
+        final int length = readLength(chunk, (int) reference);
+        final int position = (int) reference + OutputCompression.varIntSize(length);
+        final byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = chunk.get(position + i);
+        }
+        return value;
+    }
+
+    private static int readLength(ByteBuffer chunk, int position) {
+        int length = 0;
+        while (true) {
+            final int b = chunk.get(position++) & 0xFF;
+            length = (length << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0)
+                return length;
+            length++;
+        }
+    }
+
+    private void release(long reference) {
+        final int length = readLength(chunks.get((int) (reference >>> 32) - 1), (int) reference);
+        final int recordSize = OutputCompression.varIntSize(length) + length;
+        liveBytes -= recordSize;
+        garbageBytes += recordSize;
+    }
+
+    private void compact() {
+        final ArrayList<ByteBuffer> old = chunks;
+        chunks = new ArrayList<ByteBuffer>();
+        chunkBytes = 0;
+        liveBytes = 0;
+        garbageBytes = 0;
+        for (long slot = 0; slot < capacity; slot++) {
+            final long reference = reference(slot);
+            if (reference != EMPTY)
+                setReference(slot, append(readValue(old, reference)));
+        }
+    }
+
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredTransactionOutput;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Compact encoding of unspent outputs, the one the reference client uses for its coins database:</p>
+ * <ul>
+ *     <li>{@code varint(height * 2 + coinbase)};</li>
+ *     <li>{@code varint(compressed amount)}, trailing decimal zeros folded into an exponent;</li>
+ *     <li>the script: pay to pubkey hash and pay to script hash as a type byte and the 20 byte hash, pay to pubkey
+ *     as a type byte and the 32 byte x coordinate, anything else as {@code varint(length + 6)} and the raw bytes.</li>
+ * </ul>
+ * <p>Varints are the reference client's MSB base-128 ones, not the {@code VarInt} of the wire protocol.</p>
+ */
+public final class OutputCompression {
+
+    private static final int SPECIAL_SCRIPTS = 6;
+    private static final byte OP_DUP = 0x76;
+    private static final byte OP_HASH160 = (byte) 0xa9;
+    private static final byte OP_EQUALVERIFY = (byte) 0x88;
+    private static final byte OP_CHECKSIG = (byte) 0xac;
+    private static final byte OP_EQUAL = (byte) 0x87;
+
+    private OutputCompression() {}
+
+    public static byte[] encode(StoredTransactionOutput out) {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream(48);
+        writeVarInt(bos, ((long) out.getHeight() << 1) | (out.isCoinbase() ? 1 : 0));
+        writeVarInt(bos, compressAmount(out.getValue().value));
+        writeScript(bos, out.getScriptBytes());
+        return bos.toByteArray();
+    }
+
+    public static StoredTransactionOutput decode(Sha256Hash hash, long index, byte[] encoded) {
+        return decode(hash, index, ByteBuffer.wrap(encoded));
+    }
+
+    public static StoredTransactionOutput decode(Sha256Hash hash, long index, ByteBuffer in) {
+        final long code = readVarInt(in);
+        final Coin value = Coin.valueOf(decompressAmount(readVarInt(in)));
+        return new StoredTransactionOutput(hash, index, value, (int) (code >>> 1), (code & 1) != 0, readScript(in));
+    }
+
+    public static void writeScript(ByteArrayOutputStream out, byte[] script) {
+        final int length = script.length;
+        if (length == 25 && script[0] == OP_DUP && script[1] == OP_HASH160 && script[2] == 20
+                && script[23] == OP_EQUALVERIFY && script[24] == OP_CHECKSIG) {
+            out.write(0);
+            out.write(script, 3, 20);
+            return;
+        }
+        if (length == 23 && script[0] == OP_HASH160 && script[1] == 20 && script[22] == OP_EQUAL) {
+            out.write(1);
+            out.write(script, 2, 20);
+            return;
+        }
+        if (length == 35 && script[0] == 33 && script[34] == OP_CHECKSIG && (script[1] == 2 || script[1] == 3)) {
+            out.write(script[1]);
+            out.write(script, 2, 32);
+            return;
+        }
+        if (length == 67 && script[0] == 65 && script[66] == OP_CHECKSIG && script[1] == 4
+                && isRecoverable(script)) {
+            out.write(4 | (script[65] & 1));
+            out.write(script, 2, 32);
+            return;
+        }
+        writeVarInt(out, length + SPECIAL_SCRIPTS);
+        out.write(script, 0, length);
+    }
+
+    /** Uncompressed keys are only folded if decompressing gives the same point back, so junk keys stay verbatim. */
+    private static boolean isRecoverable(byte[] script) {
+        final byte[] compressed = new byte[33];
+        compressed[0] = (byte) (2 | (script[65] & 1));
+        System.arraycopy(script, 2, compressed, 1, 32);
+        final byte[] restored;
+        try {
+            restored = ECKey.fromPublicOnly(compressed).decompress().getPubKey();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        for (int i = 0; i < 65; i++) {
+            if (restored[i] != script[i + 1])
+                return false;
+        }
+        return true;
+    }
+
+    public static byte[] readScript(ByteBuffer in) {
+        final long type = readVarInt(in);
+        final byte[] script;
+        switch ((int) Math.min(type, SPECIAL_SCRIPTS)) {
+            case 0:
+                script = new byte[25];
+                script[0] = OP_DUP;
+                script[1] = OP_HASH160;
+                script[2] = 20;
+                in.get(script, 3, 20);
+                script[23] = OP_EQUALVERIFY;
+                script[24] = OP_CHECKSIG;
+                return script;
+            case 1:
+                script = new byte[23];
+                script[0] = OP_HASH160;
+                script[1] = 20;
+                in.get(script, 2, 20);
+                script[22] = OP_EQUAL;
+                return script;
+            case 2:
+            case 3:
+                script = new byte[35];
+                script[0] = 33;
+                script[1] = (byte) type;
+                in.get(script, 2, 32);
+                script[34] = OP_CHECKSIG;
+                return script;
+            case 4:
+            case 5:
+                final byte[] compressed = new byte[33];
+                compressed[0] = (byte) (type - 2);
+                in.get(compressed, 1, 32);
+                script = new byte[67];
+                script[0] = 65;
+                System.arraycopy(ECKey.fromPublicOnly(compressed).decompress().getPubKey(), 0, script, 1, 65);
+                script[66] = OP_CHECKSIG;
+                return script;
+            default:
+                final long length = type - SPECIAL_SCRIPTS;
+                if (length > in.remaining())
+                    throw new BufferUnderflowException();
+                script = new byte[(int) length];
+                in.get(script);
+                return script;
+        }
+    }
+
+    /**
+     * Folds trailing decimal zeros into an exponent: round amounts, which are most of them, take one or two bytes as a
+     * varint. Only defined for valid, non negative amounts.
+     */
+    public static long compressAmount(long n) {
+        checkArgument(n >= 0, "Negative amount");
+        if (n == 0)
+            return 0;
+        int e = 0;
+        while ((n % 10) == 0 && e < 9) {
+            n /= 10;
+            e++;
+        }
+        if (e < 9) {
+            final int d = (int) (n % 10);
+            n /= 10;
+            return 1 + (n * 9 + d - 1) * 10 + e;
+        }
+        return 1 + (n - 1) * 10 + 9;
+    }
+
+    public static long decompressAmount(long x) {
+        if (x == 0)
+            return 0;
+        x--;
+        int e = (int) (x % 10);
+        x /= 10;
+        long n;
+        if (e < 9) {
+            final int d = (int) (x % 9) + 1;
+            x /= 9;
+            n = x * 10 + d;
+        } else {
+            n = x + 1;
+        }
+        while (e > 0) {
+            n *= 10;
+            e--;
+        }
+        return n;
+    }
+
+    public static void writeVarInt(ByteArrayOutputStream out, long n) {
+        checkArgument(n >= 0, "Negative varint");
+        final byte[] tmp = new byte[10];
+        int len = 0;
+        while (true) {
+            tmp[len] = (byte) ((n & 0x7F) | (len != 0 ? 0x80 : 0x00));
+            if (n <= 0x7F)
+                break;
+            n = (n >> 7) - 1;
+            len++;
+        }
+        do {
+            out.write(tmp[len]);
+        } while (len-- > 0);
+    }
+
+    public static long readVarInt(ByteBuffer in) {
+        long n = 0;
+        for (int i = 0; i < 10; i++) {
+            final int b = in.get() & 0xFF;
+            n = (n << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0)
+                return n;
+            n++;
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    public static int varIntSize(long n) {
+        int size = 1;
+        while (n > 0x7F) {
+            n = (n >> 7) - 1;
+            size++;
+        }
+        return size;
+    }
+
+}
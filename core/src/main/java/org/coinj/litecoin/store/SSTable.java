@@ -0,0 +1,447 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable sorted table of an {@link LsmTree}: records in key order, a sparse index of every
+ * {@link #INDEX_INTERVAL}th key, a Bloom filter over all keys and a fixed footer. The index and filter are held on
+ * the heap, so a lookup of an absent key usually reads nothing and a present one reads a single index block with one
+ * positional read. A range seek reads the index block its start falls in, and tables whose key span misses the range
+ * aren't read at all.
+ */
+final class SSTable {
+
+    static final int INDEX_INTERVAL = 16;
+    private static final int FOOTER_SIZE = 32;
+    private static final int MAGIC = 0x4c535354;  // "LSST"
+    private static final int BLOOM_BITS_PER_KEY = 10;
+    private static final int BLOOM_HASHES = 7;
+    private static final int TOMBSTONE_LENGTH = -1;
+
+    static final byte[] TOMBSTONE = new byte[0];
+
+    static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            final int length = Math.min(a.length, b.length);
+            for (int i = 0; i < length; i++) {
+                final int diff = (a[i] & 0xff) - (b[i] & 0xff);
+                if (diff != 0)
+                    return diff;
+            }
+            return a.length - b.length;
+        }
+    };
+
+    private final File file;
+    private final long number;
+    private final int tier;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long dataEnd;
+    private final long recordCount;
+    private final byte[][] indexKeys;
+    private final long[] indexOffsets;
+    private final long[] bloom;
+    @Nullable
+    private final byte[] lastKey;
+
+    static SSTable open(File file, long number, int tier) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new SSTable(file, number, tier, raf);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        } catch (RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private SSTable(File file, long number, int tier, RandomAccessFile raf) throws IOException {
+        this.file = file;
+        this.number = number;
+        this.tier = tier;
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        final long size = channel.size();
+        if (size < FOOTER_SIZE)
+            throw new IOException("Bad table size " + size + ": " + file);
+        final ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+        if (footer.getInt(FOOTER_SIZE - 4) != MAGIC)
+            throw new IOException("Not a table: " + file);
+        final long indexOffset = footer.getLong(0);
+        final long bloomOffset = footer.getLong(8);
+        recordCount = footer.getLong(16);
+        dataEnd = indexOffset;
+
+        final ByteBuffer in = read(indexOffset, (int) (size - FOOTER_SIZE - indexOffset));
+        final int indexSize = in.getInt();
+        indexKeys = new byte[indexSize][];
+        indexOffsets = new long[indexSize];
+        for (int i = 0; i < indexSize; i++) {
+            indexKeys[i] = new byte[in.getInt()];
+            in.get(indexKeys[i]);
+            indexOffsets[i] = in.getLong();
+        }
+        in.position((int) (bloomOffset - indexOffset));
+        bloom = new long[in.getInt()];
+        for (int i = 0; i < bloom.length; i++) {
+            bloom[i] = in.getLong();
+        }
+        lastKey = indexSize == 0 ? null : readLastKey();
+    }
+
+    private byte[] readLastKey() throws IOException {
+        final Cursor cursor = seek(indexKeys[indexKeys.length - 1]);
+        byte[] last = null;
+        while (cursor.next()) {
+            last = cursor.key;
+        }
+        return last;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getNumber() {
+        return number;
+    }
+
+    int getTier() {
+        return tier;
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    long getSize() throws IOException {
+        return channel.size();
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * @return the value, {@link #TOMBSTONE} if the key was deleted at this level, or null if the table doesn't know it.
+     */
+    @Nullable
+    byte[] get(byte[] key) throws IOException {
+        if (!mightContain(bloom, key))
+            return null;
+        final int block = floorIndex(key);
+        if (block < 0)
+            return null;
+        final long start = indexOffsets[block];
+        final long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        final ByteBuffer in = read(start, (int) (end - start));
+        while (in.hasRemaining()) {
+            final byte[] recordKey = new byte[in.getInt()];
+            in.get(recordKey);
+            final int valueLength = in.getInt();
+            final int cmp = KEY_ORDER.compare(recordKey, key);
+            if (cmp == 0) {
+                if (valueLength == TOMBSTONE_LENGTH)
+                    return TOMBSTONE;
+                final byte[] value = new byte[valueLength];
+                in.get(value);
+                return value;
+            }
+            if (cmp > 0)
+                return null;
+            in.position(in.position() + Math.max(valueLength, 0));
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the table may hold keys in {@code [from, to)}, judging by its first and last key.
+     */
+    boolean overlaps(byte[] from, byte[] to) {
+        return lastKey != null && KEY_ORDER.compare(lastKey, from) >= 0 && KEY_ORDER.compare(indexKeys[0], to) < 0;
+    }
+
+    /**
+     * Sequential scan of the whole table, reading ahead in large blocks.
+     */
+    Cursor cursor() {
+        return new Cursor(0, Cursor.BUFFER_SIZE);
+    }
+
+    /**
+     * Cursor whose first {@link Cursor#next()} gives the smallest key at least {@code from}, deleted or not. Only the
+     * index block {@code from} falls in is read at first; read ahead grows as the cursor moves on.
+     */
+    Cursor seek(byte[] from) throws IOException {
+        final int block = Math.max(0, floorIndex(from));
+        if (indexOffsets.length == 0)
+            return new Cursor(dataEnd, 0);
+        final long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        final Cursor cursor = new Cursor(indexOffsets[block], (int) (end - indexOffsets[block]));
+        cursor.skipBelow(from);
+        return cursor;
+    }
+
+    /**
+     * Forward iterator over the records; {@link #value} is {@link #TOMBSTONE} for deletions.
+     */
+    final class Cursor {
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+        private long position;
+        private int readSize;
+        @Nullable
+        private byte[] pendingKey;
+        @Nullable
+        private byte[] pendingValue;
+        byte[] key;
+        byte[] value;
+
+        private Cursor(long position, int readSize) {
+            this.position = position;
+            this.readSize = readSize;
+        }
+
+        /**
+         * Moves to the first record at least {@code from}, handing it out on the next {@link #next()}.
+         */
+        private void skipBelow(byte[] from) throws IOException {
+            while (next()) {
+                if (KEY_ORDER.compare(key, from) >= 0) {
+                    pendingKey = key;
+                    pendingValue = value;
+                    return;
+                }
+            }
+        }
+
+        boolean next() throws IOException {
+            if (pendingKey != null) {
+                key = pendingKey;
+                value = pendingValue;
+                pendingKey = null;
+                pendingValue = null;
+                return true;
+            }
+            if (position >= dataEnd) {
+                key = null;
+                value = null;
+                return false;
+            }
+            ensure(8);
+            final int keyLength = buffer.getInt(buffer.position());
+            ensure(8 + keyLength);
+            final int valueLength = buffer.getInt(buffer.position() + 4 + keyLength);
+            final int recordLength = 8 + keyLength + Math.max(valueLength, 0);
+            ensure(recordLength);
+            buffer.getInt();
+            key = new byte[keyLength];
+            buffer.get(key);
+            buffer.getInt();
+            if (valueLength == TOMBSTONE_LENGTH) {
+                value = TOMBSTONE;
+            } else {
+                value = new byte[valueLength];
+                buffer.get(value);
+            }
+            position += recordLength;
+            return true;
+        }
+
+        /**
+         * Makes at least {@code bytes} bytes of the record at {@link #position} available in the buffer. Each refill
+         * reads twice as much as the last one, up to {@link #BUFFER_SIZE}, so short seeks stay short.
+         */
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() >= bytes)
+                return;
+            buffer = read(position, (int) Math.min(Math.max(bytes, readSize), dataEnd - position));
+            readSize = Math.min(Math.max(readSize * 2, 1024), BUFFER_SIZE);
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of table " + file);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private int floorIndex(byte[] key) {
+        int low = 0;
+        int high = indexKeys.length - 1;
+        int found = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (KEY_ORDER.compare(indexKeys[mid], key) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Streams records, which must arrive in strictly ascending key order, into a new table file.
+     */
+    static final class Writer {
+        private final File file;
+        private final FileOutputStream fileOut;
+        private final DataOutputStream out;
+        private final long[] bloom;
+        private final List<byte[]> indexKeys = new ArrayList<byte[]>();
+        private final List<Long> indexOffsets = new ArrayList<Long>();
+        private long offset;
+        private long count;
+        private byte[] lastKey;
+
+        Writer(File file, long expectedRecords) throws IOException {
+            this.file = file;
+            this.fileOut = new FileOutputStream(file);
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+            final long bits = Math.max(64, expectedRecords * BLOOM_BITS_PER_KEY);
+            this.bloom = new long[(int) Math.min((bits + 63) / 64, Integer.MAX_VALUE / 8)];
+        }
+
+        void add(byte[] key, byte[] value) throws IOException {
+            if (lastKey != null && KEY_ORDER.compare(lastKey, key) >= 0)
+                throw new IllegalArgumentException("Keys out of order");
+            if (count % INDEX_INTERVAL == 0) {
+                indexKeys.add(key);
+                indexOffsets.add(offset);
+            }
+            out.writeInt(key.length);
+            out.write(key);
+            if (value == TOMBSTONE) {
+                out.writeInt(TOMBSTONE_LENGTH);
+                offset += 8 + key.length;
+            } else {
+                out.writeInt(value.length);
+                out.write(value);
+                offset += 8 + key.length + value.length;
+            }
+            addToBloom(bloom, key);
+            lastKey = key;
+            count++;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getSize() {
+            return offset;
+        }
+
+        void finish() throws IOException {
+            final long indexOffset = offset;
+            out.writeInt(indexKeys.size());
+            long position = offset + 4;
+            for (int i = 0; i < indexKeys.size(); i++) {
+                final byte[] key = indexKeys.get(i);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(indexOffsets.get(i));
+                position += 12 + key.length;
+            }
+            final long bloomOffset = position;
+            out.writeInt(bloom.length);
+            for (long word : bloom) {
+                out.writeLong(word);
+            }
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeLong(count);
+            out.writeInt(0);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+        }
+
+        void abandon() {
+            try {
+                out.close();
+            } catch (IOException ignore) {
+            }
+            file.delete();
+        }
+    }
+
+    private static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static void addToBloom(long[] bloom, byte[] key) {
+        final long h = hash(key);
+        final int h1 = (int) h;
+        final int h2 = (int) (h >>> 32);
+        final long bits = (long) bloom.length * 64;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            final long bit = ((h1 + i * h2) & 0xffffffffL) % bits;
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static boolean mightContain(long[] bloom, byte[] key) {
+        final long h = hash(key);
+        final int h1 = (int) h;
+        final int h2 = (int) (h >>> 32);
+        final long bits = (long) bloom.length * 64;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            final long bit = ((h1 + i * h2) & 0xffffffffL) % bits;
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.bitcoinj.store.BlockStoreException;
+
+import java.io.IOException;
+
+/**
+ * Store that can enumerate its UTXO set, e.g. to write a {@link UtxoSnapshot}.
+ */
+public interface UnspentOutputSource {
+
+    interface Visitor {
+        void visit(StoredTransactionOutput out) throws IOException;
+    }
+
+    /**
+     * Visits every unspent output once, in outpoint order: transaction hash bytes compared unsigned, then output
+     * index. Snapshots hash the outputs in this order, so it must not depend on the store. The store must not be
+     * changed meanwhile.
+     */
+    void visitUnspentOutputs(Visitor visitor) throws BlockStoreException, IOException;
+
+}
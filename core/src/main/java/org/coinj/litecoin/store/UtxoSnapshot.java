@@ -0,0 +1,554 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>UTXO set at a given block, as a stream that a fresh {@link FullPrunedBlockStore} can be loaded from to start
+ * validating at the next block. Layout, big endian:</p>
+ * <ul>
+ *     <li>header: magic {@code "LTCUTXO"}, format version, network id, a header count and the compact
+ *     {@link StoredBlock}s of the snapshot block and up to one retarget interval of its ancestors, oldest first;</li>
+ *     <li>chunks of about {@value #CHUNK_BYTES} bytes: output count, payload length, payload, SHA-256 of the payload.
+ *     Each output is its 32 byte transaction hash, varint index and {@link OutputCompression} encoding. Outputs are
+ *     in outpoint order, see {@link UnspentOutputSource#visitUnspentOutputs};</li>
+ *     <li>an empty chunk, the total output count and the snapshot hash.</li>
+ * </ul>
+ * <p>The snapshot hash is the SHA-256 of the header, the chunk checksums and the count, so it commits to every byte of
+ * the file and can be compared against a published value before anything is trusted. Since the order is canonical,
+ * two exports of the same UTXO set at the same block hash the same, whatever store they came from.</p>
+ *
+ * <p>Chunks check out on their own, so {@link #load} verifies and decodes them on an executor while the calling thread
+ * feeds the store in file order. The whole file is read and checked once before the store is touched, so a corrupt
+ * or unexpected snapshot leaves it as it was. The ancestors are stored as headers, so the chain can check the
+ * difficulty transition at the next retarget, and the snapshot block with empty undo data: the loaded store can't
+ * reorganize below it.</p>
+ */
+public final class UtxoSnapshot {
+
+    private static final Logger log = LoggerFactory.getLogger(UtxoSnapshot.class);
+
+    public static final int CHUNK_BYTES = 1024 * 1024;
+    private static final byte[] MAGIC = {'L', 'T', 'C', 'U', 'T', 'X', 'O'};
+    private static final int VERSION = 2;
+    private static final int MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_HEADERS = 100000;
+
+    private UtxoSnapshot() {}
+
+    /**
+     * Writes every output of {@code source}, which has to be at {@code block}, and the headers the chain needs to go
+     * on from there, read from {@code headers}.
+     *
+     * @return the snapshot hash.
+     */
+    public static Sha256Hash export(UnspentOutputSource source, BlockStore headers, NetworkParameters params,
+                                    StoredBlock block, OutputStream out) throws BlockStoreException, IOException {
+        final Writer writer = new Writer(out, params, ancestry(headers, params, block));
+        source.visitUnspentOutputs(new UnspentOutputSource.Visitor() {
+            @Override
+            public void visit(StoredTransactionOutput output) throws IOException {
+                writer.add(output);
+            }
+        });
+        return writer.finish();
+    }
+
+    /**
+     * Reads a snapshot into {@code store} and points its chain heads at the snapshot block. The file is checked in
+     * full first, and the store is only written to if it checks out and, when given, matches {@code expectedHash}.
+     * Outputs are added in store batches of one chunk. Chunks are verified and decoded on {@code executor}.
+     *
+     * @param expectedHash if not null, nothing is loaded unless the snapshot hash matches.
+     * @return the snapshot hash.
+     */
+    public static Sha256Hash load(File file, NetworkParameters params, FullPrunedBlockStore store,
+                                  ExecutorService executor, @Nullable Sha256Hash expectedHash)
+            throws BlockStoreException, IOException {
+        final Sha256Hash verified = readChunks(file, params, null, executor).getSnapshotHash();
+        if (expectedHash != null && !expectedHash.equals(verified))
+            throw new IOException("Snapshot hash " + verified + " doesn't match the expected " + expectedHash);
+
+        final Reader reader = readChunks(file, params, store, executor);
+        final Sha256Hash hash = reader.getSnapshotHash();
+        // Only if the file changed in between; the heads stay where they were.
+        if (!hash.equals(verified))
+            throw new IOException("Snapshot " + file + " changed while it was loaded");
+        final StoredBlock block = reader.getBlock();
+        store.beginDatabaseBatchWrite();
+        try {
+            for (StoredBlock header : reader.getHeaders()) {
+                if (header != block && store.get(header.getHeader().getHash()) == null)
+                    store.put(header);
+            }
+            final StoredUndoableBlock undo = new StoredUndoableBlock(block.getHeader().getHash(),
+                    new TransactionOutputChanges(new LinkedList<StoredTransactionOutput>(),
+                            new LinkedList<StoredTransactionOutput>()));
+            store.put(block, undo);
+            store.setChainHead(block);
+            store.setVerifiedChainHead(block);
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        log.info("Loaded snapshot {} at height {}", hash, block.getHeight());
+        return hash;
+    }
+
+    /**
+     * @return {@code block} and its ancestors back one retarget interval or to genesis, oldest first. A retarget
+     * within the next interval looks back at most that far.
+     */
+    static List<StoredBlock> ancestry(BlockStore headers, NetworkParameters params, StoredBlock block)
+            throws BlockStoreException {
+        final int interval = params.getInterval(block.getHeader(), block.getHeight());
+        final LinkedList<StoredBlock> ancestry = new LinkedList<StoredBlock>();
+        StoredBlock cursor = block;
+        while (true) {
+            ancestry.addFirst(cursor);
+            if (ancestry.size() > interval || cursor.getHeight() == 0)
+                break;
+            cursor = cursor.getPrev(headers);
+            if (cursor == null)
+                throw new BlockStoreException("Missing ancestor of " + block.getHeader().getHash() + " below height "
+                        + ancestry.getFirst().getHeight());
+        }
+        return ancestry;
+    }
+
+    private static Reader openReader(File file, NetworkParameters params) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(file), 1024 * 1024);
+        try {
+            return new Reader(in, params);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks every chunk of the snapshot on {@code executor}, adding the outputs to {@code store} if there is one.
+     *
+     * @return the reader, read to the end and closed.
+     */
+    private static Reader readChunks(File file, NetworkParameters params, @Nullable FullPrunedBlockStore store,
+                                         ExecutorService executor) throws BlockStoreException, IOException {
+        final Reader reader = openReader(file, params);
+        try {
+            final int window = 2 * Runtime.getRuntime().availableProcessors();
+            final LinkedList<Future<List<StoredTransactionOutput>>> pending = new LinkedList<Future<List<StoredTransactionOutput>>>();
+            boolean more = true;
+            StoredTransactionOutput last = null;
+            while (more || !pending.isEmpty()) {
+                while (more && pending.size() < window) {
+                    final RawChunk chunk = reader.nextRawChunk();
+                    if (chunk == null) {
+                        more = false;
+                    } else {
+                        pending.add(executor.submit(new Callable<List<StoredTransactionOutput>>() {
+                            @Override
+                            public List<StoredTransactionOutput> call() throws IOException {
+                                return chunk.decode();
+                            }
+                        }));
+                    }
+                }
+                if (pending.isEmpty())
+                    break;
+                final List<StoredTransactionOutput> outputs = get(pending.removeFirst());
+                checkFollows(last, outputs);
+                last = outputs.isEmpty() ? last : outputs.get(outputs.size() - 1);
+                if (store == null)
+                    continue;
+                store.beginDatabaseBatchWrite();
+                try {
+                    for (StoredTransactionOutput out : outputs) {
+                        store.addUnspentTransactionOutput(out);
+                    }
+                    store.commitDatabaseBatchWrite();
+                } catch (BlockStoreException e) {
+                    store.abortDatabaseBatchWrite();
+                    throw e;
+                }
+            }
+            return reader;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading snapshot");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static byte[] encodeHeader(String networkId, List<StoredBlock> headers) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bos);
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(networkId);
+        out.writeInt(headers.size());
+        for (StoredBlock header : headers) {
+            final ByteBuffer compact = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+            header.serializeCompact(compact);
+            out.write(compact.array());
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    // Chunks are checked on their own; this checks the order across the boundary.
+    private static void checkFollows(@Nullable StoredTransactionOutput last, List<StoredTransactionOutput> chunk)
+            throws IOException {
+        if (last != null && !chunk.isEmpty() && compareOutpoints(last, chunk.get(0)) >= 0)
+            throw new IOException("Snapshot chunks out of outpoint order");
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * Streams outputs into a snapshot. Not thread safe.
+     */
+    public static final class Writer {
+        private final DataOutputStream out;
+        private final MessageDigest snapshotDigest = sha256();
+        private final MessageDigest chunkDigest = sha256();
+        private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_BYTES + 1024);
+        @Nullable
+        private StoredTransactionOutput last;
+        private int chunkOutputs;
+        private long outputs;
+        private boolean finished;
+
+        /**
+         * @param headers the snapshot block last, preceded by its ancestors, see {@link #export}.
+         */
+        public Writer(OutputStream out, NetworkParameters params, List<StoredBlock> headers) throws IOException {
+            checkArgument(!headers.isEmpty());
+            this.out = new DataOutputStream(checkNotNull(out));
+            final byte[] header = encodeHeader(params.getId(), headers);
+            this.out.write(header);
+            snapshotDigest.update(header);
+        }
+
+        /**
+         * @throws IllegalArgumentException if outputs aren't added in outpoint order.
+         */
+        public void add(StoredTransactionOutput output) throws IOException {
+            checkState(!finished, "Snapshot is finished");
+            checkArgument(last == null || compareOutpoints(last, output) < 0,
+                    "Outputs must be added in outpoint order");
+            last = output;
+            chunk.write(output.getHash().getBytes());
+            OutputCompression.writeVarInt(chunk, output.getIndex());
+            chunk.write(OutputCompression.encode(output));
+            chunkOutputs++;
+            outputs++;
+            if (chunk.size() >= CHUNK_BYTES)
+                writeChunk();
+        }
+
+        private void writeChunk() throws IOException {
+            final byte[] payload = chunk.toByteArray();
+            final byte[] checksum = chunkDigest.digest(payload);
+            out.writeInt(chunkOutputs);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.write(checksum);
+            snapshotDigest.update(checksum);
+            chunk.reset();
+            chunkOutputs = 0;
+        }
+
+        /**
+         * Writes the last chunk and the trailer, and flushes the stream.
+         *
+         * @return the snapshot hash.
+         */
+        public Sha256Hash finish() throws IOException {
+            checkState(!finished, "Snapshot is finished");
+            finished = true;
+            if (chunkOutputs > 0)
+                writeChunk();
+            out.writeInt(0);
+            out.writeLong(outputs);
+            final byte[] count = ByteBuffer.allocate(8).putLong(outputs).array();
+            snapshotDigest.update(count);
+            final byte[] hash = snapshotDigest.digest();
+            out.write(hash);
+            out.flush();
+            return new Sha256Hash(hash);
+        }
+
+        public long getOutputCount() {
+            return outputs;
+        }
+    }
+
+    static int compareOutpoints(StoredTransactionOutput a, StoredTransactionOutput b) {
+        final byte[] hashA = a.getHash().getBytes();
+        final byte[] hashB = b.getHash().getBytes();
+        for (int i = 0; i < 32; i++) {
+            final int diff = (hashA[i] & 0xFF) - (hashB[i] & 0xFF);
+            if (diff != 0)
+                return diff;
+        }
+        return a.getIndex() < b.getIndex() ? -1 : (a.getIndex() == b.getIndex() ? 0 : 1);
+    }
+
+    /**
+     * A chunk as read from the stream, not yet checked.
+     */
+    static final class RawChunk {
+        private final int outputs;
+        private final byte[] payload;
+        private final byte[] checksum;
+
+        private RawChunk(int outputs, byte[] payload, byte[] checksum) {
+            this.outputs = outputs;
+            this.payload = payload;
+            this.checksum = checksum;
+        }
+
+        List<StoredTransactionOutput> decode() throws IOException {
+            if (!Arrays.equals(checksum, sha256().digest(payload)))
+                throw new IOException("Snapshot chunk checksum mismatch");
+            final List<StoredTransactionOutput> result = new ArrayList<StoredTransactionOutput>(outputs);
+            final ByteBuffer in = ByteBuffer.wrap(payload);
+            try {
+                for (int i = 0; i < outputs; i++) {
+                    final byte[] hash = new byte[32];
+                    in.get(hash);
+                    final long index = OutputCompression.readVarInt(in);
+                    final StoredTransactionOutput output = OutputCompression.decode(new Sha256Hash(hash), index, in);
+                    if (i > 0 && compareOutpoints(result.get(i - 1), output) >= 0)
+                        throw new IOException("Snapshot chunk out of outpoint order");
+                    result.add(output);
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt snapshot chunk", e);
+            }
+            if (in.hasRemaining())
+                throw new IOException("Trailing bytes in snapshot chunk");
+            return result;
+        }
+    }
+
+    /**
+     * Reads a snapshot chunk by chunk. Not thread safe.
+     */
+    public static final class Reader {
+        private final DataInputStream in;
+        private final List<StoredBlock> headers;
+        private final MessageDigest snapshotDigest = sha256();
+        @Nullable
+        private StoredTransactionOutput lastOutput;
+        private long outputs;
+        @Nullable
+        private Sha256Hash snapshotHash;
+
+        public Reader(InputStream in, NetworkParameters params) throws IOException {
+            this.in = new DataInputStream(checkNotNull(in));
+            final byte[] magic = new byte[MAGIC.length];
+            this.in.readFully(magic);
+            if (!Arrays.equals(MAGIC, magic))
+                throw new IOException("Not a UTXO snapshot");
+            final int version = this.in.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version);
+            final String networkId = this.in.readUTF();
+            if (!networkId.equals(params.getId()))
+                throw new IOException("Snapshot is for " + networkId + ", not " + params.getId());
+            final int count = this.in.readInt();
+            if (count < 1 || count > MAX_HEADERS)
+                throw new IOException("Corrupt snapshot header count " + count);
+            headers = new ArrayList<StoredBlock>(count);
+            final byte[] compact = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+            for (int i = 0; i < count; i++) {
+                this.in.readFully(compact);
+                final StoredBlock header;
+                try {
+                    header = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(compact));
+                } catch (ProtocolException e) {
+                    throw new IOException(e);
+                }
+                if (i > 0) {
+                    final StoredBlock prev = headers.get(i - 1);
+                    if (!header.getHeader().getPrevBlockHash().equals(prev.getHeader().getHash())
+                            || header.getHeight() != prev.getHeight() + 1)
+                        throw new IOException("Snapshot headers don't form a chain");
+                }
+                headers.add(header);
+            }
+            snapshotDigest.update(encodeHeader(networkId, headers));
+        }
+
+        /**
+         * @return the snapshot block.
+         */
+        public StoredBlock getBlock() {
+            return headers.get(headers.size() - 1);
+        }
+
+        /**
+         * @return the snapshot block's ancestors, oldest first, followed by the block itself.
+         */
+        public List<StoredBlock> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * @return outputs of the next chunk, checked against its checksum, or null after the last one.
+         */
+        @Nullable
+        public List<StoredTransactionOutput> nextChunk() throws IOException {
+            final RawChunk chunk = nextRawChunk();
+            if (chunk == null)
+                return null;
+            final List<StoredTransactionOutput> outputs = chunk.decode();
+            checkFollows(lastOutput, outputs);
+            if (!outputs.isEmpty())
+                lastOutput = outputs.get(outputs.size() - 1);
+            return outputs;
+        }
+
+        @Nullable
+        RawChunk nextRawChunk() throws IOException {
+            if (snapshotHash != null)
+                return null;
+            try {
+                final int count = in.readInt();
+                if (count == 0) {
+                    readTrailer();
+                    return null;
+                }
+                final int length = in.readInt();
+                if (count < 0 || length < 0 || length > MAX_CHUNK_BYTES)
+                    throw new IOException("Corrupt snapshot chunk header");
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                final byte[] checksum = new byte[32];
+                in.readFully(checksum);
+                snapshotDigest.update(checksum);
+                outputs += count;
+                return new RawChunk(count, payload, checksum);
+            } catch (EOFException e) {
+                throw new IOException("Truncated snapshot", e);
+            }
+        }
+
+        private void readTrailer() throws IOException {
+            final long count = in.readLong();
+            if (count != outputs)
+                throw new IOException("Snapshot has " + outputs + " outputs, trailer says " + count);
+            snapshotDigest.update(ByteBuffer.allocate(8).putLong(count).array());
+            final byte[] computed = snapshotDigest.digest();
+            final byte[] stored = new byte[32];
+            in.readFully(stored);
+            if (!Arrays.equals(computed, stored))
+                throw new IOException("Snapshot hash mismatch");
+            snapshotHash = new Sha256Hash(computed);
+        }
+
+        /**
+         * @return the verified snapshot hash, once all chunks were read.
+         */
+        public Sha256Hash getSnapshotHash() {
+            checkState(snapshotHash != null, "Snapshot wasn't read to the end");
+            return snapshotHash;
+        }
+
+        public long getOutputCount() {
+            return outputs;
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a whole snapshot, checking every chunk.
+     *
+     * @return the snapshot hash.
+     */
+    public static Sha256Hash verify(InputStream in, NetworkParameters params) throws IOException {
+        final Reader reader = new Reader(in, params);
+        List<StoredTransactionOutput> chunk;
+        do {
+            chunk = reader.nextChunk();
+        } while (chunk != null);
+        return reader.getSnapshotHash();
+    }
+
+}
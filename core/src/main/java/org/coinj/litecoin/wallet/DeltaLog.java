@@ -0,0 +1,201 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.wallet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Append-only log of opaque records, each framed with its length and a CRC32 of the payload. Appends are buffered
+ * until {@link #sync()}, which writes and fsyncs them in one go, so saving costs only what changed since the last
+ * sync.</p>
+ *
+ * <p>A crash can leave a torn record at the tail; {@link #replay(Visitor)} stops at the first record that doesn't
+ * check out and truncates the file there, so the log always ends on the last fully synced record.</p>
+ */
+public class DeltaLog {
+
+    private static final Logger log = LoggerFactory.getLogger(DeltaLog.class);
+
+    private static final int MAGIC = 0x4c44454c;  // "LDEL"
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_OVERHEAD = 8;
+    public static final int MAX_RECORD_SIZE = 32 * 1024 * 1024;
+
+    public interface Visitor {
+
+        void onRecord(byte[] payload) throws IOException;
+
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private boolean replayed;
+    private boolean unsynced;
+    private long records;
+
+    public DeltaLog(File file) throws IOException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        if (channel.size() < HEADER_SIZE) {
+            writeHeader();
+        } else {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC)
+                throw new IOException("Not a delta log: " + file);
+        }
+    }
+
+    /**
+     * Feeds every intact record to the visitor in append order, then positions the log for appending after the last
+     * one. Must be called once before the first append.
+     */
+    public synchronized void replay(Visitor visitor) throws IOException {
+        long position = HEADER_SIZE;
+        final long size = channel.size();
+        final ByteBuffer frame = ByteBuffer.allocate(RECORD_OVERHEAD);
+        final CRC32 crc = new CRC32();
+        records = 0;
+        while (position + RECORD_OVERHEAD <= size) {
+            frame.clear();
+            readFully(frame, position);
+            frame.flip();
+            final int length = frame.getInt();
+            final long checksum = frame.getInt() & 0xffffffffL;
+            if (length < 0 || length > MAX_RECORD_SIZE || position + RECORD_OVERHEAD + length > size)
+                break;
+            final ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, position + RECORD_OVERHEAD);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if (crc.getValue() != checksum)
+                break;
+            visitor.onRecord(payload.array());
+            position += RECORD_OVERHEAD + length;
+            records++;
+        }
+        if (position < size) {
+            log.warn("Truncating {} bytes of torn or corrupt records from {}", size - position, file);
+            channel.truncate(position);
+            channel.force(true);
+        }
+        channel.position(position);
+        replayed = true;
+    }
+
+    /**
+     * Buffers a record; it's durable once {@link #sync()} returns.
+     */
+    public synchronized void append(byte[] payload) throws IOException {
+        checkState(replayed, "replay the log before appending");
+        if (payload.length > MAX_RECORD_SIZE)
+            throw new IOException("Record too large: " + payload.length);
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        pendingOut.writeInt(payload.length);
+        pendingOut.writeInt((int) crc.getValue());
+        pendingOut.write(payload);
+        records++;
+    }
+
+    public synchronized void sync() throws IOException {
+        write();
+        if (unsynced) {
+            channel.force(false);
+            unsynced = false;
+        }
+    }
+
+    /**
+     * Hands buffered records to the operating system without fsync: they survive a process crash, not a power loss.
+     */
+    public synchronized void write() throws IOException {
+        if (pending.size() == 0)
+            return;
+        final ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        pending.reset();
+        unsynced = true;
+    }
+
+    /**
+     * Drops every record, after their effect went into a new base snapshot.
+     */
+    public synchronized void reset() throws IOException {
+        pending.reset();
+        channel.truncate(HEADER_SIZE);
+        channel.position(HEADER_SIZE);
+        channel.force(true);
+        records = 0;
+        replayed = true;
+        unsynced = false;
+    }
+
+    /** @return synced size of the log in bytes. */
+    public synchronized long size() throws IOException {
+        return channel.size();
+    }
+
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void close() throws IOException {
+        sync();
+        raf.close();
+    }
+
+    private void writeHeader() throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.flip();
+        channel.truncate(0);
+        channel.write(header, 0);
+        channel.force(true);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of " + file);
+        }
+    }
+
+}
@@ -0,0 +1,394 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.wallet;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.core.WalletExtension;
+import org.bitcoinj.store.UnreadableWalletException;
+import org.bitcoinj.store.WalletProtobufSerializer;
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Loads a protobuf wallet without materialising its whole history. The file is streamed once: every transaction
+ * record is indexed where it is by a {@link TransactionArchive} over the wallet file itself, reading only its hash and
+ * pool, and only the transactions the wallet needs to work are handed to the serializer together with the keys and
+ * everything else: those that aren't
+ * in the spent or dead pools and the wallet transactions their inputs spend, plus whatever they reference as the
+ * spender of one of their outputs, transitively, so the serializer can still connect every input and spent output.</p>
+ *
+ * <p>Fully spent and dead history stays in the archive and is materialised on demand through
+ * {@link LoadedWallet#getTransaction(Sha256Hash)}. Those transactions are rebuilt from their protobuf fields and
+ * aren't connected to the wallet; confidence and pool metadata is available from
+ * {@link LoadedWallet#getProto(Sha256Hash)}.</p>
+ *
+ * <p>The {@link Wallet} holds only the eager subset, so it must never be saved on its own: that would drop the
+ * archived history. Save through {@link LoadedWallet#saveToFile(File)}, which writes the wallet together with the
+ * archived transactions. Whatever was loaded eagerly is saved as the wallet has it now, so transactions it removed
+ * stay removed; archived history is dropped through {@link LoadedWallet#clearTransactions(int)},
+ * {@link LoadedWallet#reset()} or {@link LoadedWallet#forget(Sha256Hash)} instead of the wallet's own methods.</p>
+ *
+ * <p>The wallet file stays mapped until {@link LoadedWallet#close()}. Saving over it is fine where a mapped file can
+ * be replaced by renaming, as on POSIX systems, where the mapping keeps the old contents; on Windows, save to another
+ * file. Wallet files must be under 2 GB.</p>
+ */
+public class LazyWalletLoader {
+
+    private static final Logger log = LoggerFactory.getLogger(LazyWalletLoader.class);
+
+    // Field numbers from wallet.proto.
+    private static final int WALLET_TRANSACTION_FIELD = 4;
+    private static final int TRANSACTION_HASH_FIELD = 2;
+    private static final int TRANSACTION_POOL_FIELD = 3;
+    private static final int POOL_SPENT = 5;
+    private static final int POOL_DEAD = 10;
+
+    public static final int MATERIALISED_CACHE_SIZE = 1024;
+
+    public static final class LoadedWallet {
+
+        private final Wallet wallet;
+        private final TransactionArchive archive;
+        private final NetworkParameters params;
+        private final WalletProtobufSerializer serializer;
+        private final HashSet<Sha256Hash> eager;
+        private final HashSet<Sha256Hash> forgotten = new HashSet<Sha256Hash>();
+        private boolean historyCleared;
+        private final Map<Sha256Hash, Transaction> materialised = new LinkedHashMap<Sha256Hash, Transaction>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> eldest) {
+                return size() > MATERIALISED_CACHE_SIZE;
+            }
+        };
+
+        private LoadedWallet(Wallet wallet, TransactionArchive archive, NetworkParameters params,
+                             WalletProtobufSerializer serializer, HashSet<Sha256Hash> eager) {
+            this.wallet = wallet;
+            this.archive = archive;
+            this.params = params;
+            this.serializer = serializer;
+            this.eager = eager;
+        }
+
+        /**
+         * @return the eagerly loaded part of the wallet. Don't save it directly, see {@link #saveToFile(File)}.
+         */
+        public Wallet getWallet() {
+            return wallet;
+        }
+
+        /**
+         * Writes the wallet protobuf followed by the archived transactions that haven't been dropped. Repeated fields
+         * may come in any order, so the result reads as one wallet with its whole history.
+         */
+        public synchronized void writeTo(OutputStream stream) throws IOException {
+            final Protos.Wallet proto = serializer.walletToProto(wallet);
+            final HashSet<ByteString> live = new HashSet<ByteString>();
+            for (Protos.Transaction tx : proto.getTransactionList()) {
+                live.add(tx.getHash());
+            }
+            final CodedOutputStream out = CodedOutputStream.newInstance(stream);
+            proto.writeTo(out);
+            archive.forEach(new TransactionArchive.Visitor() {
+                @Override
+                public void visit(Sha256Hash hash, ByteBuffer record) throws IOException {
+                    if (isArchived(hash) && !live.contains(ByteString.copyFrom(hash.getBytes())))
+                        out.writeBytes(WALLET_TRANSACTION_FIELD, ByteString.copyFrom(record));
+                }
+            });
+            out.flush();
+        }
+
+        /**
+         * Saves the wallet with its archived history, through a temporary file renamed over {@code file}.
+         */
+        public void saveToFile(File file) throws IOException {
+            final File temp = new File(file.getPath() + ".tmp");
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                writeTo(new BufferedOutputStream(out, 1 << 16));
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            // File.renameTo doesn't replace an existing file on Windows.
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+                throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+
+        /**
+         * Clears the wallet's transactions like {@link Wallet#clearTransactions(int)}, along with the archived history.
+         */
+        public synchronized void clearTransactions(int fromHeight) {
+            wallet.clearTransactions(fromHeight);
+            historyCleared = true;
+            materialised.clear();
+        }
+
+        /**
+         * Resets the wallet like {@link Wallet#reset()}, along with the archived history.
+         */
+        public synchronized void reset() {
+            wallet.reset();
+            historyCleared = true;
+            materialised.clear();
+        }
+
+        /**
+         * Drops an archived transaction, so it's no longer returned or saved. Transactions loaded eagerly are
+         * removed through the wallet.
+         */
+        public synchronized void forget(Sha256Hash hash) {
+            if (isArchived(hash) && archive.contains(hash)) {
+                forgotten.add(hash);
+                materialised.remove(hash);
+            }
+        }
+
+        // Whether the archive's record of a transaction is still the one to use, rather than the wallet's.
+        private synchronized boolean isArchived(Sha256Hash hash) {
+            return !historyCleared && !eager.contains(hash) && !forgotten.contains(hash);
+        }
+
+        /**
+         * @return the wallet protobuf record of a transaction as it was in the file, if it's still in the wallet,
+         * loaded eagerly or not.
+         */
+        @Nullable
+        public Protos.Transaction getProto(Sha256Hash hash) throws IOException {
+            if (!isArchived(hash) && wallet.getTransaction(hash) == null)
+                return null;
+            final ByteBuffer record = archive.get(hash);
+            return record == null ? null : Protos.Transaction.parseFrom(ByteString.copyFrom(record));
+        }
+
+        /**
+         * @return the transaction from the wallet if it was loaded eagerly, otherwise materialised from the archive.
+         */
+        @Nullable
+        public Transaction getTransaction(Sha256Hash hash) throws IOException, ProtocolException {
+            final Transaction loaded = wallet.getTransaction(hash);
+            if (loaded != null)
+                return loaded;
+            synchronized (materialised) {
+                final Transaction cached = materialised.get(hash);
+                if (cached != null)
+                    return cached;
+            }
+            final Protos.Transaction proto = getProto(hash);
+            if (proto == null)
+                return null;
+            final Transaction tx = new Transaction(params, toBitcoinSerialization(proto));
+            if (!tx.getHash().equals(hash))
+                throw new ProtocolException("Archived transaction " + hash + " doesn't reserialize to its hash");
+            synchronized (materialised) {
+                materialised.put(hash, tx);
+            }
+            return tx;
+        }
+
+        public int getTransactionCount() {
+            return wallet.getTransactions(true).size() + getArchivedCount();
+        }
+
+        public synchronized int getArchivedCount() {
+            return historyCleared ? 0 : archive.size() - eager.size() - forgotten.size();
+        }
+
+        public void close() throws IOException {
+            archive.close();
+        }
+
+    }
+
+    public static LoadedWallet load(File walletFile, NetworkParameters params, WalletProtobufSerializer serializer,
+                                    @Nullable WalletExtension[] extensions) throws IOException, UnreadableWalletException {
+        final long start = System.currentTimeMillis();
+        final TransactionArchive archive = TransactionArchive.over(walletFile);
+        final ByteArrayOutputStream reduced = new ByteArrayOutputStream();
+        final CodedOutputStream out = CodedOutputStream.newInstance(reduced);
+        final ArrayDeque<Sha256Hash> queue = new ArrayDeque<Sha256Hash>();
+        final HashSet<Sha256Hash> eager = new HashSet<Sha256Hash>();
+
+        final InputStream stream = new BufferedInputStream(new FileInputStream(walletFile), 1 << 16);
+        try {
+            final CodedInputStream in = CodedInputStream.newInstance(stream);
+            in.setSizeLimit(Integer.MAX_VALUE);
+            int tag;
+            while ((tag = in.readTag()) != 0) {
+                if (WireFormat.getTagFieldNumber(tag) == WALLET_TRANSACTION_FIELD) {
+                    final int length = in.readRawVarint32();
+                    final long position = in.getTotalBytesRead();
+                    final int limit = in.pushLimit(length);
+                    final long[] hashPosition = new long[1];
+                    final int[] pool = new int[1];
+                    final Sha256Hash hash = scanHashAndPool(in, hashPosition, pool);
+                    in.skipRawBytes(in.getBytesUntilLimit());
+                    in.popLimit(limit);
+                    archive.index(hash, position, length, hashPosition[0]);
+                    if (pool[0] != POOL_SPENT && pool[0] != POOL_DEAD && eager.add(hash))
+                        queue.add(hash);
+                } else {
+                    copyField(tag, in, out);
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        archive.seal();
+
+        // Parents are pulled in one level deep, for the unspent transactions only: their spenders follow anyway.
+        final HashSet<Sha256Hash> roots = new HashSet<Sha256Hash>(eager);
+        while (!queue.isEmpty()) {
+            final Sha256Hash hash = queue.poll();
+            final ByteString record = ByteString.copyFrom(archive.get(hash));
+            final Protos.Transaction tx = Protos.Transaction.parseFrom(record);
+            for (Protos.TransactionOutput output : tx.getTransactionOutputList()) {
+                if (!output.hasSpentByTransactionHash())
+                    continue;
+                final Sha256Hash spender = new Sha256Hash(output.getSpentByTransactionHash().toByteArray());
+                if (!eager.contains(spender) && archive.contains(spender)) {
+                    eager.add(spender);
+                    queue.add(spender);
+                }
+            }
+            if (roots.contains(hash)) {
+                for (Protos.TransactionInput input : tx.getTransactionInputList()) {
+                    final Sha256Hash parent = new Sha256Hash(input.getTransactionOutPointHash().toByteArray());
+                    if (!eager.contains(parent) && archive.contains(parent)) {
+                        eager.add(parent);
+                        queue.add(parent);
+                    }
+                }
+            }
+            out.writeBytes(WALLET_TRANSACTION_FIELD, record);
+        }
+        out.flush();
+
+        final CodedInputStream reducedIn = CodedInputStream.newInstance(reduced.toByteArray());
+        reducedIn.setSizeLimit(Integer.MAX_VALUE);
+        final Wallet wallet = serializer.readWallet(params, extensions, Protos.Wallet.parseFrom(reducedIn));
+        final LoadedWallet loaded = new LoadedWallet(wallet, archive, params, serializer, eager);
+        log.info("Loaded {} of {} wallet transactions eagerly in {} ms, the rest stays mapped from {}",
+                new Object[] {eager.size(), archive.size(), System.currentTimeMillis() - start, walletFile});
+        return loaded;
+    }
+
+    // Reads the hash and pool at the start of a transaction record, leaving the rest of it unread: the serializer
+    // writes them before the inputs and outputs, so the loop stops early for all but hand-made files.
+    private static Sha256Hash scanHashAndPool(CodedInputStream in, long[] hashPosition, int[] pool) throws IOException {
+        byte[] hash = null;
+        boolean hasPool = false;
+        pool[0] = 0;
+        while ((hash == null || !hasPool) && in.getBytesUntilLimit() > 0) {
+            final int tag = in.readTag();
+            final int field = WireFormat.getTagFieldNumber(tag);
+            if (field == TRANSACTION_HASH_FIELD && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                final int length = in.readRawVarint32();
+                hashPosition[0] = in.getTotalBytesRead();
+                hash = in.readRawBytes(length);
+            } else if (field == TRANSACTION_POOL_FIELD) {
+                pool[0] = in.readEnum();
+                hasPool = true;
+            } else {
+                in.skipField(tag);
+            }
+        }
+        if (hash == null || hash.length != 32)
+            throw new IOException("Wallet transaction without a hash");
+        return new Sha256Hash(hash);
+    }
+
+    private static void copyField(int tag, CodedInputStream in, CodedOutputStream out) throws IOException {
+        out.writeRawVarint32(tag);
+        switch (WireFormat.getTagWireType(tag)) {
+            case WireFormat.WIRETYPE_VARINT:
+                out.writeRawVarint64(in.readRawVarint64());
+                break;
+            case WireFormat.WIRETYPE_FIXED64:
+                out.writeRawLittleEndian64(in.readRawLittleEndian64());
+                break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                final ByteString bytes = in.readBytes();
+                out.writeRawVarint32(bytes.size());
+                out.writeRawBytes(bytes);
+                break;
+            case WireFormat.WIRETYPE_FIXED32:
+                out.writeRawLittleEndian32(in.readRawLittleEndian32());
+                break;
+            default:
+                throw new IOException("Unexpected wire type in wallet: " + tag);
+        }
+    }
+
+    /**
+     * Rebuilds the network serialization of a transaction from its wallet protobuf record.
+     */
+    static byte[] toBitcoinSerialization(Protos.Transaction proto) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        Utils.uint32ToByteStreamLE(proto.getVersion(), bytes);
+        bytes.write(new VarInt(proto.getTransactionInputList().size()).encode());
+        for (Protos.TransactionInput input : proto.getTransactionInputList()) {
+            // Hashes are stored in display order.
+            bytes.write(Utils.reverseBytes(input.getTransactionOutPointHash().toByteArray()));
+            Utils.uint32ToByteStreamLE(input.getTransactionOutPointIndex() & 0xffffffffL, bytes);
+            final byte[] script = input.getScriptBytes().toByteArray();
+            bytes.write(new VarInt(script.length).encode());
+            bytes.write(script);
+            Utils.uint32ToByteStreamLE(input.hasSequence() ? input.getSequence() & 0xffffffffL : TransactionInput.NO_SEQUENCE, bytes);
+        }
+        bytes.write(new VarInt(proto.getTransactionOutputList().size()).encode());
+        for (Protos.TransactionOutput output : proto.getTransactionOutputList()) {
+            Utils.int64ToByteStreamLE(output.getValue(), bytes);
+            final byte[] script = output.getScriptBytes().toByteArray();
+            bytes.write(new VarInt(script.length).encode());
+            bytes.write(script);
+        }
+        Utils.uint32ToByteStreamLE(proto.hasLockTime() ? proto.getLockTime() & 0xffffffffL : 0, bytes);
+        return bytes.toByteArray();
+    }
+
+}
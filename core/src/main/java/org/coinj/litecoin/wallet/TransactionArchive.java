@@ -0,0 +1,257 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Read-only store of serialized records keyed by transaction hash, backed by a memory-mapped file. Records are
+ * either appended to a file of the archive's own, or indexed where they already are in an existing file such as the
+ * wallet itself. Either way the file is then mapped and records are handed out as slices of the mapping, so keeping
+ * millions of them around costs page cache rather than heap.</p>
+ *
+ * <p>The index is three sorted parallel arrays: the first 8 bytes of each hash, the record's position packed with
+ * its length, and the position of the full hash, which is compared on lookup. That's 24 bytes of heap per record.
+ * Appended records have their hash stored in front of them, indexed ones carry it inside. The file is mapped in
+ * {@link #SEGMENT_SIZE} segments overlapping by the largest record, so every record fits the segment it starts in.</p>
+ */
+public class TransactionArchive {
+
+    public static final int SEGMENT_SIZE = 1 << 30;
+    private static final int LENGTH_BITS = 26;
+    public static final int MAX_RECORD_SIZE = (1 << LENGTH_BITS) - 1 - 32;
+
+    public interface Visitor {
+        void visit(Sha256Hash hash, ByteBuffer record) throws IOException;
+    }
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final boolean appendable;
+    private long writePosition;
+    private long[] keys = new long[1024];
+    private long[] locations = new long[1024];
+    private long[] hashPositions = new long[1024];
+    private int size;
+    private MappedByteBuffer[] segments;
+
+    /**
+     * Starts a new, empty archive in the file, replacing whatever it held.
+     */
+    public TransactionArchive(File file) throws IOException {
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.appendable = true;
+        channel.truncate(0);
+    }
+
+    private TransactionArchive(RandomAccessFile raf) {
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.appendable = false;
+    }
+
+    /**
+     * Opens an existing file read-only, to {@link #index} records where they are rather than copying them.
+     */
+    public static TransactionArchive over(File file) throws IOException {
+        return new TransactionArchive(new RandomAccessFile(file, "r"));
+    }
+
+    /**
+     * Appends a record. Only valid before {@link #seal()}, for an archive with its own file.
+     */
+    public void append(Sha256Hash hash, byte[] record) throws IOException {
+        checkState(segments == null, "archive is sealed");
+        checkState(appendable, "archive is over an existing file");
+        checkArgument(record.length <= MAX_RECORD_SIZE, "record too large: %s", record.length);
+        final ByteBuffer buffer = ByteBuffer.allocate(32 + record.length);
+        buffer.put(hash.getBytes()).put(record).flip();
+        long position = writePosition;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        add(hash, writePosition + 32, record.length, writePosition);
+        writePosition = position;
+    }
+
+    /**
+     * Indexes a record that is already in the file. Only valid before {@link #seal()}.
+     *
+     * @param hashPosition where the 32 hash bytes are, within the record or anywhere up to it.
+     */
+    public void index(Sha256Hash hash, long position, int length, long hashPosition) {
+        checkState(segments == null, "archive is sealed");
+        checkArgument(length <= MAX_RECORD_SIZE, "record too large: %s", length);
+        checkArgument(hashPosition + 32 <= position + length && position + length - hashPosition <= MAX_RECORD_SIZE + 32);
+        add(hash, position, length, hashPosition);
+    }
+
+    private void add(Sha256Hash hash, long position, int length, long hashPosition) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            locations = Arrays.copyOf(locations, size * 2);
+            hashPositions = Arrays.copyOf(hashPositions, size * 2);
+        }
+        keys[size] = keyOf(hash);
+        locations[size] = (position << LENGTH_BITS) | length;
+        hashPositions[size] = hashPosition;
+        size++;
+    }
+
+    /**
+     * Sorts the index and maps the file. No more records can be added afterwards.
+     */
+    public void seal() throws IOException {
+        checkState(segments == null, "archive is sealed");
+        sort(0, size - 1);
+        final long fileSize = channel.size();
+        final int count = (int) ((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            final long start = (long) i * SEGMENT_SIZE;
+            final long length = Math.min(SEGMENT_SIZE + (1L << LENGTH_BITS), fileSize - start);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        }
+    }
+
+    /**
+     * @return a read-only view of the record, null if there's none for the hash.
+     */
+    @Nullable
+    public ByteBuffer get(Sha256Hash hash) {
+        checkState(segments != null, "archive isn't sealed yet");
+        final long key = keyOf(hash);
+        int index = Arrays.binarySearch(keys, 0, size, key);
+        if (index < 0)
+            return null;
+        while (index > 0 && keys[index - 1] == key) {
+            index--;
+        }
+        final byte[] expected = hash.getBytes();
+        for (; index < size && keys[index] == key; index++) {
+            if (Arrays.equals(hashAt(index), expected))
+                return slice(index);
+        }
+        return null;
+    }
+
+    public boolean contains(Sha256Hash hash) {
+        return get(hash) != null;
+    }
+
+    /**
+     * Visits every record, in no particular order.
+     */
+    public void forEach(Visitor visitor) throws IOException {
+        checkState(segments != null, "archive isn't sealed yet");
+        for (int i = 0; i < size; i++) {
+            visitor.visit(new Sha256Hash(hashAt(i)), slice(i));
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void close() throws IOException {
+        segments = null;
+        raf.close();
+    }
+
+    private byte[] hashAt(int index) {
+        final ByteBuffer region = region(index);
+        final byte[] hash = new byte[32];
+        region.position((int) (hashPositions[index] - start(index)));
+        region.get(hash);
+        return hash;
+    }
+
+    private ByteBuffer slice(int index) {
+        final ByteBuffer region = region(index);
+        final long location = locations[index];
+        final int offset = (int) ((location >>> LENGTH_BITS) - start(index));
+        region.position(offset).limit(offset + (int) (location & ((1 << LENGTH_BITS) - 1)));
+        return region.slice().asReadOnlyBuffer();
+    }
+
+    private long start(int index) {
+        return Math.min(locations[index] >>> LENGTH_BITS, hashPositions[index]);
+    }
+
+    // The segment the record starts in, positioned at its start.
+    private ByteBuffer region(int index) {
+        final long start = start(index);
+        final ByteBuffer segment = segments[(int) (start / SEGMENT_SIZE)].duplicate();
+        final int offset = (int) (start % SEGMENT_SIZE);
+        segment.position(offset);
+        return segment.slice();
+    }
+
+    private static long keyOf(Sha256Hash hash) {
+        return Utils.readInt64(hash.getBytes(), 0);
+    }
+
+    // Quicksort of the parallel arrays by key, recursing into the smaller half only.
+    private void sort(int low, int high) {
+        while (low < high) {
+            final long pivot = keys[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (j - low < high - i) {
+                sort(low, j);
+                low = i;
+            } else {
+                sort(i, high);
+                high = j;
+            }
+        }
+    }
+
+    private void swap(int a, int b) {
+        final long key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        final long location = locations[a];
+        locations[a] = locations[b];
+        locations[b] = location;
+        final long hashPosition = hashPositions[a];
+        hashPositions[a] = hashPositions[b];
+        hashPositions[b] = hashPosition;
+    }
+
+}
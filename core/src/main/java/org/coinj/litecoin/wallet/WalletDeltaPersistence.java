@@ -0,0 +1,437 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.wallet;
+
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.AbstractWalletEventListener;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.core.WalletExtension;
+import org.bitcoinj.store.UnreadableWalletException;
+import org.bitcoinj.store.WalletProtobufSerializer;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Saves a wallet as a base protobuf snapshot plus a {@link DeltaLog} of changed transactions next to it
+ * (<tt>wallet.dat</tt> and <tt>wallet.dat.delta</tt>), so a save after a block costs the transactions it touched
+ * instead of the whole wallet. Once the log outgrows {@link #COMPACTION_RATIO} of the base file, or something changed
+ * that isn't expressible as a delta, the next {@link #commit()} writes a fresh base snapshot and empties the log.</p>
+ *
+ * <p>Records are wallet protobuf <tt>Transaction</tt> messages encoded by the serializer itself, plus the last seen
+ * block. {@link #load(NetworkParameters, WalletProtobufSerializer, WalletExtension[])} merges them
+ * into the base snapshot's protobuf by transaction hash before handing it to the serializer, so the loaded wallet is
+ * indistinguishable from one saved in full. Depth is not logged: it follows from the last seen block on load.</p>
+ *
+ * <p>Key chain changes (new keys or scripts) and reorganisations mark the wallet for compaction rather than being
+ * logged.</p>
+ */
+public class WalletDeltaPersistence {
+
+    private static final Logger log = LoggerFactory.getLogger(WalletDeltaPersistence.class);
+
+    public static final String DELTA_SUFFIX = ".delta";
+    public static final double COMPACTION_RATIO = 0.5;
+    // Lets a small base snapshot accumulate some deltas before the first compaction.
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private static final byte RECORD_TRANSACTION = 1;
+    private static final byte RECORD_LAST_BLOCK = 2;
+
+    private final File baseFile;
+    private final WalletProtobufSerializer serializer;
+    private final DeltaLog deltaLog;
+    private final Object lock = new Object();
+    private Wallet wallet;
+    private TransactionBatch batch;
+    private final LinkedHashMap<Sha256Hash, Transaction> changed = new LinkedHashMap<Sha256Hash, Transaction>();
+    // Hashes marked again since the last commit took its copy of changed.
+    private final HashSet<Sha256Hash> remarked = new HashSet<Sha256Hash>();
+    // Pool, confidence, spends, broadcast peers and exchange rate last logged per transaction; depth-only changes
+    // aren't worth a record.
+    private final HashMap<Sha256Hash, long[]> loggedState = new HashMap<Sha256Hash, long[]>();
+    private boolean compactionRequired;
+    private long compactions;
+
+    private final AbstractWalletEventListener listener = new AbstractWalletEventListener() {
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            markChanged(tx);
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            markChanged(tx);
+        }
+
+        @Override
+        public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+            markChanged(tx);
+        }
+
+        @Override
+        public void onReorganize(Wallet wallet) {
+            requireCompaction();
+        }
+
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            requireCompaction();
+        }
+
+        @Override
+        public void onScriptsAdded(Wallet wallet, List<org.bitcoinj.script.Script> scripts) {
+            requireCompaction();
+        }
+    };
+
+    private WalletDeltaPersistence(File baseFile, WalletProtobufSerializer serializer) throws IOException {
+        this.baseFile = baseFile;
+        this.serializer = serializer;
+        this.deltaLog = new DeltaLog(deltaFileFor(baseFile));
+    }
+
+    public static File deltaFileFor(File baseFile) {
+        return new File(baseFile.getPath() + DELTA_SUFFIX);
+    }
+
+    /**
+     * Reads the base snapshot, replays the delta log on top of it and starts tracking the resulting wallet.
+     */
+    public static WalletDeltaPersistence load(File baseFile, NetworkParameters params, WalletProtobufSerializer serializer,
+                                              @Nullable WalletExtension[] extensions) throws IOException, UnreadableWalletException {
+        final WalletDeltaPersistence persistence = new WalletDeltaPersistence(baseFile, serializer);
+        final Protos.Wallet.Builder proto;
+        final FileInputStream in = new FileInputStream(baseFile);
+        try {
+            proto = WalletProtobufSerializer.parseToProto(in).toBuilder();
+        } finally {
+            in.close();
+        }
+        persistence.replayInto(proto);
+        persistence.attach(serializer.readWallet(params, extensions, proto.build()));
+        return persistence;
+    }
+
+    /**
+     * Starts delta persistence for a wallet that has no snapshot in this format yet, writing its base snapshot.
+     */
+    public static WalletDeltaPersistence create(Wallet wallet, File baseFile, WalletProtobufSerializer serializer) throws IOException {
+        final WalletDeltaPersistence persistence = new WalletDeltaPersistence(baseFile, serializer);
+        persistence.deltaLog.reset();
+        persistence.attach(wallet);
+        persistence.compact();
+        return persistence;
+    }
+
+    private void attach(Wallet wallet) {
+        synchronized (lock) {
+            checkState(this.wallet == null);
+            this.wallet = checkNotNull(wallet);
+            this.batch = new TransactionBatch(wallet.getParams());
+            seedLoggedState();
+        }
+        wallet.addEventListener(listener, Threading.SAME_THREAD);
+    }
+
+    public Wallet getWallet() {
+        synchronized (lock) {
+            return wallet;
+        }
+    }
+
+    /**
+     * Makes every change since the last commit durable: appends a record per changed transaction and fsyncs the log,
+     * or writes a new base snapshot if compaction is due.
+     */
+    public void commit() throws IOException {
+        final List<Transaction> toLog;
+        synchronized (lock) {
+            if (compactionRequired || deltaLog.size() > compactionThreshold()) {
+                compact();
+                return;
+            }
+            toLog = new ArrayList<Transaction>(changed.values());
+            remarked.clear();
+        }
+        // Nothing is forgotten until the log is synced: a failed commit leaves every change queued for the next one.
+        final HashMap<Sha256Hash, long[]> logged = new HashMap<Sha256Hash, long[]>();
+        final List<WalletTransaction> toEncode = new ArrayList<WalletTransaction>();
+        for (Transaction tx : toLog) {
+            final WalletTransaction.Pool pool = poolOf(tx);
+            if (pool == null)
+                continue;
+            final long[] state = stateOf(pool, tx);
+            synchronized (lock) {
+                if (Arrays.equals(state, loggedState.get(tx.getHash())))
+                    continue;
+            }
+            toEncode.add(new WalletTransaction(pool, tx));
+            logged.put(tx.getHash(), state);
+        }
+        for (Protos.Transaction proto : batch.encode(serializer, toEncode)) {
+            deltaLog.append(transactionRecord(proto));
+        }
+        final byte[] lastBlock = lastBlockRecord();
+        if (lastBlock != null)
+            deltaLog.append(lastBlock);
+        deltaLog.sync();
+        synchronized (lock) {
+            loggedState.putAll(logged);
+            // Changes marked while logging stay queued: their records may predate them.
+            for (Transaction tx : toLog) {
+                if (!remarked.contains(tx.getHash()))
+                    changed.remove(tx.getHash());
+            }
+        }
+    }
+
+    /**
+     * Writes the whole wallet as a new base snapshot next to the old one, swaps it in and empties the delta log.
+     */
+    public void compact() throws IOException {
+        synchronized (lock) {
+            final File temp = new File(baseFile.getPath() + ".tmp");
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                serializer.writeWallet(wallet, out);
+                out.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            // File.renameTo doesn't replace an existing file on Windows.
+            if (!temp.renameTo(baseFile) && !(baseFile.delete() && temp.renameTo(baseFile)))
+                throw new IOException("Failed to rename " + temp + " to " + baseFile);
+            deltaLog.reset();
+            changed.clear();
+            remarked.clear();
+            seedLoggedState();
+            compactionRequired = false;
+            compactions++;
+            log.info("Compacted wallet into {}, {} bytes", baseFile, baseFile.length());
+        }
+    }
+
+    public void close() throws IOException {
+        wallet.removeEventListener(listener);
+        deltaLog.close();
+    }
+
+    public long getCompactionCount() {
+        synchronized (lock) {
+            return compactions;
+        }
+    }
+
+    public long getDeltaLogSize() throws IOException {
+        return deltaLog.size();
+    }
+
+    private long compactionThreshold() {
+        return Math.max(MIN_COMPACTION_BYTES, (long) (baseFile.length() * COMPACTION_RATIO));
+    }
+
+    // Whatever the snapshot holds counts as logged. O(wallet), but only done where the wallet is read or written whole.
+    private void seedLoggedState() {
+        loggedState.clear();
+        for (WalletTransaction.Pool pool : WalletTransaction.Pool.values()) {
+            for (Transaction tx : wallet.getTransactionPool(pool).values()) {
+                loggedState.put(tx.getHash(), stateOf(pool, tx));
+            }
+        }
+    }
+
+    /**
+     * Marks the transaction and the parents its inputs spend, whose outputs now record the spend.
+     */
+    private void markChanged(Transaction tx) {
+        synchronized (lock) {
+            mark(tx);
+            for (TransactionInput input : tx.getInputs()) {
+                final TransactionOutput connected = input.getConnectedOutput();
+                if (connected != null && connected.getParentTransaction() != null)
+                    mark(connected.getParentTransaction());
+            }
+        }
+    }
+
+    private void mark(Transaction tx) {
+        changed.put(tx.getHash(), tx);
+        remarked.add(tx.getHash());
+    }
+
+    private void requireCompaction() {
+        synchronized (lock) {
+            compactionRequired = true;
+        }
+    }
+
+    @Nullable
+    private WalletTransaction.Pool poolOf(Transaction tx) {
+        for (WalletTransaction.Pool pool : WalletTransaction.Pool.values()) {
+            if (wallet.getTransactionPool(pool).containsKey(tx.getHash()))
+                return pool;
+        }
+        return null;
+    }
+
+    private static long[] stateOf(WalletTransaction.Pool pool, Transaction tx) {
+        final TransactionConfidence confidence = tx.getConfidence();
+        final long height = confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING
+                ? confidence.getAppearedAtChainHeight() : -1;
+        final int spent = countSpentOutputs(tx);
+        return new long[] {pool.ordinal(), confidence.getConfidenceType().ordinal(), height, spent,
+                confidence.numBroadcastPeers(), tx.getExchangeRate() != null ? 1 : 0};
+    }
+
+    private static int countSpentOutputs(Transaction tx) {
+        int spent = 0;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (output.getSpentBy() != null)
+                spent++;
+        }
+        return spent;
+    }
+
+    // Null until the wallet has seen a block, like the snapshot's optional last seen block fields.
+    @Nullable
+    private byte[] lastBlockRecord() throws IOException {
+        final Sha256Hash hash = wallet.getLastBlockSeenHash();
+        if (hash == null)
+            return null;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_LAST_BLOCK);
+        out.write(hash.getBytes());
+        out.writeInt(wallet.getLastBlockSeenHeight());
+        out.writeLong(wallet.getLastBlockSeenTimeSecs());
+        return bytes.toByteArray();
+    }
+
+    private static byte[] transactionRecord(Protos.Transaction tx) {
+        final byte[] proto = tx.toByteArray();
+        final byte[] record = new byte[proto.length + 1];
+        record[0] = RECORD_TRANSACTION;
+        System.arraycopy(proto, 0, record, 1, proto.length);
+        return record;
+    }
+
+    private void replayInto(final Protos.Wallet.Builder proto) throws IOException {
+        final HashMap<ByteString, Integer> indexByHash = new HashMap<ByteString, Integer>();
+        for (int i = 0; i < proto.getTransactionCount(); i++) {
+            indexByHash.put(proto.getTransaction(i).getHash(), i);
+        }
+        deltaLog.replay(new DeltaLog.Visitor() {
+            @Override
+            public void onRecord(byte[] payload) throws IOException {
+                if (payload[0] == RECORD_TRANSACTION) {
+                    final Protos.Transaction tx = Protos.Transaction.parseFrom(Arrays.copyOfRange(payload, 1, payload.length));
+                    final Integer index = indexByHash.get(tx.getHash());
+                    if (index != null) {
+                        proto.setTransaction(index, tx);
+                    } else {
+                        indexByHash.put(tx.getHash(), proto.getTransactionCount());
+                        proto.addTransaction(tx);
+                    }
+                } else if (payload[0] == RECORD_LAST_BLOCK) {
+                    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1));
+                    final byte[] hash = new byte[32];
+                    in.readFully(hash);
+                    proto.setLastSeenBlockHash(ByteString.copyFrom(hash));
+                    proto.setLastSeenBlockHeight(in.readInt());
+                    proto.setLastSeenBlockTimeSecs(in.readLong());
+                } else {
+                    throw new IOException("Unknown wallet delta record type " + payload[0]);
+                }
+            }
+        });
+        if (deltaLog.getRecordCount() > 0 && proto.hasLastSeenBlockHeight()) {
+            final int best = proto.getLastSeenBlockHeight();
+            for (int i = 0; i < proto.getTransactionCount(); i++) {
+                final Protos.Transaction.Builder tx = proto.getTransactionBuilder(i);
+                if (!tx.hasConfidence())
+                    continue;
+                final Protos.TransactionConfidence.Builder confidence = tx.getConfidenceBuilder();
+                if (confidence.getType() == Protos.TransactionConfidence.Type.BUILDING && confidence.hasAppearedAtHeight())
+                    confidence.setDepth(Math.max(1, best - confidence.getAppearedAtHeight() + 1));
+            }
+        }
+        log.info("Replayed {} wallet delta records from {}", deltaLog.getRecordCount(), deltaLog.getFile());
+    }
+
+    /**
+     * An empty wallet that hands the serializer a batch of transactions to encode, so delta records carry exactly what
+     * a full snapshot does for them. Encoding a batch costs the batch plus this wallet's own empty key chain.
+     */
+    private static final class TransactionBatch extends Wallet {
+
+        private List<WalletTransaction> transactions = Collections.emptyList();
+
+        TransactionBatch(NetworkParameters params) {
+            super(params);
+        }
+
+        synchronized List<Protos.Transaction> encode(WalletProtobufSerializer serializer, List<WalletTransaction> transactions) {
+            if (transactions.isEmpty())
+                return Collections.emptyList();
+            this.transactions = transactions;
+            try {
+                return serializer.walletToProto(this).getTransactionList();
+            } finally {
+                this.transactions = Collections.emptyList();
+            }
+        }
+
+        @Override
+        public Iterable<WalletTransaction> getWalletTransactions() {
+            return transactions;
+        }
+
+    }
+
+}
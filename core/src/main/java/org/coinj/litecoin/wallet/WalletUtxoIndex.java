@@ -0,0 +1,544 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.wallet;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.AbstractWalletEventListener;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.utils.Threading;
+import org.coinj.litecoin.LitecoinDefinition;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Incrementally maintained index of a wallet's unspent outputs, so coin selection and balances don't have to
+ * walk every wallet transaction. Outputs are kept in power-of-two value buckets: bucket <i>b</i> holds values in
+ * [2<sup>b-1</sup>, 2<sup>b</sup>), so any spendable output from a bucket above the target's covers it alone and
+ * below that at most two outputs from the target's own bucket do. Confirmation heights are summed per height, which
+ * makes the spendable balance at any depth a sum over the last few heights only.</p>
+ *
+ * <p>Coinbase outputs become spendable at {@link LitecoinDefinition#SPENDABLE_COINBASE_DEPTH} confirmations, other
+ * outputs at the depth the caller asks for. Unconfirmed outputs are indexed too and selectable with a minimum depth
+ * of 0.</p>
+ *
+ * <p>Once {@link #attach(Wallet) attached}, confidence changes keep confirmation heights current, and a pending
+ * transaction that dies, e.g. overridden by a double spend, gives back the outputs it spent unless something else
+ * spends them now.</p>
+ */
+public class WalletUtxoIndex {
+
+    private static final int BUCKETS = 64;
+
+    public static final class Utxo {
+
+        private final Sha256Hash txHash;
+        private final int index;
+        private final long value;
+        private final byte[] script;
+        private final boolean coinbase;
+        private int height;
+        private int slot;
+
+        private Utxo(Sha256Hash txHash, int index, long value, byte[] script, boolean coinbase, int height) {
+            this.txHash = txHash;
+            this.index = index;
+            this.value = value;
+            this.script = script;
+            this.coinbase = coinbase;
+            this.height = height;
+        }
+
+        public Sha256Hash getTxHash() {
+            return txHash;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public Coin getValue() {
+            return Coin.valueOf(value);
+        }
+
+        public byte[] getScriptBytes() {
+            return script;
+        }
+
+        public boolean isCoinbase() {
+            return coinbase;
+        }
+
+        /** @return height of the block that confirmed the output, -1 while unconfirmed. */
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public String toString() {
+            return txHash + ":" + index + " " + value;
+        }
+
+    }
+
+    public static final class Selection {
+
+        private final List<Utxo> gathered;
+        private final Coin valueGathered;
+
+        private Selection(List<Utxo> gathered, long valueGathered) {
+            this.gathered = gathered;
+            this.valueGathered = Coin.valueOf(valueGathered);
+        }
+
+        public List<Utxo> getGathered() {
+            return gathered;
+        }
+
+        public Coin getValueGathered() {
+            return valueGathered;
+        }
+
+    }
+
+    // Unordered outputs per bucket; each output knows its slot so removal is a swap with the last one.
+    private static final class Bucket {
+        private Utxo[] utxos = new Utxo[16];
+        private int size;
+
+        private void add(Utxo utxo) {
+            if (size == utxos.length)
+                utxos = Arrays.copyOf(utxos, size * 2);
+            utxo.slot = size;
+            utxos[size++] = utxo;
+        }
+
+        private void remove(Utxo utxo) {
+            final Utxo last = utxos[--size];
+            utxos[utxo.slot] = last;
+            last.slot = utxo.slot;
+            utxos[size] = null;
+        }
+    }
+
+    private final int spendableCoinbaseDepth;
+    private final ReentrantLock lock = Threading.lock("walletutxoindex");
+    private final Bucket[] buckets = new Bucket[BUCKETS];
+    private final HashMap<Sha256Hash, List<Utxo>> byTransaction = new HashMap<Sha256Hash, List<Utxo>>();
+    private final TreeMap<Integer, long[]> valueByHeight = new TreeMap<Integer, long[]>();
+    private final TreeMap<Integer, long[]> coinbaseValueByHeight = new TreeMap<Integer, long[]>();
+    private long totalValue;
+    private long unconfirmedValue;
+    private long unconfirmedCoinbaseValue;
+    private int size;
+    private int bestHeight = -1;
+
+    private final AbstractWalletEventListener listener = new AbstractWalletEventListener() {
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            setBestHeight(wallet.getLastBlockSeenHeight());
+            indexAvailable(tx, wallet);
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            setBestHeight(wallet.getLastBlockSeenHeight());
+            indexAvailable(tx, wallet);
+        }
+
+        @Override
+        public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+            setBestHeight(wallet.getLastBlockSeenHeight());
+            final TransactionConfidence confidence = tx.getConfidence();
+            switch (confidence.getConfidenceType()) {
+                case DEAD:
+                    onTransactionDead(tx, wallet);
+                    break;
+                case BUILDING:
+                    setHeight(tx.getHash(), confidence.getAppearedAtChainHeight());
+                    break;
+                case PENDING:
+                    setHeight(tx.getHash(), -1);
+                    break;
+                default:
+                    break;
+            }
+        }
+    };
+
+    public WalletUtxoIndex() {
+        this(LitecoinDefinition.SPENDABLE_COINBASE_DEPTH);
+    }
+
+    public WalletUtxoIndex(int spendableCoinbaseDepth) {
+        checkArgument(spendableCoinbaseDepth >= 1);
+        this.spendableCoinbaseDepth = spendableCoinbaseDepth;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Builds the index from the wallet's current unspent outputs. Later changes are fed with
+     * {@link #onTransaction(Transaction, int, Wallet)} and {@link #setBestHeight(int)}.
+     */
+    public static WalletUtxoIndex fromWallet(Wallet wallet, int bestHeight) {
+        final WalletUtxoIndex index = new WalletUtxoIndex();
+        index.setBestHeight(bestHeight);
+        for (Transaction tx : wallet.getTransactions(false)) {
+            final int height = heightOf(tx);
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (output.isAvailableForSpending() && output.isMine(wallet))
+                    index.addOutput(tx.getHash(), output.getIndex(), output.getValue(), output.getScriptBytes(), tx.isCoinBase(), height);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Attaches a new index to the wallet and then fills it from the wallet's unspent outputs, in that order so that
+     * no wallet event in between is missed.
+     */
+    public static WalletUtxoIndex attachedTo(Wallet wallet) {
+        final WalletUtxoIndex index = new WalletUtxoIndex();
+        index.attach(wallet);
+        index.setBestHeight(wallet.getLastBlockSeenHeight());
+        for (Transaction tx : wallet.getTransactions(false)) {
+            index.indexAvailable(tx, wallet);
+        }
+        return index;
+    }
+
+    /**
+     * Removes the outputs a newly seen transaction spends and indexes its outputs that belong to the wallet.
+     * Confirmations and reorganisations of transactions already seen go through {@link #setHeight(Sha256Hash, int)}.
+     *
+     * @param height height of the confirming block, -1 if the transaction is pending.
+     */
+    public void onTransaction(Transaction tx, int height, Wallet wallet) {
+        lock.lock();
+        try {
+            if (!tx.isCoinBase()) {
+                for (TransactionInput input : tx.getInputs()) {
+                    final TransactionOutPoint outpoint = input.getOutpoint();
+                    spend(outpoint.getHash(), (int) outpoint.getIndex());
+                }
+            }
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (output.isMine(wallet))
+                    addOutput(tx.getHash(), output.getIndex(), output.getValue(), output.getScriptBytes(), tx.isCoinBase(), height);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the outputs of a transaction that died and puts back the outputs it spent that the wallet has available
+     * again. Outputs another transaction spends now, like the one that overrode it, stay out.
+     */
+    public void onTransactionDead(Transaction tx, Wallet wallet) {
+        lock.lock();
+        try {
+            final List<Utxo> outputs = byTransaction.remove(tx.getHash());
+            if (outputs != null) {
+                for (Utxo utxo : outputs) {
+                    buckets[bucketOf(utxo.value)].remove(utxo);
+                    account(utxo, -1);
+                    size--;
+                }
+            }
+            if (tx.isCoinBase())
+                return;
+            for (TransactionInput input : tx.getInputs()) {
+                final TransactionOutPoint outpoint = input.getOutpoint();
+                final Transaction parent = wallet.getTransaction(outpoint.getHash());
+                if (parent == null
+                        || parent.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD)
+                    continue;
+                final TransactionOutput output = parent.getOutput(outpoint.getIndex());
+                if (output.isAvailableForSpending() && output.isMine(wallet))
+                    addOutput(parent.getHash(), output.getIndex(), output.getValue(), output.getScriptBytes(), parent.isCoinBase(), heightOf(parent));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Follows the wallet: transactions that send or receive coins are indexed, confidence changes move confirmation
+     * heights, see {@link #onTransactionDead(Transaction, Wallet)}, and the best height tracks the wallet's last seen
+     * block.
+     */
+    public void attach(Wallet wallet) {
+        wallet.addEventListener(listener, Threading.SAME_THREAD);
+    }
+
+    public void detach(Wallet wallet) {
+        wallet.removeEventListener(listener);
+    }
+
+    public void addOutput(Sha256Hash txHash, int index, Coin value, byte[] script, boolean coinbase, int height) {
+        checkArgument(value.signum() >= 0 && height >= -1);
+        final Utxo utxo = new Utxo(checkNotNull(txHash), index, value.value, script, coinbase, height);
+        lock.lock();
+        try {
+            List<Utxo> outputs = byTransaction.get(txHash);
+            if (outputs == null) {
+                outputs = new ArrayList<Utxo>(2);
+                byTransaction.put(txHash, outputs);
+            }
+            for (Utxo existing : outputs) {
+                if (existing.index == index)
+                    return;
+            }
+            outputs.add(utxo);
+            buckets[bucketOf(utxo.value)].add(utxo);
+            account(utxo, 1);
+            size++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the spent output, null if it wasn't indexed.
+     */
+    @Nullable
+    public Utxo spend(Sha256Hash txHash, int index) {
+        lock.lock();
+        try {
+            final List<Utxo> outputs = byTransaction.get(txHash);
+            if (outputs == null)
+                return null;
+            for (int i = 0; i < outputs.size(); i++) {
+                final Utxo utxo = outputs.get(i);
+                if (utxo.index == index) {
+                    outputs.remove(i);
+                    if (outputs.isEmpty())
+                        byTransaction.remove(txHash);
+                    buckets[bucketOf(utxo.value)].remove(utxo);
+                    account(utxo, -1);
+                    size--;
+                    return utxo;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the transaction's outputs to a new confirmation height, -1 when a reorganisation returned it to the
+     * mempool.
+     */
+    public void setHeight(Sha256Hash txHash, int height) {
+        checkArgument(height >= -1);
+        lock.lock();
+        try {
+            final List<Utxo> outputs = byTransaction.get(txHash);
+            if (outputs == null)
+                return;
+            for (Utxo utxo : outputs) {
+                if (utxo.height == height)
+                    continue;
+                account(utxo, -1);
+                utxo.height = height;
+                account(utxo, 1);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setBestHeight(int height) {
+        lock.lock();
+        try {
+            bestHeight = height;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Picks outputs with at least the given depth worth at least the target: the smallest bucket above the target
+     * first, a single output covering it alone, otherwise the largest outputs until it's covered.
+     *
+     * @return the selection, which falls short of the target if the spendable balance does.
+     */
+    public Selection select(Coin target, int minDepth) {
+        checkArgument(target.signum() > 0 && minDepth >= 0);
+        lock.lock();
+        try {
+            final int targetBucket = bucketOf(target.value);
+            for (int b = targetBucket + 1; b < BUCKETS; b++) {
+                final Utxo utxo = firstSpendable(buckets[b], minDepth);
+                if (utxo != null)
+                    return new Selection(ImmutableList.of(utxo), utxo.value);
+            }
+            final List<Utxo> gathered = new ArrayList<Utxo>();
+            long value = 0;
+            for (int b = targetBucket; b >= 0 && value < target.value; b--) {
+                final Bucket bucket = buckets[b];
+                for (int i = 0; i < bucket.size && value < target.value; i++) {
+                    final Utxo utxo = bucket.utxos[i];
+                    if (isSpendable(utxo, minDepth)) {
+                        gathered.add(utxo);
+                        value += utxo.value;
+                    }
+                }
+            }
+            return new Selection(gathered, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private Utxo firstSpendable(Bucket bucket, int minDepth) {
+        for (int i = 0; i < bucket.size; i++) {
+            if (isSpendable(bucket.utxos[i], minDepth))
+                return bucket.utxos[i];
+        }
+        return null;
+    }
+
+    private boolean isSpendable(Utxo utxo, int minDepth) {
+        final int depth = utxo.height < 0 ? 0 : bestHeight - utxo.height + 1;
+        return depth >= (utxo.coinbase ? Math.max(minDepth, spendableCoinbaseDepth) : minDepth);
+    }
+
+    /**
+     * @return the value of every indexed output, spendable or not.
+     */
+    public Coin getTotalBalance() {
+        lock.lock();
+        try {
+            return Coin.valueOf(totalValue);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the value of outputs with at least the given depth, counting coinbases only once mature.
+     */
+    public Coin getSpendableBalance(int minDepth) {
+        checkArgument(minDepth >= 0);
+        lock.lock();
+        try {
+            long value = totalValue - unconfirmedCoinbaseValue;
+            if (minDepth > 0)
+                value -= unconfirmedValue;
+            // Depth d means height <= best - d + 1; everything above that is too shallow.
+            value -= sumAbove(valueByHeight, bestHeight - minDepth + 1);
+            value -= sumAbove(coinbaseValueByHeight, bestHeight - Math.max(minDepth, spendableCoinbaseDepth) + 1);
+            return Coin.valueOf(value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long sumAbove(TreeMap<Integer, long[]> sums, int height) {
+        long value = 0;
+        for (Map.Entry<Integer, long[]> entry : sums.tailMap(height, false).entrySet()) {
+            value += entry.getValue()[0];
+        }
+        return value;
+    }
+
+    private void account(Utxo utxo, int sign) {
+        totalValue += sign * utxo.value;
+        if (utxo.height < 0) {
+            // An unconfirmed coinbase only exists after a reorganisation and is never spendable.
+            if (utxo.coinbase)
+                unconfirmedCoinbaseValue += sign * utxo.value;
+            else
+                unconfirmedValue += sign * utxo.value;
+            return;
+        }
+        final TreeMap<Integer, long[]> sums = utxo.coinbase ? coinbaseValueByHeight : valueByHeight;
+        long[] sum = sums.get(utxo.height);
+        if (sum == null) {
+            sum = new long[1];
+            sums.put(utxo.height, sum);
+        }
+        sum[0] += sign * utxo.value;
+        if (sum[0] == 0)
+            sums.remove(utxo.height);
+    }
+
+    private static int bucketOf(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Like {@link #onTransaction(Transaction, int, Wallet)} for a transaction the wallet holds, which later wallet
+     * transactions may already have spent from: only its outputs still available are indexed.
+     */
+    private void indexAvailable(Transaction tx, Wallet wallet) {
+        final int height = heightOf(tx);
+        lock.lock();
+        try {
+            if (!tx.isCoinBase()) {
+                for (TransactionInput input : tx.getInputs()) {
+                    final TransactionOutPoint outpoint = input.getOutpoint();
+                    spend(outpoint.getHash(), (int) outpoint.getIndex());
+                }
+            }
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (output.isAvailableForSpending() && output.isMine(wallet))
+                    addOutput(tx.getHash(), output.getIndex(), output.getValue(), output.getScriptBytes(), tx.isCoinBase(), height);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int heightOf(Transaction tx) {
+        final TransactionConfidence confidence = tx.getConfidence();
+        return confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING
+                ? confidence.getAppearedAtChainHeight() : -1;
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 Google Inc.
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.coinj.litecoin.store.BatchingH2FullPrunedBlockStore;
+import org.junit.After;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The FullPrunedBlockStoreTest over the batching H2 store, one JDBC transaction per 500 blocks
+ */
+public class BatchingH2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+
+    private BatchingH2FullPrunedBlockStore store;
+
+    @After
+    public void tearDown() throws Exception {
+        if (store != null)
+            store.close();
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        deleteFiles();
+        try {
+            final Connection connection = DriverManager.getConnection("jdbc:h2:test-batching;create=true;LOCK_TIMEOUT=60000");
+            Statement s = connection.createStatement();
+            s.executeUpdate("DROP TABLE IF EXISTS settings");
+            s.executeUpdate("DROP TABLE IF EXISTS headers");
+            s.executeUpdate("DROP TABLE IF EXISTS undoableBlocks");
+            s.executeUpdate("DROP TABLE IF EXISTS openOutputs");
+            s.close();
+            connection.close();
+        } catch (SQLException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        store = new BatchingH2FullPrunedBlockStore(params, "test-batching", blockCount);
+        return store;
+    }
+
+    private void deleteFiles() {
+        maybeDelete("test-batching.h2.db");
+        maybeDelete("test-batching.trace.db");
+    }
+
+    private void maybeDelete(String s) {
+        new File(s).delete();
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        ((BatchingH2FullPrunedBlockStore)store).resetStore();
+    }
+
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.coinj.api.CoinLocator;
+import org.coinj.litecoin.store.LsmFullPrunedBlockStore;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * An LSM tree implementation of the FullPrunedBlockStoreTest
+ */
+public class LsmFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+
+    private final File directory = new File("test-lsm-store");
+    private LsmFullPrunedBlockStore lsmStore;
+
+    @After
+    public void tearDown() throws Exception {
+        closeStore();
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        closeStore();
+        deleteFiles();
+        lsmStore = new LsmFullPrunedBlockStore(params, directory, blockCount);
+        return lsmStore;
+    }
+
+    private void closeStore() throws BlockStoreException {
+        if (lsmStore != null) {
+            lsmStore.close();
+            lsmStore = null;
+        }
+    }
+
+    private void deleteFiles() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        ((LsmFullPrunedBlockStore) store).resetStore();
+    }
+
+    @Test
+    public void undoDataIsPrunedInBackground() throws Exception {
+        final NetworkParameters params = new UnitTestParams(CoinLocator.discoverCoinDefinition());
+        createStore(params, 10);
+        final FullPrunedBlockChain chain = new FullPrunedBlockChain(params, lsmStore);
+        final ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        final Sha256Hash first = rollingBlock.getHash();
+        chain.add(rollingBlock);
+        for (int i = 1; i < 30; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+        lsmStore.awaitPruning();
+        assertNull(lsmStore.getUndoBlock(first));
+        assertNotNull(lsmStore.getUndoBlock(rollingBlock.getHash()));
+    }
+
+    @Test
+    public void reorgAwayAndBackRestoresCreatedOutputs() throws Exception {
+        final NetworkParameters params = new UnitTestParams(CoinLocator.discoverCoinDefinition());
+        createStore(params, 10);
+        final FullPrunedBlockChain chain = new FullPrunedBlockChain(params, lsmStore);
+        final ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        final TransactionOutPoint coinbaseOutput =
+                new TransactionOutPoint(params, 0, rollingBlock.getTransactions().get(0).getHash());
+        final Script coinbaseScript = rollingBlock.getTransactions().get(0).getOutput(0).getScriptPubKey();
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+        final Block forkPoint = rollingBlock;
+
+        // Block a creates an output that only exists on its branch.
+        final Block a = forkPoint.createNextBlock(null);
+        final Transaction payment = new Transaction(params);
+        payment.addOutput(new TransactionOutput(params, payment, Coin.valueOf(123456789), outKey.toAddress(params)));
+        payment.addSignedInput(coinbaseOutput, coinbaseScript, outKey);
+        a.addTransaction(payment);
+        a.solve();
+        chain.add(a);
+        final StoredTransactionOutput created = lsmStore.getTransactionOutput(payment.getHash(), 0);
+        assertNotNull(created);
+
+        // Reorg away, dropping it...
+        final Block b1 = forkPoint.createNextBlock(null);
+        chain.add(b1);
+        chain.add(b1.createNextBlock(null));
+        assertNull(lsmStore.getTransactionOutput(payment.getHash(), 0));
+
+        // ...and back, reconnecting block a from its undo data.
+        final Block a2 = a.createNextBlock(null);
+        chain.add(a2);
+        final Block a3 = a2.createNextBlock(null);
+        chain.add(a3);
+        assertEquals(a3.getHash(), chain.getChainHead().getHeader().getHash());
+        final StoredTransactionOutput restored = lsmStore.getTransactionOutput(payment.getHash(), 0);
+        assertNotNull(restored);
+        assertEquals(created.getValue(), restored.getValue());
+        assertEquals(created.getHeight(), restored.getHeight());
+        assertArrayEquals(created.getScriptBytes(), restored.getScriptBytes());
+
+        // The restored output has to be spendable, signature checks included.
+        final Block a4 = a3.createNextBlock(null);
+        final Transaction spend = new Transaction(params);
+        spend.addOutput(new TransactionOutput(params, spend, Coin.valueOf(123400000), new ECKey().toAddress(params)));
+        spend.addSignedInput(new TransactionOutPoint(params, 0, payment.getHash()),
+                payment.getOutput(0).getScriptPubKey(), outKey);
+        a4.addTransaction(spend);
+        a4.solve();
+        chain.add(a4);
+        assertEquals(a4.getHash(), chain.getChainHead().getHeader().getHash());
+        assertNull(lsmStore.getTransactionOutput(payment.getHash(), 0));
+        assertNotNull(lsmStore.getTransactionOutput(spend.getHash(), 0));
+    }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.UnitTestParams;
+import org.coinj.scrypt.ScryptAlg;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class LitecoinBlockHasherTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private Block block;
+    private LitecoinBlockHasher hasher;
+
+    @Before
+    public void setUp() throws Exception {
+        block = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        hasher = new LitecoinBlockHasher();
+    }
+
+    @Test
+    public void hashesAreMemoisedWhileHeaderIsUnchanged() throws Exception {
+        final Sha256Hash hash = hasher.calculateHash(block);
+        assertEquals(new Sha256Hash(Utils.dSha256Hash(block.headerAsBytes())), hash);
+        assertSame(hash, hasher.calculateHash(block));
+
+        final Sha256Hash powHash = hasher.calculatePofHash(block);
+        assertEquals(new Sha256Hash(Utils.reverseBytes(ScryptAlg.scryptDigest(block.headerAsBytes()))), powHash);
+        assertSame(powHash, hasher.calculatePofHash(block));
+    }
+
+    @Test
+    public void headerMutationInvalidatesMemo() throws Exception {
+        final Sha256Hash hash = hasher.calculateHash(block);
+        final Sha256Hash powHash = hasher.calculatePofHash(block);
+
+        block.setNonce(block.getNonce() + 1);
+        final Sha256Hash nonceChanged = hasher.calculateHash(block);
+        assertFalse(hash.equals(nonceChanged));
+        assertEquals(new Sha256Hash(Utils.dSha256Hash(block.headerAsBytes())), nonceChanged);
+        assertFalse(powHash.equals(hasher.calculatePofHash(block)));
+
+        block.setTime(block.getTimeSeconds() + 1);
+        assertEquals(new Sha256Hash(Utils.dSha256Hash(block.headerAsBytes())), hasher.calculateHash(block));
+    }
+
+    @Test
+    public void headerBytesComeFromMemo() throws Exception {
+        final byte[] first = hasher.headerBytes(block);
+        assertArrayEquals(block.headerAsBytes(), first);
+        final byte[] second = hasher.headerBytes(block);
+        assertNotSame(first, second);
+        first[0] ^= 1;
+        assertArrayEquals(block.headerAsBytes(), hasher.headerBytes(block));
+    }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.bitcoinj.script.ScriptOpCodes.OP_CHECKSIG;
+import static org.bitcoinj.script.ScriptOpCodes.OP_CODESEPARATOR;
+import static org.bitcoinj.script.ScriptOpCodes.OP_DUP;
+import static org.bitcoinj.script.ScriptOpCodes.OP_EQUALVERIFY;
+import static org.bitcoinj.script.ScriptOpCodes.OP_HASH160;
+import static org.junit.Assert.assertEquals;
+
+public class LitecoinSignatureHasherTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private final Random random = new Random(7);
+    private Transaction tx;
+    private byte[] connectedScript;
+
+    @Before
+    public void setUp() throws Exception {
+        tx = new Transaction(params);
+        for (int i = 0; i < 40; i++) {
+            final byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            tx.addInput(new Sha256Hash(hash), i % 3, new Script(new byte[0]));
+            tx.getInput(i).setSequenceNumber(0xFFFFFFF0L + (i % 10));
+        }
+        for (int i = 0; i < 25; i++) {
+            tx.addOutput(Coin.valueOf(1000 + i), new ECKey().toAddress(params));
+        }
+        tx.setLockTime(123456);
+
+        final byte[] pubKeyHash = new byte[20];
+        random.nextBytes(pubKeyHash);
+        connectedScript = new byte[25];
+        connectedScript[0] = (byte) OP_DUP;
+        connectedScript[1] = (byte) OP_HASH160;
+        connectedScript[2] = 20;
+        System.arraycopy(pubKeyHash, 0, connectedScript, 3, 20);
+        connectedScript[23] = (byte) OP_EQUALVERIFY;
+        connectedScript[24] = (byte) OP_CHECKSIG;
+    }
+
+    @Test
+    public void matchesBitcoinjForEveryHashType() throws Exception {
+        final LitecoinSignatureHasher hasher = new LitecoinSignatureHasher(tx);
+        for (Transaction.SigHash type : new Transaction.SigHash[] {Transaction.SigHash.ALL, Transaction.SigHash.NONE, Transaction.SigHash.SINGLE}) {
+            for (boolean anyoneCanPay : new boolean[] {false, true}) {
+                for (int i = 0; i < tx.getInputs().size(); i++) {
+                    assertEquals(type + " " + anyoneCanPay + " " + i,
+                            tx.hashForSignature(i, connectedScript, type, anyoneCanPay),
+                            hasher.hashForSignature(i, connectedScript, type, anyoneCanPay));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void inputsHashedOutOfOrderMatch() throws Exception {
+        final LitecoinSignatureHasher hasher = new LitecoinSignatureHasher(tx);
+        for (int i = tx.getInputs().size() - 1; i >= 0; i -= 7) {
+            assertEquals(tx.hashForSignature(i, connectedScript, Transaction.SigHash.ALL, false),
+                    hasher.hashForSignature(i, connectedScript, Transaction.SigHash.ALL, false));
+        }
+    }
+
+    @Test
+    public void codeSeparatorsAreStripped() throws Exception {
+        final byte[] script = new byte[connectedScript.length + 1];
+        script[0] = (byte) OP_CODESEPARATOR;
+        System.arraycopy(connectedScript, 0, script, 1, connectedScript.length);
+        final LitecoinSignatureHasher hasher = new LitecoinSignatureHasher(tx);
+        assertEquals(tx.hashForSignature(3, script, Transaction.SigHash.ALL, false),
+                hasher.hashForSignature(3, script, Transaction.SigHash.ALL, false));
+    }
+
+    @Test
+    public void mutationsInvalidateTheCache() throws Exception {
+        final LitecoinSignatureHasher hasher = new LitecoinSignatureHasher(tx);
+        hasher.hashForSignature(5, connectedScript, Transaction.SigHash.ALL, false);
+
+        tx.addOutput(Coin.valueOf(77), new ECKey().toAddress(params));
+        assertEquals(tx.hashForSignature(5, connectedScript, Transaction.SigHash.ALL, false),
+                hasher.hashForSignature(5, connectedScript, Transaction.SigHash.ALL, false));
+
+        tx.getInput(2).setSequenceNumber(1);
+        assertEquals(tx.hashForSignature(5, connectedScript, Transaction.SigHash.ALL, false),
+                hasher.hashForSignature(5, connectedScript, Transaction.SigHash.ALL, false));
+
+        tx.setLockTime(654321);
+        assertEquals(tx.hashForSignature(5, connectedScript, Transaction.SigHash.ALL, false),
+                hasher.hashForSignature(5, connectedScript, Transaction.SigHash.ALL, false));
+    }
+
+    @Test
+    public void singleWithoutMatchingOutputHashesToOne() throws Exception {
+        final LitecoinSignatureHasher hasher = new LitecoinSignatureHasher(tx);
+        assertEquals(tx.hashForSignature(30, connectedScript, Transaction.SigHash.SINGLE, false),
+                hasher.hashForSignature(30, connectedScript, Transaction.SigHash.SINGLE, false));
+    }
+
+}
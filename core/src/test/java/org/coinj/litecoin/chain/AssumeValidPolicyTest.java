@@ -0,0 +1,108 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.chain;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.coinj.litecoin.store.HeightIndex;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AssumeValidPolicyTest {
+
+    private static final class ListHeightIndex implements HeightIndex {
+        private final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+
+        @Override
+        @Nullable
+        public Sha256Hash getHashAtHeight(int height) {
+            return height < hashes.size() ? hashes.get(height) : null;
+        }
+
+        @Override
+        public int getBestHeight() {
+            return hashes.size() - 1;
+        }
+    }
+
+    @Test
+    public void skipsOnlyBestChainBlocksUpToTheAssumedValidOne() {
+        final ListHeightIndex headers = headers(200);
+        final AssumeValidPolicy policy = new AssumeValidPolicy(headers, hash(100), 100, 50);
+        assertFalse(policy.shouldVerifyScripts(hash(0), 0));
+        assertFalse(policy.shouldVerifyScripts(hash(100), 100));
+        assertTrue(policy.shouldVerifyScripts(hash(101), 101));
+        // a fork block at a trusted height
+        assertTrue(policy.shouldVerifyScripts(hash(1000 + 50), 50));
+        assertEquals(2, policy.getSkippedCount());
+        assertEquals(2, policy.getVerifiedCount());
+    }
+
+    @Test
+    public void verifiesUntilTheAssumedValidHeaderIsBuriedDeepEnough() {
+        final ListHeightIndex headers = headers(120);
+        final AssumeValidPolicy policy = new AssumeValidPolicy(headers, hash(100), 100, 50);
+        assertTrue(policy.shouldVerifyScripts(hash(10), 10));
+        for (int i = 120; i <= 150; i++) {
+            headers.hashes.add(hash(i));
+        }
+        assertFalse(policy.shouldVerifyScripts(hash(10), 10));
+    }
+
+    @Test
+    public void verifiesWhenTheHeaderChainLacksTheAssumedValidBlock() {
+        final ListHeightIndex headers = headers(200);
+        headers.hashes.set(100, hash(5000));
+        final AssumeValidPolicy policy = new AssumeValidPolicy(headers, hash(100), 100, 50);
+        assertTrue(policy.shouldVerifyScripts(hash(10), 10));
+    }
+
+    @Test
+    public void disabledAndParsed() {
+        assertTrue(AssumeValidPolicy.disabled().shouldVerifyScripts(hash(1), 1));
+        final ListHeightIndex headers = headers(20000);
+        assertFalse(AssumeValidPolicy.parse("0", headers).isEnabled());
+        final AssumeValidPolicy parsed = AssumeValidPolicy.parse("100:" + hash(100), headers);
+        assertEquals(100, parsed.getAssumedValidHeight());
+        assertEquals(hash(100), parsed.getAssumedValid());
+        assertFalse(parsed.shouldVerifyScripts(hash(3), 3));
+    }
+
+    private static ListHeightIndex headers(int count) {
+        final ListHeightIndex headers = new ListHeightIndex();
+        for (int i = 0; i < count; i++) {
+            headers.hashes.add(hash(i));
+        }
+        return headers;
+    }
+
+    private static Sha256Hash hash(int n) {
+        final byte[] bytes = new byte[32];
+        bytes[0] = (byte) n;
+        bytes[1] = (byte) (n >> 8);
+        bytes[31] = 1;
+        return new Sha256Hash(bytes);
+    }
+
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.chain;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockFileScannerTest {
+
+    private static final long MAGIC = 0xfbc0b6dbL;
+
+    private static void record(ByteArrayOutputStream out, long length, byte[] payload) {
+        out.write((int) (MAGIC >>> 24));
+        out.write((int) (MAGIC >>> 16));
+        out.write((int) (MAGIC >>> 8));
+        out.write((int) MAGIC);
+        out.write((int) length);
+        out.write((int) (length >>> 8));
+        out.write((int) (length >>> 16));
+        out.write((int) (length >>> 24));
+        out.write(payload, 0, payload.length);
+    }
+
+    private static byte[] payload(int length, int seed) {
+        final byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed + i);
+        }
+        return payload;
+    }
+
+    @Test
+    public void findsBlocksBetweenGarbage() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x17);
+        record(out, 100, payload(100, 1));
+        // zero padding as preallocated by the reference client
+        out.write(new byte[50], 0, 50);
+        // implausible length
+        record(out, 5000, new byte[0]);
+        record(out, 300, payload(300, 7));
+        final byte[] file = out.toByteArray();
+
+        final BlockFileScanner scanner = new BlockFileScanner(ByteBuffer.wrap(file), MAGIC, 1000);
+        assertTrue(scanner.next());
+        assertEquals(9, scanner.getBlockOffset());
+        assertArrayEquals(payload(100, 1), scanner.blockBytes());
+        assertTrue(scanner.next());
+        assertEquals(300, scanner.getBlockLength());
+        assertArrayEquals(payload(300, 7), scanner.blockBytes());
+        assertFalse(scanner.next());
+        assertEquals(file.length, scanner.getPosition());
+    }
+
+    @Test
+    public void stopsAtTornRecord() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        record(out, 100, payload(100, 1));
+        final int torn = out.size();
+        record(out, 100, payload(100, 2));
+        final byte[] complete = out.toByteArray();
+
+        final ByteBuffer buffer = ByteBuffer.wrap(complete);
+        buffer.limit(complete.length - 10);
+        final BlockFileScanner scanner = new BlockFileScanner(buffer, MAGIC, 1000);
+        assertTrue(scanner.next());
+        assertFalse(scanner.next());
+        assertEquals(torn, scanner.getPosition());
+
+        // the file grew, resume from the torn record
+        buffer.limit(complete.length);
+        buffer.position(scanner.getPosition());
+        final BlockFileScanner resumed = new BlockFileScanner(buffer, MAGIC, 1000);
+        assertTrue(resumed.next());
+        assertEquals(torn + 8, resumed.getBlockOffset());
+        assertArrayEquals(payload(100, 2), resumed.blockBytes());
+        assertFalse(resumed.next());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noCurrentBlock() {
+        new BlockFileScanner(ByteBuffer.allocate(10), MAGIC, 1000).blockBytes();
+    }
+
+}
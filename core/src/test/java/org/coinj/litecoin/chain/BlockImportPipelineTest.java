@@ -0,0 +1,59 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.chain;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.FullPrunedBlockChain;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.bitcoinj.utils.BlockFileLoader;
+import org.bitcoinj.utils.BriefLogFormatter;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlockImportPipelineTest {
+
+    @Test
+    public void importsBlockFileInOrder() throws Exception {
+        BriefLogFormatter.init();
+        final NetworkParameters params = MainNetParams.get();
+        final File blockFile = new File(getClass().getResource("/org/bitcoinj/core/blk00000.dat").getFile());
+        int blockCount = 0;
+        for (Block ignored : new BlockFileLoader(params, Arrays.asList(blockFile)))
+            blockCount++;
+
+        final FullPrunedBlockStore store = new MemoryFullPrunedBlockStore(params, 10);
+        final FullPrunedBlockChain chain = new FullPrunedBlockChain(params, store);
+        final BlockImportPipeline pipeline = new BlockImportPipeline(params);
+        try {
+            final BlockImportPipeline.Stats stats = pipeline.importBlocks(Arrays.asList(blockFile), chain);
+            assertEquals(blockCount, stats.getBlocksConnected());
+            assertEquals(blockFile.length(), stats.getBytesRead());
+        } finally {
+            pipeline.shutdown();
+            store.close();
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.chain;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ParallelScriptVerifierTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private ExecutorService executor;
+
+    /** Fails the inputs whose number, kept in their script, is in {@code failing}, counting checks. */
+    private static final class FakeVerifier extends ParallelScriptVerifier {
+        private final Set<Integer> failing;
+        private final AtomicInteger checks = new AtomicInteger();
+        private final Map<Transaction, Set<Thread>> threads = new IdentityHashMap<Transaction, Set<Thread>>();
+
+        private FakeVerifier(ExecutorService executor, int inputsPerTask, Integer... failing) {
+            super(executor, inputsPerTask);
+            this.failing = new HashSet<Integer>(Arrays.asList(failing));
+        }
+
+        @Override
+        protected void check(Transaction tx, int inputIndex, byte[] scriptSig, byte[] scriptPubKey,
+                             boolean enforcePayToScriptHash) {
+            checks.incrementAndGet();
+            synchronized (threads) {
+                Set<Thread> seen = threads.get(tx);
+                if (seen == null) {
+                    seen = new HashSet<Thread>();
+                    threads.put(tx, seen);
+                }
+                seen.add(Thread.currentThread());
+            }
+            final int number = (int) Utils.readUint32BE(scriptSig, 0);
+            if (failing.contains(number))
+                throw new VerificationException("input " + number);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void checksEveryInput() {
+        final FakeVerifier verifier = new FakeVerifier(executor, 8);
+        fill(verifier.newBatch(), 1000).verify(true);
+        assertEquals(1000, verifier.checks.get());
+    }
+
+    @Test
+    public void reportsFirstFailure() {
+        for (int round = 0; round < 50; round++) {
+            final FakeVerifier verifier = new FakeVerifier(executor, 8, 151, 37, 150, 999);
+            try {
+                fill(verifier.newBatch(), 1000).verify(true);
+                fail();
+            } catch (VerificationException e) {
+                assertEquals("input 37", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void skipsInputsAfterFailure() {
+        final FakeVerifier verifier = new FakeVerifier(executor, 100, 3);
+        try {
+            fill(verifier.newBatch(), 100).verify(true);
+            fail();
+        } catch (VerificationException e) {
+            assertEquals("input 3", e.getMessage());
+        }
+        assertEquals(4, verifier.checks.get());
+    }
+
+    @Test
+    public void emptyBatch() {
+        new FakeVerifier(executor, 8).newBatch().verify(true);
+    }
+
+    @Test
+    public void runsDontSplitTransactions() {
+        final FakeVerifier verifier = new FakeVerifier(executor, 2);
+        final ParallelScriptVerifier.Batch batch = verifier.newBatch();
+        int number = 0;
+        for (int t = 0; t < 200; t++) {
+            final Transaction tx = new Transaction(params);
+            for (int i = 0; i < 5; i++) {
+                addNumberedInput(tx, number++);
+                batch.add(tx, i, new byte[0]);
+            }
+        }
+        batch.verify(true);
+        assertEquals(1000, verifier.checks.get());
+        assertEquals(200, verifier.threads.size());
+        for (Set<Thread> seen : verifier.threads.values()) {
+            assertEquals(1, seen.size());
+        }
+    }
+
+    @Test
+    public void verifiesSignedMultiInputTransactions() {
+        final List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 4; i++) {
+            keys.add(new ECKey());
+        }
+        final List<Transaction> transactions = new ArrayList<Transaction>();
+        for (int t = 0; t < 40; t++) {
+            transactions.add(signedTransaction(keys, t));
+        }
+        final ParallelScriptVerifier verifier = new ParallelScriptVerifier(executor, 3);
+        for (int round = 0; round < 10; round++) {
+            final ParallelScriptVerifier.Batch batch = verifier.newBatch();
+            addAll(batch, transactions, keys);
+            batch.verify(true);
+        }
+
+        // Every input commits to the others, so breaking one signature fails exactly that input, every time.
+        final Transaction broken = transactions.get(25);
+        final byte[] scriptSig = broken.getInput(2).getScriptBytes().clone();
+        scriptSig[10] ^= 1;
+        broken.getInput(2).setScriptBytes(scriptSig);
+        for (int round = 0; round < 10; round++) {
+            final ParallelScriptVerifier.Batch batch = verifier.newBatch();
+            addAll(batch, transactions, keys);
+            try {
+                batch.verify(true);
+                fail();
+            } catch (VerificationException e) {
+                assertEquals("Error verifying input 2 of " + broken.getHashAsString(), e.getMessage());
+            }
+        }
+    }
+
+    private static Transaction signedTransaction(List<ECKey> keys, int salt) {
+        final Transaction tx = new Transaction(params);
+        for (int i = 0; i < keys.size(); i++) {
+            final TransactionOutPoint outPoint =
+                    new TransactionOutPoint(params, i, Sha256Hash.create(new byte[] {(byte) salt, (byte) i}));
+            tx.addInput(new TransactionInput(params, tx, new byte[0], outPoint));
+        }
+        tx.addOutput(Coin.valueOf(100000), keys.get(0).toAddress(params));
+        for (int i = 0; i < keys.size(); i++) {
+            final Script scriptPubKey = ScriptBuilder.createOutputScript(keys.get(i).toAddress(params));
+            final TransactionSignature signature =
+                    tx.calculateSignature(i, keys.get(i), scriptPubKey, Transaction.SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature, keys.get(i)));
+        }
+        return tx;
+    }
+
+    private static void addAll(ParallelScriptVerifier.Batch batch, List<Transaction> transactions, List<ECKey> keys) {
+        for (Transaction tx : transactions) {
+            for (int i = 0; i < keys.size(); i++) {
+                batch.add(tx, i, ScriptBuilder.createOutputScript(keys.get(i).toAddress(params)).getProgram());
+            }
+        }
+    }
+
+    /** One single input transaction per input, numbered through its script. */
+    private static ParallelScriptVerifier.Batch fill(ParallelScriptVerifier.Batch batch, int inputs) {
+        for (int i = 0; i < inputs; i++) {
+            final Transaction tx = new Transaction(params);
+            addNumberedInput(tx, i);
+            batch.add(tx, 0, new byte[0]);
+        }
+        return batch;
+    }
+
+    private static void addNumberedInput(Transaction tx, int number) {
+        final byte[] script = new byte[4];
+        Utils.uint32ToByteArrayBE(number, script, 0);
+        tx.addInput(new TransactionInput(params, tx, script));
+    }
+
+}
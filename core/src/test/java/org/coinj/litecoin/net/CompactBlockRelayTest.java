@@ -0,0 +1,268 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two relays talking to each other through an in-process mock connection.
+ */
+public class CompactBlockRelayTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private MockPeer senderSide;
+    private MockPeer receiverSide;
+    private CompactBlockRelay sender;
+    private CompactBlockRelay receiver;
+    private final List<Transaction> receiverMempool = new ArrayList<Transaction>();
+    private final List<Block> received = new ArrayList<Block>();
+    private final List<Integer> requestedCounts = new ArrayList<Integer>();
+    private Block block;
+
+    @Before
+    public void setUp() throws Exception {
+        senderSide = new MockPeer();
+        receiverSide = new MockPeer();
+        sender = new CompactBlockRelay(params, new ListMempool(Collections.<Transaction>emptyList()), senderSide, new CollectingListener());
+        receiver = new CompactBlockRelay(params, new ListMempool(receiverMempool), receiverSide, new CollectingListener());
+        senderSide.remote = receiver;
+        receiverSide.remote = sender;
+
+        final Address to = new ECKey().toAddress(params);
+        block = params.getGenesisBlock().createNextBlock(to);
+        for (int i = 0; i < 10; i++) {
+            block.addTransaction(FakeTxBuilder.createFakeTx(params, Coin.valueOf(10000 + i), to));
+        }
+        block.solve();
+    }
+
+    @Test
+    public void compactBlockRoundTrip() throws Exception {
+        final CompactBlock compact = CompactBlock.fromBlock(block, 42);
+        final CompactBlock parsed = CompactBlock.parse(params, compact.serialize());
+        assertEquals(block.getHash(), parsed.getHash());
+        assertEquals(42, parsed.getNonce());
+        assertArrayEquals(compact.getShortIds(), parsed.getShortIds());
+        assertEquals(1, parsed.getPrefilled().size());
+        assertEquals(block.getTransactions().get(0).getHash(), parsed.getPrefilled().get(0).getTransaction().getHash());
+        assertEquals(compact.shortId(block.getTransactions().get(3).getHash()), parsed.getShortIds()[2]);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void refusesOverflowingCount() throws Exception {
+        // 0x2AAAAAAAAAAAAAAB short IDs of 6 bytes overflow a long to a small positive size
+        final byte[] count = {(byte) 0xff, (byte) 0xab, (byte) 0xaa, (byte) 0xaa, (byte) 0xaa, (byte) 0xaa, (byte) 0xaa,
+                (byte) 0xaa, 0x2a};
+        CompactBlock.parse(params, withCompactPrefix(count));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void refusesTruncatedVarInt() throws Exception {
+        CompactBlock.parse(params, withCompactPrefix(new byte[] {(byte) 0xfd, 0x01}));
+    }
+
+    /**
+     * Serialized compact block cut off after the header and nonce, followed by the given bytes.
+     */
+    private byte[] withCompactPrefix(byte[] rest) {
+        final byte[] serialized = CompactBlock.fromBlock(block, 42).serialize();
+        final byte[] payload = new byte[88 + rest.length];
+        System.arraycopy(serialized, 0, payload, 0, 88);
+        System.arraycopy(rest, 0, payload, 88, rest.length);
+        return payload;
+    }
+
+    @Test
+    public void noAnnouncementWithoutSendCompact() throws Exception {
+        assertFalse(sender.announceBlock(block));
+        assertTrue(senderSide.outbox.isEmpty());
+    }
+
+    @Test
+    public void lowBandwidthPeerIsNotPushedBlocks() throws Exception {
+        receiverMempool.addAll(block.getTransactions().subList(1, block.getTransactions().size()));
+        handshake();
+
+        // the sender's peer asked for high bandwidth mode, the receiver's didn't
+        assertFalse(receiver.announceBlock(block));
+        assertTrue(receiverSide.outbox.isEmpty());
+
+        // until it asks for the compact block itself
+        assertTrue(receiver.sendCompactBlock(block));
+        deliverAll();
+        assertEquals(1, received.size());
+        assertEquals(block.getHash(), received.get(0).getHash());
+    }
+
+    @Test
+    public void reconstructsFromMempool() throws Exception {
+        receiverMempool.addAll(block.getTransactions().subList(1, block.getTransactions().size()));
+        handshake();
+
+        assertTrue(sender.announceBlock(block));
+        deliverAll();
+
+        assertEquals(1, received.size());
+        assertEquals(block.getHash(), received.get(0).getHash());
+        assertEquals(block.getTransactions().size(), received.get(0).getTransactions().size());
+        assertEquals(0, (int) requestedCounts.get(0));
+        assertEquals(1, receiver.getReconstructedWithoutRoundTripCount());
+        assertEquals(0, receiverSide.sentCommands.size() - 1);  // Only the handshake went out.
+    }
+
+    @Test
+    public void requestsMissingTransactions() throws Exception {
+        final List<Transaction> transactions = block.getTransactions();
+        receiverMempool.addAll(transactions.subList(1, transactions.size() - 2));
+        handshake();
+
+        sender.announceBlock(block);
+        deliverAll();
+
+        assertEquals(1, received.size());
+        assertEquals(block.getHash(), received.get(0).getHash());
+        assertEquals(2, (int) requestedCounts.get(0));
+        assertTrue(receiverSide.sentCommands.contains(GetBlockTransactionsMessage.COMMAND));
+        assertTrue(senderSide.sentCommands.contains(BlockTransactionsMessage.COMMAND));
+        assertEquals(0, receiver.getFallbackCount());
+    }
+
+    @Test
+    public void fallsBackToFullBlockOnBadReconstruction() throws Exception {
+        handshake();
+        sender.announceBlock(block);
+        // Deliver only the cmpctblock, then answer the getblocktxn ourselves with the wrong transactions.
+        senderSide.deliverOne();
+        final Sha256Hash hash = block.getHash();
+        assertNotNull(receiver.getPending(hash));
+        final List<Transaction> wrong = new ArrayList<Transaction>();
+        final Address to = new ECKey().toAddress(params);
+        for (int i = 1; i < block.getTransactions().size(); i++) {
+            wrong.add(FakeTxBuilder.createFakeTx(params, Coin.valueOf(i), to));
+        }
+        receiver.processMessage(BlockTransactionsMessage.COMMAND, new BlockTransactionsMessage(hash, wrong).serialize());
+
+        assertTrue(received.isEmpty());
+        assertEquals(Collections.singletonList(hash), receiverSide.fullBlockRequests);
+        assertEquals(1, receiver.getFallbackCount());
+    }
+
+    @Test
+    public void fallsBackOnWrongTransactionCount() throws Exception {
+        handshake();
+        sender.announceBlock(block);
+        senderSide.deliverOne();
+        receiver.processMessage(BlockTransactionsMessage.COMMAND,
+                new BlockTransactionsMessage(block.getHash(), block.getTransactions().subList(1, 3)).serialize());
+        assertEquals(Collections.singletonList(block.getHash()), receiverSide.fullBlockRequests);
+    }
+
+    private void handshake() throws Exception {
+        receiver.start(true);
+        sender.start(false);
+        deliverAll();
+        assertTrue(sender.isPeerSupportingCompact());
+        assertTrue(sender.isPeerWantingHighBandwidth());
+        assertFalse(receiver.isPeerWantingHighBandwidth());
+    }
+
+    private void deliverAll() throws Exception {
+        while (!senderSide.outbox.isEmpty() || !receiverSide.outbox.isEmpty()) {
+            senderSide.deliverAllQueued();
+            receiverSide.deliverAllQueued();
+        }
+    }
+
+    private static final class MockPeer implements CompactBlockRelay.MessageChannel {
+
+        private CompactBlockRelay remote;
+        private final LinkedList<Object[]> outbox = new LinkedList<Object[]>();
+        private final List<String> sentCommands = new ArrayList<String>();
+        private final List<Sha256Hash> fullBlockRequests = new ArrayList<Sha256Hash>();
+
+        @Override
+        public void sendMessage(String command, byte[] payload) {
+            sentCommands.add(command);
+            outbox.add(new Object[] {command, payload});
+        }
+
+        @Override
+        public void requestFullBlock(Sha256Hash blockHash) {
+            fullBlockRequests.add(blockHash);
+        }
+
+        private void deliverOne() throws Exception {
+            final Object[] message = outbox.removeFirst();
+            assertTrue(remote.processMessage((String) message[0], (byte[]) message[1]));
+        }
+
+        private void deliverAllQueued() throws Exception {
+            while (!outbox.isEmpty())
+                deliverOne();
+        }
+
+    }
+
+    private static final class ListMempool implements MempoolSource {
+
+        private final List<Transaction> transactions;
+
+        private ListMempool(List<Transaction> transactions) {
+            this.transactions = transactions;
+        }
+
+        @Override
+        public Iterable<Transaction> getMempoolTransactions() {
+            return transactions;
+        }
+
+    }
+
+    private final class CollectingListener implements CompactBlockRelay.BlockListener {
+
+        @Override
+        public void onBlockReconstructed(Block block, int fromMempool, int requested) {
+            received.add(block);
+            requestedCounts.add(requested);
+        }
+
+    }
+
+}
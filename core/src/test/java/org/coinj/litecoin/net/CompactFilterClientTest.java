@@ -0,0 +1,377 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.coinj.litecoin.store.HeightIndex;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Filter client against in-process peers that serve filters built from a short unit test chain.
+ */
+public class CompactFilterClientTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int CHAIN_LENGTH = 20;
+    private static final int PAYMENT_HEIGHT = 7;
+
+    private final List<Block> chain = new ArrayList<Block>();
+    private final List<Integer> matchedHeights = new ArrayList<Integer>();
+    private final List<String> badReasons = new ArrayList<String>();
+    private final List<CompactBlockRelay.MessageChannel> badPeers = new ArrayList<CompactBlockRelay.MessageChannel>();
+    private final List<FilterServingPeer> peers = new ArrayList<FilterServingPeer>();
+    private CompactFilterClient client;
+    private Address walletAddress;
+    private byte[] paymentScript;
+
+    private final HeightIndex headers = new HeightIndex() {
+        @Nullable
+        @Override
+        public Sha256Hash getHashAtHeight(int height) {
+            return height >= 0 && height < chain.size() ? chain.get(height).getHash() : null;
+        }
+
+        @Override
+        public int getBestHeight() {
+            return chain.size() - 1;
+        }
+    };
+
+    private final CompactFilterClient.Listener listener = new CompactFilterClient.Listener() {
+        @Override
+        public void onBlockMatched(Sha256Hash blockHash, int height) {
+            matchedHeights.add(height);
+        }
+
+        @Override
+        public void onBadFilter(CompactBlockRelay.MessageChannel peer, Sha256Hash blockHash, int height, String reason) {
+            badPeers.add(peer);
+            badReasons.add(reason);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        final Address miner = new ECKey().toAddress(params);
+        walletAddress = new ECKey().toAddress(params);
+        chain.add(params.getGenesisBlock());
+        for (int height = 1; height <= CHAIN_LENGTH; height++) {
+            final Block block = chain.get(height - 1).createNextBlock(miner);
+            if (height == PAYMENT_HEIGHT) {
+                final Transaction payment = FakeTxBuilder.createFakeTx(params, Coin.valueOf(50000), walletAddress);
+                paymentScript = payment.getOutput(0).getScriptBytes();
+                block.addTransaction(payment);
+                block.solve();
+            }
+            chain.add(block);
+        }
+        client = new CompactFilterClient(headers, listener, -1, new byte[BlockFilter.HASH_SIZE]);
+    }
+
+    @Test
+    public void findsWalletBlockAmongThousandsOfScripts() throws Exception {
+        final Random random = new Random(3);
+        final List<byte[]> watched = new ArrayList<byte[]>();
+        for (int i = 0; i < 5000; i++) {
+            final byte[] script = new byte[25];
+            random.nextBytes(script);
+            watched.add(script);
+        }
+        watched.add(paymentScript);
+        client.setWatchedScripts(watched);
+
+        connect(new FilterServingPeer());
+        connect(new FilterServingPeer());
+        pump();
+
+        assertTrue(badReasons.isEmpty());
+        assertEquals(CHAIN_LENGTH, client.getHeadersSyncedTo());
+        assertEquals(CHAIN_LENGTH + 1, client.getFiltersChecked());
+        assertTrue(matchedHeights.contains(PAYMENT_HEIGHT));
+        assertTrue(matchedHeights.size() <= 2);
+        assertTrue(requestedBlocks().contains(chain.get(PAYMENT_HEIGHT).getHash()));
+        assertTrue(client.checkBlock(chain.get(PAYMENT_HEIGHT)));
+    }
+
+    @Test
+    public void nothingWatchedNothingRequested() throws Exception {
+        connect(new FilterServingPeer());
+        connect(new FilterServingPeer());
+        pump();
+
+        assertEquals(CHAIN_LENGTH + 1, client.getFiltersChecked());
+        assertEquals(0, client.getBlocksMatched());
+        assertTrue(requestedBlocks().isEmpty());
+    }
+
+    @Test
+    public void badFilterIsAskedFromAnotherPeer() throws Exception {
+        final List<byte[]> watched = new ArrayList<byte[]>();
+        watched.add(paymentScript);
+        client.setWatchedScripts(watched);
+        final FilterServingPeer liar = new FilterServingPeer();
+        liar.tamperedFilterHeight = PAYMENT_HEIGHT;
+        final FilterServingPeer honest = new FilterServingPeer();
+
+        connect(liar);
+        connect(honest);
+        pump();
+
+        assertTrue(liar.servedTampered);
+        assertEquals(1, client.getBadFilterCount());
+        assertEquals(1, badReasons.size());
+        assertEquals(liar, badPeers.get(0));
+        assertTrue(client.getFiltersRerequested() > 0);
+        assertEquals(0, client.getAwaitedFilterCount());
+        assertEquals(CHAIN_LENGTH + 1, client.getFiltersChecked());
+        assertTrue(matchedHeights.contains(PAYMENT_HEIGHT));
+        assertTrue(honest.requestedBlocks.contains(chain.get(PAYMENT_HEIGHT).getHash()));
+        assertFalse(liar.requestedBlocks.contains(chain.get(PAYMENT_HEIGHT).getHash()));
+    }
+
+    @Test
+    public void badFilterWaitsForAnotherPeer() throws Exception {
+        final List<byte[]> watched = new ArrayList<byte[]>();
+        watched.add(paymentScript);
+        client = new CompactFilterClient(headers, listener, -1, new byte[BlockFilter.HASH_SIZE], 1);
+        client.setWatchedScripts(watched);
+        final FilterServingPeer liar = new FilterServingPeer();
+        liar.tamperedFilterHeight = PAYMENT_HEIGHT;
+
+        connect(liar);
+        pump();
+
+        assertEquals(1, client.getBadFilterCount());
+        assertFalse(matchedHeights.contains(PAYMENT_HEIGHT));
+        assertTrue(client.getAwaitedFilterCount() > 0);
+
+        connect(new FilterServingPeer());
+        pump();
+
+        assertEquals(0, client.getAwaitedFilterCount());
+        assertTrue(matchedHeights.contains(PAYMENT_HEIGHT));
+    }
+
+    @Test
+    public void lyingHeaderPeerIsOutvoted() throws Exception {
+        final List<byte[]> watched = new ArrayList<byte[]>();
+        watched.add(paymentScript);
+        client.setWatchedScripts(watched);
+        final FilterServingPeer liar = new FilterServingPeer();
+        // Commits to the previous block's filter, so the tampered filter would pass its hash check.
+        liar.tamperedHeaderHeight = PAYMENT_HEIGHT;
+        liar.tamperedFilterHeight = PAYMENT_HEIGHT;
+
+        connect(liar);
+        connect(new FilterServingPeer());
+        pump();
+
+        assertEquals(-1, client.getHeadersSyncedTo());
+
+        connect(new FilterServingPeer());
+        pump();
+
+        assertEquals(1, badPeers.size());
+        assertEquals(liar, badPeers.get(0));
+        assertEquals(CHAIN_LENGTH, client.getHeadersSyncedTo());
+        assertEquals(CHAIN_LENGTH + 1, client.getFiltersChecked());
+        assertTrue(matchedHeights.contains(PAYMENT_HEIGHT));
+    }
+
+    @Test
+    public void singlePeerHeadersAreNotTrusted() throws Exception {
+        connect(new FilterServingPeer());
+        pump();
+
+        assertEquals(-1, client.getHeadersSyncedTo());
+        assertEquals(0, client.getFiltersChecked());
+
+        connect(new FilterServingPeer());
+        pump();
+
+        assertEquals(CHAIN_LENGTH, client.getHeadersSyncedTo());
+        assertEquals(CHAIN_LENGTH + 1, client.getFiltersChecked());
+    }
+
+    @Test
+    public void rejectsHeadersNotConnectingToTrustedChain() throws Exception {
+        final byte[] wrongTrusted = new byte[BlockFilter.HASH_SIZE];
+        wrongTrusted[0] = 1;
+        client = new CompactFilterClient(headers, listener, -1, wrongTrusted);
+
+        connect(new FilterServingPeer());
+        connect(new FilterServingPeer());
+        pump();
+
+        assertEquals(2, client.getBadFilterCount());
+        assertEquals(-1, client.getHeadersSyncedTo());
+        assertEquals(0, client.getFiltersChecked());
+    }
+
+    @Test
+    public void rewindsFilterHeadersOnReorganisation() throws Exception {
+        final List<byte[]> watched = new ArrayList<byte[]>();
+        watched.add(paymentScript);
+        client.setWatchedScripts(watched);
+        connect(new FilterServingPeer());
+        connect(new FilterServingPeer());
+        pump();
+        assertEquals(CHAIN_LENGTH, client.getHeadersSyncedTo());
+
+        // A longer branch forking off below the payment, which confirms it again further up.
+        final Address miner = new ECKey().toAddress(params);
+        while (chain.size() > PAYMENT_HEIGHT - 1) {
+            chain.remove(chain.size() - 1);
+        }
+        for (int height = PAYMENT_HEIGHT - 1; height <= CHAIN_LENGTH + 2; height++) {
+            final Block block = chain.get(height - 1).createNextBlock(miner);
+            if (height == CHAIN_LENGTH) {
+                block.addTransaction(FakeTxBuilder.createFakeTx(params, Coin.valueOf(50000), walletAddress));
+                block.solve();
+            }
+            chain.add(block);
+        }
+        matchedHeights.clear();
+        client.sync();
+        pump();
+
+        assertTrue(badReasons.isEmpty());
+        assertEquals(CHAIN_LENGTH + 2, client.getHeadersSyncedTo());
+        assertEquals(0, client.getAwaitedFilterCount());
+        assertTrue(matchedHeights.contains(CHAIN_LENGTH));
+        assertFalse(matchedHeights.contains(PAYMENT_HEIGHT));
+        assertTrue(client.checkBlock(chain.get(CHAIN_LENGTH)));
+    }
+
+    @Test
+    public void filterCoversBlockOutputs() throws Exception {
+        final Block block = chain.get(PAYMENT_HEIGHT);
+        assertTrue(BlockFilter.buildBasic(block).coversOutputsOf(block));
+        assertFalse(BlockFilter.buildBasic(chain.get(PAYMENT_HEIGHT - 1)).coversOutputsOf(block));
+    }
+
+    private void connect(FilterServingPeer peer) {
+        peers.add(peer);
+        client.addPeer(peer);
+    }
+
+    private void pump() throws Exception {
+        boolean busy = true;
+        while (busy) {
+            busy = false;
+            for (FilterServingPeer peer : new ArrayList<FilterServingPeer>(peers)) {
+                busy |= peer.pump();
+            }
+        }
+    }
+
+    private List<Sha256Hash> requestedBlocks() {
+        final List<Sha256Hash> requested = new ArrayList<Sha256Hash>();
+        for (FilterServingPeer peer : peers) {
+            requested.addAll(peer.requestedBlocks);
+        }
+        return requested;
+    }
+
+    /** Answers filter requests the way a BIP 157 serving node would, delivering replies when pumped. */
+    private final class FilterServingPeer implements CompactBlockRelay.MessageChannel {
+
+        private final LinkedList<String> commands = new LinkedList<String>();
+        private final LinkedList<byte[]> payloads = new LinkedList<byte[]>();
+        private final List<Sha256Hash> requestedBlocks = new ArrayList<Sha256Hash>();
+        private int tamperedFilterHeight = -1;
+        private int tamperedHeaderHeight = -1;
+        private boolean servedTampered;
+
+        @Override
+        public void sendMessage(String command, byte[] payload) {
+            commands.add(command);
+            payloads.add(payload);
+        }
+
+        @Override
+        public void requestFullBlock(Sha256Hash blockHash) {
+            requestedBlocks.add(blockHash);
+        }
+
+        boolean pump() throws Exception {
+            if (commands.isEmpty())
+                return false;
+            while (!commands.isEmpty()) {
+                final String command = commands.removeFirst();
+                final GetCompactFiltersMessage request = GetCompactFiltersMessage.parse(payloads.removeFirst());
+                final int stop = heightOf(request.getStopHash());
+                if (GetCompactFiltersMessage.HEADERS_COMMAND.equals(command)) {
+                    byte[] previous = new byte[BlockFilter.HASH_SIZE];
+                    for (int h = 0; h < request.getStartHeight(); h++) {
+                        previous = BlockFilter.filterHeader(committedFilterHash(h), previous);
+                    }
+                    final List<byte[]> hashes = new ArrayList<byte[]>();
+                    for (int h = request.getStartHeight(); h <= stop; h++) {
+                        hashes.add(committedFilterHash(h));
+                    }
+                    client.processMessage(this, CompactFilterHeadersMessage.COMMAND,
+                            new CompactFilterHeadersMessage(BlockFilter.BASIC_FILTER_TYPE, request.getStopHash(), previous, hashes).serialize());
+                } else {
+                    for (int h = request.getStartHeight(); h <= stop; h++) {
+                        // A lying peer swaps in the previous block's filter to hide the payment.
+                        final Block source = h == tamperedFilterHeight ? chain.get(h - 1) : chain.get(h);
+                        servedTampered |= h == tamperedFilterHeight;
+                        final byte[] filter = BlockFilter.buildBasic(source).serialize();
+                        client.processMessage(this, CompactFilterMessage.COMMAND,
+                                new CompactFilterMessage(BlockFilter.BASIC_FILTER_TYPE, chain.get(h).getHash(), filter).serialize());
+                    }
+                }
+            }
+            return true;
+        }
+
+        private byte[] committedFilterHash(int height) {
+            final Block source = height == tamperedHeaderHeight ? chain.get(height - 1) : chain.get(height);
+            return BlockFilter.buildBasic(source).getFilterHash();
+        }
+
+        private int heightOf(Sha256Hash hash) {
+            for (int h = 0; h < chain.size(); h++) {
+                if (chain.get(h).getHash().equals(hash))
+                    return h;
+            }
+            throw new IllegalArgumentException(hash.toString());
+        }
+
+    }
+
+}
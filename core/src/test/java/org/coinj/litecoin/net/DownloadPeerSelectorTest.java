@@ -0,0 +1,123 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.coinj.litecoin.net.PeerPerformance.Phase.BLOCKS;
+import static org.coinj.litecoin.net.PeerPerformance.Phase.HEADERS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadPeerSelectorTest {
+
+    private DownloadPeerSelector<String> selector;
+    private final List<String> peers = Arrays.asList("a", "b", "c");
+
+    @Before
+    public void setUp() {
+        Utils.setMockClock();
+        selector = new DownloadPeerSelector<String>(1.5, 30 * 1000);
+    }
+
+    @After
+    public void tearDown() {
+        Utils.resetMocking();
+    }
+
+    @Test
+    public void scoreFollowsThroughputLatencyAndTimeouts() {
+        final PeerPerformance fast = new PeerPerformance();
+        final PeerPerformance slow = new PeerPerformance();
+        fast.recordBlockDelivery(1000000, 1000);
+        slow.recordBlockDelivery(100000, 1000);
+        assertTrue(fast.getScore(BLOCKS) > slow.getScore(BLOCKS));
+
+        final PeerPerformance laggy = new PeerPerformance();
+        laggy.recordBlockDelivery(1000000, 1000);
+        fast.recordPing(50);
+        laggy.recordPing(2000);
+        assertTrue(fast.getScore(BLOCKS) > laggy.getScore(BLOCKS));
+
+        final PeerPerformance flaky = new PeerPerformance();
+        flaky.recordBlockDelivery(1000000, 1000);
+        flaky.recordPing(50);
+        flaky.recordTimeout();
+        flaky.recordTimeout();
+        assertTrue(fast.getScore(BLOCKS) > flaky.getScore(BLOCKS));
+        // Timeouts fade as the peer delivers again.
+        final double before = flaky.getScore(BLOCKS);
+        flaky.recordBlockDelivery(1000000, 1000);
+        assertTrue(flaky.getScore(BLOCKS) > before);
+        assertEquals(2, flaky.getTotalTimeouts());
+    }
+
+    @Test
+    public void phasesAreScoredSeparately() {
+        final PeerPerformance performance = new PeerPerformance();
+        performance.recordHeadersDelivery(10, 1000);
+        performance.recordBlockDelivery(10000000, 1000);
+        assertTrue(performance.getScore(BLOCKS) > performance.getScore(HEADERS));
+    }
+
+    @Test
+    public void picksBestAndSwitchesWithHysteresis() {
+        selector.getPerformance("a").recordBlockDelivery(200000, 1000);
+        selector.getPerformance("b").recordBlockDelivery(100000, 1000);
+        selector.getPerformance("c").recordBlockDelivery(50000, 1000);
+        assertEquals("a", selector.select(peers, BLOCKS));
+
+        // b gets a bit better than a: not enough to switch.
+        selector.getPerformance("b").recordBlockDelivery(600000, 1000);
+        Utils.rollMockClock(60);
+        assertEquals("a", selector.select(peers, BLOCKS));
+
+        // a slows down to a crawl after a minute as download peer: switch.
+        for (int i = 0; i < 10; i++) {
+            selector.getPerformance("a").recordBlockDelivery(1000, 1000);
+        }
+        assertEquals("b", selector.select(peers, BLOCKS));
+        assertEquals(1, selector.getSwitchCount());
+
+        // c becomes much faster, but b was only just picked.
+        for (int i = 0; i < 10; i++) {
+            selector.getPerformance("c").recordBlockDelivery(100000000, 1000);
+        }
+        assertEquals("b", selector.select(peers, BLOCKS));
+        Utils.rollMockClock(31);
+        assertEquals("c", selector.select(peers, BLOCKS));
+    }
+
+    @Test
+    public void losingCurrentPeerSwitchesImmediately() {
+        selector.getPerformance("a").recordBlockDelivery(200000, 1000);
+        assertEquals("a", selector.select(peers, BLOCKS));
+        selector.removePeer("a");
+        assertEquals("b", selector.select(Arrays.asList("b"), BLOCKS));
+        assertNull(selector.select(Collections.<String>emptyList(), BLOCKS));
+        assertNull(selector.getCurrent());
+    }
+
+}
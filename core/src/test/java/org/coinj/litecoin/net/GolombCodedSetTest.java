@@ -0,0 +1,115 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GolombCodedSetTest {
+
+    private static final Logger log = LoggerFactory.getLogger(GolombCodedSetTest.class);
+
+    private final Random random = new Random(1);
+    private final SipHasher hasher = new SipHasher(random.nextLong(), random.nextLong());
+
+    @Test
+    public void fastRange() {
+        assertEquals(0, GolombCodedSet.multiplyHighUnsigned(0x7fffffffffffffffL, 1));
+        assertEquals(1, GolombCodedSet.multiplyHighUnsigned(0x8000000000000000L, 2));
+        assertEquals(0xfffffffffffffffeL, GolombCodedSet.multiplyHighUnsigned(0xffffffffffffffffL, 0xffffffffffffffffL));
+        assertEquals(99, GolombCodedSet.multiplyHighUnsigned(0xffffffffffffffffL, 100));
+    }
+
+    @Test
+    public void membersMatchAndSurviveSerialization() throws Exception {
+        final List<byte[]> elements = scripts(500);
+        final GolombCodedSet set = GolombCodedSet.build(hasher, GolombCodedSet.BASIC_P, GolombCodedSet.BASIC_M, elements);
+        assertEquals(500, set.size());
+        final GolombCodedSet parsed = GolombCodedSet.parse(hasher, GolombCodedSet.BASIC_P, GolombCodedSet.BASIC_M, set.serialize());
+        for (byte[] element : elements) {
+            assertTrue(set.match(element));
+            assertTrue(parsed.match(element));
+        }
+        int falsePositives = 0;
+        for (byte[] other : scripts(1000)) {
+            if (parsed.match(other))
+                falsePositives++;
+        }
+        assertTrue(falsePositives <= 1);
+    }
+
+    @Test
+    public void duplicatesAndEmptySets() {
+        final byte[] element = new byte[] {1, 2, 3};
+        final GolombCodedSet set = GolombCodedSet.build(hasher, GolombCodedSet.BASIC_P, GolombCodedSet.BASIC_M,
+                Arrays.asList(element, new byte[] {1, 2, 3}));
+        assertEquals(1, set.size());
+        assertTrue(set.match(element));
+
+        final GolombCodedSet empty = GolombCodedSet.build(hasher, GolombCodedSet.BASIC_P, GolombCodedSet.BASIC_M, new ArrayList<byte[]>());
+        assertFalse(empty.match(element));
+    }
+
+    @Test
+    public void matchThousandsOfScriptsPerBlock() {
+        // A busy block's worth of elements against a large wallet.
+        final List<byte[]> blockElements = scripts(4000);
+        final List<byte[]> wallet = scripts(5000);
+        final int blocks = 50;
+        final List<GolombCodedSet> filters = new ArrayList<GolombCodedSet>(blocks);
+        for (int i = 0; i < blocks; i++) {
+            filters.add(GolombCodedSet.build(new SipHasher(i, ~i), GolombCodedSet.BASIC_P, GolombCodedSet.BASIC_M, blockElements));
+        }
+        final long start = System.nanoTime();
+        int matched = 0;
+        for (GolombCodedSet filter : filters) {
+            if (filter.matchAny(wallet))
+                matched++;
+        }
+        final long micros = (System.nanoTime() - start) / 1000;
+        log.info("Matched {} scripts against {} filters of {} elements in {} us ({} us per block)",
+                new Object[] {wallet.size(), blocks, blockElements.size(), micros, micros / blocks});
+        assertTrue(matched < blocks / 2);
+
+        final List<byte[]> walletWithHit = new ArrayList<byte[]>(wallet);
+        walletWithHit.add(blockElements.get(1234));
+        for (GolombCodedSet filter : filters) {
+            assertTrue(filter.matchAny(walletWithHit));
+        }
+    }
+
+    private List<byte[]> scripts(int count) {
+        final List<byte[]> scripts = new ArrayList<byte[]>(count);
+        for (int i = 0; i < count; i++) {
+            final byte[] script = new byte[25];
+            random.nextBytes(script);
+            scripts.add(script);
+        }
+        return scripts;
+    }
+
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalBloomFilterManagerTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final double TARGET = IncrementalBloomFilterManager.DEFAULT_FALSE_POSITIVE_RATE;
+
+    private Wallet wallet;
+    private IncrementalBloomFilterManager manager;
+    private RecordingPeer modern;
+    private RecordingPeer legacy;
+
+    @Before
+    public void setUp() throws Exception {
+        wallet = new Wallet(params);
+        for (int i = 0; i < 50; i++) {
+            wallet.importKey(new ECKey());
+        }
+        manager = new IncrementalBloomFilterManager(ImmutableList.of(wallet), TARGET);
+        modern = new RecordingPeer(true);
+        legacy = new RecordingPeer(false);
+        manager.addPeer(modern);
+        manager.addPeer(legacy);
+    }
+
+    @Test
+    public void newPeerGetsFilterLoad() throws Exception {
+        assertEquals(ImmutableList.of("filterload"), modern.commands);
+        assertEquals(ImmutableList.of("filterload"), legacy.commands);
+        assertEquals(1, manager.getRebuildCount());
+        assertTrue(manager.getFalsePositiveRate() <= TARGET);
+    }
+
+    @Test
+    public void newKeyGoesOutAsFilterAdd() throws Exception {
+        final ECKey key = new ECKey();
+        wallet.importKey(key);
+        manager.addKeys(ImmutableList.of(key));
+
+        assertEquals(ImmutableList.of("filterload", FilterAddMessage.COMMAND, FilterAddMessage.COMMAND), modern.commands);
+        assertEquals(ImmutableList.of("filterload", "filterload"), legacy.commands);
+        assertEquals(1, manager.getRebuildCount());
+        assertTrue(manager.getFilter().contains(key.getPubKey()));
+        assertTrue(manager.getFilter().contains(key.getPubKeyHash()));
+        assertTrue(FilterAddMessage.parse(modern.payloads.get(2)).getElement().length == 20);
+    }
+
+    @Test
+    public void largeBatchGoesOutAsFilterLoad() throws Exception {
+        final List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 40; i++) {
+            keys.add(new ECKey());
+        }
+        wallet.importKeys(keys);
+        manager.addKeys(keys);
+
+        // Eighty filteradd messages are bigger than the filter they'd update.
+        assertEquals("filterload", modern.commands.get(modern.commands.size() - 1));
+        assertEquals(0, manager.getFilterAddCount());
+    }
+
+    @Test
+    public void rebuildsOnlyWhenFalsePositiveRateExceedsTarget() throws Exception {
+        final int initialElements = manager.getElementCount();
+        for (int i = 0; i < 2000; i++) {
+            final ECKey key = new ECKey();
+            wallet.importKey(key);
+            manager.addKeys(ImmutableList.of(key));
+            assertTrue(manager.getFalsePositiveRate() <= TARGET);
+        }
+        // Capacity doubles on every rebuild, so growing the wallet by two orders of magnitude takes only a handful.
+        assertTrue(manager.getRebuildCount() > 1);
+        assertTrue(manager.getRebuildCount() < 10);
+        assertTrue(manager.getElementCount() >= initialElements + 4000);
+        assertTrue(manager.getFilterAddCount() > 3000);
+    }
+
+    @Test
+    public void recalculateReloadsEveryPeer() throws Exception {
+        manager.recalculate();
+        assertEquals(2, manager.getRebuildCount());
+        assertEquals("filterload", modern.commands.get(1));
+        assertEquals("filterload", legacy.commands.get(1));
+    }
+
+    @Test
+    public void updatesQueuedWhileSendingFollowInOrder() throws Exception {
+        final ECKey first = new ECKey();
+        final ECKey second = new ECKey();
+        wallet.importKey(first);
+        wallet.importKey(second);
+        // The peer's first filteradd triggers another update before the rest of the first one went out.
+        modern.onFilterAdd = new Runnable() {
+            @Override
+            public void run() {
+                modern.onFilterAdd = null;
+                manager.addKeys(ImmutableList.of(second));
+            }
+        };
+        manager.addKeys(ImmutableList.of(first));
+
+        assertEquals(5, modern.commands.size());
+        assertArrayEquals(first.getPubKey(), FilterAddMessage.parse(modern.payloads.get(1)).getElement());
+        assertArrayEquals(first.getPubKeyHash(), FilterAddMessage.parse(modern.payloads.get(2)).getElement());
+        assertArrayEquals(second.getPubKey(), FilterAddMessage.parse(modern.payloads.get(3)).getElement());
+        assertArrayEquals(second.getPubKeyHash(), FilterAddMessage.parse(modern.payloads.get(4)).getElement());
+    }
+
+    @Test
+    public void removedPeerGetsNothingMore() throws Exception {
+        manager.removePeer(legacy);
+        final ECKey key = new ECKey();
+        wallet.importKey(key);
+        manager.addKeys(ImmutableList.of(key));
+        assertEquals(ImmutableList.of("filterload"), legacy.commands);
+    }
+
+    private static final class RecordingPeer implements IncrementalBloomFilterManager.FilterPeer {
+
+        private final boolean filterAdd;
+        private final List<String> commands = new ArrayList<String>();
+        private final List<byte[]> payloads = new ArrayList<byte[]>();
+        private Runnable onFilterAdd;
+
+        private RecordingPeer(boolean filterAdd) {
+            this.filterAdd = filterAdd;
+        }
+
+        @Override
+        public boolean supportsFilterAdd() {
+            return filterAdd;
+        }
+
+        @Override
+        public void sendMessage(String command, byte[] payload) {
+            commands.add(command);
+            payloads.add(payload);
+            if (onFilterAdd != null && command.equals(FilterAddMessage.COMMAND))
+                onFilterAdd.run();
+        }
+
+    }
+
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.UnitTestParams;
+import org.coinj.litecoin.store.HeightIndex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelBlockDownloadSchedulerTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int CHAIN_LENGTH = 40;
+    private static final List<Block> chain = new ArrayList<Block>();
+    private static final Map<Sha256Hash, Block> blocksByHash = new HashMap<Sha256Hash, Block>();
+
+    private final List<Integer> delivered = new ArrayList<Integer>();
+    private final ParallelBlockDownloadScheduler.BlockSink sink = new ParallelBlockDownloadScheduler.BlockSink() {
+        @Override
+        public void onBlockInOrder(Block block, int height) {
+            assertEquals(chain.get(height - 1).getHash(), block.getHash());
+            delivered.add(height);
+        }
+    };
+    private final HeightIndex headers = new HeightIndex() {
+        @Nullable
+        @Override
+        public Sha256Hash getHashAtHeight(int height) {
+            return height >= 1 && height <= chain.size() ? chain.get(height - 1).getHash() : null;
+        }
+
+        @Override
+        public int getBestHeight() {
+            return chain.size();
+        }
+    };
+
+    @BeforeClass
+    public static void buildChain() {
+        final Address to = new ECKey().toAddress(params);
+        Block prev = params.getGenesisBlock();
+        for (int i = 0; i < CHAIN_LENGTH; i++) {
+            prev = prev.createNextBlock(to);
+            chain.add(prev);
+            blocksByHash.put(prev.getHash(), prev);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        Utils.setMockClock();
+    }
+
+    @After
+    public void tearDown() {
+        Utils.resetMocking();
+    }
+
+    @Test
+    public void deliversInOrderAcrossPeers() {
+        final ParallelBlockDownloadScheduler scheduler =
+                new ParallelBlockDownloadScheduler(headers, sink, 1, CHAIN_LENGTH, 5, 20, 10000);
+        final MockPeer a = new MockPeer();
+        final MockPeer b = new MockPeer();
+        scheduler.addPeer(a);
+        scheduler.addPeer(b);
+        assertEquals(1, a.requests.size());
+        assertEquals(1, b.requests.size());
+
+        // The later window arrives first and has to wait in the buffer.
+        b.deliverLast(scheduler);
+        assertTrue(delivered.isEmpty());
+        assertEquals(5, scheduler.getBufferedBlockCount());
+
+        int rounds = 0;
+        while (!scheduler.isComplete() && rounds++ < 100) {
+            a.deliverLast(scheduler);
+            b.deliverLast(scheduler);
+        }
+        assertTrue(scheduler.isComplete());
+        assertEquals(CHAIN_LENGTH, delivered.size());
+        for (int i = 0; i < CHAIN_LENGTH; i++) {
+            assertEquals(i + 1, (int) delivered.get(i));
+        }
+        assertEquals(0, scheduler.getBufferedBlockCount());
+        assertTrue(scheduler.getThroughput(a) > 0);
+    }
+
+    @Test
+    public void stalledWindowIsReassigned() {
+        final ParallelBlockDownloadScheduler scheduler =
+                new ParallelBlockDownloadScheduler(headers, sink, 1, CHAIN_LENGTH, 5, 20, 10000);
+        final MockPeer slow = new MockPeer();
+        final MockPeer fast = new MockPeer();
+        scheduler.addPeer(slow);
+        scheduler.addPeer(fast);
+        fast.deliverLast(scheduler);
+        Utils.rollMockClock(11);
+        fast.deliverLast(scheduler);
+        Utils.rollMockClock(6);
+
+        scheduler.tick();
+        assertEquals(1, scheduler.getReassignedWindowCount());
+        assertEquals(1, slow.requests.size());
+
+        fast.deliverLast(scheduler);
+        assertEquals(chain.get(0).getHash(), fast.lastRequest().get(0));
+        assertEquals(5, fast.lastRequest().size());
+        fast.deliverLast(scheduler);
+        assertEquals(20, delivered.size());
+    }
+
+    @Test
+    public void windowsDontRunAheadOfReorderBuffer() {
+        final ParallelBlockDownloadScheduler scheduler =
+                new ParallelBlockDownloadScheduler(headers, sink, 1, CHAIN_LENGTH, 5, 10, 10000);
+        final MockPeer a = new MockPeer();
+        final MockPeer b = new MockPeer();
+        final MockPeer c = new MockPeer();
+        scheduler.addPeer(a);
+        scheduler.addPeer(b);
+        scheduler.addPeer(c);
+        assertTrue(c.requests.isEmpty());
+
+        a.deliverLast(scheduler);
+        assertEquals(5, delivered.size());
+        // Only one more window fits behind the delivered ones and the fastest peer gets it.
+        assertEquals(2, a.requests.size());
+        assertTrue(c.requests.isEmpty());
+    }
+
+    private static final class MockPeer implements ParallelBlockDownloadScheduler.DownloadPeer {
+
+        private final List<List<Sha256Hash>> requests = new ArrayList<List<Sha256Hash>>();
+
+        @Override
+        public void requestBlocks(List<Sha256Hash> hashes) {
+            requests.add(new ArrayList<Sha256Hash>(hashes));
+        }
+
+        private List<Sha256Hash> lastRequest() {
+            return requests.get(requests.size() - 1);
+        }
+
+        /** Answers the latest request back to front. */
+        private void deliverLast(ParallelBlockDownloadScheduler scheduler) {
+            if (requests.isEmpty())
+                return;
+            final List<Sha256Hash> request = lastRequest();
+            for (int i = request.size() - 1; i >= 0; i--) {
+                scheduler.onBlock(this, blocksByHash.get(request.get(i)));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.ProtocolException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PooledMessageFramerTest {
+
+    // LitecoinDefinition.MAIN_PACKET_MAGIC
+    private static final long MAGIC = 0xfbc0b6dbL;
+
+    private final Random random = new Random(23);
+    private ByteBufferPool pool;
+    private List<MessageFrame> frames;
+    private PooledMessageFramer framer;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new ByteBufferPool();
+        frames = new ArrayList<MessageFrame>();
+        framer = new PooledMessageFramer(MAGIC, pool, new PooledMessageFramer.FrameListener() {
+            @Override
+            public void onFrame(MessageFrame frame) {
+                frames.add(frame);
+            }
+        });
+    }
+
+    @Test
+    public void framesSurviveArbitraryChunking() throws Exception {
+        final List<byte[]> payloads = new ArrayList<byte[]>();
+        final ByteBuffer stream = ByteBuffer.allocate(1 << 20);
+        for (int i = 0; i < 50; i++) {
+            final byte[] payload = new byte[i == 7 ? 0 : random.nextInt(5000)];
+            random.nextBytes(payload);
+            payloads.add(payload);
+            PooledMessageFramer.writeFrame(MAGIC, i % 2 == 0 ? "tx" : "headers", payload, stream);
+        }
+        stream.flip();
+        while (stream.hasRemaining()) {
+            final ByteBuffer chunk = stream.duplicate();
+            chunk.limit(Math.min(stream.limit(), stream.position() + 1 + random.nextInt(700)));
+            stream.position(chunk.limit());
+            framer.feed(chunk);
+        }
+
+        assertEquals(50, frames.size());
+        for (int i = 0; i < 50; i++) {
+            final MessageFrame frame = frames.get(i);
+            assertEquals(i % 2 == 0 ? "tx" : "headers", frame.getCommand());
+            assertArrayEquals(payloads.get(i), frame.toByteArray());
+            assertTrue(frame.getPayload().isReadOnly());
+            frame.release();
+        }
+    }
+
+    @Test
+    public void garbageBeforeMagicIsSkipped() throws Exception {
+        final ByteBuffer stream = ByteBuffer.allocate(1000);
+        stream.put(new byte[] {(byte) 0xfb, (byte) 0xc0, 1, 2, 3, (byte) 0xfb});
+        PooledMessageFramer.writeFrame(MAGIC, "ping", new byte[8], stream);
+        stream.flip();
+        framer.feed(stream);
+
+        assertEquals(1, frames.size());
+        assertEquals("ping", frames.get(0).getCommand());
+        assertEquals(6, framer.getSkippedBytes());
+    }
+
+    @Test
+    public void badChecksumIsRejectedAndBufferReturned() throws Exception {
+        final ByteBuffer stream = ByteBuffer.allocate(1000);
+        PooledMessageFramer.writeFrame(MAGIC, "inv", new byte[100], stream);
+        stream.put(stream.position() - 1, (byte) 1);
+        stream.flip();
+        try {
+            framer.feed(stream);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+        assertTrue(frames.isEmpty());
+        assertEquals(1024, pool.getRetainedBytes());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void oversizedMessageIsRejected() throws Exception {
+        final ByteBuffer header = ByteBuffer.allocate(PooledMessageFramer.HEADER_SIZE);
+        PooledMessageFramer.writeFrame(MAGIC, "block", new byte[0], header);
+        header.put(16, (byte) 0xff).put(17, (byte) 0xff).put(18, (byte) 0xff).put(19, (byte) 0x7f);
+        header.flip();
+        framer.feed(header);
+    }
+
+    @Test
+    public void buffersAreReusedOnceReleased() throws Exception {
+        final ByteBuffer stream = ByteBuffer.allocate(10000);
+        for (int round = 0; round < 100; round++) {
+            stream.clear();
+            PooledMessageFramer.writeFrame(MAGIC, "tx", new byte[3000], stream);
+            stream.flip();
+            framer.feed(stream);
+            frames.remove(0).release();
+        }
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(99, pool.getReuseCount());
+    }
+
+    @Test
+    public void retainedFrameOutlivesFirstRelease() throws Exception {
+        final ByteBuffer stream = ByteBuffer.allocate(1000);
+        PooledMessageFramer.writeFrame(MAGIC, "tx", new byte[] {1, 2, 3}, stream);
+        stream.flip();
+        framer.feed(stream);
+        final MessageFrame frame = frames.get(0).retain();
+        frame.release();
+        assertArrayEquals(new byte[] {1, 2, 3}, frame.toByteArray());
+        assertEquals(0, pool.getRetainedBytes());
+        frame.release();
+        assertEquals(1024, pool.getRetainedBytes());
+        try {
+            frame.getPayload();
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void readsStraightFromChannel() throws Exception {
+        final ByteBuffer stream = ByteBuffer.allocate(100000);
+        final byte[] payload = new byte[70000];
+        random.nextBytes(payload);
+        PooledMessageFramer.writeFrame(MAGIC, "block", payload, stream);
+        PooledMessageFramer.writeFrame(MAGIC, "verack", new byte[0], stream);
+        final ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(stream.array(), 0, stream.position()));
+        while (framer.readFrom(channel) >= 0) {
+            // Keep reading.
+        }
+        assertEquals(2, frames.size());
+        assertArrayEquals(payload, frames.get(0).toByteArray());
+        assertEquals("verack", frames.get(1).getCommand());
+        assertEquals(0, frames.get(1).getLength());
+    }
+
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SipHasherTest {
+
+    private static final SipHasher hasher = new SipHasher(0x0706050403020100L, 0x0f0e0d0c0b0a0908L);
+
+    @Test
+    public void referenceVectors() {
+        // From the SipHash paper, key 00 01 .. 0f.
+        assertEquals(0x726fdb47dd0e0e31L, hasher.hash(new byte[0]));
+        assertEquals(0xa129ca6149be45e5L, hasher.hash(message(15)));
+    }
+
+    @Test
+    public void offsetAndLength() {
+        final byte[] padded = new byte[20];
+        System.arraycopy(message(15), 0, padded, 3, 15);
+        assertEquals(hasher.hash(message(15)), hasher.hash(padded, 3, 15));
+    }
+
+    private static byte[] message(int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) i;
+        return bytes;
+    }
+
+}
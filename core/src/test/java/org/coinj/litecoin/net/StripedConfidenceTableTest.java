@@ -0,0 +1,233 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.net;
+
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.utils.Threading;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StripedConfidenceTableTest {
+
+    private ScheduledExecutorService scheduler;
+    private StripedConfidenceTable table;
+    private final List<Integer> notifiedSeenBy = new ArrayList<Integer>();
+    private final List<Integer> notifiedDepths = new ArrayList<Integer>();
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        // A window long enough that the scheduler never fires during a test; notifications are drained by hand.
+        table = new StripedConfidenceTable(scheduler, 3600 * 1000);
+        table.addListener(new StripedConfidenceTable.Listener() {
+            @Override
+            public void onConfidenceChanged(Sha256Hash txHash, int seenByPeers, int depth) {
+                notifiedSeenBy.add(seenByPeers);
+                notifiedDepths.add(depth);
+            }
+        }, Threading.SAME_THREAD);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void countsDistinctPeers() throws Exception {
+        final Sha256Hash tx = randomHash(new Random(1));
+        assertEquals(1, table.seen(tx, peer(1)));
+        assertEquals(1, table.seen(tx, peer(1)));
+        assertEquals(2, table.seen(tx, peer(2)));
+        assertEquals(2, table.getSeenByCount(tx));
+        assertEquals(2, table.getSeenBy(tx).size());
+        assertTrue(table.getSeenBy(tx).contains(peer(2)));
+        assertEquals(0, table.getSeenByCount(randomHash(new Random(2))));
+    }
+
+    @Test
+    public void announceStormIsCoalesced() throws Exception {
+        final Sha256Hash tx = randomHash(new Random(1));
+        for (int i = 0; i < 50; i++) {
+            table.seen(tx, peer(i));
+        }
+        table.drainNotifications();
+        assertEquals(1, notifiedSeenBy.size());
+        assertEquals(50, (int) notifiedSeenBy.get(0));
+
+        table.seen(tx, peer(50));
+        table.drainNotifications();
+        assertEquals(2, notifiedSeenBy.size());
+        assertEquals(51, (int) notifiedSeenBy.get(1));
+    }
+
+    @Test
+    public void depthFollowsBestHeight() throws Exception {
+        final Sha256Hash tx = randomHash(new Random(1));
+        table.seen(tx, peer(1));
+        assertEquals(0, table.getDepth(tx));
+
+        table.setBestHeight(100);
+        table.setAppearedAtHeight(tx, 100);
+        assertEquals(1, table.getDepth(tx));
+        table.setBestHeight(105);
+        assertEquals(6, table.getDepth(tx));
+
+        table.drainNotifications();
+        assertEquals(1, notifiedDepths.size());
+        assertEquals(6, (int) notifiedDepths.get(0));
+
+        // Reorganised back into the mempool.
+        table.setAppearedAtHeight(tx, -1);
+        assertEquals(0, table.getDepth(tx));
+    }
+
+    @Test
+    public void newBlockNotifiesConfirmedTransactions() throws Exception {
+        final Random random = new Random(3);
+        final Sha256Hash confirmed = randomHash(random);
+        final Sha256Hash pending = randomHash(random);
+        table.setBestHeight(100);
+        table.setAppearedAtHeight(confirmed, 100);
+        table.seen(pending, peer(1));
+        table.drainNotifications();
+        assertEquals(2, notifiedDepths.size());
+
+        table.setBestHeight(101);
+        table.setBestHeight(102);
+        table.drainNotifications();
+        assertEquals(3, notifiedDepths.size());
+        assertEquals(3, (int) notifiedDepths.get(2));
+
+        // Same height again, nothing changed.
+        table.setBestHeight(102);
+        table.drainNotifications();
+        assertEquals(3, notifiedDepths.size());
+    }
+
+    @Test
+    public void buriedTransactionsAreNotNotified() throws Exception {
+        final Random random = new Random(4);
+        final Sha256Hash buried = randomHash(random);
+        final Sha256Hash recent = randomHash(random);
+        table.setBestHeight(1000);
+        table.setAppearedAtHeight(buried, 1000 - StripedConfidenceTable.DEFAULT_DEPTH_HORIZON);
+        table.setAppearedAtHeight(recent, 990);
+        table.drainNotifications();
+        assertEquals(2, notifiedDepths.size());
+
+        table.setBestHeight(1001);
+        table.drainNotifications();
+        assertEquals(3, notifiedDepths.size());
+        assertEquals(12, (int) notifiedDepths.get(2));
+        assertEquals(StripedConfidenceTable.DEFAULT_DEPTH_HORIZON + 2, table.getDepth(buried));
+
+        // Removed entries leave the height index too.
+        table.remove(recent);
+        table.setBestHeight(1002);
+        table.drainNotifications();
+        assertEquals(3, notifiedDepths.size());
+    }
+
+    @Test
+    public void removeKeepsOtherEntriesReachable() throws Exception {
+        final Random random = new Random(7);
+        final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < 20000; i++) {
+            hashes.add(randomHash(random));
+        }
+        // Same 8 byte key, different transactions.
+        final byte[] bytes = hashes.get(0).getBytes().clone();
+        bytes[31] ^= 1;
+        hashes.add(new Sha256Hash(bytes));
+
+        for (Sha256Hash hash : hashes) {
+            table.seen(hash, peer(1));
+        }
+        assertEquals(hashes.size(), table.size());
+        for (int i = 0; i < hashes.size(); i += 2) {
+            assertTrue(table.remove(hashes.get(i)));
+        }
+        for (int i = 0; i < hashes.size(); i++) {
+            assertEquals(i % 2 == 0 ? 0 : 1, table.getSeenByCount(hashes.get(i)));
+        }
+        assertEquals(hashes.size() / 2, table.size());
+    }
+
+    @Test
+    public void concurrentAnnouncements() throws Exception {
+        final int threads = 8;
+        final int perThread = 20000;
+        final Random random = new Random(11);
+        final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < perThread; i++) {
+            hashes.add(randomHash(random));
+        }
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger failures = new AtomicInteger();
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final PeerAddress peer = peer(t);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (Sha256Hash hash : hashes) {
+                            table.seen(hash, peer);
+                        }
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        System.out.println("Tracked " + threads * perThread + " announcements in " + (System.nanoTime() - start) / 1000000 + " ms");
+        assertEquals(0, failures.get());
+        assertEquals(perThread, table.size());
+        for (Sha256Hash hash : hashes) {
+            assertEquals(threads, table.getSeenByCount(hash));
+        }
+    }
+
+    private static Sha256Hash randomHash(Random random) {
+        final byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new Sha256Hash(bytes);
+    }
+
+    private static PeerAddress peer(int i) throws Exception {
+        return new PeerAddress(InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i}), 9333);
+    }
+
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import com.google.common.io.Files;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStoreException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BatchingH2FullPrunedBlockStoreTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private File directory;
+    private String url;
+    private BatchingH2FullPrunedBlockStore store;
+    private StoredBlock head;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+        url = "jdbc:h2:" + new File(directory, "test").getAbsolutePath() + ";create=true";
+        store = new BatchingH2FullPrunedBlockStore(params, url, 10, 10, 1000);
+        head = store.getVerifiedChainHead();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void createdThenSpentOutputsNeverReachTheDatabase() throws Exception {
+        final StoredTransactionOutput kept = output(1);
+        final StoredTransactionOutput spent = output(2);
+        connect(kept, spent);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(spent);
+        advance();
+        store.commitDatabaseBatchWrite();
+        assertEquals(1, store.getPendingOutputCount());
+        assertNull(store.getTransactionOutput(spent.getHash(), 0));
+
+        store.write();
+        assertEquals(0, store.getPendingOutputCount());
+        assertNotNull(store.getTransactionOutput(kept.getHash(), 0));
+        assertNull(store.getTransactionOutput(spent.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(spent.getHash(), 1));
+    }
+
+    @Test
+    public void blocksShareOneTransaction() throws Exception {
+        final long start = store.getTransactionCount();
+        for (int i = 0; i < 9; i++) {
+            connect(output(10 + i));
+        }
+        assertEquals(start, store.getTransactionCount());
+        assertEquals(9, store.getPendingBlockCount());
+
+        connect(output(30));
+        assertEquals(start + 1, store.getTransactionCount());
+        assertEquals(0, store.getPendingBlockCount());
+    }
+
+    @Test
+    public void abortOnlyUndoesTheOpenBatch() throws Exception {
+        final StoredTransactionOutput out = output(40);
+        connect(out);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(output(41));
+        advance();
+        store.abortDatabaseBatchWrite();
+
+        assertNotNull(store.getTransactionOutput(out.getHash(), 0));
+        assertNull(store.getTransactionOutput(output(41).getHash(), 0));
+        assertEquals(1, store.getVerifiedChainHead().getHeight());
+        assertEquals(1, store.getPendingBlockCount());
+    }
+
+    @Test
+    public void spendOfWrittenOutput() throws Exception {
+        final StoredTransactionOutput out = output(50);
+        connect(out);
+        store.write();
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        advance();
+        store.commitDatabaseBatchWrite();
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 1));
+
+        store.write();
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+    }
+
+    @Test
+    public void missingOutputRemovalFailsOnWrite() throws Exception {
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(output(60));
+        advance();
+        store.commitDatabaseBatchWrite();
+        try {
+            store.write();
+            fail();
+        } catch (BlockStoreException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void closeWritesPendingChanges() throws Exception {
+        final StoredTransactionOutput out = output(70);
+        connect(out);
+        store.close();
+
+        store = new BatchingH2FullPrunedBlockStore(params, url, 10, 10, 1000);
+        final StoredTransactionOutput read = store.getTransactionOutput(out.getHash(), 0);
+        assertNotNull(read);
+        assertEquals(out.getValue(), read.getValue());
+        assertEquals(head.getHeader().getHash(), store.getVerifiedChainHead().getHeader().getHash());
+    }
+
+    private void connect(StoredTransactionOutput... outputs) throws Exception {
+        store.beginDatabaseBatchWrite();
+        for (StoredTransactionOutput out : outputs) {
+            store.addUnspentTransactionOutput(out);
+        }
+        advance();
+        store.commitDatabaseBatchWrite();
+    }
+
+    private void advance() throws Exception {
+        head = new StoredBlock(head.getHeader(), head.getChainWork().add(BigInteger.ONE), head.getHeight() + 1);
+        store.setVerifiedChainHead(head);
+    }
+
+    private static StoredTransactionOutput output(int seed) {
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] {(byte) seed}), 0, Coin.valueOf(1000 + seed),
+                1, false, new byte[] {(byte) seed});
+    }
+
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BlockFileIndexTest {
+
+    private final NetworkParameters params = MainNetParams.get();
+    private File directory;
+    private File indexFile;
+    private ExecutorService executor;
+    private int nonce;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("blocks", "");
+        directory.delete();
+        directory.mkdir();
+        indexFile = new File(directory, "index.dat");
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Header with the given parent, a unique nonce and some transaction bytes behind it.
+     */
+    private byte[] block(Sha256Hash prev) {
+        final byte[] block = new byte[80 + 20];
+        System.arraycopy(Utils.reverseBytes(prev.getBytes()), 0, block, 4, 32);
+        Utils.uint32ToByteArrayLE(++nonce, block, 76);
+        block[90] = (byte) nonce;
+        return block;
+    }
+
+    private static Sha256Hash hash(byte[] block) {
+        final byte[] header = new byte[80];
+        System.arraycopy(block, 0, header, 0, 80);
+        return new Sha256Hash(Utils.dSha256Hash(header));
+    }
+
+    private byte[] record(byte[] block) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long magic = params.getPacketMagic();
+        out.write((int) (magic >>> 24));
+        out.write((int) (magic >>> 16));
+        out.write((int) (magic >>> 8));
+        out.write((int) magic);
+        final byte[] length = new byte[4];
+        Utils.uint32ToByteArrayLE(block.length, length, 0);
+        out.write(length, 0, 4);
+        out.write(block, 0, block.length);
+        return out.toByteArray();
+    }
+
+    private void writeFile(int number, byte[]... blocks) throws Exception {
+        final FileOutputStream out = new FileOutputStream(new File(directory, String.format("blk%05d.dat", number)));
+        try {
+            for (byte[] block : blocks) {
+                out.write(record(block));
+            }
+            // preallocated space, as left by the reference client
+            out.write(new byte[1000]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private byte[][] chain(Sha256Hash from, int count) {
+        final byte[][] blocks = new byte[count][];
+        Sha256Hash prev = from;
+        for (int i = 0; i < count; i++) {
+            blocks[i] = block(prev);
+            prev = hash(blocks[i]);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void indexesAndUpdates() throws Exception {
+        final byte[][] main = chain(Sha256Hash.ZERO_HASH, 10);
+        final byte[] fork = block(hash(main[7]));
+        final byte[][] forkTail = chain(hash(fork), 4);
+        final byte[] orphan = forkTail[1];
+        writeFile(0, main[0], main[1], main[2], main[3], main[4]);
+        writeFile(1, main[5], main[6], main[7], fork, orphan, main[8], main[9]);
+
+        BlockFileIndex index = BlockFileIndex.open(params, directory, indexFile);
+        try {
+            assertEquals(9, index.getBestHeight());
+            assertEquals(12, index.size());
+            for (int height = 0; height < 10; height++) {
+                assertEquals(hash(main[height]), index.get(height).getHash());
+                assertEquals(height, index.get(hash(main[height])).getHeight());
+            }
+            assertEquals(8, index.get(hash(fork)).getHeight());
+            assertEquals(BlockFileIndex.UNCONNECTED, index.get(hash(orphan)).getHeight());
+            assertNull(index.get(10));
+            assertNull(index.get(hash(forkTail[0])));
+            final BlockFileIndex.Location location = index.get(hash(main[6]));
+            assertEquals(1, location.getFileNumber());
+            assertArrayEquals(main[6], index.readBlockBytes(location));
+        } finally {
+            index.close();
+        }
+
+        // the orphan's parent lands in the preallocated space, a new file makes the fork the longest chain
+        final File file1 = new File(directory, "blk00001.dat");
+        final long resumeAt = file1.length() - 1000;
+        final RandomAccessFile raf = new RandomAccessFile(file1, "rw");
+        try {
+            raf.seek(resumeAt);
+            raf.write(record(forkTail[0]));
+        } finally {
+            raf.close();
+        }
+        file1.setLastModified(file1.lastModified() + 2000);
+        writeFile(2, forkTail[2], forkTail[3]);
+
+        index = new BlockFileIndex(params, directory, indexFile, executor);
+        assertEquals(9, index.getBestHeight());
+        assertEquals(3, index.update());
+        assertEquals(15, index.size());
+        assertEquals(12, index.getBestHeight());
+        for (int height = 0; height <= 7; height++) {
+            assertEquals(hash(main[height]), index.get(height).getHash());
+        }
+        assertEquals(hash(fork), index.get(8).getHash());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(hash(forkTail[i]), index.get(9 + i).getHash());
+        }
+        assertEquals(9, index.get(hash(main[9])).getHeight());
+        assertEquals(0, index.update());
+
+        // and from disk
+        index = new BlockFileIndex(params, directory, indexFile, executor);
+        assertEquals(12, index.getBestHeight());
+        assertEquals(hash(forkTail[1]), index.get(10).getHash());
+        assertEquals(2, index.get(12).getFileNumber());
+        assertArrayEquals(forkTail[3], index.readBlockBytes(index.get(12)));
+        assertEquals(0, index.update());
+    }
+
+
+    @Test
+    public void emptyDirectory() throws Exception {
+        final BlockFileIndex index = BlockFileIndex.open(params, directory, indexFile);
+        try {
+            assertEquals(-1, index.getBestHeight());
+            assertEquals(0, index.size());
+            assertNull(index.get(0));
+        } finally {
+            index.close();
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BlockLocatorBuilderTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private static final class SyntheticIndex implements HeightIndex {
+        private int bestHeight;
+        private int lookups;
+
+        @Override
+        public Sha256Hash getHashAtHeight(int height) {
+            lookups++;
+            if (height < 0 || height > bestHeight)
+                return null;
+            if (height == 0)
+                return params.getGenesisBlock().getHash();
+            return hashAt(height);
+        }
+
+        @Override
+        public int getBestHeight() {
+            return bestHeight;
+        }
+    }
+
+    private static Sha256Hash hashAt(int height) {
+        final byte[] bytes = new byte[4];
+        Utils.uint32ToByteArrayBE(height, bytes, 0);
+        return Sha256Hash.create(bytes);
+    }
+
+    @Test
+    public void locatorForLongChainTouchesFewHeights() throws Exception {
+        final SyntheticIndex index = new SyntheticIndex();
+        index.bestHeight = 3000000;
+        final BlockLocatorBuilder builder = new BlockLocatorBuilder(params, index);
+
+        final List<Sha256Hash> locator = builder.build();
+        assertTrue("lookups: " + index.lookups, index.lookups <= 40);
+        assertEquals(expectedHeights(3000000).size(), locator.size());
+        int i = 0;
+        for (int height : expectedHeights(3000000)) {
+            assertEquals(height == 0 ? params.getGenesisBlock().getHash() : hashAt(height), locator.get(i++));
+        }
+    }
+
+    @Test
+    public void locatorIsCachedPerTip() throws Exception {
+        final SyntheticIndex index = new SyntheticIndex();
+        index.bestHeight = 5000;
+        final BlockLocatorBuilder builder = new BlockLocatorBuilder(params, index);
+
+        final List<Sha256Hash> first = builder.build();
+        index.lookups = 0;
+        assertSame(first, builder.build());
+        assertEquals(1, index.lookups);
+
+        index.bestHeight = 5001;
+        final List<Sha256Hash> second = builder.build();
+        assertEquals(hashAt(5001), second.get(0));
+        assertEquals(hashAt(5000), second.get(1));
+    }
+
+    @Test
+    public void sideChainLocatorRejoinsBestChain() throws Exception {
+        final File file = File.createTempFile("litecoin-spv", ".store");
+        file.delete();
+        final LitecoinSPVBlockStore store = new LitecoinSPVBlockStore(params, file, 1024);
+        try {
+            final Address to = new ECKey().toAddress(params);
+            final List<StoredBlock> main = new ArrayList<StoredBlock>();
+            main.add(store.getChainHead());
+            for (int i = 1; i <= 300; i++) {
+                final StoredBlock next = main.get(i - 1).build(main.get(i - 1).getHeader().createNextBlock(to).cloneAsHeader());
+                store.put(next);
+                store.setChainHead(next);
+                main.add(next);
+            }
+            StoredBlock sideTip = main.get(250);
+            final List<StoredBlock> side = new ArrayList<StoredBlock>();
+            for (int i = 0; i < 30; i++) {
+                sideTip = sideTip.build(sideTip.getHeader().createNextBlock(to).cloneAsHeader());
+                store.put(sideTip);
+                side.add(sideTip);
+            }
+
+            final List<Sha256Hash> locator = new BlockLocatorBuilder(params, store).build(sideTip, store);
+            final List<Integer> heights = expectedHeights(280);
+            assertEquals(heights.size(), locator.size());
+            for (int i = 0; i < heights.size(); i++) {
+                final int height = heights.get(i);
+                final StoredBlock expected = height > 250 ? side.get(height - 251) : main.get(height);
+                assertEquals(expected.getHeader().getHash(), locator.get(i));
+            }
+        } finally {
+            store.close();
+            file.delete();
+        }
+    }
+
+    private static List<Integer> expectedHeights(int tip) {
+        final List<Integer> heights = new ArrayList<Integer>();
+        int step = 1;
+        for (int height = tip; height > 0; height -= step) {
+            heights.add(height);
+            if (heights.size() >= 10)
+                step *= 2;
+        }
+        heights.add(0);
+        return heights;
+    }
+
+}
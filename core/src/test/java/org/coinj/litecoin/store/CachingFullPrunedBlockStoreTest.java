@@ -0,0 +1,178 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CachingFullPrunedBlockStoreTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private static final class CountingStore extends MemoryFullPrunedBlockStore {
+        private int adds;
+        private int removes;
+
+        private CountingStore() throws BlockStoreException {
+            super(params, 100);
+        }
+
+        @Override
+        public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+            adds++;
+            super.addUnspentTransactionOutput(out);
+        }
+
+        @Override
+        public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+            removes++;
+            super.removeUnspentTransactionOutput(out);
+        }
+    }
+
+    private CountingStore store;
+    private CachingFullPrunedBlockStore cache;
+    private StoredBlock head;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new CountingStore();
+        cache = new CachingFullPrunedBlockStore(store, 10, 1024 * 1024);
+        head = cache.getVerifiedChainHead();
+    }
+
+    @Test
+    public void createdThenSpentOutputsNeverReachTheStore() throws Exception {
+        final StoredTransactionOutput kept = output(1, false);
+        final StoredTransactionOutput spent = output(2, false);
+        connect(kept, spent);
+        assertNotNull(cache.getTransactionOutput(spent.getHash(), 0));
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutput(spent);
+        advance();
+        cache.commitDatabaseBatchWrite();
+        assertNull(cache.getTransactionOutput(spent.getHash(), 0));
+        assertEquals(0, store.adds);
+
+        cache.flush();
+        assertEquals(1, store.adds);
+        assertEquals(0, store.removes);
+        assertEquals(1, cache.getAnnihilatedCount());
+        assertNotNull(store.getTransactionOutput(kept.getHash(), 0));
+        assertNull(store.getTransactionOutput(spent.getHash(), 0));
+    }
+
+    @Test
+    public void storeHeadOnlyMovesOnFlush() throws Exception {
+        final StoredBlock start = store.getVerifiedChainHead();
+        for (int i = 0; i < 9; i++) {
+            connect(output(10 + i, false));
+        }
+        assertEquals(start, store.getVerifiedChainHead());
+        assertEquals(9, cache.getVerifiedChainHead().getHeight());
+        assertEquals(0, store.adds);
+
+        connect(output(30, false));
+        assertEquals(10, store.getVerifiedChainHead().getHeight());
+        assertEquals(10, store.adds);
+        assertEquals(1, cache.getFlushCount());
+    }
+
+    @Test
+    public void abortedBatchRestoresCache() throws Exception {
+        final StoredTransactionOutput out = output(40, false);
+        connect(out);
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutput(out);
+        cache.addUnspentTransactionOutput(output(41, false));
+        advance();
+        cache.abortDatabaseBatchWrite();
+
+        assertNotNull(cache.getTransactionOutput(out.getHash(), 0));
+        assertNull(cache.getTransactionOutput(output(41, false).getHash(), 0));
+        assertEquals(1, cache.getVerifiedChainHead().getHeight());
+    }
+
+    @Test
+    public void spendOfStoredOutputIsWrittenOnFlush() throws Exception {
+        final StoredTransactionOutput out = output(50, false);
+        connect(out);
+        cache.flush();
+        assertTrue(cache.hasUnspentOutputs(out.getHash(), 1));
+
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutput(out);
+        advance();
+        cache.commitDatabaseBatchWrite();
+        assertFalse(cache.hasUnspentOutputs(out.getHash(), 1));
+        assertNotNull(store.getTransactionOutput(out.getHash(), 0));
+
+        cache.flush();
+        assertEquals(1, store.removes);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+    }
+
+    @Test
+    public void coinbaseSpentBeforeFlushIsCheckedAgainstStore() throws Exception {
+        final StoredTransactionOutput coinbase = output(60, true);
+        connect(coinbase);
+        cache.beginDatabaseBatchWrite();
+        cache.removeUnspentTransactionOutput(coinbase);
+        advance();
+        cache.commitDatabaseBatchWrite();
+        cache.flush();
+        assertEquals(0, store.removes);
+        assertNull(store.getTransactionOutput(coinbase.getHash(), 0));
+    }
+
+    private void connect(StoredTransactionOutput... outputs) throws Exception {
+        cache.beginDatabaseBatchWrite();
+        for (StoredTransactionOutput out : outputs) {
+            cache.addUnspentTransactionOutput(out);
+        }
+        advance();
+        cache.commitDatabaseBatchWrite();
+    }
+
+    private void advance() throws Exception {
+        head = new StoredBlock(head.getHeader(), head.getChainWork().add(BigInteger.ONE), head.getHeight() + 1);
+        cache.setVerifiedChainHead(head);
+    }
+
+    private static StoredTransactionOutput output(int seed, boolean coinbase) {
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] {(byte) seed}), 0, Coin.valueOf(1000 + seed),
+                1, coinbase, new byte[] {(byte) seed});
+    }
+
+}
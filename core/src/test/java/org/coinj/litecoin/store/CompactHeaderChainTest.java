@@ -0,0 +1,161 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactHeaderChainTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private final Address to = new ECKey().toAddress(params);
+    private StoredBlock genesis;
+
+    @Before
+    public void setUp() throws Exception {
+        genesis = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+    }
+
+    @Test
+    public void headersRoundTripThroughArrays() throws Exception {
+        final List<StoredBlock> blocks = build(genesis, 300);
+        final CompactHeaderChain chain = new CompactHeaderChain(params, 16);
+        chain.add(genesis);
+        for (StoredBlock block : blocks) {
+            chain.add(block);
+        }
+
+        assertEquals(300, chain.getBestHeight());
+        assertEquals(301, chain.size());
+        assertEquals(blocks.get(299), chain.getChainHead());
+        for (StoredBlock block : blocks) {
+            final Sha256Hash hash = block.getHeader().getHash();
+            assertEquals(block, chain.getBlockAtHeight(block.getHeight()));
+            assertEquals(block, chain.get(hash));
+            assertEquals(block.getHeight(), chain.getHeight(hash));
+            assertEquals(hash, chain.getHashAtHeight(block.getHeight()));
+            assertArrayEquals(block.getHeader().cloneAsHeader().bitcoinSerialize(), chain.getHeaderBytes(block.getHeight()));
+            assertEquals(block.getHeader().getTimeSeconds(), chain.getTimeAtHeight(block.getHeight()));
+            assertEquals(block.getHeader().getDifficultyTarget(), chain.getDifficultyTargetAtHeight(block.getHeight()));
+        }
+        assertEquals(blocks.get(49).getHeader().getHash(),
+                chain.getAncestor(blocks.get(250).getHeader().getHash(), 50));
+        assertNull(chain.getAncestor(blocks.get(20).getHeader().getHash(), 50));
+        assertEquals(-1, chain.getHeight(Sha256Hash.create(new byte[] {1})));
+    }
+
+    @Test
+    public void truncateThenConnectOtherBranch() throws Exception {
+        final List<StoredBlock> main = build(genesis, 120);
+        final CompactHeaderChain chain = new CompactHeaderChain(params);
+        chain.add(genesis);
+        for (StoredBlock block : main) {
+            chain.add(block);
+        }
+
+        final List<StoredBlock> side = build(main.get(79), 60);
+        chain.truncate(80);
+        assertEquals(80, chain.getBestHeight());
+        for (int i = 80; i < 120; i++) {
+            assertFalse(chain.contains(main.get(i).getHeader().getHash()));
+        }
+        for (StoredBlock block : side) {
+            chain.add(block);
+        }
+        assertEquals(140, chain.getBestHeight());
+        for (StoredBlock block : main.subList(0, 80)) {
+            assertEquals(block.getHeight(), chain.getHeight(block.getHeader().getHash()));
+        }
+        for (StoredBlock block : side) {
+            assertEquals(block.getHeight(), chain.getHeight(block.getHeader().getHash()));
+        }
+    }
+
+    @Test
+    public void chainMayStartAboveGenesis() throws Exception {
+        final List<StoredBlock> blocks = build(genesis, 100);
+        final CompactHeaderChain chain = new CompactHeaderChain(params);
+        for (StoredBlock block : blocks.subList(49, 100)) {
+            chain.add(block);
+        }
+        assertEquals(50, chain.getBaseHeight());
+        assertEquals(100, chain.getBestHeight());
+        assertNull(chain.getHashAtHeight(49));
+        assertEquals(blocks.get(49), chain.getBlockAtHeight(50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void disconnectedHeaderIsRejected() throws Exception {
+        final List<StoredBlock> blocks = build(genesis, 3);
+        final CompactHeaderChain chain = new CompactHeaderChain(params);
+        chain.add(genesis);
+        chain.add(blocks.get(1));
+    }
+
+    @Test
+    public void loadsBestChainFromStore() throws Exception {
+        final File file = File.createTempFile("litecoin-spv", ".store");
+        file.delete();
+        final LitecoinSPVBlockStore store = new LitecoinSPVBlockStore(params, file, 1024);
+        try {
+            final List<StoredBlock> blocks = build(store.getChainHead(), 40);
+            for (StoredBlock block : blocks) {
+                store.put(block);
+                store.setChainHead(block);
+            }
+            final CompactHeaderChain chain = CompactHeaderChain.fromStore(store);
+            assertEquals(0, chain.getBaseHeight());
+            assertEquals(40, chain.getBestHeight());
+            for (StoredBlock block : blocks) {
+                assertTrue(chain.contains(block.getHeader().getHash()));
+                assertEquals(store.getHashAtHeight(block.getHeight()), chain.getHashAtHeight(block.getHeight()));
+            }
+        } finally {
+            store.close();
+            file.delete();
+        }
+    }
+
+    private List<StoredBlock> build(StoredBlock from, int count) throws Exception {
+        final List<StoredBlock> blocks = new ArrayList<StoredBlock>(count);
+        StoredBlock prev = from;
+        for (int i = 0; i < count; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+}
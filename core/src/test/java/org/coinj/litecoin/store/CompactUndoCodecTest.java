@@ -0,0 +1,118 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.Utils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompactUndoCodecTest {
+
+    private static final byte[] P2PKH = Utils.HEX.decode("76a91400112233445566778899aabbccddeeff0011223388ac");
+
+    @Test
+    public void roundTrip() throws Exception {
+        final List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        final List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+        for (int tx = 0; tx < 20; tx++) {
+            final Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) tx});
+            for (int i = 0; i < 3; i++) {
+                created.add(new StoredTransactionOutput(hash, i * 2, Coin.valueOf(1000 + i), 500, tx == 0, P2PKH));
+            }
+            spent.add(new StoredTransactionOutput(Sha256Hash.create(new byte[] {(byte) tx, 1}), tx, Coin.valueOf(tx * 100000L),
+                    100 + tx, tx % 5 == 0, P2PKH));
+        }
+        // out of order index within a transaction
+        created.add(new StoredTransactionOutput(created.get(0).getHash(), 1, Coin.ZERO, 500, true, P2PKH));
+
+        final TransactionOutputChanges decoded =
+                CompactUndoCodec.decode(CompactUndoCodec.encode(new TransactionOutputChanges(created, spent)));
+
+        assertEquals(spent.size(), decoded.txOutsSpent.size());
+        for (int i = 0; i < spent.size(); i++) {
+            final StoredTransactionOutput expected = spent.get(i);
+            final StoredTransactionOutput actual = decoded.txOutsSpent.get(i);
+            assertEquals(expected.getHash(), actual.getHash());
+            assertEquals(expected.getIndex(), actual.getIndex());
+            assertEquals(expected.getValue(), actual.getValue());
+            assertEquals(expected.getHeight(), actual.getHeight());
+            assertEquals(expected.isCoinbase(), actual.isCoinbase());
+            assertArrayEquals(expected.getScriptBytes(), actual.getScriptBytes());
+        }
+        assertEquals(created.size(), decoded.txOutsCreated.size());
+        for (int i = 0; i < created.size(); i++) {
+            final StoredTransactionOutput expected = created.get(i);
+            final StoredTransactionOutput actual = decoded.txOutsCreated.get(i);
+            assertEquals(expected.getHash(), actual.getHash());
+            assertEquals(expected.getIndex(), actual.getIndex());
+            assertEquals(expected.getValue(), actual.getValue());
+            assertEquals(expected.getHeight(), actual.getHeight());
+            assertEquals(expected.isCoinbase(), actual.isCoinbase());
+            assertArrayEquals(expected.getScriptBytes(), actual.getScriptBytes());
+        }
+    }
+
+    @Test
+    public void smallerThanVerbatim() throws Exception {
+        final List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        final List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+        for (int tx = 0; tx < 100; tx++) {
+            final Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) tx, 2});
+            created.add(new StoredTransactionOutput(hash, 0, Coin.valueOf(5000000), 700, false, P2PKH));
+            created.add(new StoredTransactionOutput(hash, 1, Coin.valueOf(123456789), 700, false, P2PKH));
+            spent.add(new StoredTransactionOutput(Sha256Hash.create(new byte[] {(byte) tx, 3}), 0, Coin.valueOf(100000000),
+                    600, false, P2PKH));
+        }
+        final TransactionOutputChanges changes = new TransactionOutputChanges(created, spent);
+        final ByteArrayOutputStream verbatim = new ByteArrayOutputStream();
+        changes.serializeToStream(verbatim);
+        assertTrue(CompactUndoCodec.encode(changes).length * 2 < verbatim.size());
+    }
+
+    @Test
+    public void empty() throws Exception {
+        final TransactionOutputChanges decoded = CompactUndoCodec.decode(CompactUndoCodec.encode(
+                new TransactionOutputChanges(new ArrayList<StoredTransactionOutput>(), new ArrayList<StoredTransactionOutput>())));
+        assertTrue(decoded.txOutsCreated.isEmpty());
+        assertTrue(decoded.txOutsSpent.isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws Exception {
+        final List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+        spent.add(new StoredTransactionOutput(Sha256Hash.create(new byte[] {1}), 0, Coin.valueOf(100000000), 1, false, P2PKH));
+        final byte[] encoded = CompactUndoCodec.encode(
+                new TransactionOutputChanges(new ArrayList<StoredTransactionOutput>(), spent));
+        final byte[] truncated = new byte[encoded.length / 2];
+        System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+        CompactUndoCodec.decode(truncated);
+    }
+
+}
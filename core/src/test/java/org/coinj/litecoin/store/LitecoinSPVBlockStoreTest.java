@@ -0,0 +1,135 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStoreException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LitecoinSPVBlockStoreTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int CAPACITY = 1024;
+
+    private final Address to = new ECKey().toAddress(params);
+    private File file;
+    private LitecoinSPVBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("litecoin-spv", ".store");
+        file.delete();
+        store = new LitecoinSPVBlockStore(params, file, CAPACITY);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        file.delete();
+    }
+
+    @Test
+    public void startsWithGenesis() throws Exception {
+        final Sha256Hash genesis = params.getGenesisBlock().getHash();
+        assertEquals(genesis, store.getChainHead().getHeader().getHash());
+        assertEquals(0, store.getBestHeight());
+        assertEquals(genesis, store.getHashAtHeight(0));
+        assertEquals(1, store.size());
+        assertNull(store.getHashAtHeight(1));
+    }
+
+    @Test
+    public void headersAndHeightsSurviveReopen() throws Exception {
+        final List<StoredBlock> chain = extend(store.getChainHead(), 50, true);
+        store.close();
+
+        store = new LitecoinSPVBlockStore(params, file, CAPACITY);
+        assertEquals(51, store.size());
+        assertEquals(50, store.getBestHeight());
+        assertEquals(chain.get(49), store.getChainHead());
+        for (StoredBlock block : chain) {
+            assertEquals(block, store.get(block.getHeader().getHash()));
+            assertEquals(block.getHeader().getHash(), store.getHashAtHeight(block.getHeight()));
+            assertEquals(block, store.getBlockAtHeight(block.getHeight()));
+        }
+        assertNull(store.get(Sha256Hash.create(new byte[] {1})));
+    }
+
+    @Test
+    public void reorgRewritesHeightIndexBackToForkPoint() throws Exception {
+        final List<StoredBlock> main = extend(store.getChainHead(), 20, true);
+        final StoredBlock forkPoint = main.get(9);
+        final List<StoredBlock> side = extend(forkPoint, 15, false);
+
+        assertEquals(main.get(19).getHeader().getHash(), store.getHashAtHeight(20));
+        store.setChainHead(side.get(14));
+        assertEquals(25, store.getBestHeight());
+        for (int h = 0; h < 10; h++) {
+            assertEquals(main.get(h).getHeader().getHash(), store.getHashAtHeight(h + 1));
+        }
+        for (StoredBlock block : side) {
+            assertEquals(block.getHeader().getHash(), store.getHashAtHeight(block.getHeight()));
+        }
+
+        store.setChainHead(main.get(14));
+        assertEquals(15, store.getBestHeight());
+        assertEquals(main.get(14).getHeader().getHash(), store.getHashAtHeight(15));
+        assertEquals(main.get(10).getHeader().getHash(), store.getHashAtHeight(11));
+        assertNull(store.getHashAtHeight(16));
+        assertNull(store.getBlockAtHeight(25));
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void secondOpenIsRejected() throws Exception {
+        new LitecoinSPVBlockStore(params, file, CAPACITY);
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void heightBeyondCapacityIsRejected() throws Exception {
+        extend(store.getChainHead(), CAPACITY, true);
+    }
+
+    private List<StoredBlock> extend(StoredBlock from, int count, boolean setHead) throws Exception {
+        final List<StoredBlock> blocks = new ArrayList<StoredBlock>(count);
+        StoredBlock prev = from;
+        for (int i = 0; i < count; i++) {
+            final StoredBlock next = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(next);
+            if (setHead)
+                store.setChainHead(next);
+            blocks.add(next);
+            prev = next;
+        }
+        return blocks;
+    }
+
+}
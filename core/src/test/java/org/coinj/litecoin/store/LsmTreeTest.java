@@ -0,0 +1,220 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LsmTreeTest {
+
+    private File directory;
+    private LsmTree tree;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("lsm", "");
+        directory.delete();
+        tree = new LsmTree(directory, 64 * 1024, false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tree.close();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void putGetDelete() throws Exception {
+        tree.put(key(1), value(1));
+        tree.put(key(2), value(2));
+        assertArrayEquals(value(1), tree.get(key(1)));
+        tree.delete(key(1));
+        assertNull(tree.get(key(1)));
+        assertArrayEquals(value(2), tree.get(key(2)));
+        assertNull(tree.get(key(3)));
+    }
+
+    @Test
+    public void abortedBatchLeavesNoTrace() throws Exception {
+        tree.put(key(1), value(1));
+        tree.beginBatch();
+        tree.put(key(2), value(2));
+        tree.delete(key(1));
+        assertNull(tree.get(key(1)));
+        assertArrayEquals(value(2), tree.get(key(2)));
+        tree.abortBatch();
+        assertArrayEquals(value(1), tree.get(key(1)));
+        assertNull(tree.get(key(2)));
+
+        tree.beginBatch();
+        tree.put(key(3), value(3));
+        tree.commitBatch();
+        assertArrayEquals(value(3), tree.get(key(3)));
+    }
+
+    @Test
+    public void manyWritesSurviveFlushesMergesAndReopen() throws Exception {
+        final Random random = new Random(1);
+        final int n = 20000;
+        for (int i = 0; i < n; i++) {
+            if (i % 100 == 0)
+                tree.beginBatch();
+            tree.put(key(i), value(i));
+            if (i % 3 == 0 && i > 0)
+                tree.delete(key(random.nextInt(i)));
+            if (i % 100 == 99)
+                tree.commitBatch();
+        }
+        tree.awaitCompaction();
+        assertTrue(tree.getCompactionCount() > 0);
+        assertTrue("tables: " + tree.getTableCount(), tree.getTableCount() < LsmTree.FANOUT * 4);
+
+        final byte[][] expected = new byte[n][];
+        final Random replay = new Random(1);
+        for (int i = 0; i < n; i++) {
+            expected[i] = value(i);
+            if (i % 3 == 0 && i > 0)
+                expected[replay.nextInt(i)] = null;
+        }
+        for (int i = 0; i < n; i++) {
+            assertArrayEquals("key " + i, expected[i], tree.get(key(i)));
+        }
+
+        tree.put(key(n), value(n));
+        tree.close();
+        tree = new LsmTree(directory, 64 * 1024, false);
+        assertArrayEquals(value(n), tree.get(key(n)));
+        for (int i = 0; i < n; i += 7) {
+            assertArrayEquals("key " + i, expected[i], tree.get(key(i)));
+        }
+    }
+
+    @Test
+    public void rangeQuerySkipsDeletedKeysAcrossLevels() throws Exception {
+        for (int i = 0; i < 3000; i++) {
+            tree.put(key(i), value(i));
+        }
+        tree.flush();
+        for (int i = 100; i < 200; i++) {
+            tree.delete(key(i));
+        }
+        assertArrayEquals(key(200), tree.firstKeyInRange(key(100), key(300)));
+        assertNull(tree.firstKeyInRange(key(100), key(200)));
+        tree.put(key(150), value(150));
+        assertArrayEquals(key(150), tree.firstKeyInRange(key(100), key(200)));
+        assertEquals(0, tree.firstKeyInRange(key(0), key(1))[3]);
+    }
+
+    @Test
+    public void rangeMergesAllLevels() throws Exception {
+        final Random random = new Random(2);
+        final TreeMap<Integer, byte[]> expected = new TreeMap<Integer, byte[]>();
+        for (int round = 0; round < 6; round++) {
+            for (int i = 0; i < 2000; i++) {
+                final int k = random.nextInt(5000);
+                if (random.nextInt(4) == 0) {
+                    tree.delete(key(k));
+                    expected.remove(k);
+                } else {
+                    tree.put(key(k), value(k + round));
+                    expected.put(k, value(k + round));
+                }
+            }
+            if (round < 4)
+                tree.flush();
+        }
+        tree.beginBatch();
+        tree.delete(key(expected.firstKey()));
+        expected.remove(expected.firstKey());
+        tree.put(key(4999), value(1));
+        expected.put(4999, value(1));
+
+        final LsmTree.Range range = tree.range(key(1000), key(4000));
+        try {
+            for (Map.Entry<Integer, byte[]> entry : expected.subMap(1000, 4000).entrySet()) {
+                assertTrue(range.next());
+                assertArrayEquals(key(entry.getKey()), range.getKey());
+                assertArrayEquals(entry.getValue(), range.getValue());
+            }
+            assertFalse(range.next());
+        } finally {
+            range.close();
+        }
+        tree.commitBatch();
+    }
+
+    @Test
+    public void rangeOutlivesChangesAndMerges() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            tree.put(key(i), value(i));
+        }
+        tree.flush();
+        final LsmTree.Range range = tree.range(key(0), key(1000));
+        try {
+            // Deleting while walking, as pruning does, and forcing merges of the tables the range reads.
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(range.next());
+                assertArrayEquals(key(i), range.getKey());
+                tree.delete(key(i));
+                if (i % 100 == 0) {
+                    for (int j = 0; j < 300; j++) {
+                        tree.put(key(10000 + i * 300 + j), value(j));
+                    }
+                    tree.flush();
+                }
+            }
+            assertFalse(range.next());
+        } finally {
+            range.close();
+        }
+        tree.awaitCompaction();
+        assertTrue(tree.getCompactionCount() > 0);
+        assertNull(tree.firstKeyInRange(key(0), key(1000)));
+        assertArrayEquals(value(5), tree.get(key(10005)));
+    }
+
+    private static byte[] key(int i) {
+        return new byte[] {(byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i};
+    }
+
+    private static byte[] value(int i) {
+        final byte[] value = new byte[20 + i % 50];
+        value[0] = (byte) i;
+        value[value.length - 1] = (byte) (i >>> 8);
+        return value;
+    }
+
+}
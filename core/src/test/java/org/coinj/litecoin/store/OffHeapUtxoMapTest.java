@@ -0,0 +1,108 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapUtxoMapTest {
+
+    @Test
+    public void putGetRemove() {
+        final OffHeapUtxoMap map = new OffHeapUtxoMap();
+        final byte[] key = key(1, 0);
+        assertNull(map.get(key));
+        assertFalse(map.put(key, new byte[] {1, 2, 3}));
+        assertArrayEquals(new byte[] {1, 2, 3}, map.get(key));
+        assertNull(map.get(key(1, 1)));
+        assertTrue(map.put(key, new byte[] {4}));
+        assertArrayEquals(new byte[] {4}, map.get(key));
+        assertEquals(1, map.size());
+        assertTrue(map.remove(key));
+        assertFalse(map.remove(key));
+        assertNull(map.get(key));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void matchesHashMapThroughGrowthAndCompaction() {
+        final OffHeapUtxoMap map = new OffHeapUtxoMap(0, 4096);
+        final Map<Integer, byte[]> expected = new HashMap<Integer, byte[]>();
+        final List<Integer> keys = new ArrayList<Integer>();
+        final Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            if (!keys.isEmpty() && random.nextInt(3) == 0) {
+                final int k = keys.remove(random.nextInt(keys.size()));
+                assertTrue(map.remove(key(k, k & 3)));
+                expected.remove(k);
+            } else {
+                final byte[] value = new byte[random.nextInt(300)];
+                random.nextBytes(value);
+                map.put(key(i, i & 3), value);
+                expected.put(i, value);
+                keys.add(i);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Integer, byte[]> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getValue(), map.get(key(entry.getKey(), entry.getKey() & 3)));
+        }
+        // removed values were reclaimed, the arena holds little more than the live ones
+        assertTrue(map.getOffHeapBytes() < map.getValueBytes() * 3 + 64L * 1024 * 1024);
+    }
+
+    @Test
+    public void sameHashDifferentIndex() {
+        final OffHeapUtxoMap map = new OffHeapUtxoMap();
+        for (int i = 0; i < 1000; i++) {
+            map.put(key(7, i), new byte[] {(byte) i});
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertTrue(map.remove(key(7, i)));
+        }
+        for (int i = 0; i < 1000; i++) {
+            if (i % 2 == 0)
+                assertNull(map.get(key(7, i)));
+            else
+                assertArrayEquals(new byte[] {(byte) i}, map.get(key(7, i)));
+        }
+    }
+
+    private static byte[] key(int seed, int index) {
+        final byte[] key = new byte[OffHeapUtxoMap.KEY_SIZE];
+        final Random random = new Random(seed);
+        for (int i = 0; i < 32; i++) {
+            key[i] = (byte) random.nextInt();
+        }
+        key[32] = (byte) index;
+        key[33] = (byte) (index >>> 8);
+        return key;
+    }
+
+}
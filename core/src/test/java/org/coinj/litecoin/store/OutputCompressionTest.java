@@ -0,0 +1,102 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class OutputCompressionTest {
+
+    private static final byte[] HASH20 = Utils.HEX.decode("00112233445566778899aabbccddeeff00112233");
+
+    @Test
+    public void templates() {
+        assertScript(Utils.HEX.decode("76a914" + Utils.HEX.encode(HASH20) + "88ac"), 21);
+        assertScript(Utils.HEX.decode("a914" + Utils.HEX.encode(HASH20) + "87"), 21);
+        final ECKey key = new ECKey();
+        final byte[] compressed = key.getPubKey();
+        assertScript(Utils.HEX.decode("21" + Utils.HEX.encode(compressed) + "ac"), 33);
+        final byte[] uncompressed = key.decompress().getPubKey();
+        assertScript(Utils.HEX.decode("41" + Utils.HEX.encode(uncompressed) + "ac"), 33);
+    }
+
+    @Test
+    public void otherScriptsAreVerbatim() {
+        assertScript(new byte[0], 1);
+        assertScript(new byte[] {0x6a, 0x01, 0x02}, 4);
+        // not a point on the curve
+        final byte[] junkKey = new byte[67];
+        junkKey[0] = 65;
+        junkKey[1] = 4;
+        junkKey[66] = (byte) 0xac;
+        assertScript(junkKey, 68);
+    }
+
+    @Test
+    public void amounts() {
+        final long[] amounts = {0, 1, 9, 10, 50 * 100000000L, 123456789, 100000000000L, 8400000000000000L};
+        for (long amount : amounts) {
+            assertEquals(amount, OutputCompression.decompressAmount(OutputCompression.compressAmount(amount)));
+        }
+        assertEquals(1, OutputCompression.varIntSize(OutputCompression.compressAmount(50 * 100000000L)));
+    }
+
+    @Test
+    public void varInts() {
+        final long[] values = {0, 1, 127, 128, 255, 16511, 16512, 1L << 40, Long.MAX_VALUE};
+        for (long value : values) {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            OutputCompression.writeVarInt(bos, value);
+            assertEquals(OutputCompression.varIntSize(value), bos.size());
+            assertEquals(value, OutputCompression.readVarInt(ByteBuffer.wrap(bos.toByteArray())));
+        }
+    }
+
+    @Test
+    public void outputRoundTrip() {
+        final Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        final byte[] script = Utils.HEX.decode("76a914" + Utils.HEX.encode(HASH20) + "88ac");
+        final StoredTransactionOutput out = new StoredTransactionOutput(hash, 3, Coin.valueOf(2500000000L), 700000,
+                true, script);
+        final byte[] encoded = OutputCompression.encode(out);
+        assertEquals(26, encoded.length);
+        final StoredTransactionOutput decoded = OutputCompression.decode(hash, 3, encoded);
+        assertEquals(out.getValue(), decoded.getValue());
+        assertEquals(700000, decoded.getHeight());
+        assertEquals(true, decoded.isCoinbase());
+        assertArrayEquals(script, decoded.getScriptBytes());
+    }
+
+    private static void assertScript(byte[] script, int compressedSize) {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputCompression.writeScript(bos, script);
+        assertEquals(compressedSize, bos.size());
+        assertArrayEquals(script, OutputCompression.readScript(ByteBuffer.wrap(bos.toByteArray())));
+    }
+
+}
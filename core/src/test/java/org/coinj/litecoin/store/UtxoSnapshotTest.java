@@ -0,0 +1,263 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.coinj.litecoin.store;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.FullPrunedBlockChain;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.bitcoinj.params.UnitTestParams;
+import org.coinj.api.CoinLocator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UtxoSnapshotTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int OUTPUTS = 40000;
+
+    private ExecutorService executor;
+    private File file;
+    private OffHeapFullPrunedBlockStore source;
+    private StoredBlock block;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(3);
+        file = File.createTempFile("utxo", ".snapshot");
+        source = new OffHeapFullPrunedBlockStore(params, 10);
+        for (int i = 0; i < OUTPUTS; i++) {
+            source.addUnspentTransactionOutput(output(i));
+        }
+        final Block next = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        block = new StoredBlock(next.cloneAsHeader(), BigInteger.TEN, 1);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+        file.delete();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final byte[] snapshot = export();
+        final OffHeapFullPrunedBlockStore target = new OffHeapFullPrunedBlockStore(params, 10);
+        final Sha256Hash hash = UtxoSnapshot.load(write(snapshot), params, target, executor, null);
+        assertEquals(UtxoSnapshot.verify(new ByteArrayInputStream(snapshot), params), hash);
+        assertEquals(OUTPUTS, target.getOutputCount());
+        for (int i = 0; i < OUTPUTS; i += 97) {
+            final StoredTransactionOutput expected = output(i);
+            final StoredTransactionOutput read = target.getTransactionOutput(expected.getHash(), expected.getIndex());
+            assertNotNull(read);
+            assertEquals(expected.getValue(), read.getValue());
+            assertEquals(expected.getHeight(), read.getHeight());
+            assertArrayEquals(expected.getScriptBytes(), read.getScriptBytes());
+        }
+        assertEquals(block.getHeader().getHash(), target.getVerifiedChainHead().getHeader().getHash());
+        assertNotNull(target.getOnceUndoableStoredBlock(block.getHeader().getHash()));
+    }
+
+    @Test
+    public void corruptChunkIsRejected() throws Exception {
+        final byte[] snapshot = export();
+        snapshot[snapshot.length / 2] ^= 1;
+        try {
+            UtxoSnapshot.verify(new ByteArrayInputStream(snapshot), params);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void unexpectedHashLeavesTheStoreAlone() throws Exception {
+        final byte[] snapshot = export();
+        final OffHeapFullPrunedBlockStore target = new OffHeapFullPrunedBlockStore(params, 10);
+        final StoredBlock head = target.getVerifiedChainHead();
+        try {
+            UtxoSnapshot.load(write(snapshot), params, target, executor, Sha256Hash.ZERO_HASH);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(head, target.getVerifiedChainHead());
+        assertEquals(0, target.getOutputCount());
+    }
+
+    @Test
+    public void corruptTailLeavesTheStoreAlone() throws Exception {
+        final byte[] snapshot = export();
+        snapshot[snapshot.length - 100] ^= 1;
+        final OffHeapFullPrunedBlockStore target = new OffHeapFullPrunedBlockStore(params, 10);
+        try {
+            UtxoSnapshot.load(write(snapshot), params, target, executor, null);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, target.getOutputCount());
+    }
+
+    @Test
+    public void hashDoesNotDependOnInsertionOrder() throws Exception {
+        final OffHeapFullPrunedBlockStore reversed = new OffHeapFullPrunedBlockStore(params, 10, OUTPUTS);
+        for (int i = OUTPUTS - 1; i >= 0; i--) {
+            reversed.addUnspentTransactionOutput(output(i));
+        }
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        UtxoSnapshot.export(reversed, reversed, params, block, bos);
+        assertArrayEquals(export(), bos.toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void writerRefusesUnorderedOutputs() throws Exception {
+        final UtxoSnapshot.Writer writer = new UtxoSnapshot.Writer(new ByteArrayOutputStream(), params,
+                ImmutableList.of(block));
+        final StoredTransactionOutput a = output(1);
+        final StoredTransactionOutput b = output(2);
+        final boolean aFirst = UtxoSnapshot.compareOutpoints(a, b) < 0;
+        writer.add(aFirst ? b : a);
+        writer.add(aFirst ? a : b);
+    }
+
+    @Test
+    public void chunksOutOfOrderAreRejected() throws Exception {
+        final byte[] snapshot = export();
+        // Header length: an empty snapshot is the header plus the end marker, count and hash.
+        final ByteArrayOutputStream empty = new ByteArrayOutputStream();
+        new UtxoSnapshot.Writer(empty, params, UtxoSnapshot.ancestry(source, params, block)).finish();
+        final int first = empty.size() - 4 - 8 - 32;
+        final int second = first + 8 + ByteBuffer.wrap(snapshot, first + 4, 4).getInt() + 32;
+        final int end = second + 8 + ByteBuffer.wrap(snapshot, second + 4, 4).getInt() + 32;
+
+        final byte[] swapped = snapshot.clone();
+        System.arraycopy(snapshot, second, swapped, first, end - second);
+        System.arraycopy(snapshot, first, swapped, first + end - second, second - first);
+        try {
+            UtxoSnapshot.verify(new ByteArrayInputStream(swapped), params);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Snapshot chunks out of outpoint order", e.getMessage());
+        }
+    }
+
+    @Test
+    public void chainGoesOnPastTheNextRetarget() throws Exception {
+        final NetworkParameters chainParams = new UnitTestParams(CoinLocator.discoverCoinDefinition()) {
+            private static final long serialVersionUID = 1;
+
+            @Override
+            public int getInterval(Block block, int height) {
+                return 10;
+            }
+
+            // Any timespan asks for an easier target then, which is capped at the easiest one the blocks use.
+            @Override
+            public int getTargetTimespan(Block block, int height) {
+                return 1;
+            }
+        };
+        final Address to = new ECKey().toAddress(chainParams);
+        final OffHeapFullPrunedBlockStore chainStore = new OffHeapFullPrunedBlockStore(chainParams, 10);
+        final FullPrunedBlockChain chain = new FullPrunedBlockChain(chainParams, chainStore);
+        Block tip = chainParams.getGenesisBlock();
+        for (int i = 0; i < 25; i++) {
+            tip = tip.createNextBlock(to);
+            assertTrue(chain.add(tip));
+        }
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        UtxoSnapshot.export(chainStore, chainStore, chainParams, chainStore.getVerifiedChainHead(), bos);
+
+        final OffHeapFullPrunedBlockStore target = new OffHeapFullPrunedBlockStore(chainParams, 10);
+        UtxoSnapshot.load(write(bos.toByteArray()), chainParams, target, executor, null);
+        final FullPrunedBlockChain resumed = new FullPrunedBlockChain(chainParams, target);
+        // Height 30 retargets, looking back at blocks only the snapshot carries.
+        for (int i = 0; i < 10; i++) {
+            tip = tip.createNextBlock(to);
+            assertTrue(resumed.add(tip));
+        }
+        assertEquals(35, resumed.getBestChainHeight());
+    }
+
+    @Test
+    public void truncatedSnapshotIsRejected() throws Exception {
+        final byte[] snapshot = export();
+        final byte[] truncated = new byte[snapshot.length - 40];
+        System.arraycopy(snapshot, 0, truncated, 0, truncated.length);
+        try {
+            UtxoSnapshot.verify(new ByteArrayInputStream(truncated), params);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private File write(byte[] snapshot) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(snapshot);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private byte[] export() throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        UtxoSnapshot.export(source, source, params, block, bos);
+        return bos.toByteArray();
+    }
+
+    private static StoredTransactionOutput output(int seed) {
+        final byte[] script = new byte[25];
+        script[0] = 0x76;
+        script[1] = (byte) 0xa9;
+        script[2] = 20;
+        script[3] = (byte) seed;
+        script[4] = (byte) (seed >> 8);
+        script[23] = (byte) 0x88;
+        script[24] = (byte) 0xac;
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] {(byte) seed, (byte) (seed >> 8)}), seed % 3,
+                Coin.valueOf(100000L * (seed + 1)), seed, false, script);
+    }
+
+}
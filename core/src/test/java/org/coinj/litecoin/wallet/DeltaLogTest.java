@@ -0,0 +1,167 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.wallet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaLogTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("deltalog", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void syncedRecordsSurviveReopen() throws Exception {
+        DeltaLog log = new DeltaLog(file);
+        assertTrue(replay(log).isEmpty());
+        log.append(new byte[] {1, 2, 3});
+        log.append(new byte[0]);
+        log.append(new byte[] {4});
+        log.close();
+
+        log = new DeltaLog(file);
+        final List<byte[]> records = replay(log);
+        assertEquals(3, records.size());
+        assertArrayEquals(new byte[] {1, 2, 3}, records.get(0));
+        assertArrayEquals(new byte[0], records.get(1));
+        assertArrayEquals(new byte[] {4}, records.get(2));
+
+        // Appends continue after the replayed records.
+        log.append(new byte[] {5});
+        log.close();
+        log = new DeltaLog(file);
+        assertEquals(4, replay(log).size());
+        log.close();
+    }
+
+    @Test
+    public void unsyncedRecordsAreLost() throws Exception {
+        final DeltaLog log = new DeltaLog(file);
+        replay(log);
+        log.append(new byte[] {1});
+        log.sync();
+        log.append(new byte[] {2});
+
+        final DeltaLog reopened = new DeltaLog(file);
+        assertEquals(1, replay(reopened).size());
+        reopened.close();
+    }
+
+    @Test
+    public void tornTailIsTruncated() throws Exception {
+        DeltaLog log = new DeltaLog(file);
+        replay(log);
+        log.append(new byte[] {1, 1, 1, 1});
+        log.append(new byte[] {2, 2, 2, 2});
+        log.close();
+        final long intact = file.length();
+
+        // A crash in the middle of the third record.
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(intact);
+        raf.writeInt(100);
+        raf.writeInt(0);
+        raf.write(new byte[10]);
+        raf.close();
+
+        log = new DeltaLog(file);
+        assertEquals(2, replay(log).size());
+        assertEquals(intact, file.length());
+        log.close();
+    }
+
+    @Test
+    public void corruptRecordEndsReplay() throws Exception {
+        DeltaLog log = new DeltaLog(file);
+        replay(log);
+        log.append(new byte[] {1, 1, 1, 1});
+        log.append(new byte[] {2, 2, 2, 2});
+        log.append(new byte[] {3, 3, 3, 3});
+        log.close();
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        // Header, first record (8 + 4), frame of the second record, then flip a payload byte.
+        raf.seek(4 + 12 + 8);
+        raf.write(9);
+        raf.close();
+
+        log = new DeltaLog(file);
+        assertEquals(1, replay(log).size());
+        log.close();
+    }
+
+    @Test
+    public void resetDropsEverything() throws Exception {
+        DeltaLog log = new DeltaLog(file);
+        replay(log);
+        for (int i = 0; i < 100; i++) {
+            log.append(new byte[64]);
+        }
+        log.sync();
+        assertEquals(100, log.getRecordCount());
+        log.reset();
+        log.append(new byte[] {7});
+        log.close();
+
+        log = new DeltaLog(file);
+        final List<byte[]> records = replay(log);
+        assertEquals(1, records.size());
+        assertArrayEquals(new byte[] {7}, records.get(0));
+        log.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignFile() throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeLong(42);
+        raf.close();
+        new DeltaLog(file);
+    }
+
+    private static List<byte[]> replay(DeltaLog log) throws IOException {
+        final List<byte[]> records = new ArrayList<byte[]>();
+        log.replay(new DeltaLog.Visitor() {
+            @Override
+            public void onRecord(byte[] payload) {
+                records.add(payload);
+            }
+        });
+        return records;
+    }
+
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionArchiveTest {
+
+    private File file;
+    private TransactionArchive archive;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("archive", null);
+        archive = new TransactionArchive(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        archive.close();
+        file.delete();
+    }
+
+    @Test
+    public void recordsComeBackFromTheMapping() throws Exception {
+        final Random random = new Random(17);
+        final int count = 100000;
+        final Sha256Hash[] hashes = new Sha256Hash[count];
+        final byte[][] records = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = randomHash(random);
+            records[i] = new byte[random.nextInt(300)];
+            random.nextBytes(records[i]);
+            archive.append(hashes[i], records[i]);
+        }
+        archive.seal();
+
+        assertEquals(count, archive.size());
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(records[i], toArray(archive.get(hashes[i])));
+        }
+        assertNull(archive.get(randomHash(random)));
+    }
+
+    @Test
+    public void sharedKeyPrefixIsResolvedByFullHash() throws Exception {
+        final Sha256Hash first = randomHash(new Random(1));
+        final byte[] bytes = first.getBytes().clone();
+        bytes[31] ^= 1;
+        final Sha256Hash second = new Sha256Hash(bytes.clone());
+        bytes[30] ^= 1;
+        final Sha256Hash absent = new Sha256Hash(bytes);
+
+        archive.append(first, new byte[] {1});
+        archive.append(second, new byte[] {2});
+        archive.seal();
+
+        assertArrayEquals(new byte[] {1}, toArray(archive.get(first)));
+        assertArrayEquals(new byte[] {2}, toArray(archive.get(second)));
+        assertTrue(archive.contains(second));
+        assertFalse(archive.contains(absent));
+    }
+
+    @Test
+    public void forEachVisitsEveryRecordOnce() throws Exception {
+        final Random random = new Random(5);
+        final HashMap<Sha256Hash, byte[]> expected = new HashMap<Sha256Hash, byte[]>();
+        for (int i = 0; i < 1000; i++) {
+            final Sha256Hash hash = randomHash(random);
+            final byte[] record = new byte[random.nextInt(100)];
+            random.nextBytes(record);
+            expected.put(hash, record);
+            archive.append(hash, record);
+        }
+        archive.seal();
+
+        archive.forEach(new TransactionArchive.Visitor() {
+            @Override
+            public void visit(Sha256Hash hash, ByteBuffer record) {
+                final byte[] bytes = expected.remove(hash);
+                assertNotNull(bytes);
+                assertArrayEquals(bytes, toArray(record));
+            }
+        });
+        assertTrue(expected.isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sealedArchiveRejectsAppends() throws Exception {
+        archive.seal();
+        archive.append(randomHash(new Random(1)), new byte[1]);
+    }
+
+    @Test
+    public void recordsAreReadOnly() throws Exception {
+        final Sha256Hash hash = randomHash(new Random(1));
+        archive.append(hash, new byte[] {1, 2});
+        archive.seal();
+        assertTrue(archive.get(hash).isReadOnly());
+    }
+
+    @Test
+    public void recordsAreIndexedInPlace() throws Exception {
+        final Random random = new Random(9);
+        final int count = 1000;
+        final Sha256Hash[] hashes = new Sha256Hash[count];
+        final byte[][] records = new byte[count][];
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final long[] positions = new long[count];
+        for (int i = 0; i < count; i++) {
+            // Some filler between records, then a record with its hash a few bytes in.
+            final byte[] filler = new byte[random.nextInt(10)];
+            random.nextBytes(filler);
+            bytes.write(filler);
+            hashes[i] = randomHash(random);
+            records[i] = new byte[40 + random.nextInt(100)];
+            random.nextBytes(records[i]);
+            System.arraycopy(hashes[i].getBytes(), 0, records[i], 4, 32);
+            positions[i] = bytes.size();
+            bytes.write(records[i]);
+        }
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes.toByteArray());
+        } finally {
+            out.close();
+        }
+
+        final TransactionArchive inPlace = TransactionArchive.over(file);
+        try {
+            for (int i = count - 1; i >= 0; i--) {
+                inPlace.index(hashes[i], positions[i], records[i].length, positions[i] + 4);
+            }
+            inPlace.seal();
+
+            assertEquals(file.length(), bytes.size());
+            for (int i = 0; i < count; i++) {
+                assertArrayEquals(records[i], toArray(inPlace.get(hashes[i])));
+            }
+            assertNull(inPlace.get(randomHash(random)));
+        } finally {
+            inPlace.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void archiveOverAFileRejectsAppends() throws Exception {
+        final TransactionArchive inPlace = TransactionArchive.over(file);
+        try {
+            inPlace.append(randomHash(new Random(1)), new byte[1]);
+        } finally {
+            inPlace.close();
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static Sha256Hash randomHash(Random random) {
+        final byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new Sha256Hash(bytes);
+    }
+
+}
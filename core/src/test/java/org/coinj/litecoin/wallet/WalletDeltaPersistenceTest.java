@@ -0,0 +1,126 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.wallet;
+
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.store.WalletProtobufSerializer;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.utils.ExchangeRate;
+import org.bitcoinj.utils.Fiat;
+import org.bitcoinj.wallet.Protos;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WalletDeltaPersistenceTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private final WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+    private File file;
+    private BlockStore blockStore;
+    private Wallet wallet;
+    private ECKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("wallet", null);
+        blockStore = new MemoryBlockStore(params);
+        wallet = new Wallet(params);
+        key = new ECKey();
+        wallet.importKey(key);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+        WalletDeltaPersistence.deltaFileFor(file).delete();
+    }
+
+    @Test
+    public void reloadedWalletMatchesAFullSnapshot() throws Exception {
+        final WalletDeltaPersistence persistence = WalletDeltaPersistence.create(wallet, file, serializer);
+
+        final Transaction parent = FakeTxBuilder.createFakeTx(params, Coin.COIN, key);
+        receiveInBlock(parent);
+        persistence.commit();
+
+        // A pending spend with an exchange rate, announced by a peer, then overridden by a double spend in a block.
+        final Transaction spend = new Transaction(params);
+        spend.addInput(parent.getOutput(0));
+        spend.addOutput(Coin.CENT, new ECKey().toAddress(params));
+        spend.setExchangeRate(new ExchangeRate(Fiat.parseFiat("USD", "250")));
+        wallet.receivePending(spend, null);
+        spend.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, 1}), params.getPort()));
+        persistence.commit();
+
+        final Transaction doubleSpend = new Transaction(params);
+        doubleSpend.addInput(parent.getOutput(0));
+        doubleSpend.addOutput(Coin.CENT, key.toAddress(params));
+        receiveInBlock(doubleSpend);
+        assertEquals(TransactionConfidence.ConfidenceType.DEAD, spend.getConfidence().getConfidenceType());
+        persistence.commit();
+
+        // Everything after the first snapshot went through the delta log.
+        assertEquals(1, persistence.getCompactionCount());
+        assertTrue(persistence.getDeltaLogSize() > 0);
+        final Protos.Wallet expected = serializer.walletToProto(wallet);
+        persistence.close();
+
+        final WalletDeltaPersistence reloaded = WalletDeltaPersistence.load(file, params, serializer, null);
+        final Protos.Wallet actual = serializer.walletToProto(reloaded.getWallet());
+        reloaded.close();
+        assertEquals(3, actual.getTransactionCount());
+        assertEquals(byHash(expected), byHash(actual));
+        assertEquals(expected.toBuilder().clearTransaction().build(), actual.toBuilder().clearTransaction().build());
+    }
+
+    private void receiveInBlock(Transaction tx) throws Exception {
+        final StoredBlock block = FakeTxBuilder.createFakeBlock(blockStore, tx).storedBlock;
+        wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+    }
+
+    // Transactions come out of the wallet's pools in no particular order.
+    private static HashMap<ByteString, Protos.Transaction> byHash(Protos.Wallet proto) {
+        final HashMap<ByteString, Protos.Transaction> transactions = new HashMap<ByteString, Protos.Transaction>();
+        for (Protos.Transaction tx : proto.getTransactionList()) {
+            transactions.put(tx.getHash(), tx);
+        }
+        return transactions;
+    }
+
+}
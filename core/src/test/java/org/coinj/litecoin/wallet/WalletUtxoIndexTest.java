@@ -0,0 +1,218 @@
+/**
+ * Copyright 2015 BitTechCenter Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.coinj.litecoin.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.Wallet;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WalletUtxoIndexTest {
+
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final byte[] SCRIPT = new byte[25];
+
+    private final Random random = new Random(5);
+    private WalletUtxoIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        index = new WalletUtxoIndex();
+        index.setBestHeight(1000);
+    }
+
+    @Test
+    public void balancesRespectDepth() throws Exception {
+        index.addOutput(randomHash(), 0, Coin.valueOf(100), SCRIPT, false, 900);
+        index.addOutput(randomHash(), 0, Coin.valueOf(200), SCRIPT, false, 1000);
+        index.addOutput(randomHash(), 0, Coin.valueOf(400), SCRIPT, false, -1);
+
+        assertEquals(Coin.valueOf(700), index.getTotalBalance());
+        assertEquals(Coin.valueOf(700), index.getSpendableBalance(0));
+        assertEquals(Coin.valueOf(300), index.getSpendableBalance(1));
+        assertEquals(Coin.valueOf(100), index.getSpendableBalance(2));
+        assertEquals(Coin.valueOf(100), index.getSpendableBalance(101));
+        assertEquals(Coin.ZERO, index.getSpendableBalance(102));
+    }
+
+    @Test
+    public void coinbaseMaturesAtSpendableDepth() throws Exception {
+        final Sha256Hash coinbase = randomHash();
+        // Depth 99.
+        index.addOutput(coinbase, 0, Coin.valueOf(5000), SCRIPT, true, 902);
+        assertEquals(Coin.ZERO, index.getSpendableBalance(0));
+        assertTrue(index.select(Coin.valueOf(1000), 0).getGathered().isEmpty());
+
+        index.setBestHeight(1001);
+        assertEquals(Coin.valueOf(5000), index.getSpendableBalance(1));
+        assertEquals(1, index.select(Coin.valueOf(1000), 1).getGathered().size());
+
+        // Reorganised out: an unconfirmed coinbase is never spendable.
+        index.setHeight(coinbase, -1);
+        assertEquals(Coin.ZERO, index.getSpendableBalance(0));
+        assertEquals(Coin.valueOf(5000), index.getTotalBalance());
+    }
+
+    @Test
+    public void selectPrefersSingleLargerOutput() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            index.addOutput(randomHash(), 0, Coin.valueOf(1000 + i), SCRIPT, false, 500);
+        }
+        index.addOutput(randomHash(), 1, Coin.valueOf(1000000), SCRIPT, false, 500);
+
+        final WalletUtxoIndex.Selection selection = index.select(Coin.valueOf(5000), 1);
+        assertEquals(1, selection.getGathered().size());
+        assertEquals(Coin.valueOf(1000000), selection.getValueGathered());
+    }
+
+    @Test
+    public void selectGathersSmallerOutputs() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            index.addOutput(randomHash(), i, Coin.valueOf(1000), SCRIPT, false, 500);
+        }
+        final WalletUtxoIndex.Selection selection = index.select(Coin.valueOf(5500), 1);
+        assertEquals(6, selection.getGathered().size());
+        assertEquals(Coin.valueOf(6000), selection.getValueGathered());
+
+        final WalletUtxoIndex.Selection tooMuch = index.select(Coin.valueOf(200000), 1);
+        assertEquals(Coin.valueOf(100000), tooMuch.getValueGathered());
+    }
+
+    @Test
+    public void spendRemovesOutput() throws Exception {
+        final Sha256Hash tx = randomHash();
+        index.addOutput(tx, 0, Coin.valueOf(100), SCRIPT, false, 900);
+        index.addOutput(tx, 1, Coin.valueOf(200), SCRIPT, false, 900);
+        // Indexing the same output twice is a no-op.
+        index.addOutput(tx, 1, Coin.valueOf(200), SCRIPT, false, 900);
+        assertEquals(2, index.size());
+
+        assertNotNull(index.spend(tx, 1));
+        assertNull(index.spend(tx, 1));
+        assertEquals(1, index.size());
+        assertEquals(Coin.valueOf(100), index.getSpendableBalance(1));
+        assertEquals(Coin.valueOf(100), index.select(Coin.valueOf(150), 1).getValueGathered());
+    }
+
+    @Test
+    public void deadSpenderGivesOutputsBack() throws Exception {
+        final Wallet wallet = new Wallet(params);
+        final ECKey key = new ECKey();
+        wallet.importKey(key);
+        final Transaction parent = FakeTxBuilder.createFakeTx(params, Coin.valueOf(50000), key);
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, parent));
+        index.onTransaction(parent, -1, wallet);
+
+        final Transaction spender = new Transaction(params);
+        spender.addInput(parent.getOutput(0));
+        spender.addOutput(Coin.valueOf(40000), key.toAddress(params));
+        index.onTransaction(spender, -1, wallet);
+        assertEquals(Coin.valueOf(40000), index.getTotalBalance());
+
+        spender.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.DEAD);
+        index.onTransactionDead(spender, wallet);
+        assertEquals(1, index.size());
+        assertEquals(Coin.valueOf(50000), index.getTotalBalance());
+    }
+
+    @Test
+    public void overriddenSpenderLeavesOutputsSpent() throws Exception {
+        final Wallet wallet = new Wallet(params);
+        final ECKey key = new ECKey();
+        wallet.importKey(key);
+        final Transaction parent = FakeTxBuilder.createFakeTx(params, Coin.valueOf(50000), key);
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, parent));
+        index.onTransaction(parent, -1, wallet);
+
+        final Transaction spender = new Transaction(params);
+        spender.addInput(parent.getOutput(0));
+        spender.addOutput(Coin.valueOf(40000), new ECKey().toAddress(params));
+        index.onTransaction(spender, -1, wallet);
+        final Transaction overriding = new Transaction(params);
+        final TransactionInput input = overriding.addInput(parent.getOutput(0));
+        overriding.addOutput(Coin.valueOf(30000), new ECKey().toAddress(params));
+        parent.getOutput(0).markAsSpent(input);
+        index.onTransaction(overriding, 1000, wallet);
+
+        spender.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.DEAD);
+        index.onTransactionDead(spender, wallet);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void attachedIndexFollowsTheWallet() throws Exception {
+        final Wallet wallet = new Wallet(params);
+        final ECKey key = new ECKey();
+        wallet.importKey(key);
+        final Transaction parent = FakeTxBuilder.createFakeTx(params, Coin.valueOf(50000), key);
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, parent));
+        final WalletUtxoIndex attached = WalletUtxoIndex.attachedTo(wallet);
+        assertEquals(1, attached.size());
+
+        final Transaction received = FakeTxBuilder.createFakeTx(params, Coin.valueOf(20000), key);
+        wallet.receivePending(received, null);
+        assertEquals(2, attached.size());
+        assertEquals(Coin.valueOf(70000), attached.getTotalBalance());
+    }
+
+    @Test
+    public void largeWalletSelection() throws Exception {
+        final int count = 500000;
+        final Sha256Hash[] hashes = new Sha256Hash[count];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = randomHash();
+            index.addOutput(hashes[i], 0, Coin.valueOf(100000 + random.nextInt(10000000)), SCRIPT, false, random.nextInt(1001));
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            final Coin target = Coin.valueOf(1000000 + random.nextInt(50000000));
+            final WalletUtxoIndex.Selection selection = index.select(target, 6);
+            assertTrue(selection.getValueGathered().compareTo(target) >= 0);
+            index.getSpendableBalance(6);
+        }
+        final long micros = (System.nanoTime() - start) / 1000 / 1000;
+        System.out.println("Selection and balance over " + count + " outputs took " + micros + " us on average");
+
+        for (int i = 0; i < count; i += 2) {
+            index.spend(hashes[i], 0);
+        }
+        assertEquals(count / 2, index.size());
+    }
+
+    private Sha256Hash randomHash() {
+        final byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new Sha256Hash(bytes);
+    }
+
+}
@@ -0,0 +1,97 @@
+package org.coinj.litecoin;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.TestNet3Params;
+import org.coinj.api.CoinLocator;
+import org.coinj.litecoin.store.LsmFullPrunedBlockStore;
+import org.coinj.litecoin.store.UtxoSnapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Exports, imports and checks UTXO snapshots of {@link LsmFullPrunedBlockStore} directories:
+ * <pre>
+ * export &lt;store dir&gt; &lt;snapshot file&gt; [testnet]
+ * import &lt;snapshot file&gt; &lt;empty store dir&gt; [expected snapshot hash] [testnet]
+ * verify &lt;snapshot file&gt; [testnet]
+ * </pre>
+ */
+public final class UtxoSnapshotTool {
+
+    private static final int FULL_STORE_DEPTH = 1000;
+
+    public static void main(String[] args) {
+        CoinLocator.registerCoin(LitecoinDefinition.INSTANCE);
+        if (args.length < 2) {
+            usage();
+            return;
+        }
+        final NetworkParameters params = "testnet".equals(args[args.length - 1]) ? TestNet3Params.get() : MainNetParams.get();
+        try {
+            if ("export".equals(args[0]) && args.length >= 3) {
+                export(params, new File(args[1]), new File(args[2]));
+            } else if ("import".equals(args[0]) && args.length >= 3) {
+                final Sha256Hash expected = args.length >= 4 && !"testnet".equals(args[3]) ? new Sha256Hash(args[3]) : null;
+                load(params, new File(args[1]), new File(args[2]), expected);
+            } else if ("verify".equals(args[0])) {
+                final InputStream in = new BufferedInputStream(new FileInputStream(args[1]));
+                try {
+                    System.out.println("Snapshot hash " + UtxoSnapshot.verify(in, params));
+                } finally {
+                    in.close();
+                }
+            } else {
+                usage();
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private static void export(NetworkParameters params, File directory, File file) throws Exception {
+        final LsmFullPrunedBlockStore store = new LsmFullPrunedBlockStore(params, directory, FULL_STORE_DEPTH);
+        try {
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024);
+            try {
+                final Sha256Hash hash = UtxoSnapshot.export(store, store, params, store.getVerifiedChainHead(), out);
+                System.out.println("Exported height " + store.getVerifiedChainHead().getHeight() + ", snapshot hash " + hash);
+            } finally {
+                out.close();
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void load(NetworkParameters params, File file, File directory, Sha256Hash expected) throws Exception {
+        final LsmFullPrunedBlockStore store = new LsmFullPrunedBlockStore(params, directory, FULL_STORE_DEPTH);
+        final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            final Sha256Hash hash = UtxoSnapshot.load(file, params, store, executor, expected);
+            System.out.println("Imported height " + store.getVerifiedChainHead().getHeight() + ", snapshot hash " + hash);
+        } finally {
+            executor.shutdown();
+            store.close();
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage:");
+        System.out.println("  export <store dir> <snapshot file> [testnet]");
+        System.out.println("  import <snapshot file> <empty store dir> [expected snapshot hash] [testnet]");
+        System.out.println("  verify <snapshot file> [testnet]");
+    }
+
+    private UtxoSnapshotTool() {}
+
+}